@@ -0,0 +1,239 @@
+package io.foolsday.quadbridge;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import io.foolsday.quadbridge.core.Calibration;
+import io.foolsday.quadbridge.core.ControlState;
+import io.foolsday.quadbridge.core.event.EventTopic;
+import io.foolsday.quadbridge.core.filter.RotationVectorFilter;
+import io.foolsday.quadbridge.core.filter.SamplePipeline;
+import io.foolsday.quadbridge.core.link.BridgeProtocol;
+import io.foolsday.quadbridge.core.link.BridgeTransport;
+import io.foolsday.quadbridge.core.link.LinkEventLoop;
+import io.foolsday.quadbridge.core.link.OperationQueue;
+import io.foolsday.quadbridge.core.link.QuadLink;
+
+/**
+ * Verifies that a steady-state tick of the sensor->model->radio path doesn't allocate: the
+ * sample goes through Accel's filter and calibration, the accelerometer and model topics and
+ * QuadModel, and the resulting tick through QuadLink's event loop, the version 2 batch encoder
+ * and the GATT operation queue to the transport.
+ *
+ * The event loop is never started; the test thread runs it after every step, so everything
+ * that is measured happens on that thread. The test also makes the scheduler's ticks itself.
+ */
+public class ControlPathAllocationTest extends AndroidTestCase {
+
+    private static final int WARMUP_TICKS = 100;
+    private static final int MEASURED_TICKS = 1000;
+    private static final long SAMPLE_INTERVAL_NS = 5000000L;
+    private static final long WRITE_TIMEOUT_NS = 500000000L;
+    // Keeps the link's own scheduler from ticking in between the test's ticks.
+    private static final int IDLE_CONTROL_INTERVAL_MS = 60000;
+
+    /**
+     * Stands in for the GATT client. Like BLE, every write goes through an OperationQueue; it
+     * completes when the test says so.
+     */
+    private static class FakeTransport implements BridgeTransport {
+
+        private final OperationQueue mQueue = new OperationQueue();
+        private final OperationQueue.Operation mWriteOp = new OperationQueue.Operation() {
+            @Override
+            public boolean start() {
+                return true;
+            }
+        };
+        private Callback mCallback;
+
+        @Override
+        public void setCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            return mQueue.enqueue(mWriteOp, OperationQueue.PRIORITY_CONTROL, WRITE_TIMEOUT_NS);
+        }
+
+        @Override
+        public int getMaxPendingWrites() {
+            return 1;
+        }
+
+        public void completeWrite() {
+            assertTrue(mQueue.onOperationComplete(mWriteOp));
+            mCallback.onWriteComplete(true);
+        }
+
+        public void notify(byte[] data) {
+            mCallback.onNotification(data);
+        }
+    }
+
+    /**
+     * Hands model updates to the link like BLE does, and remembers them for the next tick.
+     */
+    private static class LinkSink implements QuadModel.QuadModelEventListener {
+
+        private final QuadLink mLink;
+        private int mState;
+        private long mSampleTimeNs;
+        private long mModelTimeNs;
+
+        public LinkSink(QuadLink link) {
+            mLink = link;
+        }
+
+        @Override
+        public void onModelUpdate(int throttle,
+                                  int pitch,
+                                  int roll,
+                                  int yaw,
+                                  boolean isBound,
+                                  long sampleTimeNs,
+                                  long modelTimeNs) {
+            mLink.update(throttle, pitch, roll, yaw, sampleTimeNs, modelTimeNs);
+            mState = ControlState.pack(throttle, pitch, roll, yaw);
+            mSampleTimeNs = sampleTimeNs;
+            mModelTimeNs = modelTimeNs;
+        }
+
+        public void tick() {
+            mLink.onControlTick(mState, mSampleTimeNs, mModelTimeNs);
+        }
+    }
+
+    private final float[] mRotationVector = new float[4];
+    private final float[] mSample = new float[3];
+    private final QuadBus.AccelEvent mAccelEvent = new QuadBus.AccelEvent();
+
+    private QuadBus mBus;
+    private QuadModel mModel;
+    private SamplePipeline mPipeline;
+    private LinkEventLoop mLoop;
+    private FakeTransport mTransport;
+    private QuadLink mLink;
+    private LinkSink mSink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBus = new QuadBus();
+        mModel = new QuadModel(mBus);
+        mBus.getAccelTopic().subscribe(mModel, EventTopic.DELIVERY_INLINE);
+
+        mPipeline = new SamplePipeline();
+        mPipeline.setFilter(new RotationVectorFilter());
+        mPipeline.setCalibration(new Calibration(9.8f, 0.25f, -0.5f, 0.125f));
+
+        mLoop = new LinkEventLoop();
+        mTransport = new FakeTransport();
+        mLink = new QuadLink(mTransport, new QuadLink.LinkEventListener() {
+            @Override
+            public void onConnected(int protocolVersion) {}
+
+            @Override
+            public void onBound() {}
+
+            @Override
+            public void onUnbound() {}
+
+            @Override
+            public void onLinkError(String errString) {
+                fail(errString);
+            }
+
+            @Override
+            public void onTransportError(String errString) {
+                fail(errString);
+            }
+        }, mLoop);
+        mLink.setControlIntervalMs(IDLE_CONTROL_INTERVAL_MS);
+
+        mSink = new LinkSink(mLink);
+        mBus.getModelTopic().subscribe(mSink, EventTopic.DELIVERY_INLINE);
+        // Handing updates to a coalesced subscriber must not allocate on the publisher either.
+        mBus.getModelTopic().subscribe(new QuadModel.QuadModelEventListener() {
+            @Override
+            public void onModelUpdate(int throttle,
+                                      int pitch,
+                                      int roll,
+                                      int yaw,
+                                      boolean isBound,
+                                      long sampleTimeNs,
+                                      long modelTimeNs) {}
+        }, EventTopic.DELIVERY_COALESCED);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Stops the link's scheduler thread.
+        mLink.reset();
+        mLoop.run();
+        super.tearDown();
+    }
+
+    public void testSteadyStateTickDoesNotAllocate() {
+        mLink.negotiate();
+        mLoop.run();
+        mTransport.completeWrite();
+        mTransport.notify(new byte[] {
+                BridgeProtocol.BLE_RESPONSE_VERSION, BridgeProtocol.VERSION_2});
+        mLoop.run();
+        assertEquals(BridgeProtocol.VERSION_2, mLink.getProtocolVersion());
+
+        mModel.bind();
+        mLink.bind();
+        mLoop.run();
+        mTransport.completeWrite();
+        mTransport.notify(new byte[] {BridgeProtocol.BLE_RESPONSE_BOUND});
+        mLoop.run();
+        assertTrue(mLink.isBound());
+        mModel.throttleUp();
+
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            tick(i);
+        }
+
+        long ctlWrites = mLink.getCtlWrites();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < MEASURED_TICKS; i++) {
+            tick(WARMUP_TICKS + i);
+        }
+        int allocCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals("Allocations during " + MEASURED_TICKS + " ticks", 0, allocCount);
+        // Every tick really went out as a frame.
+        assertEquals(MEASURED_TICKS, (mLink.getCtlWrites() - ctlWrites));
+    }
+
+    private void tick(int i) {
+        long timestampNs = ((i + 1) * SAMPLE_INTERVAL_NS);
+
+        // A slow rock about x, as TYPE_GAME_ROTATION_VECTOR would report it.
+        double halfAngle = (((i % 40) - 20) * 0.01);
+        mRotationVector[0] = (float) Math.sin(halfAngle);
+        mRotationVector[1] = 0;
+        mRotationVector[2] = 0;
+        mRotationVector[3] = (float) Math.cos(halfAngle);
+        mPipeline.onRotationVector(mRotationVector, timestampNs);
+
+        // What Accel.onSensorChanged() does with an accelerometer sample.
+        mSample[0] = (((i % 20) - 10) * 0.5f);
+        mSample[1] = (((i % 14) - 7) * 0.5f);
+        mSample[2] = 9.8f;
+        mPipeline.process(mSample, timestampNs);
+        mAccelEvent.set(mSample[0], mSample[1], mSample[2], 9.8f, timestampNs);
+        mBus.getAccelTopic().publish(mAccelEvent);
+
+        // What the link's scheduler does on its next tick, and the radio's completion.
+        mSink.tick();
+        mLoop.run();
+        mTransport.completeWrite();
+        mLoop.run();
+    }
+}
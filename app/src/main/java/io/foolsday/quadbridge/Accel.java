@@ -1,70 +1,312 @@
 package io.foolsday.quadbridge;
 
-import android.app.Activity;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 
-import java.util.ArrayList;
+import io.foolsday.quadbridge.core.Calibration;
+import io.foolsday.quadbridge.core.SampleRateController;
+import io.foolsday.quadbridge.core.filter.ComplementaryFilter;
+import io.foolsday.quadbridge.core.filter.LowPassFilter;
+import io.foolsday.quadbridge.core.filter.RotationVectorFilter;
+import io.foolsday.quadbridge.core.event.EventTopic;
+import io.foolsday.quadbridge.core.filter.SampleFilter;
+import io.foolsday.quadbridge.core.filter.SamplePipeline;
 
-public class Accel implements SensorEventListener {
+public class Accel implements SensorEventListener, SampleRateController.SampleRateListener {
 
-    public static final int UPDATE_INTERVAL_US = 30000;
+    public static final int UPDATE_INTERVAL_US = SampleRateController.DEFAULT_INTERVAL_US;
+
+    // Sensor events (and everything the listeners do with them) run on the UI thread.
+    public static final int UI_THREAD_PIPELINE = 0;
+    // Sensor events run on a dedicated high-priority thread so that layout passes, dialogs and
+    // other main looper work can't delay the model or the radio. Listeners that touch views
+    // must hand their data over to the UI thread themselves.
+    public static final int SENSOR_THREAD_PIPELINE = 1;
+
+    // Samples are passed to the listeners as they come from the accelerometer.
+    public static final int NO_FILTER = 0;
+    // A moving average removes hand tremor and vibration.
+    public static final int LOW_PASS_FILTER = 1;
+    // The gyroscope tracks quick tilts while the accelerometer corrects its drift.
+    public static final int COMPLEMENTARY_FILTER = 2;
+    // The hardware's own accelerometer/gyroscope fusion (TYPE_GAME_ROTATION_VECTOR).
+    public static final int ROTATION_VECTOR_FILTER = 3;
 
     public static interface AccelEventListener {
-        public void onAccelUpdate(float x, float y, float z, float maxAccel);
+        /**
+         * @param timestampNs The SensorEvent timestamp, which is based on
+         *                    SystemClock.elapsedRealtimeNanos.
+         */
+        public void onAccelUpdate(float x, float y, float z, float maxAccel, long timestampNs);
     }
 
     private static final float DEFAULT_MAX_ACCEL_VALUE = 1.0F;
+    private static final String SENSOR_THREAD_NAME = "AccelPipeline";
+    // How long the first sample may wait for the stored calibration. Loading normally finishes
+    // long before the sensor starts, so this only matters on a slow first read of the file.
+    private static final long CALIBRATION_LOAD_TIMEOUT_MS = 250;
+    // Steering only uses the tilt, which reads one g at most on any axis. A shake or a drop
+    // reads several, and storing that would shrink the steering on every later launch.
+    private static final float MAX_STORED_RANGE = (1.1F * SensorManager.GRAVITY_EARTH);
 
     private SensorManager mSensorManager;
     private Sensor mSensor;
+    private Sensor mGyroSensor;
+    private Sensor mRotationVectorSensor;
 
-    private ArrayList<AccelEventListener> mListeners;
+    private int mFilterMode;
+    // Filters and then calibrates each sample. Belongs to the sensor thread.
+    private final SamplePipeline mPipeline = new SamplePipeline();
+    private final float[] mSample = new float[3];
+
+    // Subscribers choose how samples reach them; the model takes them inline.
+    private final EventTopic<QuadBus.AccelEvent, AccelEventListener> mTopic;
+    private final QuadBus.AccelEvent mEvent = new QuadBus.AccelEvent();
+    private final int mPipelineMode;
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+    private boolean mRunning;
+    private int mSampleIntervalUs = UPDATE_INTERVAL_US;
+    private int mMaxReportLatencyUs = 0;
+    // Re-registers the sensors at the current rate. Posted to the sensor handler so that
+    // rate changes never make binder calls on the thread that reported them.
+    private final Runnable mRegisterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Accel.this) {
+                if (!mRunning) {
+                    return;
+                }
+                // NOTE: Events that were already queued at the old rate are still delivered,
+                //       and the filters work from the event timestamps so they don't need
+                //       resetting.
+                mSensorManager.unregisterListener(Accel.this);
+                registerSensors();
+            }
+        }
+    };
+
+    // While batching, a whole FIFO flush is filtered first and only the newest sample is passed
+    // on, once, from mDeliverRunnable.
+    private volatile boolean mBatching;
+    private boolean mDeliveryPending;
+    private long mSampleTimestampNs;
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDeliveryPending = false;
+            notifyListeners(mMaxVal);
+        }
+    };
 
     // The maximum value differs on each device. The getMaximumRange function does not seem
-    // to be reliable.
-    private float mMaxVal = DEFAULT_MAX_ACCEL_VALUE;
+    // to be reliable, so the value that was discovered on an earlier run is stored with the
+    // calibration.
+    private volatile float mMaxVal = DEFAULT_MAX_ACCEL_VALUE;
+    private final CalibrationStore mCalibrationStore;
+    // Null until the stored calibration has been applied. Only replaced on the sensor thread.
+    private volatile Calibration mCalibration;
+    private volatile boolean mCaptureRequested;
     private int mAccuracy = SensorManager.SENSOR_STATUS_ACCURACY_LOW;
 
-    private float mXVal = 0;
-    private float mYVal = 0;
-    private float mZVal = 0;
+    private volatile float mXVal = 0;
+    private volatile float mYVal = 0;
+    private volatile float mZVal = 0;
+
+    public Accel(Context context, QuadBus bus) {
+        this(context, UI_THREAD_PIPELINE, bus);
+    }
+
+    /**
+     * @param context
+     * @param pipelineMode
+     * @param bus Samples are published to its accelerometer topic.
+     */
+    public Accel(Context context, int pipelineMode, QuadBus bus) {
+        mPipelineMode = pipelineMode;
+        mTopic = bus.getAccelTopic();
 
-    public Accel(Activity activity) {
         // Make sure than an accelerometer is present.
-        mSensorManager = (SensorManager) activity.getSystemService(Context.SENSOR_SERVICE);
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mGyroSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        mRotationVectorSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+
+        mFilterMode = NO_FILTER;
+
+        // Start reading the calibration now so that it's ready before the first sample.
+        mCalibrationStore = new CalibrationStore(context, mSensor);
+        mCalibrationStore.loadAsync();
+    }
+
+    /**
+     * Measures the zero offsets over the next few samples. The phone should be held level,
+     * screen up, until it's done. The result is stored for the next launch.
+     */
+    public void captureZeroOffsets() {
+        mCaptureRequested = true;
+    }
+
+    /**
+     * Selects the filter between the accelerometer and the listeners. If the requested filter
+     * needs a sensor that the device lacks the next best one is used instead: the rotation
+     * vector falls back to the complementary filter, which falls back to the low-pass filter.
+     * This should be called while stopped.
+     *
+     * @param filterMode
+     * @return The filter mode that is actually used.
+     */
+    public int setFilterMode(int filterMode) {
+        if ((ROTATION_VECTOR_FILTER == filterMode) && (null == mRotationVectorSensor)) {
+            filterMode = COMPLEMENTARY_FILTER;
+        }
+        if ((COMPLEMENTARY_FILTER == filterMode) && (null == mGyroSensor)) {
+            filterMode = LOW_PASS_FILTER;
+        }
 
-        mListeners = new ArrayList<>();
+        SampleFilter filter;
+        switch (filterMode) {
+            case LOW_PASS_FILTER:
+                filter = new LowPassFilter();
+                break;
+            case COMPLEMENTARY_FILTER:
+                filter = new ComplementaryFilter();
+                break;
+            case ROTATION_VECTOR_FILTER:
+                filter = new RotationVectorFilter();
+                break;
+            default:
+                filterMode = NO_FILTER;
+                filter = null;
+                break;
+        }
+
+        mPipeline.setFilter(filter);
+        mFilterMode = filterMode;
+        return mFilterMode;
+    }
+
+    public int getFilterMode() {
+        return mFilterMode;
     }
 
     public boolean hasSensor() {
         return (null != mSensor);
     }
 
-    public void addListener(AccelEventListener listener) {
-        if (!mListeners.contains(listener)) {
-            mListeners.add(listener);
+
+    /**
+     * Starts the sensors. Does nothing while they are running, so that calling this again never
+     * disturbs the filter or the sample rate.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+
+        if (SENSOR_THREAD_PIPELINE == mPipelineMode) {
+            if (null == mSensorThread) {
+                mSensorThread = new HandlerThread(SENSOR_THREAD_NAME,
+                        Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                mSensorThread.start();
+            }
+            mSensorHandler = new Handler(mSensorThread.getLooper());
+        } else {
+            mSensorHandler = new Handler(Looper.getMainLooper());
+        }
+        mDeliveryPending = false;
+
+        // The filter belongs to the sensor thread, so it's reset there, ahead of the first
+        // sample.
+        mSensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.reset();
+            }
+        });
+
+        registerSensors();
+        mRunning = true;
+    }
+
+    /**
+     * Changes the sampling interval and the batching. If the sensors are running they are
+     * re-registered on the sensor handler shortly after, since this may be called on the link's
+     * event loop or under the model's lock. With a non-zero report latency the samples collect
+     * in the sensor hub's FIFO (on devices that have one) and arrive in bursts.
+     *
+     * @param intervalUs
+     * @param maxReportLatencyUs
+     */
+    @Override
+    public synchronized void onSampleRateChanged(int intervalUs, int maxReportLatencyUs) {
+        if ((intervalUs == mSampleIntervalUs) && (maxReportLatencyUs == mMaxReportLatencyUs)) {
+            return;
+        }
+        mSampleIntervalUs = intervalUs;
+        mMaxReportLatencyUs = maxReportLatencyUs;
+        mBatching = (0 < maxReportLatencyUs);
+
+        if (mRunning) {
+            // Several changes in quick succession only re-register once.
+            mSensorHandler.removeCallbacks(mRegisterRunnable);
+            mSensorHandler.post(mRegisterRunnable);
         }
     }
 
-    public void removeListener(AccelEventListener listener) {
-        if (mListeners.contains(listener)) {
-            mListeners.remove(listener);
+    public synchronized int getSampleIntervalUs() {
+        return mSampleIntervalUs;
+    }
+
+    private void registerSensors() {
+        // The auxiliary sensors are delivered on the same thread as the accelerometer so the
+        // filters never need to synchronize.
+        registerSensor(mSensor);
+        if (COMPLEMENTARY_FILTER == mFilterMode) {
+            registerSensor(mGyroSensor);
+        } else if (ROTATION_VECTOR_FILTER == mFilterMode) {
+            registerSensor(mRotationVectorSensor);
         }
     }
 
-    public void start() {
-        mSensorManager.registerListener(this,
-                mSensor,
-                UPDATE_INTERVAL_US);
+    private void registerSensor(Sensor sensor) {
+        if (0 < mMaxReportLatencyUs) {
+            mSensorManager.registerListener(this,
+                    sensor,
+                    mSampleIntervalUs,
+                    mMaxReportLatencyUs,
+                    mSensorHandler);
+        } else {
+            mSensorManager.registerListener(this, sensor, mSampleIntervalUs, mSensorHandler);
+        }
     }
 
-    public void stop() {
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
         mSensorManager.unregisterListener(this);
+
+        // Keep whatever range was discovered during this run for the next one.
+        Calibration calibration = mCalibration;
+        float maxVal = Math.min(mMaxVal, MAX_STORED_RANGE);
+        if ((null != calibration) && (maxVal > calibration.getMaxRange())) {
+            mCalibrationStore.save(calibration.withMaxRange(maxVal));
+        }
+
+        if (null != mSensorThread) {
+            // Let any events that were already queued drain before the thread exits.
+            mSensorThread.quitSafely();
+            mSensorThread = null;
+        }
     }
 
     @Override
@@ -76,19 +318,73 @@ public class Accel implements SensorEventListener {
 
     @Override
     public final void onSensorChanged(SensorEvent event) {
-        // NOTE: This function is called on the UI thread.
-        mXVal = event.values[0];
-        mYVal = event.values[1];
-        mZVal = event.values[2];
+        // NOTE: This function is called on the UI thread or on the sensor thread, depending on
+        //       the pipeline mode.
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_GYROSCOPE:
+                mPipeline.onGyroSample(event.values, event.timestamp);
+                return;
+            case Sensor.TYPE_GAME_ROTATION_VECTOR:
+                mPipeline.onRotationVector(event.values, event.timestamp);
+                return;
+            default:
+                break;
+        }
 
-        // The max value can't be determined in advance so it will be discovered empirically.
-        mMaxVal = Math.max(Math.abs(mXVal), Math.abs(mMaxVal));
-        mMaxVal = Math.max(Math.abs(mYVal), Math.abs(mMaxVal));
-        mMaxVal = Math.max(Math.abs(mZVal), Math.abs(mMaxVal));
+        Calibration calibration = mCalibration;
+        if (null == calibration) {
+            calibration = mCalibrationStore.await(CALIBRATION_LOAD_TIMEOUT_MS);
+            mCalibration = calibration;
+            mMaxVal = Math.max(DEFAULT_MAX_ACCEL_VALUE,
+                    Math.min(calibration.getMaxRange(), MAX_STORED_RANGE));
+            mPipeline.setCalibration(calibration);
+        }
 
-        for (AccelEventListener listener : mListeners) {
-            listener.onAccelUpdate(mXVal, mYVal, mZVal, mMaxVal);
+        if (mCaptureRequested) {
+            mCaptureRequested = false;
+            mPipeline.startCapture();
         }
+
+        mSample[0] = event.values[0];
+        mSample[1] = event.values[1];
+        mSample[2] = event.values[2];
+        if (mPipeline.process(mSample, event.timestamp)) {
+            calibration = mPipeline.getCalibration();
+            mCalibration = calibration;
+            mMaxVal = Math.max(DEFAULT_MAX_ACCEL_VALUE, calibration.getMaxRange());
+            mCalibrationStore.save(calibration);
+        }
+
+        mXVal = mSample[0];
+        mYVal = mSample[1];
+        mZVal = mSample[2];
+
+        // The max value can't be determined in advance so it will be discovered empirically,
+        // starting from the stored value.
+        float maxVal = mMaxVal;
+        maxVal = Math.max(Math.abs(mXVal), maxVal);
+        maxVal = Math.max(Math.abs(mYVal), maxVal);
+        maxVal = Math.max(Math.abs(mZVal), maxVal);
+        mMaxVal = maxVal;
+
+        mSampleTimestampNs = event.timestamp;
+
+        if (mBatching) {
+            // NOTE: A FIFO flush is dispatched as one looper message, so the runnable runs
+            //       after the last sample of the batch.
+            if (!mDeliveryPending) {
+                mDeliveryPending = true;
+                mSensorHandler.post(mDeliverRunnable);
+            }
+            return;
+        }
+
+        notifyListeners(maxVal);
+    }
+
+    private void notifyListeners(float maxVal) {
+        mEvent.set(mSample[0], mSample[1], mSample[2], maxVal, mSampleTimestampNs);
+        mTopic.publish(mEvent);
     }
 
     public float getXValPercent() {
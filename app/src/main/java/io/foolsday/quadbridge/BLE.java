@@ -1,6 +1,5 @@
 package io.foolsday.quadbridge;
 
-import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
@@ -10,25 +9,76 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
 import android.widget.Toast;
 
+import io.foolsday.quadbridge.core.ControlScheduler;
+import io.foolsday.quadbridge.core.LatencyStats;
+import io.foolsday.quadbridge.core.NanoClock;
+import io.foolsday.quadbridge.core.SampleRateController;
+import io.foolsday.quadbridge.core.event.EventTopic;
+import io.foolsday.quadbridge.core.link.BridgeTransport;
+import io.foolsday.quadbridge.core.link.ConnectionSetup;
+import io.foolsday.quadbridge.core.link.LinkEventLoop;
+import io.foolsday.quadbridge.core.link.LinkQualityEstimator;
+import io.foolsday.quadbridge.core.link.OperationQueue;
+import io.foolsday.quadbridge.core.link.QuadLink;
+import io.foolsday.quadbridge.core.link.ReconnectPolicy;
+import io.foolsday.quadbridge.core.telemetry.TelemetryRecorder;
+
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public class BLE extends BluetoothGattCallback implements BluetoothAdapter.LeScanCallback,
-        QuadModel.QuadModelEventListener {
+        QuadModel.QuadModelEventListener,
+        BridgeTransport,
+        QuadLink.LinkEventListener,
+        OperationQueue.Listener,
+        LinkEventLoop.EventHandler {
 
-    public static final int REQUEST_ENABLE_BT = 0;
     public static final int INVALID_RSSI = -1000;
 
     public interface RSSIEventListener {
         void onRSSIUpdate(int rssi);
     }
 
+    /**
+     * Told about the connection as it is set up and torn down. Every method is called on the
+     * main thread.
+     */
+    public interface ConnectionListener {
+        void bleConnecting();
+
+        /**
+         * The bridge is ready to be bound.
+         */
+        void bleConnected();
+
+        void bleDisconnected();
+
+        /**
+         * The bridge acknowledged the bind and control frames are being sent.
+         */
+        void onBound();
+
+        /**
+         * @return False if the result was ignored.
+         */
+        boolean addScanResult(BluetoothDevice device, int rssi);
+    }
+
     private static final String NUS_SERVICE_UUID_STR = "6E400001-B5A3-F393-E0A9-E50E24DCCA9E";
     private static final String NUS_TX_CHAR_UUID_STR = "6E400002-B5A3-F393-E0A9-E50E24DCCA9E";
     private static final String NUS_RX_CHAR_UUID_STR = "6E400003-B5A3-F393-E0A9-E50E24DCCA9E";
@@ -36,144 +86,588 @@ public class BLE extends BluetoothGattCallback implements BluetoothAdapter.LeSca
     private static final UUID[] NUS_SERVICE_UUID_ARRAY = {NUS_SERVICE_UUID};
     private static final UUID NOTIFICATION_DESCRIPTOR_UUID_STR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private static final int UNBOUND_MODE = 0;
-    private static final int BINDING_MODE = 1;
-    private static final int BOUND_MODE = 2;
-    private static final int UNBINDING_MODE = 3;
-
-    // These are matched to the ble_cmd_t enum in the ble.c file.
-    private static final byte[] BLE_CMD_BIND_ARRAY = {0x00};
-    private static final int BLE_CMD_CTL = 1;
-    private static final byte[] BLE_CMD_UNBIND_ARRAY = {0x02};
-
-    // These are matched to the ble_cmd_response_t enum in the ble.c file.
-    private static final int BLE_RESPONSE_BOUND = 0;
-    private static final int BLE_RESPONSE_ERROR = 1;
-    private static final int BLE_RESPONSE_UNBOUND = 2;
-
-    private final static long RSSI_INTERVAL_MS = 1000;
-
-    private UIActivity mUIActivity;
+    private static final String TAG = "BLE";
+
+    // Events handled on the link thread.
+    private static final int EVENT_CONNECTION_STATE = 0;
+    private static final int EVENT_MTU_CHANGED = 1;
+    private static final int EVENT_SERVICES_DISCOVERED = 2;
+    private static final int EVENT_DESCRIPTOR_WRITE = 3;
+    private static final int EVENT_CHARACTERISTIC_WRITE = 4;
+    private static final int EVENT_RSSI_READ = 5;
+    private static final int EVENT_CONNECT = 6;
+    private static final int EVENT_RECONNECT = 7;
+    private static final int EVENT_RECONNECT_ATTEMPT = 8;
+    private static final int EVENT_DISCONNECT = 9;
+    private static final int EVENT_POLL_RSSI = 10;
+    private static final int EVENT_CHECK_QUEUE = 11;
+
+    // How long a GATT operation may take before it is given up on. Discovery can take seconds
+    // the first time a bridge is seen; a control write that takes this long means a dead link.
+    private static final long SETUP_TIMEOUT_NS = 10000000000L;
+    private static final long CONTROL_TIMEOUT_NS = 500000000L;
+    private static final long RSSI_TIMEOUT_NS = 1000000000L;
+    // How often the queue is checked for timeouts while it is idle.
+    private static final long QUEUE_CHECK_INTERVAL_MS = 100;
+    private static final long NANOS_PER_MS = 1000000L;
+
+    // How long the controller may hold scan results while nobody is looking at them.
+    private static final long SCAN_REPORT_DELAY_MS = 5000;
+    // How long the results have to stay hidden before the scan switches to the hidden settings.
+    // Every switch restarts the scan and Android stops delivering results to apps that start
+    // more than five scans in 30 s, so a quick pause and resume must not restart it at all.
+    private static final long HIDDEN_SCAN_DELAY_MS = 30000;
+
+    private Context mContext;
+    private volatile ConnectionListener mConnectionListener;
 
     private BluetoothAdapter mBTAdapter;
-    private BluetoothGatt mBTGatt;
+    private volatile BluetoothGatt mBTGatt;
     private BluetoothGattService mQuadService;
     private BluetoothGattCharacteristic mQuadTXChar;
     private BluetoothGattCharacteristic mQuadRXChar;
 
+    // NOTE: The GATT callbacks, the public connect/disconnect calls and the timers don't touch
+    //       the connection state themselves; they post an event to this loop, which also runs
+    //       QuadLink. Everything below that isn't marked otherwise is only touched on the loop
+    //       thread, so the callbacks of one connection can't race each other or a disconnect.
+    private LinkEventLoop mLoop;
+
     private Handler mHandler;
     private Runnable mRSSIRunnable;
-    private ArrayList<RSSIEventListener> mListeners;
-
+    private Runnable mQueueCheckRunnable;
+    private Runnable mConnectingRunnable;
+    private Runnable mConnectedRunnable;
+    private Runnable mBoundRunnable;
+    private Runnable mDisconnectedRunnable;
+    private Runnable mReconnectRunnable;
+    private Runnable mHiddenScanRunnable;
+    private final EventTopic<QuadBus.RSSIEvent, RSSIEventListener> mRSSITopic;
+    private final QuadBus.RSSIEvent mRSSIEvent = new QuadBus.RSSIEvent();
+
+    // The bind/control state machine. BLE is its transport.
+    private QuadLink mLink;
+    private volatile BridgeTransport.Callback mTransportCallback;
+    // Matches the accelerometer rate to the rate at which writes complete.
+    private SampleRateController mSampleRateController;
+    private volatile TelemetryRecorder mRecorder;
+    // The phase timings, MTU and connection interval of the current connection.
+    private ConnectionSetup mSetup;
+
+    // NOTE: BluetoothGatt only tolerates one outstanding operation, so every operation that
+    //       has a callback goes through this queue. Each operation is a single long-lived
+    //       object; QuadLink never has more than getMaxPendingWrites() writes outstanding, so
+    //       one write operation is enough.
+    private OperationQueue mGattQueue;
+    private OperationQueue.Operation mMtuOp;
+    private OperationQueue.Operation mDiscoverOp;
+    private OperationQueue.Operation mDescriptorOp;
+    private OperationQueue.Operation mWriteOp;
+    private OperationQueue.Operation mRssiOp;
+    private BluetoothGattDescriptor mNotifyDescriptor;
+    private byte[] mWriteData;
+    private long mWriteStartNs;
+
+    // Decides how often the RSSI is read and tells subscribers when the link gets better or
+    // worse.
+    private LinkQualityEstimator mLinkQuality;
+    private NanoClock mClock;
+
+    // A link that drops after a connection was set up is brought back automatically until
+    // disconnect() is called.
+    private BridgeStore mBridgeStore;
+    private ReconnectPolicy mReconnectPolicy;
+    private boolean mAutoReconnect;
+
+    // NOTE: The scan state is only touched on the main thread.
+    //       BluetoothLeScanner is used where the controller filters advertisements itself; the
+    //       UUID filter of startLeScan() is applied by the app on many stacks, so every nearby
+    //       advertisement would wake it. mLeScanner is null while the old path is in use.
+    private BluetoothLeScanner mLeScanner;
+    private ScanCallback mScanCallback;
+    private List<ScanFilter> mScanFilters;
+    private ScanSettings mScanSettings;
+    private ScanSettings mHiddenScanSettings;
+    private boolean mScanResultsVisible;
+    // True while the running scan uses the hidden settings.
+    private boolean mHiddenScanSettingsUsed;
     private boolean mScanning;
     private boolean mConnected;
+    // True from the version negotiation until the connection is closed. Read on any thread.
+    private volatile boolean mReady;
     private int mRSSI;
-    private int mMode;
-    private boolean mBLEWritePending;
 
-    private byte[] mCtlBLECmd = {BLE_CMD_CTL, 0x00, 0x00, 0x00, 0x00};
-
-    public BLE(UIActivity activity) {
-        mUIActivity = activity;
+    /**
+     * Must be created on the main thread.
+     *
+     * @param context
+     * @param bus RSSI readings are published to its RSSI topic.
+     */
+    public BLE(Context context, QuadBus bus) {
+        mContext = context;
+        mRSSITopic = bus.getRSSITopic();
 
         mHandler = new Handler();
-        mListeners = new ArrayList<>();
+        // Sensor timestamps use the elapsed realtime clock so writes must be stamped with it too.
+        NanoClock clock = new NanoClock() {
+            @Override
+            public long nanoTime() {
+                return SystemClock.elapsedRealtimeNanos();
+            }
+        };
+        mClock = clock;
+        mLoop = new LinkEventLoop();
+        mLoop.setClock(clock);
+        mLink = new QuadLink(this, this, mLoop);
+        mLink.setClock(clock);
+        mSampleRateController = new SampleRateController();
+        mSampleRateController.setClock(clock);
+        mSetup = new ConnectionSetup();
+        mSetup.setClock(clock);
+        mGattQueue = new OperationQueue();
+        mGattQueue.setClock(clock);
+        mGattQueue.setListener(this);
+        mBridgeStore = new BridgeStore(context);
+        mBridgeStore.loadAsync();
+        mReconnectPolicy = new ReconnectPolicy();
+        mReconnectPolicy.setClock(clock);
+        mLinkQuality = new LinkQualityEstimator();
+        mLinkQuality.addListener(new LinkQualityEstimator.LinkQualityListener() {
+            @Override
+            public void onLinkQualityChanged(int quality, int score) {
+                if (LinkQualityEstimator.QUALITY_POOR == quality) {
+                    // Failing or slow writes can make the link poor between two readings, so
+                    // read the RSSI now rather than at the old, slower pace.
+                    mHandler.removeCallbacks(mRSSIRunnable);
+                    if (mConnected) {
+                        mHandler.post(mRSSIRunnable);
+                    }
+                }
+            }
+        });
+
+        mMtuOp = new OperationQueue.Operation() {
+            @Override
+            public boolean start() {
+                return mBTGatt.requestMtu(ConnectionSetup.PREFERRED_MTU);
+            }
+        };
+        mDiscoverOp = new OperationQueue.Operation() {
+            @Override
+            public boolean start() {
+                return mBTGatt.discoverServices();
+            }
+        };
+        mDescriptorOp = new OperationQueue.Operation() {
+            @Override
+            public boolean start() {
+                return mBTGatt.writeDescriptor(mNotifyDescriptor);
+            }
+        };
+        mWriteOp = new OperationQueue.Operation() {
+            @Override
+            public boolean start() {
+                // NOTE: The BluetoothGattCharacteristic module simply stores a reference to the
+                //       given data array. QuadLink doesn't modify it until the write completes;
+                //       the command arrays are constants and CTL frames come from the
+                //       multi-buffered encoders.
+                mQuadTXChar.setValue(mWriteData);
+                mWriteStartNs = mClock.nanoTime();
+                return mBTGatt.writeCharacteristic(mQuadTXChar);
+            }
+        };
+        mRssiOp = new OperationQueue.Operation() {
+            @Override
+            public boolean start() {
+                return mBTGatt.readRemoteRssi();
+            }
+        };
+
+        // The UI callbacks are created once so that posting them doesn't allocate.
+        mConnectingRunnable = new Runnable() {
+            @Override
+            public void run() {
+                ConnectionListener listener = mConnectionListener;
+                if (null != listener) {
+                    listener.bleConnecting();
+                }
+            }
+        };
+        mConnectedRunnable = new Runnable() {
+            @Override
+            public void run() {
+                // Notifications should now be enabled for the RX char.
+                ConnectionListener listener = mConnectionListener;
+                if (null != listener) {
+                    listener.bleConnected();
+                }
+            }
+        };
+        mBoundRunnable = new Runnable() {
+            @Override
+            public void run() {
+                ConnectionListener listener = mConnectionListener;
+                if (null != listener) {
+                    listener.onBound();
+                }
+            }
+        };
+        mRSSIRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mLoop.post(BLE.this, EVENT_POLL_RSSI);
+            }
+        };
+        mQueueCheckRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mLoop.post(BLE.this, EVENT_CHECK_QUEUE);
+            }
+        };
+        mDisconnectedRunnable = new Runnable() {
+            @Override
+            public void run() {
+                ConnectionListener listener = mConnectionListener;
+                if (null != listener) {
+                    listener.bleDisconnected();
+                }
+            }
+        };
+        mReconnectRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mLoop.post(BLE.this, EVENT_RECONNECT_ATTEMPT);
+            }
+        };
+
+        mHiddenScanRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (mScanning && (null != mLeScanner) && !mScanResultsVisible) {
+                    mHiddenScanSettingsUsed = true;
+                    mLeScanner.stopScan(mScanCallback);
+                    mLeScanner.startScan(mScanFilters, getScanSettings(), mScanCallback);
+                }
+            }
+        };
+
+        mScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                // ScanCallback is called on the main thread so no runOnUiThread() is needed.
+                onScanResultReceived(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (int i = 0; i < results.size(); i++) {
+                    onScanResultReceived(results.get(i));
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                if (mScanning && (ScanCallback.SCAN_FAILED_ALREADY_STARTED != errorCode)) {
+                    mLeScanner = null;
+                    mBTAdapter.startLeScan(NUS_SERVICE_UUID_ARRAY, BLE.this);
+                }
+            }
+        };
+        mScanFilters = new ArrayList<>();
+        mScanFilters.add(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(NUS_SERVICE_UUID))
+                .build());
+        mScanSettings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build();
+        mScanResultsVisible = true;
 
         mScanning = false;
         mConnected = false;
         mRSSI = INVALID_RSSI;
-        mMode = UNBOUND_MODE;
-        mBLEWritePending = false;
 
         BluetoothManager manager;
-        manager = (BluetoothManager) mUIActivity.getSystemService(Context.BLUETOOTH_SERVICE);
+        manager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
         mBTAdapter = manager.getAdapter();
 
-        if (!isBLEEnabled()) {
-            enableBLE();
-        }
+        mLoop.start();
     }
 
-    public void addListener(RSSIEventListener listener) {
-        if (!mListeners.contains(listener)) {
-            mListeners.add(listener);
-        }
+    /**
+     * Disconnects and stops the link thread. The object can't be used afterwards.
+     */
+    public void close() {
+        disconnect();
+        mLoop.stop();
     }
 
-    public void removeListener(RSSIEventListener listener) {
-        if (mListeners.contains(listener)) {
-            mListeners.remove(listener);
-        }
+    public void setConnectionListener(ConnectionListener listener) {
+        mConnectionListener = listener;
     }
 
     public void startScan() {
         mScanning = true;
-        mBTAdapter.startLeScan(NUS_SERVICE_UUID_ARRAY, this);
+        mHiddenScanSettingsUsed = false;
+        mLeScanner = null;
+        if (mBTAdapter.isOffloadedFilteringSupported()) {
+            // The scanner is null while Bluetooth is off.
+            mLeScanner = mBTAdapter.getBluetoothLeScanner();
+        }
+
+        if (null != mLeScanner) {
+            mLeScanner.startScan(mScanFilters, getScanSettings(), mScanCallback);
+            if (!mScanResultsVisible) {
+                mHandler.postDelayed(mHiddenScanRunnable, HIDDEN_SCAN_DELAY_MS);
+            }
+        } else {
+            mBTAdapter.startLeScan(NUS_SERVICE_UUID_ARRAY, this);
+        }
     }
 
     public void stopScan() {
+        mHandler.removeCallbacks(mHiddenScanRunnable);
+        mHiddenScanSettingsUsed = false;
         if (mScanning) {
-            mBTAdapter.stopLeScan(this);
+            if (null != mLeScanner) {
+                mLeScanner.stopScan(mScanCallback);
+            } else {
+                mBTAdapter.stopLeScan(this);
+            }
             mScanning = false;
         }
     }
 
+    /**
+     * Tells the scanner whether the results are being shown. Once they have been hidden for
+     * HIDDEN_SCAN_DELAY_MS the results are batched in the controller where it supports that,
+     * and otherwise the scan uses less power. This must be called on the main thread.
+     *
+     * @param visible
+     */
+    public void setScanResultsVisible(boolean visible) {
+        if (visible == mScanResultsVisible) {
+            return;
+        }
+        mScanResultsVisible = visible;
+        mHandler.removeCallbacks(mHiddenScanRunnable);
+
+        if (!mScanning || (null == mLeScanner)) {
+            return;
+        }
+        if (!visible) {
+            mHandler.postDelayed(mHiddenScanRunnable, HIDDEN_SCAN_DELAY_MS);
+        } else if (mHiddenScanSettingsUsed) {
+            mHiddenScanSettingsUsed = false;
+            // Deliver what was batched so that the list is filled right away.
+            mLeScanner.flushPendingScanResults(mScanCallback);
+            mLeScanner.stopScan(mScanCallback);
+            mLeScanner.startScan(mScanFilters, getScanSettings(), mScanCallback);
+        }
+    }
+
+    private ScanSettings getScanSettings() {
+        if (!mHiddenScanSettingsUsed) {
+            return mScanSettings;
+        }
+        if (null == mHiddenScanSettings) {
+            ScanSettings.Builder builder = new ScanSettings.Builder();
+            if (mBTAdapter.isOffloadedScanBatchingSupported()) {
+                builder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                        .setReportDelay(SCAN_REPORT_DELAY_MS);
+            } else {
+                builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+            }
+            mHiddenScanSettings = builder.build();
+        }
+        return mHiddenScanSettings;
+    }
+
+    private void onScanResultReceived(ScanResult result) {
+        BluetoothDevice device = result.getDevice();
+        ConnectionListener listener = mConnectionListener;
+        if ((null != device) && (null != listener)) {
+            listener.addScanResult(device, result.getRssi());
+        }
+    }
+
     @Override
     public void onLeScan(final BluetoothDevice device,
                          final int rssi,
                          final byte[] scanRecord) {
         if (null != device) {
-            mUIActivity.runOnUiThread(new Runnable() {
+            mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mUIActivity.addScanResult(device, rssi);
+                    ConnectionListener listener = mConnectionListener;
+                    if (null != listener) {
+                        listener.addScanResult(device, rssi);
+                    }
                 }
             });
         }
     }
 
-    /**
-     * The parent Activity forwards results to this function in its onActivityResult
-     * function.
-     *
-     * @param requestCode
-     * @param resultCode
-     * @param data
-     */
-    public void onActivityResult(final int requestCode, final int resultCode, final Intent data) {
-        switch (requestCode) {
-            case BLE.REQUEST_ENABLE_BT:
-                if (Activity.RESULT_OK != resultCode) {
-                    mUIActivity.toastAndFinish("Could not enable BLE.");
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        postGattEvent(EVENT_CONNECTION_STATE, status, newState, gatt);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        postGattEvent(EVENT_MTU_CHANGED, status, mtu, gatt);
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        postGattEvent(EVENT_SERVICES_DISCOVERED, status, 0, gatt);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt,
+                                  BluetoothGattDescriptor descriptor,
+                                  int status) {
+        postGattEvent(EVENT_DESCRIPTOR_WRITE, status, 0, gatt);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+                                      BluetoothGattCharacteristic characteristic,
+                                      int status) {
+        postGattEvent(EVENT_CHARACTERISTIC_WRITE, status, 0, gatt);
+    }
+
+    @Override
+    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        postGattEvent(EVENT_RSSI_READ, status, rssi, gatt);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic ch) {
+        // QuadLink posts the notification to the loop itself.
+        BridgeTransport.Callback callback = mTransportCallback;
+        if (null != callback) {
+            callback.onNotification(ch.getValue());
+        }
+    }
+
+    private void postGattEvent(int event, int status, long value, BluetoothGatt gatt) {
+        if (!mLoop.post(this, event, status, value, gatt)) {
+            // An operation whose completion is lost times out in the queue.
+            Log.w(TAG, "The link event queue is full, dropped GATT event " + event);
+        }
+    }
+
+    @Override
+    public void onEvent(int event, int arg, long value, Object obj) {
+        if ((obj instanceof BluetoothGatt) && (obj != mBTGatt)) {
+            // A callback of a connection that has been closed meanwhile.
+            return;
+        }
+
+        switch (event) {
+            case EVENT_CONNECTION_STATE:
+                handleConnectionStateChange((BluetoothGatt) obj, arg, (int) value);
+                break;
+            case EVENT_MTU_CHANGED:
+                handleMtuChanged((int) value, arg);
+                break;
+            case EVENT_SERVICES_DISCOVERED:
+                handleServicesDiscovered((BluetoothGatt) obj, arg);
+                break;
+            case EVENT_DESCRIPTOR_WRITE:
+                handleDescriptorWrite(arg);
+                break;
+            case EVENT_CHARACTERISTIC_WRITE:
+                handleCharacteristicWrite(arg);
+                break;
+            case EVENT_RSSI_READ:
+                handleReadRemoteRssi((int) value, arg);
+                break;
+            case EVENT_CONNECT:
+                // The user picked a bridge, so any reconnect to the last one is off.
+                cancelReconnect();
+                openConnection((BluetoothDevice) obj, false);
+                break;
+            case EVENT_RECONNECT:
+                mHandler.removeCallbacks(mReconnectRunnable);
+                mAutoReconnect = true;
+                mReconnectPolicy.onLinkLost();
+                mReconnectPolicy.nextDelayMs();
+                openConnection((BluetoothDevice) obj, false);
+                break;
+            case EVENT_RECONNECT_ATTEMPT:
+                handleReconnectAttempt();
+                break;
+            case EVENT_DISCONNECT:
+                cancelReconnect();
+                closeConnection();
+                break;
+            case EVENT_POLL_RSSI:
+                if (mConnected) {
+                    // Control writes that are queued meanwhile go first.
+                    mGattQueue.enqueue(mRssiOp, OperationQueue.PRIORITY_BACKGROUND,
+                            RSSI_TIMEOUT_NS);
                 }
                 break;
+            case EVENT_CHECK_QUEUE:
+                handleQueueCheck();
+                break;
         }
     }
 
-    @Override
-    public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
+    /**
+     * Handles the event right away on the loop thread and posts it from any other thread.
+     */
+    private void execute(int event, Object obj) {
+        if (mLoop.isLoopThread()) {
+            onEvent(event, 0, 0, obj);
+        } else if (!mLoop.post(this, event, 0, 0, obj)) {
+            Log.w(TAG, "The link event queue is full, dropped event " + event);
+        }
+    }
+
+    private void handleQueueCheck() {
+        if (!mConnected) {
+            return;
+        }
+        long remainingNs = mGattQueue.checkTimeout();
+        long delayMs = QUEUE_CHECK_INTERVAL_MS;
+        if (0 <= remainingNs) {
+            delayMs = Math.min(delayMs, (remainingNs / NANOS_PER_MS) + 1);
+        }
+        mHandler.postDelayed(mQueueCheckRunnable, delayMs);
+    }
+
+    private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
         if (BluetoothGatt.GATT_SUCCESS == status) {
             switch (newState) {
                 case BluetoothProfile.STATE_CONNECTED:
                     mConnected = true;
+                    mSetup.end(ConnectionSetup.PHASE_CONNECT);
 
+                    // NOTE: There is no callback for the parameter update at this API level so
+                    //       only the request is timed. The update takes effect while the MTU
+                    //       exchange and the discovery run, well before any control frames.
+                    mSetup.begin(ConnectionSetup.PHASE_PRIORITY);
                     if (!gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
-                        toastAndDisconnect("Failed to set connection priority.");
+                        onLinkLost("Failed to set connection priority.");
                         return;
                     }
+                    mSetup.end(ConnectionSetup.PHASE_PRIORITY);
+
+                    mHandler.removeCallbacks(mQueueCheckRunnable);
+                    mHandler.post(mQueueCheckRunnable);
 
-                    gatt.discoverServices();
+                    // Bridges that can't exchange the MTU keep the default one.
+                    mSetup.begin(ConnectionSetup.PHASE_MTU);
+                    mGattQueue.enqueue(mMtuOp, OperationQueue.PRIORITY_SETUP, SETUP_TIMEOUT_NS);
 
-                    mRSSIRunnable = new Runnable(){
-                        public void run() {
-                            gatt.readRemoteRssi();
-                        }
-                    };
-                    mHandler.postDelayed(mRSSIRunnable, RSSI_INTERVAL_MS);
+                    mHandler.removeCallbacks(mRSSIRunnable);
+                    scheduleRssiRead();
 
                     return;
                 case BluetoothProfile.STATE_DISCONNECTED:
-                    toastAndDisconnect("Disconnected.");
+                    onLinkLost("Disconnected.");
                     return;
                 default:
                     // Not sure if this actually ever happens.
@@ -182,12 +676,59 @@ public class BLE extends BluetoothGattCallback implements BluetoothAdapter.LeSca
         } else {
             // Error 133 happens on the Nexus 5 when a threading conflict occurs.
             // Error 8 happens for an unknown reason but leads to a disconnect.
-            toastAndDisconnect(String.format("A connection error occurred: %d", status));
+            onLinkLost(String.format("A connection error occurred: %d", status));
         }
     }
 
-    @Override
-    public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+    /**
+     * For failures of the connection itself. Once a bridge has been connected to they reopen
+     * the connection; failures that come from the bridge disconnect instead.
+     */
+    private void onLinkLost(String errString) {
+        if (mAutoReconnect) {
+            Log.i(TAG, errString + " Reconnecting.");
+            mReconnectPolicy.onLinkLost();
+            closeConnection();
+            mHandler.removeCallbacks(mReconnectRunnable);
+            mHandler.postDelayed(mReconnectRunnable, mReconnectPolicy.nextDelayMs());
+        } else {
+            toastAndDisconnect(errString);
+        }
+    }
+
+    private void handleReconnectAttempt() {
+        String address = mBridgeStore.getLastAddress();
+        if (!mAutoReconnect || (null == address)) {
+            mReconnectPolicy.cancel();
+            return;
+        }
+        openConnection(mBTAdapter.getRemoteDevice(address), mReconnectPolicy.useAutoConnect());
+    }
+
+    private void handleMtuChanged(int mtu, int status) {
+        if (!mGattQueue.onOperationComplete(mMtuOp)) {
+            // The exchange timed out and the discovery has already been started.
+            return;
+        }
+        if (BluetoothGatt.GATT_SUCCESS == status) {
+            mSetup.setMtu(mtu);
+        }
+        onMtuKnown();
+    }
+
+    private void onMtuKnown() {
+        mSetup.end(ConnectionSetup.PHASE_MTU);
+        mLink.setMaxWriteLen(mSetup.getMaxWriteLen());
+
+        mSetup.begin(ConnectionSetup.PHASE_DISCOVERY);
+        mGattQueue.enqueue(mDiscoverOp, OperationQueue.PRIORITY_SETUP, SETUP_TIMEOUT_NS);
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (!mGattQueue.onOperationComplete(mDiscoverOp)) {
+            return;
+        }
+        mSetup.end(ConnectionSetup.PHASE_DISCOVERY);
         if (BluetoothGatt.GATT_SUCCESS == status) {
             mQuadService = gatt.getService(UUID.fromString(NUS_SERVICE_UUID_STR));
             if (null == mQuadService) {
@@ -224,216 +765,456 @@ public class BLE extends BluetoothGattCallback implements BluetoothAdapter.LeSca
                 return;
             }
 
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            if (!gatt.writeDescriptor(descriptor)) {
-                toastAndDisconnect("Failed to write notification descriptor for RX char.");
-                return;
-            }
-
-            if (!gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
-                toastAndDisconnect("Failed to request CONNECTION_PRIORITY_HIGH.");
-                return;
-            }
+            mLink.reset();
 
-            mBLEWritePending = false;
+            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            mNotifyDescriptor = descriptor;
+            mSetup.begin(ConnectionSetup.PHASE_CCCD);
+            mGattQueue.enqueue(mDescriptorOp, OperationQueue.PRIORITY_SETUP, SETUP_TIMEOUT_NS);
         } else {
             String errString;
             errString = String.format("The service discovery failed with status: %d", status);
-            toastAndDisconnect(errString);
+            onLinkLost(errString);
         }
     }
 
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt,
-                                  BluetoothGattDescriptor descriptor,
-                                  int status) {
+    private void handleDescriptorWrite(int status) {
+        if (!mGattQueue.onOperationComplete(mDescriptorOp)) {
+            return;
+        }
+        mSetup.end(ConnectionSetup.PHASE_CCCD);
         if (BluetoothGatt.GATT_SUCCESS == status) {
-            mUIActivity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    // Notifications should now be enabled for the RX char.
-                    mUIActivity.bleConnected();
-                }
-            });
+            // Notifications work now, so the bridge can be asked which protocol it speaks.
+            mSetup.begin(ConnectionSetup.PHASE_NEGOTIATION);
+            mLink.negotiate();
         } else {
-            toastAndDisconnect("Failed to enable notifications on RX characteristic.");
+            onLinkLost("Failed to enable notifications on RX characteristic.");
         }
     }
 
     @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic ch) {
-        byte[] chValue = ch.getValue();
+    public void setCallback(BridgeTransport.Callback callback) {
+        mTransportCallback = callback;
+    }
+
+    @Override
+    public boolean write(byte[] data) {
+        // The write completes asynchronously, or fails through onOperationFailed() if the
+        // characteristic write can't be started once it is the write's turn.
+        mWriteData = data;
+        return mGattQueue.enqueue(mWriteOp, OperationQueue.PRIORITY_CONTROL, CONTROL_TIMEOUT_NS);
+    }
 
-        if (1 != chValue.length) {
-            toastAndDisconnect(String.format("Unexpected response of length: %d",
-                    chValue.length));
+    @Override
+    public int getMaxPendingWrites() {
+        // NOTE: BluetoothGatt refuses a new operation until the callback of the previous one
+        //       has run, even for WRITE_TYPE_NO_RESPONSE, so only one write can be handed over
+        //       at a time. A no-response write completes as soon as the stack has buffered it,
+        //       which lets the stack rather than QuadLink fill a connection event.
+        return 1;
+    }
+
+    private void handleCharacteristicWrite(int status) {
+        if (!mGattQueue.onOperationComplete(mWriteOp)) {
+            // The write timed out and has already been reported as failed.
             return;
         }
+        boolean success = (BluetoothGatt.GATT_SUCCESS == status);
+        if (success) {
+            mSampleRateController.onWriteComplete();
+        }
+        mLinkQuality.onWriteComplete(success, mClock.nanoTime() - mWriteStartNs);
+        onWriteComplete(success);
+    }
 
-        switch (chValue[0]) {
-            case BLE_RESPONSE_BOUND:
-                if (BINDING_MODE == mMode) {
-                    mMode = BOUND_MODE;
-                    mUIActivity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mUIActivity.onBound();
-                        }
-                    });
-                }
-                break;
-            case BLE_RESPONSE_ERROR:
-                toastAndDisconnect("Error notification received.");
-                break;
-            case BLE_RESPONSE_UNBOUND:
-                disconnect();
-                break;
-            default:
-                toastAndDisconnect(String.format("Unexpected response of length: %d",
-                        chValue.length));
-                break;
+    private void onWriteComplete(boolean success) {
+        BridgeTransport.Callback callback = mTransportCallback;
+        if (null != callback) {
+            callback.onWriteComplete(success);
         }
     }
 
-    private boolean sendDataToQuad(byte[] data) {
-        if (!mBLEWritePending) {
-            mBLEWritePending = true;
+    @Override
+    public void onOperationFailed(OperationQueue.Operation op) {
+        if (mMtuOp == op) {
+            onMtuKnown();
+        } else if (mDiscoverOp == op) {
+            onLinkLost("Failed to start the service discovery.");
+        } else if (mDescriptorOp == op) {
+            onLinkLost("Failed to write notification descriptor for RX char.");
+        } else if (mWriteOp == op) {
+            mLinkQuality.onWriteComplete(false, 0);
+            onWriteComplete(false);
+        } else if (mRssiOp == op) {
+            scheduleRssiRead();
+        }
+    }
+
+    @Override
+    public void onOperationTimeout(OperationQueue.Operation op) {
+        if (mMtuOp == op) {
+            onMtuKnown();
+        } else if (mWriteOp == op) {
+            mLinkQuality.onWriteComplete(false, CONTROL_TIMEOUT_NS);
+            onWriteComplete(false);
+        } else if (mRssiOp == op) {
+            scheduleRssiRead();
         } else {
-            return false;
+            onLinkLost("The bridge stopped responding during setup.");
+        }
+    }
+
+    @Override
+    public void onConnected(int protocolVersion) {
+        mSetup.end(ConnectionSetup.PHASE_NEGOTIATION);
+
+        // Writing more often than once per connection interval only skips ticks. The interval
+        // is only an estimate though, so it may speed the control rate up on a fast link but
+        // never slow it down below the default.
+        int intervalMs = ControlScheduler.DEFAULT_INTERVAL_MS;
+        int estimateMs = mSetup.getConnectionIntervalMs();
+        if (0 != estimateMs) {
+            intervalMs = Math.min(intervalMs, estimateMs);
         }
+        mLink.setControlIntervalMs(intervalMs);
+        Log.i(TAG, "Connection setup: " + mSetup + " protocol=" + protocolVersion);
 
-        // NOTE: The BluetoothGattCharacteristic module simply stores a reference to the given
-        //       data array. A local copy is made to prevent any potential threading issues.
-        byte[] buf = new byte[data.length];
-        System.arraycopy(data, 0, buf, 0, buf.length);
+        BluetoothGatt gatt = mBTGatt;
+        if (null != gatt) {
+            mBridgeStore.save(gatt.getDevice().getAddress());
+        }
+        mReady = true;
+        mAutoReconnect = true;
+        int attempts = mReconnectPolicy.getAttempts();
+        long reconnectNs = mReconnectPolicy.onConnected();
+        if (0 != reconnectNs) {
+            Log.i(TAG, String.format("Reconnected in %d ms after %d attempts.",
+                    reconnectNs / NANOS_PER_MS, attempts));
+        }
 
-        mQuadTXChar.setValue(buf);
-        return mBTGatt.writeCharacteristic(mQuadTXChar);
+        runOnMainThread(mConnectedRunnable);
     }
 
     @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt,
-                                      BluetoothGattCharacteristic characteristic,
-                                      int status) {
+    public void onBound() {
+        // Stop batching right away rather than from the UI thread.
+        mSampleRateController.setBound(true);
+        runOnMainThread(mBoundRunnable);
+    }
+
+    @Override
+    public void onUnbound() {
+        disconnect();
+    }
+
+    @Override
+    public void onLinkError(String errString) {
+        toastAndDisconnect(errString);
+    }
+
+    @Override
+    public void onTransportError(String errString) {
+        // NOTE: A write that timed out ends up here too, which is the usual sign of a link
+        //       that is about to drop.
+        onLinkLost(errString);
+    }
+
+    private void handleReadRemoteRssi(int rssi, int status) {
+        if (!mGattQueue.onOperationComplete(mRssiOp)) {
+            return;
+        }
         if (BluetoothGatt.GATT_SUCCESS == status) {
-            mBLEWritePending = false;
-            if (UNBINDING_MODE == mMode) {
-                mMode = UNBOUND_MODE;
-                if (!sendDataToQuad(BLE_CMD_UNBIND_ARRAY)) {
-                    toastAndDisconnect("Failed to write unbind command.");
-                }
+            // The recorder keeps the raw readings; the display gets the smoothed ones.
+            TelemetryRecorder recorder = mRecorder;
+            if (null != recorder) {
+                recorder.setRssi(rssi);
             }
-        } else {
-            toastAndDisconnect("A char write failed!");
+            mLinkQuality.onRssi(rssi);
+            mRSSI = mLinkQuality.getSmoothedRssi();
+            notifyListeners();
         }
+        scheduleRssiRead();
     }
 
-    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-        if (BluetoothGatt.GATT_SUCCESS == status) {
-            mRSSI = rssi;
-            notifyListeners();
+    private void scheduleRssiRead() {
+        if (mConnected) {
+            mHandler.postDelayed(mRSSIRunnable, mLinkQuality.getPollIntervalMs());
         }
-        mHandler.postDelayed(mRSSIRunnable, RSSI_INTERVAL_MS);
     }
 
-    public boolean hasRadio() {
-        PackageManager mgr = mUIActivity.getPackageManager();
+    public static boolean hasRadio(Context context) {
+        PackageManager mgr = context.getPackageManager();
         return mgr.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
     }
 
+    /**
+     * @return True once the bridge has answered the version negotiation, until the connection
+     *         is closed.
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * @return True while connecting, or reconnecting, to a bridge.
+     */
+    public boolean isConnecting() {
+        return ((null != mBTGatt) && !mReady);
+    }
+
+    public boolean isLinkBound() {
+        return mLink.isBound();
+    }
+
     public void bind() {
-        mMode = BINDING_MODE;
-        if (!sendDataToQuad(BLE_CMD_BIND_ARRAY)) {
-            toastAndDisconnect("Failed to write bind command.");
-        }
+        mLink.bind();
+    }
+
+    /**
+     * Sets how often control frames are sent while bound. This should match the connection
+     * interval; sending faster than the link can deliver only skips ticks.
+     *
+     * @param intervalMs
+     */
+    public void setControlIntervalMs(int intervalMs) {
+        mLink.setControlIntervalMs(intervalMs);
+    }
+
+    /**
+     * @param credits How many control writes may be outstanding. See
+     *                QuadLink.setMaxOutstandingWrites().
+     * @return The number that will be used.
+     */
+    public int setMaxOutstandingWrites(int credits) {
+        return mLink.setMaxOutstandingWrites(credits);
     }
 
     public void unbind() {
-        if (UNBOUND_MODE == mMode) {
-            disconnect();
-        } else {
-            if (mBLEWritePending) {
-                // Change the mode to prevent future control packets from being sent and then wait
-                // for the current write to finish.
-                mMode = UNBINDING_MODE;
-            } else {
-                if (!sendDataToQuad(BLE_CMD_UNBIND_ARRAY)) {
-                    toastAndDisconnect("Failed to write unbind command.");
-                }
-                mMode = UNBOUND_MODE;
-            }
-        }
+        mLink.unbind();
+    }
+
+    /**
+     * @param listener Told when the accelerometer should be sampled at a different rate or
+     *                 batched differently, and immediately given the current settings.
+     */
+    public void setSampleRateListener(SampleRateController.SampleRateListener listener) {
+        mSampleRateController.setListener(listener);
+        listener.onSampleRateChanged(mSampleRateController.getIntervalUs(),
+                mSampleRateController.getMaxReportLatencyUs());
+    }
+
+    /**
+     * @param recorder Given every completed CTL write and every RSSI reading.
+     */
+    public void setRecorder(TelemetryRecorder recorder) {
+        mRecorder = recorder;
+        mLink.setCtlWriteListener(recorder);
+    }
+
+    /**
+     * The sensor->model, model->write and write->ack latencies of the current flight. The
+     * histograms may be queried from any thread and are reset whenever bind() is called.
+     *
+     * @return
+     */
+    public LatencyStats getLatencyStats() {
+        return mLink.getLatencyStats();
+    }
+
+    /**
+     * @return The phase timings, MTU and connection interval estimate of the current
+     *         connection. Only read it from the UI once bleConnected() has been called.
+     */
+    public ConnectionSetup getConnectionSetup() {
+        return mSetup;
+    }
+
+    /**
+     * @param listener Told whenever the link quality level changes, on the link thread.
+     */
+    public void addLinkQualityListener(LinkQualityEstimator.LinkQualityListener listener) {
+        mLinkQuality.addListener(listener);
+    }
+
+    public void removeLinkQualityListener(LinkQualityEstimator.LinkQualityListener listener) {
+        mLinkQuality.removeListener(listener);
+    }
+
+    public LinkQualityEstimator getLinkQuality() {
+        return mLinkQuality;
+    }
+
+    /**
+     * @return The GATT operation queue, for its depth and timing metrics. They are reset on
+     *         every connect().
+     */
+    public OperationQueue getOperationQueue() {
+        return mGattQueue;
+    }
+
+    /**
+     * @return The loop that runs the link, for its mailbox depth and queue latency.
+     */
+    public LinkEventLoop getEventLoop() {
+        return mLoop;
+    }
+
+    /**
+     * @return How often the bind state machine went from one QuadLink mode to another.
+     */
+    public long getTransitionCount(int fromMode, int toMode) {
+        return mLink.getTransitionCount(fromMode, toMode);
     }
 
     public void connect(final BluetoothDevice device) {
-        mMode = UNBOUND_MODE;
-        mUIActivity.bleConnecting();
         stopScan();
-        mBTGatt = device.connectGatt(mUIActivity, false, BLE.this);
+        execute(EVENT_CONNECT, device);
+    }
+
+    /**
+     * Connects to the last bridge that a connection was set up with, without a scan. The link
+     * is then brought back automatically if it drops, as after connect().
+     *
+     * @return False if no bridge is known yet.
+     */
+    public boolean reconnect() {
+        String address = mBridgeStore.getLastAddress();
+        if ((null == address) || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return false;
+        }
+        stopScan();
+        execute(EVENT_RECONNECT, mBTAdapter.getRemoteDevice(address));
+        return true;
+    }
+
+    /**
+     * @return True while a dropped link is being brought back.
+     */
+    public boolean isReconnecting() {
+        return mReconnectPolicy.isReconnecting();
+    }
+
+    /**
+     * @return The reconnect state and the time-to-reconnect histogram.
+     */
+    public ReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
+    }
+
+    /**
+     * @param autoConnect Let the controller connect whenever the bridge shows up, rather than
+     *                    trying once. Background connections are slower but never time out.
+     */
+    private void openConnection(BluetoothDevice device, boolean autoConnect) {
+        // NOTE: Callbacks of any other gatt are dropped, so a connection that is still open or
+        //       pending here would live on unnoticed and could hold the bridge's only
+        //       connection slot.
+        if (null != mBTGatt) {
+            closeConnection();
+        }
+
+        mLink.reset();
+        mSampleRateController.reset();
+        mSetup.reset();
+        mLink.setMaxWriteLen(mSetup.getMaxWriteLen());
+        mGattQueue.clear();
+        mGattQueue.resetStats();
+        mLinkQuality.reset();
+        runOnMainThread(mConnectingRunnable);
+        mSetup.begin(ConnectionSetup.PHASE_CONNECT);
+        mBTGatt = device.connectGatt(mContext, autoConnect, BLE.this);
+    }
+
+    /**
+     * Only called on the loop thread.
+     */
+    private void cancelReconnect() {
+        mAutoReconnect = false;
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mReconnectPolicy.cancel();
     }
 
     private void toastAndDisconnect(final String errString) {
-        mUIActivity.runOnUiThread(new Runnable() {
+        runOnMainThread(new Runnable() {
             @Override
             public void run() {
-                Toast.makeText(mUIActivity, errString, Toast.LENGTH_LONG).show();
-                disconnect();
+                Toast.makeText(mContext, errString, Toast.LENGTH_LONG).show();
             }
         });
+        disconnect();
     }
 
+    /**
+     * Closes the connection, or stops connecting, and doesn't reconnect.
+     */
     public void disconnect() {
+        execute(EVENT_DISCONNECT, null);
+    }
+
+    private void closeConnection() {
+        mReady = false;
+        mLink.reset();
+        mSampleRateController.reset();
+
         if (mConnected) {
             mConnected = false;
 
             mHandler.removeCallbacks(mRSSIRunnable);
-            mRSSIRunnable = null;
+            mHandler.removeCallbacks(mQueueCheckRunnable);
+            mGattQueue.clear();
+            Log.i(TAG, "GATT queue: " + mGattQueue);
+            mLinkQuality.reset();
             mRSSI = INVALID_RSSI;
 
             notifyListeners();
-
-            mUIActivity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mUIActivity.bleDisconnected();
-                    mBTGatt.close();
-                }
-            });
         }
 
-        mMode = UNBOUND_MODE;
+        // The gatt is also closed if the attempt never connected.
+        BluetoothGatt gatt = mBTGatt;
+        if (null != gatt) {
+            mBTGatt = null;
+            gatt.disconnect();
+            gatt.close();
+            Log.i(TAG, "Link events: " + mLoop + " mode transitions=" +
+                    mLink.getTransitionCount());
+            runOnMainThread(mDisconnectedRunnable);
+        }
     }
 
-    private boolean isBLEEnabled() {
+    public static boolean isBLEEnabled(Context context) {
         BluetoothManager btManager;
         BluetoothAdapter adapter;
-        btManager = (BluetoothManager) mUIActivity.getSystemService(Context.BLUETOOTH_SERVICE);
+        btManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         adapter = btManager.getAdapter();
         return ((null != adapter) && adapter.isEnabled());
     }
 
-    private void enableBLE() {
-        Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-        mUIActivity.startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
+    /**
+     * Runs the runnable right away on the main thread and posts it from any other thread, like
+     * Activity.runOnUiThread().
+     */
+    private void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mHandler.post(runnable);
+        }
     }
 
     private void notifyListeners() {
-        for (RSSIEventListener listener : mListeners) {
-            listener.onRSSIUpdate(mRSSI);
-        }
+        mRSSIEvent.set(mRSSI);
+        mRSSITopic.publish(mRSSIEvent);
     }
 
     @Override
-    public void onModelUpdate(int throttle, int pitch, int roll, int yaw, boolean isBound) {
-        mCtlBLECmd[1] = (byte) throttle;
-        mCtlBLECmd[2] = (byte) pitch;
-        mCtlBLECmd[3] = (byte) roll;
-        mCtlBLECmd[4] = (byte) yaw;
-
-        if ((BOUND_MODE == mMode) && !mBLEWritePending) {
-            if (!sendDataToQuad(mCtlBLECmd)) {
-                toastAndDisconnect("Failed to write CTL command.");
-            }
-        }
+    public void onModelUpdate(int throttle,
+                              int pitch,
+                              int roll,
+                              int yaw,
+                              boolean isBound,
+                              long sampleTimeNs,
+                              long modelTimeNs) {
+        mLink.update(throttle, pitch, roll, yaw, sampleTimeNs, modelTimeNs);
+        mSampleRateController.setActive(isBound && (QuadModel.MIN_THROTTLE_VALUE < throttle));
     }
 }
\ No newline at end of file
@@ -0,0 +1,376 @@
+package io.foolsday.quadbridge;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+import io.foolsday.quadbridge.core.curve.ResponseCurves;
+import io.foolsday.quadbridge.core.event.EventTopic;
+import io.foolsday.quadbridge.core.telemetry.TelemetryRecorder;
+
+import java.io.File;
+
+/**
+ * Owns the link to the bridge and the control loop (accelerometer, model, BLE and telemetry) so
+ * that they outlive the Activity. The Activity binds to the service and attaches itself as a
+ * view while it exists; a rotation, the notification shade or an incoming call no longer drops
+ * the connection or the bind.
+ *
+ * The service runs in the foreground while a bridge is connected or being connected to, so the
+ * system doesn't kill it with the Activity in the background.
+ *
+ * While the UI isn't visible nobody can steer, so a bound quad is flown by a safe-throttle
+ * policy: the attitude is held level right away, after HIDDEN_GRACE_MS the throttle is stepped
+ * down every THROTTLE_STEP_INTERVAL_MS, and after HIDDEN_UNBIND_MS the quad is unbound. The
+ * throttle stays where the policy left it when the UI comes back.
+ */
+public class BridgeService extends Service implements BLE.ConnectionListener,
+        QuadModel.BindStateListener {
+
+    /**
+     * The Activity side of the service. Every method is called on the main thread.
+     */
+    public interface BridgeUI extends BLE.ConnectionListener, QuadModel.BindStateListener {}
+
+    public class LocalBinder extends Binder {
+        public BridgeService getService() {
+            return BridgeService.this;
+        }
+    }
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String TELEMETRY_DIRECTORY_NAME = "telemetry";
+
+    // A brief pause, e.g. a dialog over the Activity, shouldn't cost any throttle.
+    private static final long HIDDEN_GRACE_MS = 1000;
+    // With QuadControl.THROTTLE_INCREMENT this takes full throttle to zero in about 10 s.
+    private static final long THROTTLE_STEP_INTERVAL_MS = 200;
+    private static final long HIDDEN_UNBIND_MS = 15000;
+
+    private final IBinder mBinder = new LocalBinder();
+
+    private Handler mHandler;
+    private QuadBus mBus;
+    private TelemetryRecorder mRecorder;
+    private QuadModel mQuadModel;
+    private Accel mAccel;
+    private BLE mBLE;
+    private ViewForwarder mViewForwarder;
+
+    private BridgeUI mUI;
+    private boolean mUIVisible;
+    private long mHiddenSinceMs;
+    private Runnable mSafeThrottleRunnable;
+    private boolean mForeground;
+
+    /**
+     * The view listens to the control loop through this object, which is subscribed once, so
+     * that the Activity can come and go without touching the subscriptions.
+     */
+    private static class ViewForwarder implements Accel.AccelEventListener,
+            QuadModel.QuadModelEventListener,
+            BLE.RSSIEventListener {
+
+        private volatile QuadSurface mView;
+
+        @Override
+        public void onAccelUpdate(float x, float y, float z, float maxAccel, long timestampNs) {
+            QuadSurface view = mView;
+            if (null != view) {
+                view.onAccelUpdate(x, y, z, maxAccel, timestampNs);
+            }
+        }
+
+        @Override
+        public void onModelUpdate(int throttle,
+                                  int pitch,
+                                  int roll,
+                                  int yaw,
+                                  boolean isBound,
+                                  long sampleTimeNs,
+                                  long modelTimeNs) {
+            QuadSurface view = mView;
+            if (null != view) {
+                view.onModelUpdate(throttle, pitch, roll, yaw, isBound, sampleTimeNs, modelTimeNs);
+            }
+        }
+
+        @Override
+        public void onRSSIUpdate(int rssi) {
+            QuadSurface view = mView;
+            if (null != view) {
+                view.onRSSIUpdate(rssi);
+            }
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mHandler = new Handler();
+        mBus = new QuadBus();
+        mRecorder = new TelemetryRecorder(getTelemetryDirectory());
+        mQuadModel = new QuadModel(mBus);
+        // Replays of the recorded flights need the same curves, see ResponseCurves.
+        mQuadModel.setResponseCurves(ResponseCurves.createDefault());
+        mAccel = new Accel(this, Accel.SENSOR_THREAD_PIPELINE, mBus);
+        mAccel.setFilterMode(Accel.ROTATION_VECTOR_FILTER);
+        mBLE = new BLE(this, mBus);
+        mViewForwarder = new ViewForwarder();
+
+        mSafeThrottleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                applySafeThrottle();
+            }
+        };
+
+        // The sensor->model->radio path runs inline on the sensor thread and keeps its deadline
+        // whatever the view does. The view gets the newest sample and model state on threads of
+        // its own; RSSI readings that arrive while it is still busy are simply dropped.
+        mBus.getAccelTopic().subscribe(mQuadModel, EventTopic.DELIVERY_INLINE);
+        mBus.getModelTopic().subscribe(mBLE, EventTopic.DELIVERY_INLINE);
+        mBus.getAccelTopic().subscribe(mViewForwarder, EventTopic.DELIVERY_COALESCED);
+        mBus.getModelTopic().subscribe(mViewForwarder, EventTopic.DELIVERY_COALESCED);
+        mBus.getRSSITopic().subscribe(mViewForwarder, EventTopic.DELIVERY_DROP_WHEN_BUSY);
+        mQuadModel.setBindStateListener(this);
+        mBLE.setConnectionListener(this);
+        mBLE.setSampleRateListener(mAccel);
+        mQuadModel.setRecorder(mRecorder);
+        mBLE.setRecorder(mRecorder);
+
+        // Nobody steers until the UI is visible.
+        mQuadModel.setHeld(true);
+        mRecorder.start();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The service only keeps itself started while there is a connection to keep, and a
+        // restarted service wouldn't have one.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mSafeThrottleRunnable);
+        mBLE.close();
+        mAccel.stop();
+        mRecorder.stop();
+        mBus.getAccelTopic().unsubscribe(mViewForwarder);
+        mBus.getModelTopic().unsubscribe(mViewForwarder);
+        mBus.getRSSITopic().unsubscribe(mViewForwarder);
+        super.onDestroy();
+    }
+
+    /**
+     * Flights are recorded to external storage, when there is any, so that they can be pulled
+     * off the phone with adb.
+     *
+     * @return
+     */
+    private File getTelemetryDirectory() {
+        File dir = getExternalFilesDir(TELEMETRY_DIRECTORY_NAME);
+        if (null == dir) {
+            dir = new File(getFilesDir(), TELEMETRY_DIRECTORY_NAME);
+        }
+        return dir;
+    }
+
+    public BLE getBLE() {
+        return mBLE;
+    }
+
+    public QuadModel getQuadModel() {
+        return mQuadModel;
+    }
+
+    public Accel getAccel() {
+        return mAccel;
+    }
+
+    /**
+     * Switches the steering between the high and the low rate. The choice is kept for as long
+     * as the service lives.
+     *
+     * @param lowRate
+     */
+    public void setLowRate(boolean lowRate) {
+        mQuadModel.setLowRate(lowRate);
+    }
+
+    public boolean isLowRate() {
+        return mQuadModel.isLowRate();
+    }
+
+    /**
+     * Connects the Activity. It is immediately told whether the quad is bound.
+     *
+     * @param ui
+     * @param view Given the accelerometer, model and RSSI updates.
+     */
+    public void attach(BridgeUI ui, QuadSurface view) {
+        mUI = ui;
+        mViewForwarder.mView = view;
+        ui.onBindStateChanged(mQuadModel.isBound());
+    }
+
+    public void detach() {
+        setUIVisible(false);
+        mUI = null;
+        mViewForwarder.mView = null;
+    }
+
+    /**
+     * @param visible False while nobody can see the throttle and steer, which engages the
+     *                safe-throttle policy if the quad is bound.
+     */
+    public void setUIVisible(boolean visible) {
+        if (visible == mUIVisible) {
+            return;
+        }
+        mUIVisible = visible;
+        mHandler.removeCallbacks(mSafeThrottleRunnable);
+
+        if (visible) {
+            mQuadModel.setHeld(false);
+        } else {
+            mHiddenSinceMs = SystemClock.elapsedRealtime();
+            mQuadModel.setHeld(true);
+            if (mQuadModel.isBound()) {
+                mHandler.postDelayed(mSafeThrottleRunnable, HIDDEN_GRACE_MS);
+            }
+        }
+        updateAccel();
+    }
+
+    private void applySafeThrottle() {
+        if (mUIVisible || !mQuadModel.isBound()) {
+            return;
+        }
+
+        if (HIDDEN_UNBIND_MS <= (SystemClock.elapsedRealtime() - mHiddenSinceMs)) {
+            mBLE.unbind();
+            return;
+        }
+        if (QuadModel.MIN_THROTTLE_VALUE < mQuadModel.getThrottle()) {
+            mQuadModel.throttleDown();
+        }
+        mHandler.postDelayed(mSafeThrottleRunnable, THROTTLE_STEP_INTERVAL_MS);
+    }
+
+    /**
+     * The accelerometer runs while somebody looks at it or the quad flies.
+     */
+    private void updateAccel() {
+        if (mUIVisible || mQuadModel.isBound()) {
+            mAccel.start();
+        } else {
+            mAccel.stop();
+        }
+    }
+
+    private void startForeground() {
+        if (mForeground) {
+            return;
+        }
+        mForeground = true;
+
+        // Started as well as bound, so that the service outlives the Activity.
+        startService(new Intent(this, BridgeService.class));
+
+        Intent intent = new Intent(this, UIActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent pendingIntent;
+        pendingIntent = PendingIntent.getActivity(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        Notification notification = new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.link_service_text))
+                .setContentIntent(pendingIntent)
+                .setOngoing(true)
+                .setPriority(Notification.PRIORITY_LOW)
+                .setCategory(Notification.CATEGORY_SERVICE)
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+    }
+
+    private void stopForeground() {
+        if (!mForeground) {
+            return;
+        }
+        mForeground = false;
+        stopForeground(true);
+        // The service lives on while the Activity is bound to it.
+        stopSelf();
+    }
+
+    @Override
+    public void bleConnecting() {
+        startForeground();
+        if (null != mUI) {
+            mUI.bleConnecting();
+        }
+    }
+
+    @Override
+    public void bleConnected() {
+        startForeground();
+        if (null != mUI) {
+            mUI.bleConnected();
+        }
+    }
+
+    @Override
+    public void bleDisconnected() {
+        mQuadModel.reset();
+        if (!mBLE.isReconnecting()) {
+            stopForeground();
+        }
+        if (null != mUI) {
+            mUI.bleDisconnected();
+        }
+    }
+
+    @Override
+    public void onBound() {
+        mQuadModel.bind();
+    }
+
+    @Override
+    public boolean addScanResult(BluetoothDevice device, int rssi) {
+        return ((null != mUI) && mUI.addScanResult(device, rssi));
+    }
+
+    @Override
+    public void onBindStateChanged(boolean isBound) {
+        // Every flight gets its own telemetry session.
+        if (isBound) {
+            mRecorder.startSession(System.currentTimeMillis());
+        } else {
+            mRecorder.stopSession();
+            mHandler.removeCallbacks(mSafeThrottleRunnable);
+        }
+        if (isBound && !mUIVisible) {
+            mHandler.postDelayed(mSafeThrottleRunnable, HIDDEN_GRACE_MS);
+        }
+        updateAccel();
+
+        if (null != mUI) {
+            mUI.onBindStateChanged(isBound);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package io.foolsday.quadbridge;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the address of the last bridge that a connection was set up with, so that it can be
+ * connected to again without a scan.
+ */
+public class BridgeStore {
+
+    private static final String PREFS_NAME = "bridge";
+    private static final String LOADER_THREAD_NAME = "BridgeLoader";
+    private static final String LAST_ADDRESS_KEY = "lastAddress";
+
+    private final Context mContext;
+    private volatile SharedPreferences mPrefs;
+    private volatile String mLastAddress;
+
+    public BridgeStore(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Reads the stored address on a background thread. SharedPreferences reads its file on
+     * first access, which must not happen on the UI thread.
+     */
+    public void loadAsync() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences prefs;
+                prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+                String address = prefs.getString(LAST_ADDRESS_KEY, null);
+                // A save() that ran before the load finished has the newer address.
+                if (null == mLastAddress) {
+                    mLastAddress = address;
+                }
+                mPrefs = prefs;
+            }
+        }, LOADER_THREAD_NAME).start();
+    }
+
+    /**
+     * @return The address of the last bridge, or null if there is none or it isn't loaded yet.
+     */
+    public String getLastAddress() {
+        return mLastAddress;
+    }
+
+    public void save(String address) {
+        if (address.equals(mLastAddress) && (null != mPrefs)) {
+            return;
+        }
+        mLastAddress = address;
+
+        SharedPreferences prefs = mPrefs;
+        if (null == prefs) {
+            prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        }
+        // apply() writes to disk asynchronously.
+        prefs.edit().putString(LAST_ADDRESS_KEY, address).apply();
+    }
+}
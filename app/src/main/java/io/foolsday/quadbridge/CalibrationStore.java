@@ -0,0 +1,99 @@
+package io.foolsday.quadbridge;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+import android.os.Build;
+
+import io.foolsday.quadbridge.core.Calibration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists accelerometer calibrations keyed by device model and sensor name, so that the same
+ * phone model with a different sensor (or a replaced sensor) doesn't reuse the wrong values.
+ */
+public class CalibrationStore {
+
+    private static final String PREFS_NAME = "calibration";
+    private static final String LOADER_THREAD_NAME = "CalibrationLoader";
+    private static final String MAX_RANGE_KEY = "maxRange";
+    private static final String OFFSET_X_KEY = "offsetX";
+    private static final String OFFSET_Y_KEY = "offsetY";
+    private static final String OFFSET_Z_KEY = "offsetZ";
+
+    private final Context mContext;
+    private final String mKeyPrefix;
+    private final CountDownLatch mLoaded;
+    private volatile SharedPreferences mPrefs;
+    private volatile Calibration mCalibration;
+
+    public CalibrationStore(Context context, Sensor sensor) {
+        mContext = context.getApplicationContext();
+        mKeyPrefix = (Build.MODEL + "/" + ((null != sensor) ? sensor.getName() : "none") + "/");
+        mLoaded = new CountDownLatch(1);
+        mCalibration = Calibration.NONE;
+    }
+
+    /**
+     * Reads the stored calibration on a background thread. SharedPreferences reads its file on
+     * first access, which must not happen on the UI thread.
+     */
+    public void loadAsync() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences prefs;
+                prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+                mCalibration = new Calibration(prefs.getFloat(mKeyPrefix + MAX_RANGE_KEY, 0),
+                        prefs.getFloat(mKeyPrefix + OFFSET_X_KEY, 0),
+                        prefs.getFloat(mKeyPrefix + OFFSET_Y_KEY, 0),
+                        prefs.getFloat(mKeyPrefix + OFFSET_Z_KEY, 0));
+                mPrefs = prefs;
+                mLoaded.countDown();
+            }
+        }, LOADER_THREAD_NAME).start();
+    }
+
+    /**
+     * Waits up to timeoutMs for loadAsync() to finish.
+     *
+     * @param timeoutMs
+     * @return The stored calibration, or Calibration.NONE if there is none or loading hasn't
+     *         finished in time.
+     */
+    public Calibration await(long timeoutMs) {
+        try {
+            mLoaded.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mCalibration;
+    }
+
+    public boolean isLoaded() {
+        return (0 == mLoaded.getCount());
+    }
+
+    /**
+     * Stores the calibration. The file is written in the background.
+     *
+     * @param calibration
+     */
+    public void save(Calibration calibration) {
+        mCalibration = calibration;
+
+        SharedPreferences prefs = mPrefs;
+        if (null == prefs) {
+            // Nothing was loaded yet so there is nothing that this could overwrite that matters.
+            prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        }
+        prefs.edit()
+                .putFloat(mKeyPrefix + MAX_RANGE_KEY, calibration.getMaxRange())
+                .putFloat(mKeyPrefix + OFFSET_X_KEY, calibration.getOffsetX())
+                .putFloat(mKeyPrefix + OFFSET_Y_KEY, calibration.getOffsetY())
+                .putFloat(mKeyPrefix + OFFSET_Z_KEY, calibration.getOffsetZ())
+                .apply();
+    }
+}
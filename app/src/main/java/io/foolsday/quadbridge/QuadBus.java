@@ -0,0 +1,144 @@
+package io.foolsday.quadbridge;
+
+import io.foolsday.quadbridge.core.event.EventTopic;
+
+/**
+ * Connects the accelerometer, the model, the radio and the view without them knowing about each
+ * other. Each topic carries one kind of update; publishers fill an event they own and
+ * subscribers pick a delivery policy (see EventTopic), so that e.g. a busy view can't delay the
+ * radio.
+ */
+public class QuadBus {
+
+    public static class AccelEvent implements EventTopic.Event<AccelEvent> {
+
+        private float mX;
+        private float mY;
+        private float mZ;
+        private float mMaxAccel;
+        private long mTimestampNs;
+
+        public void set(float x, float y, float z, float maxAccel, long timestampNs) {
+            mX = x;
+            mY = y;
+            mZ = z;
+            mMaxAccel = maxAccel;
+            mTimestampNs = timestampNs;
+        }
+
+        @Override
+        public void copyFrom(AccelEvent other) {
+            set(other.mX, other.mY, other.mZ, other.mMaxAccel, other.mTimestampNs);
+        }
+    }
+
+    public static class ModelEvent implements EventTopic.Event<ModelEvent> {
+
+        private int mThrottle;
+        private int mPitch;
+        private int mRoll;
+        private int mYaw;
+        private boolean mIsBound;
+        private long mSampleTimeNs;
+        private long mModelTimeNs;
+
+        public void set(int throttle,
+                        int pitch,
+                        int roll,
+                        int yaw,
+                        boolean isBound,
+                        long sampleTimeNs,
+                        long modelTimeNs) {
+            mThrottle = throttle;
+            mPitch = pitch;
+            mRoll = roll;
+            mYaw = yaw;
+            mIsBound = isBound;
+            mSampleTimeNs = sampleTimeNs;
+            mModelTimeNs = modelTimeNs;
+        }
+
+        @Override
+        public void copyFrom(ModelEvent other) {
+            set(other.mThrottle, other.mPitch, other.mRoll, other.mYaw, other.mIsBound,
+                    other.mSampleTimeNs, other.mModelTimeNs);
+        }
+    }
+
+    public static class RSSIEvent implements EventTopic.Event<RSSIEvent> {
+
+        private int mRSSI;
+
+        public void set(int rssi) {
+            mRSSI = rssi;
+        }
+
+        @Override
+        public void copyFrom(RSSIEvent other) {
+            mRSSI = other.mRSSI;
+        }
+    }
+
+    private final EventTopic<AccelEvent, Accel.AccelEventListener> mAccelTopic;
+    private final EventTopic<ModelEvent, QuadModel.QuadModelEventListener> mModelTopic;
+    private final EventTopic<RSSIEvent, BLE.RSSIEventListener> mRSSITopic;
+
+    public QuadBus() {
+        mAccelTopic = new EventTopic<AccelEvent, Accel.AccelEventListener>("AccelTopic") {
+            @Override
+            protected AccelEvent newEvent() {
+                return new AccelEvent();
+            }
+
+            @Override
+            protected void deliver(Accel.AccelEventListener subscriber, AccelEvent event) {
+                subscriber.onAccelUpdate(event.mX, event.mY, event.mZ, event.mMaxAccel,
+                        event.mTimestampNs);
+            }
+        };
+        mModelTopic = new EventTopic<ModelEvent, QuadModel.QuadModelEventListener>("ModelTopic") {
+            @Override
+            protected ModelEvent newEvent() {
+                return new ModelEvent();
+            }
+
+            @Override
+            protected void deliver(QuadModel.QuadModelEventListener subscriber, ModelEvent event) {
+                subscriber.onModelUpdate(event.mThrottle, event.mPitch, event.mRoll, event.mYaw,
+                        event.mIsBound, event.mSampleTimeNs, event.mModelTimeNs);
+            }
+        };
+        mRSSITopic = new EventTopic<RSSIEvent, BLE.RSSIEventListener>("RSSITopic") {
+            @Override
+            protected RSSIEvent newEvent() {
+                return new RSSIEvent();
+            }
+
+            @Override
+            protected void deliver(BLE.RSSIEventListener subscriber, RSSIEvent event) {
+                subscriber.onRSSIUpdate(event.mRSSI);
+            }
+        };
+    }
+
+    /**
+     * Published by Accel on its pipeline thread.
+     */
+    public EventTopic<AccelEvent, Accel.AccelEventListener> getAccelTopic() {
+        return mAccelTopic;
+    }
+
+    /**
+     * Published by QuadModel on the thread that changed it, under its lock.
+     */
+    public EventTopic<ModelEvent, QuadModel.QuadModelEventListener> getModelTopic() {
+        return mModelTopic;
+    }
+
+    /**
+     * Published by BLE on the link thread.
+     */
+    public EventTopic<RSSIEvent, BLE.RSSIEventListener> getRSSITopic() {
+        return mRSSITopic;
+    }
+}
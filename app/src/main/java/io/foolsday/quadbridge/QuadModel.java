@@ -1,150 +1,240 @@
 package io.foolsday.quadbridge;
 
-import java.util.ArrayList;
+import android.os.SystemClock;
+
+import io.foolsday.quadbridge.core.QuadControl;
+import io.foolsday.quadbridge.core.curve.ResponseCurves;
+import io.foolsday.quadbridge.core.event.EventTopic;
+import io.foolsday.quadbridge.core.telemetry.TelemetryFormat;
+import io.foolsday.quadbridge.core.telemetry.TelemetryRecorder;
 
 public class QuadModel implements Accel.AccelEventListener {
 
     public interface QuadModelEventListener {
-        void onModelUpdate(int throttle, int pitch, int roll, int yaw, boolean isBound);
+        /**
+         * @param sampleTimeNs The timestamp of the sensor sample behind pitch, roll and yaw.
+         * @param modelTimeNs When this update was computed. Both are based on
+         *                    SystemClock.elapsedRealtimeNanos.
+         */
+        void onModelUpdate(int throttle,
+                           int pitch,
+                           int roll,
+                           int yaw,
+                           boolean isBound,
+                           long sampleTimeNs,
+                           long modelTimeNs);
     }
 
-    public static final int MIN_THROTTLE_VALUE = 0;
-    public static final int MAX_THROTTLE_VALUE = 255;
-    public static final int MIN_YAW_VALUE = -128;
-    public static final int MAX_YAW_VALUE = 127;
-    public static final int MIN_ROLL_VALUE = -128;
-    public static final int MAX_ROLL_VALUE = 127;
-    public static final int MIN_PITCH_VALUE = -128;
-    public static final int MAX_PITCH_VALUE = 127;
-
-    public static final float PITCH_SCALER = 2.0f;
-    public static final float YAW_SCALER = 2.0f;
-    public static final int ROLL_PITCH_THRESHOLD = 50;
-    public static final float ROLL_YAW_SCALER = 0.7f;
-
-    private static final int THROTTLE_INCREMENT = 5;
-
-    private ArrayList<QuadModelEventListener> mListeners;
-    private UIActivity mUIActivity;
-
-    private float mAccelX;
-    private float mAccelY;
-    private int mThrottle;
-    private int mPitch;
-    private int mRoll;
-    private int mYaw;
-    private boolean mIsBound;
-
-    public QuadModel(UIActivity activity) {
-        mUIActivity = activity;
-
-        mAccelX = 0;
-        mAccelY = 0;
-        mThrottle = MIN_THROTTLE_VALUE;
-        mPitch = 0;
-        mRoll = 0;
-        mYaw = 0;
-        mIsBound = false;
+    public interface BindStateListener {
+        void onBindStateChanged(boolean isBound);
+    }
 
-        mListeners = new ArrayList<>();
+    public static final int MIN_THROTTLE_VALUE = QuadControl.MIN_THROTTLE_VALUE;
+    public static final int MAX_THROTTLE_VALUE = QuadControl.MAX_THROTTLE_VALUE;
+    public static final int MIN_YAW_VALUE = QuadControl.MIN_YAW_VALUE;
+    public static final int MAX_YAW_VALUE = QuadControl.MAX_YAW_VALUE;
+    public static final int MIN_ROLL_VALUE = QuadControl.MIN_ROLL_VALUE;
+    public static final int MAX_ROLL_VALUE = QuadControl.MAX_ROLL_VALUE;
+    public static final int MIN_PITCH_VALUE = QuadControl.MIN_PITCH_VALUE;
+    public static final int MAX_PITCH_VALUE = QuadControl.MAX_PITCH_VALUE;
+
+    private final EventTopic<QuadBus.ModelEvent, QuadModelEventListener> mTopic;
+    private final QuadBus.ModelEvent mEvent = new QuadBus.ModelEvent();
+    private BindStateListener mBindStateListener;
+
+    // The throttle and bind state are changed from the UI thread while the accelerometer values
+    // may arrive on the sensor thread. QuadControl itself is not thread-safe so all access to it
+    // is serialized on this lock. Inline subscribers of the model topic and the recorder run
+    // under it too, so they must only hand the update on and never block.
+    private final QuadControl mControl;
+    private long mSampleTimeNs;
+    private long mModelTimeNs;
+    private boolean mHeld;
+    private volatile TelemetryRecorder mRecorder;
+
+    /**
+     * @param bus Every update is published to its model topic, under the model's lock.
+     */
+    public QuadModel(QuadBus bus) {
+        mControl = new QuadControl();
+        mTopic = bus.getModelTopic();
+    }
 
-        mUIActivity.disableThrottleButtons();
+    /**
+     * The listener is called on the thread that calls bind() or reset(), which is the UI thread
+     * in practice.
+     *
+     * @param listener
+     */
+    public void setBindStateListener(BindStateListener listener) {
+        mBindStateListener = listener;
+        if (null != mBindStateListener) {
+            mBindStateListener.onBindStateChanged(isBound());
+        }
     }
 
     public void throttleUp() {
-        if (MAX_THROTTLE_VALUE == mThrottle) {
-            return;
-        } else if ((MAX_THROTTLE_VALUE - THROTTLE_INCREMENT) < mThrottle) {
-            mThrottle = MAX_THROTTLE_VALUE;
-        } else {
-            mThrottle += THROTTLE_INCREMENT;
+        synchronized (mControl) {
+            if (!mControl.throttleUp()) {
+                return;
+            }
+            notifyListeners();
         }
-
-        notifyListeners();
     }
 
     public void throttleDown() {
-        if (MIN_THROTTLE_VALUE == mThrottle) {
-            return;
-        } else if ((MIN_THROTTLE_VALUE + THROTTLE_INCREMENT) > mThrottle) {
-            mThrottle = MIN_THROTTLE_VALUE;
-        } else {
-            mThrottle -= THROTTLE_INCREMENT;
+        synchronized (mControl) {
+            if (!mControl.throttleDown()) {
+                return;
+            }
+            notifyListeners();
         }
-
-        notifyListeners();
     }
 
     public void bind() {
-        mIsBound = true;
-        mUIActivity.enableThrottleButtons();
-        notifyListeners();
+        synchronized (mControl) {
+            mControl.bind();
+            notifyListeners();
+        }
+        notifyBindStateListener(true);
     }
 
     public void reset() {
-        mAccelX = 0;
-        mAccelY = 0;
-        mThrottle = MIN_THROTTLE_VALUE;
-        mPitch = 0;
-        mRoll = 0;
-        mYaw = 0;
-        mIsBound = false;
-
-        mUIActivity.disableThrottleButtons();
-        notifyListeners();
+        synchronized (mControl) {
+            mControl.reset();
+            notifyListeners();
+        }
+        notifyBindStateListener(false);
     }
 
-    public void addListener(QuadModelEventListener listener) {
-        if (!mListeners.contains(listener)) {
-            mListeners.add(listener);
+    public boolean isBound() {
+        synchronized (mControl) {
+            return mControl.isBound();
         }
     }
 
-    public void removeListener(QuadModelEventListener listener) {
-        if (mListeners.contains(listener)) {
-            mListeners.remove(listener);
+    public int getThrottle() {
+        synchronized (mControl) {
+            return mControl.getThrottle();
         }
     }
 
-    @Override
-    public void onAccelUpdate(float x, float y, float z, float maxAccel) {
-        mAccelX = (x / maxAccel);
-        mAccelY = (y / maxAccel);
+    /**
+     * While held, the accelerometer doesn't steer: every sample is treated as a level phone so
+     * the quad holds its attitude. The throttle still follows throttleUp() and throttleDown().
+     *
+     * @param held
+     */
+    public void setHeld(boolean held) {
+        synchronized (mControl) {
+            mHeld = held;
+        }
+    }
 
-        mYaw = (int)(mAccelX * MAX_YAW_VALUE * YAW_SCALER);
-        mPitch = (int)(mAccelY * MIN_PITCH_VALUE * PITCH_SCALER);
+    /**
+     * @param curves Compiled response curves to steer with, or null for the linear mapping.
+     *               Applies from the next sample on.
+     */
+    public void setResponseCurves(ResponseCurves curves) {
+        synchronized (mControl) {
+            mControl.setResponseCurves(curves);
+        }
+    }
 
-        // Roll should be proportional to yaw but should not be applied below a certain pitch.
-        if (mPitch >= ROLL_PITCH_THRESHOLD) {
-            mRoll = (int) (mYaw * ROLL_YAW_SCALER);
-        } else {
-            mRoll = 0;
+    /**
+     * Switches the response curves between their high and low rate. Does nothing without
+     * curves.
+     *
+     * @param lowRate
+     */
+    public void setLowRate(boolean lowRate) {
+        synchronized (mControl) {
+            ResponseCurves curves = mControl.getResponseCurves();
+            if (null != curves) {
+                curves.setRate(lowRate ? ResponseCurves.LOW_RATE : ResponseCurves.HIGH_RATE);
+            }
         }
+    }
 
-        if (MAX_YAW_VALUE < mYaw) {
-            mYaw = MAX_YAW_VALUE;
-        } else if (MIN_YAW_VALUE > mYaw) {
-            mYaw = MIN_YAW_VALUE;
+    public boolean isLowRate() {
+        synchronized (mControl) {
+            ResponseCurves curves = mControl.getResponseCurves();
+            return ((null != curves) && (ResponseCurves.LOW_RATE == curves.getRate()));
         }
+    }
+
+    /**
+     * @param recorder Given every sample along with the model output, on the thread that
+     *                 delivers the samples.
+     */
+    public void setRecorder(TelemetryRecorder recorder) {
+        mRecorder = recorder;
+    }
 
-        if (MAX_PITCH_VALUE < mPitch) {
-            mPitch = MAX_PITCH_VALUE;
-        } else if (MIN_PITCH_VALUE > mPitch) {
-            mPitch = MIN_PITCH_VALUE;
+    @Override
+    public void onAccelUpdate(float x, float y, float z, float maxAccel, long timestampNs) {
+        synchronized (mControl) {
+            if (mHeld) {
+                mControl.onAccelSample(0, 0, maxAccel);
+            } else {
+                mControl.onAccelSample(x, y, maxAccel);
+            }
+            mSampleTimeNs = timestampNs;
+            notifyListeners();
+
+            // The recorder only copies the record into its ring so this doesn't block.
+            TelemetryRecorder recorder = mRecorder;
+            if (null != recorder) {
+                recorder.record(timestampNs,
+                        mModelTimeNs,
+                        x,
+                        y,
+                        z,
+                        maxAccel,
+                        mControl.getState(),
+                        getTelemetryFlags());
+            }
         }
+    }
 
-        if (MAX_ROLL_VALUE < mRoll) {
-            mRoll = MAX_ROLL_VALUE;
-        } else if (MIN_ROLL_VALUE > mRoll) {
-            mRoll = MIN_ROLL_VALUE;
+    /**
+     * The raw sample is recorded along with these, so that a replay knows to map a held one as
+     * a level phone and which curves and rate to map the others with.
+     */
+    private int getTelemetryFlags() {
+        int flags = 0;
+        if (mControl.isBound()) {
+            flags |= TelemetryFormat.FLAG_BOUND;
+        }
+        if (mHeld) {
+            flags |= TelemetryFormat.FLAG_HELD;
+        }
+        ResponseCurves curves = mControl.getResponseCurves();
+        if (null != curves) {
+            flags |= TelemetryFormat.FLAG_CURVES;
+            if (ResponseCurves.LOW_RATE == curves.getRate()) {
+                flags |= TelemetryFormat.FLAG_LOW_RATE;
+            }
         }
+        return flags;
+    }
 
-        notifyListeners();
+    private void notifyBindStateListener(boolean isBound) {
+        if (null != mBindStateListener) {
+            mBindStateListener.onBindStateChanged(isBound);
+        }
     }
 
     private void notifyListeners() {
-        for (QuadModelEventListener listener : mListeners) {
-            listener.onModelUpdate(mThrottle, mPitch, mRoll, mYaw, mIsBound);
-        }
+        long modelTimeNs = SystemClock.elapsedRealtimeNanos();
+        mModelTimeNs = modelTimeNs;
+        mEvent.set(mControl.getThrottle(),
+                mControl.getPitch(),
+                mControl.getRoll(),
+                mControl.getYaw(),
+                mControl.isBound(),
+                mSampleTimeNs,
+                modelTimeNs);
+        mTopic.publish(mEvent);
     }
 }
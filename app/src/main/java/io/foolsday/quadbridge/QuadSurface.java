@@ -7,11 +7,13 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.os.Handler;
+import android.os.Process;
 import android.util.AttributeSet;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import io.foolsday.quadbridge.core.ControlState;
+
 public class QuadSurface extends SurfaceView implements SurfaceHolder.Callback,
         Accel.AccelEventListener,
         QuadModel.QuadModelEventListener,
@@ -28,10 +30,62 @@ public class QuadSurface extends SurfaceView implements SurfaceHolder.Callback,
     private static final float BUBBLE_SCALER = 2.0f;
     private static final int DIR_ARROW_RADIUS = 150;
     private static final int ARROW_SIDE_LEN = 20;
+    private static final String RENDER_THREAD_NAME = "QuadSurfaceRender";
+
+    /**
+     * Draws directly to the surface at REDRAW_INTERVAL_MS so that rendering never runs on the
+     * main looper alongside the sensor and radio paths.
+     */
+    private class RenderThread extends Thread {
+
+        private volatile boolean mRunning = true;
+
+        public RenderThread() {
+            super(RENDER_THREAD_NAME);
+        }
+
+        public void requestStop() {
+            mRunning = false;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+
+            long nextFrameMs = System.currentTimeMillis();
+            while (mRunning) {
+                Canvas canvas = mHolder.lockCanvas();
+                if (null != canvas) {
+                    try {
+                        synchronized (mSurfaceLock) {
+                            drawFrame(canvas);
+                        }
+                    } finally {
+                        mHolder.unlockCanvasAndPost(canvas);
+                    }
+                }
+
+                nextFrameMs += REDRAW_INTERVAL_MS;
+                long sleepMs = (nextFrameMs - System.currentTimeMillis());
+                if (0 < sleepMs) {
+                    try {
+                        Thread.sleep(sleepMs);
+                    } catch (InterruptedException e) {
+                        // requestStop() was called.
+                    }
+                } else {
+                    nextFrameMs = System.currentTimeMillis();
+                }
+            }
+        }
+    }
 
     private SurfaceHolder mHolder;
-    private Handler mHandler;
-    private Runnable mRedrawRunnable;
+    private RenderThread mRenderThread;
+
+    // Guards the surface dimensions, which are set on the UI thread and read while drawing.
+    private final Object mSurfaceLock = new Object();
 
     private Paint mPaint;
     private Rect mTextMeasureRect;
@@ -51,21 +105,18 @@ public class QuadSurface extends SurfaceView implements SurfaceHolder.Callback,
     private int mYaw;
     private int mRSSI;
 
+    // The listener callbacks arrive on the event bus threads. Each one publishes its values as a
+    // single packed volatile write so that the render thread always sees a consistent snapshot
+    // without locking.
+    private volatile long mAccelSnapshot;
+    private volatile long mModelSnapshot;
+    private volatile int mRSSISnapshot;
+
     public QuadSurface(Context context, AttributeSet attrSet) {
         super(context, attrSet);
         mHolder = getHolder();
         mHolder.addCallback(this);
 
-        mHandler = new Handler();
-        mRedrawRunnable = new Runnable() {
-            @Override
-            public void run() {
-                mHandler.postDelayed(this, REDRAW_INTERVAL_MS);
-                QuadSurface.this.invalidate();
-            }
-        };
-        mHandler.postDelayed(mRedrawRunnable, REDRAW_INTERVAL_MS);
-
         mPaint = new Paint();
         mPaint.setTextSize(RSSI_FONT_SIZE);
         mArrowPath = new Path();
@@ -82,16 +133,48 @@ public class QuadSurface extends SurfaceView implements SurfaceHolder.Callback,
         mRoll = 0;
         mYaw = 0;
         mRSSI = BLE.INVALID_RSSI;
+
+        mAccelSnapshot = packAccel(0, 0);
+        mModelSnapshot = packModel(0, 0, 0, 0, false);
+        mRSSISnapshot = BLE.INVALID_RSSI;
+    }
+
+    private static long packAccel(float x, float y) {
+        return ((((long) Float.floatToRawIntBits(x)) << 32) |
+                (Float.floatToRawIntBits(y) & 0xFFFFFFFFL));
+    }
+
+    private static long packModel(int throttle, int pitch, int roll, int yaw, boolean isBound) {
+        return ((((long) ControlState.pack(throttle, pitch, roll, yaw)) << 32) |
+                (isBound ? 1 : 0));
     }
 
     @Override
-    public void onAccelUpdate(float x, float y, float z, float maxAccel) {
+    public void onAccelUpdate(float x, float y, float z, float maxAccel, long timestampNs) {
+        mAccelSnapshot = packAccel((x / maxAccel), (y / maxAccel));
+    }
+
+    private void loadSnapshot() {
+        long accel = mAccelSnapshot;
+        float x = Float.intBitsToFloat((int) (accel >>> 32));
+        float y = Float.intBitsToFloat((int) accel);
+
+        long model = mModelSnapshot;
+        int state = (int) (model >>> 32);
+        mThrottle = (ControlState.getThrottle(state) & 0xFF);
+        mPitch = ControlState.getPitch(state);
+        mRoll = ControlState.getRoll(state);
+        mYaw = ControlState.getYaw(state);
+        mIsBound = (0 != (model & 1));
+
+        mRSSI = mRSSISnapshot;
+
         mBubbleCenterX = mMidX;
         mBubbleCenterY = mMidY;
 
         // Calculate the bubble position.
-        mBubbleCenterX -= (mBubbleCenterX * (x / maxAccel) * BUBBLE_SCALER);
-        mBubbleCenterY += (mBubbleCenterY * (y / maxAccel) * BUBBLE_SCALER);
+        mBubbleCenterX -= (mBubbleCenterX * x * BUBBLE_SCALER);
+        mBubbleCenterY += (mBubbleCenterY * y * BUBBLE_SCALER);
 
         if (mBubbleCenterX < 0) {
             mBubbleCenterX = 0;
@@ -110,9 +193,8 @@ public class QuadSurface extends SurfaceView implements SurfaceHolder.Callback,
         }
     }
 
-    @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+    private void drawFrame(Canvas canvas) {
+        loadSnapshot();
 
         // Clear the background.
         canvas.drawColor(Color.BLACK);
@@ -243,38 +325,62 @@ public class QuadSurface extends SurfaceView implements SurfaceHolder.Callback,
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
-        Canvas c = mHolder.lockCanvas(null);
-        draw(c);
-        mHolder.unlockCanvasAndPost(c);
+        mRenderThread = new RenderThread();
+        mRenderThread.start();
     }
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        mPixelFormat = format;
-        mWidth = width;
-        mHeight = height;
-        mMidX = (width / 2);
-        mMidY = (height / 2);
-        mCircleRect = new RectF((mMidX - DIR_ARROW_RADIUS),
-                (mMidY - DIR_ARROW_RADIUS),
-                (mMidX + DIR_ARROW_RADIUS),
-                (mMidY + DIR_ARROW_RADIUS));
+        synchronized (mSurfaceLock) {
+            mPixelFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mMidX = (width / 2);
+            mMidY = (height / 2);
+            mCircleRect = new RectF((mMidX - DIR_ARROW_RADIUS),
+                    (mMidY - DIR_ARROW_RADIUS),
+                    (mMidX + DIR_ARROW_RADIUS),
+                    (mMidY + DIR_ARROW_RADIUS));
+        }
     }
 
     @Override
-    public void surfaceDestroyed(SurfaceHolder holder) {}
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // The surface must not be touched after this function returns so wait for the render
+        // thread to finish its current frame.
+        RenderThread thread = mRenderThread;
+        mRenderThread = null;
+        if (null == thread) {
+            return;
+        }
+
+        thread.requestStop();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
     @Override
-    public void onModelUpdate(int throttle, int pitch, int roll, int yaw, boolean isBound) {
-        mIsBound = isBound;
-        mThrottle = throttle;
-        mPitch = pitch;
-        mRoll = roll;
-        mYaw = yaw;
+    public void onModelUpdate(int throttle,
+                              int pitch,
+                              int roll,
+                              int yaw,
+                              boolean isBound,
+                              long sampleTimeNs,
+                              long modelTimeNs) {
+        mModelSnapshot = packModel(throttle, pitch, roll, yaw, isBound);
     }
 
     @Override
     public void onRSSIUpdate(int rssi) {
-        mRSSI = rssi;
+        mRSSISnapshot = rssi;
     }
 }
@@ -2,13 +2,20 @@ package io.foolsday.quadbridge;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.view.MotionEvent;
 import android.view.View.OnClickListener;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -18,9 +25,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 
-public class UIActivity extends Activity {
+public class UIActivity extends Activity implements BridgeService.BridgeUI {
+
+    public static final int REQUEST_ENABLE_BT = 0;
 
     // The RepeatListener class was copy and pasted verbatim from:
     // http://stackoverflow.com/questions/4284224/android-hold-button-to-repeat-action
@@ -91,44 +101,96 @@ public class UIActivity extends Activity {
     }
 
     private class DeviceListItem {
+        // The weight of a new advertisement's RSSI in the average.
+        private static final float RSSI_ALPHA = 0.3f;
+
         private final BluetoothDevice mDevice;
-        private int mRSSI;
+        private float mRSSI;
+        private long mLastSeenMs;
+        // Where the item is in the sorted list, kept up to date as items move.
+        private int mPosition;
 
-        public DeviceListItem(BluetoothDevice device, int rssi) {
+        public DeviceListItem(BluetoothDevice device, int rssi, long nowMs) {
             mDevice = device;
             mRSSI = rssi;
+            mLastSeenMs = nowMs;
         }
 
-        public void setRSSI(int rssi) {
-            mRSSI = rssi;
+        /**
+         * Advertisement RSSI jumps by several dB from packet to packet, so it is smoothed to
+         * keep the list order from flickering.
+         */
+        public void update(int rssi, long nowMs) {
+            mRSSI += (RSSI_ALPHA * (rssi - mRSSI));
+            mLastSeenMs = nowMs;
         }
 
-        public BluetoothDevice getDevice() {
-            return mDevice;
+        public float getRSSI() {
+            return mRSSI;
         }
 
-        @Override
-        public boolean equals(Object object) {
-            DeviceListItem rhs = (DeviceListItem)object;
-            return rhs.getDevice().equals(this.getDevice());
+        public long getLastSeenMs() {
+            return mLastSeenMs;
+        }
+
+        public int getPosition() {
+            return mPosition;
+        }
+
+        public void setPosition(int position) {
+            mPosition = position;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
         }
 
         @Override
         public String toString() {
-            return String.format("'%s' (%ddBm)", mDevice.getName(), mRSSI);
+            return String.format("'%s' (%ddBm)", mDevice.getName(), Math.round(mRSSI));
         }
     }
 
     private class BLEScanDialog extends Dialog {
 
+        // Devices that haven't advertised for this long are removed from the list.
+        private static final long DEVICE_TTL_MS = 10000;
+        private static final long EXPIRY_CHECK_INTERVAL_MS = 1000;
+
+        // NOTE: The list is sorted by RSSI, strongest first, and the index finds a device's
+        //       entry by address without searching it. Both are only touched on the main thread.
         private final ArrayList<DeviceListItem> mDevices = new ArrayList<>();
+        private final HashMap<String, DeviceListItem> mDeviceIndex = new HashMap<>();
         private ArrayAdapter<DeviceListItem> mArrayAdapter;
         private ListView mListView;
         private TextView mLabel;
 
-        public BLEScanDialog(final UIActivity context, final BLE bleParent) {
+        // The adapter is refreshed at most once per frame however many advertisements arrive.
+        private final Handler mHandler = new Handler();
+        private Choreographer.FrameCallback mRefreshCallback;
+        private Runnable mExpiryRunnable;
+        private boolean mRefreshPending;
+
+        public BLEScanDialog(final UIActivity context) {
             super(context);
 
+            mRefreshCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mRefreshPending = false;
+                    refresh();
+                }
+            };
+            mExpiryRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    removeStaleDevices(SystemClock.elapsedRealtime());
+                    if (!mDevices.isEmpty()) {
+                        mHandler.postDelayed(this, EXPIRY_CHECK_INTERVAL_MS);
+                    }
+                }
+            };
+
             setContentView(R.layout.ble_scan_popup_ui);
             setTitle(R.string.select_device_text);
             setCancelable(true);
@@ -141,7 +203,7 @@ public class UIActivity extends Activity {
                 public void onItemClick(AdapterView<?> parent, View view,
                                         int position, long id) {
                     if (position < mDevices.size()) {
-                        bleParent.connect(mDevices.get(position).getDevice());
+                        mBLE.connect(mDevices.get(position).getDevice());
                         hide();
                     }
                 }
@@ -157,7 +219,9 @@ public class UIActivity extends Activity {
             cancelButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    bleParent.stopScan();
+                    if (null != mBLE) {
+                        mBLE.stopScan();
+                    }
                     clearScanResults();
                     context.scanDialogClosed();
                     cancel();
@@ -174,22 +238,103 @@ public class UIActivity extends Activity {
 
         public void clearScanResults() {
             mDevices.clear();
-            mArrayAdapter.notifyDataSetChanged();
-            mLabel.setVisibility(View.VISIBLE);
+            mDeviceIndex.clear();
+            mHandler.removeCallbacks(mExpiryRunnable);
+            if (mRefreshPending) {
+                Choreographer.getInstance().removeFrameCallback(mRefreshCallback);
+                mRefreshPending = false;
+            }
+            refresh();
         }
 
         public void addScanResult(BluetoothDevice device, int rssi) {
-            DeviceListItem item = new DeviceListItem(device, rssi);
-            if (!mDevices.contains(item)) {
-                mDevices.add(item);
-                if (View.VISIBLE == mLabel.getVisibility()) {
-                    mLabel.setVisibility(View.GONE);
+            long nowMs = SystemClock.elapsedRealtime();
+            DeviceListItem item = mDeviceIndex.get(device.getAddress());
+            if (null == item) {
+                item = new DeviceListItem(device, rssi, nowMs);
+                mDeviceIndex.put(device.getAddress(), item);
+                int position = findInsertionIndex(item.getRSSI());
+                mDevices.add(position, item);
+                updatePositions(position);
+                if (1 == mDevices.size()) {
+                    mHandler.postDelayed(mExpiryRunnable, EXPIRY_CHECK_INTERVAL_MS);
                 }
             } else {
-                int index = mDevices.indexOf(item);
-                mDevices.get(index).setRSSI(rssi);
+                item.update(rssi, nowMs);
+                reposition(item);
             }
+            requestRefresh();
+        }
+
+        private int findInsertionIndex(float rssi) {
+            int low = 0;
+            int high = mDevices.size();
+            while (low < high) {
+                int mid = ((low + high) >>> 1);
+                if (mDevices.get(mid).getRSSI() >= rssi) {
+                    low = (mid + 1);
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Moves an item whose RSSI changed to its place in the sorted list. The smoothed RSSI
+         * changes a little at a time, so it rarely moves more than a few places.
+         */
+        private void reposition(DeviceListItem item) {
+            int index = item.getPosition();
+            while ((0 < index) && (mDevices.get(index - 1).getRSSI() < item.getRSSI())) {
+                moveTo(mDevices.get(index - 1), index);
+                index--;
+            }
+            while ((mDevices.size() - 1 > index) &&
+                    (mDevices.get(index + 1).getRSSI() > item.getRSSI())) {
+                moveTo(mDevices.get(index + 1), index);
+                index++;
+            }
+            moveTo(item, index);
+        }
+
+        private void moveTo(DeviceListItem item, int position) {
+            mDevices.set(position, item);
+            item.setPosition(position);
+        }
+
+        private void updatePositions(int from) {
+            for (int i = from; i < mDevices.size(); i++) {
+                mDevices.get(i).setPosition(i);
+            }
+        }
+
+        private void removeStaleDevices(long nowMs) {
+            int firstRemoved = -1;
+            for (int i = mDevices.size() - 1; i >= 0; i--) {
+                DeviceListItem item = mDevices.get(i);
+                if (DEVICE_TTL_MS < (nowMs - item.getLastSeenMs())) {
+                    mDevices.remove(i);
+                    mDeviceIndex.remove(item.getDevice().getAddress());
+                    firstRemoved = i;
+                }
+            }
+            if (0 <= firstRemoved) {
+                updatePositions(firstRemoved);
+                requestRefresh();
+            }
+        }
+
+        private void requestRefresh() {
+            if (!mRefreshPending) {
+                mRefreshPending = true;
+                Choreographer.getInstance().postFrameCallback(mRefreshCallback);
+            }
+        }
+
+        private void refresh() {
             mArrayAdapter.notifyDataSetChanged();
+            mLabel.setVisibility(mDevices.isEmpty() ? View.VISIBLE : View.GONE);
         }
     }
 
@@ -207,8 +352,14 @@ public class UIActivity extends Activity {
     private Button mThrottleUpButton;
     private Button mThrottleDownButton;
     private Button mBindConnectButton;
+    private Button mRateButton;
     private BLEScanDialog mScanDialog;
 
+    // BLE and the control loop live in BridgeService; these are null until it is bound.
+    private BridgeService mService;
+    private ServiceConnection mServiceConnection;
+    private boolean mResumed;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -218,12 +369,21 @@ public class UIActivity extends Activity {
         mThrottleUpButton = (Button)findViewById(R.id.throttleUpButton);
         mThrottleDownButton = (Button)findViewById(R.id.throttleDownButton);
         mBindConnectButton = (Button)findViewById(R.id.bindConnectButton);
+        mRateButton = (Button)findViewById(R.id.rateButton);
 
         mQuadSurface = (QuadSurface)findViewById(R.id.surfaceView);
-        mQuadModel = new QuadModel(this);
-        mAccel = new Accel(this);
-        mBLE = new BLE(this);
-        mScanDialog = new BLEScanDialog(this, mBLE);
+        mScanDialog = new BLEScanDialog(this);
+        mServiceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                attach(((BridgeService.LocalBinder) binder).getService());
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                detach();
+            }
+        };
 
         mThrottleUpButton.setOnTouchListener(new RepeatListener(400, 100, new OnClickListener() {
             @Override
@@ -239,71 +399,152 @@ public class UIActivity extends Activity {
             }
         }));
 
+        if (!BLE.hasRadio(this)) {
+            toastAndFinish("This device does not support BLE.");
+        } else if (!BLE.isBLEEnabled(this)) {
+            Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
+        }
+
+        // Holding a finger on the display while the phone lies level zeroes the accelerometer.
+        mQuadSurface.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                if (null == mAccel) {
+                    return false;
+                }
+                mAccel.captureZeroOffsets();
+                Toast.makeText(UIActivity.this,
+                        R.string.calibrating_text,
+                        Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
+
+        // Holding the connect button reconnects to the last bridge without a scan.
+        mBindConnectButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                return ((null != mBLE) && (DISCONNECTED_MODE == mUIMode) && mBLE.reconnect());
+            }
+        });
+    }
+
+    private void attach(BridgeService service) {
+        mService = service;
+        mBLE = service.getBLE();
+        mQuadModel = service.getQuadModel();
+        mAccel = service.getAccel();
+
         if (!mAccel.hasSensor()) {
             toastAndFinish("No accelerometer detected.");
         }
 
-        if (!mBLE.hasRadio()) {
-            toastAndFinish("This device does not support BLE.");
+        // Pick up wherever the connection is; the service may have kept it across a rotation
+        // or while the Activity was in the background.
+        if (mBLE.isLinkBound()) {
+            mUIMode = BOUND_MODE;
+            mBindConnectButton.setText(R.string.disconnect_text);
+            mBindConnectButton.setEnabled(true);
+        } else if (mBLE.isReady()) {
+            bleConnected();
+        } else if (mBLE.isConnecting()) {
+            bleConnecting();
+        } else {
+            bleDisconnected();
         }
+        updateRateButton();
+        service.attach(this, mQuadSurface);
+        if (mResumed) {
+            service.setUIVisible(true);
+            mBLE.setScanResultsVisible(true);
+        }
+    }
 
-        mAccel.addListener(mQuadSurface);
-        mAccel.addListener(mQuadModel);
-        mQuadModel.addListener(mQuadSurface);
-        mQuadModel.addListener(mBLE);
-        mBLE.addListener(mQuadSurface);
+    private void detach() {
+        if (null != mService) {
+            mService.detach();
+        }
+        mService = null;
+        mBLE = null;
+        mQuadModel = null;
+        mAccel = null;
     }
 
+    @Override
     public void bleConnecting() {
         mUIMode = SERVICE_DISCOVERY_MODE;
-        mBindConnectButton.setText(R.string.connecting_text);
-        mBindConnectButton.setEnabled(false);
+        // A reconnect can wait for the bridge indefinitely so it can be cancelled.
+        boolean isReconnecting = ((null != mBLE) && mBLE.isReconnecting());
+        mBindConnectButton.setText(isReconnecting ? R.string.reconnecting_text :
+                R.string.connecting_text);
+        mBindConnectButton.setEnabled(isReconnecting);
     }
 
+    @Override
     public void bleConnected() {
         mUIMode = UNBOUND_MODE;
         mBindConnectButton.setText(R.string.bind_text);
         mBindConnectButton.setEnabled(true);
     }
 
+    @Override
     public void bleDisconnected() {
         if (DISCONNECTED_MODE != mUIMode) {
             mUIMode = DISCONNECTED_MODE;
-            mQuadModel.reset();
             mBindConnectButton.setText(R.string.connect_text);
             mBindConnectButton.setEnabled(true);
         }
     }
 
-    public void enableThrottleButtons() {
-        mThrottleUpButton.setEnabled(true);
-        mThrottleDownButton.setEnabled(true);
-    }
-
-    public void disableThrottleButtons() {
-        mThrottleUpButton.setEnabled(false);
-        mThrottleDownButton.setEnabled(false);
+    @Override
+    public void onBindStateChanged(boolean isBound) {
+        mThrottleUpButton.setEnabled(isBound);
+        mThrottleDownButton.setEnabled(isBound);
     }
 
     public void onThrottleUpButtonClick(View button) {
-        mQuadModel.throttleUp();
+        if (null != mQuadModel) {
+            mQuadModel.throttleUp();
+        }
     }
 
+    @Override
     public void onBound() {
-        mQuadModel.bind();
+        // The service binds the model; the buttons follow onBindStateChanged().
     }
 
     public void onThrottleDownButtonClick(View button) {
-        mQuadModel.throttleDown();
+        if (null != mQuadModel) {
+            mQuadModel.throttleDown();
+        }
+    }
+
+    public void onRateButtonClick(View button) {
+        if (null != mService) {
+            mService.setLowRate(!mService.isLowRate());
+            updateRateButton();
+        }
+    }
+
+    private void updateRateButton() {
+        mRateButton.setText(((null != mService) && mService.isLowRate())
+                ? R.string.low_rate_text : R.string.high_rate_text);
     }
 
     public void onConnectButtonClick(View button) {
+        if (null == mBLE) {
+            return;
+        }
         switch (mUIMode) {
             case DISCONNECTED_MODE:
                 mBLE.startScan();
                 mBindConnectButton.setEnabled(false);
                 mScanDialog.show();
                 break;
+            case SERVICE_DISCOVERY_MODE:
+                mBLE.disconnect();
+                break;
             case UNBOUND_MODE:
                 mBLE.bind();
                 mUIMode = BOUND_MODE;
@@ -320,6 +561,7 @@ public class UIActivity extends Activity {
         }
     }
 
+    @Override
     public boolean addScanResult(BluetoothDevice device, int rssi) {
         if (mScanDialog.isShowing()) {
             mScanDialog.addScanResult(device, rssi);
@@ -351,33 +593,54 @@ public class UIActivity extends Activity {
                                     final int resultCode,
                                     final Intent data) {
         switch (requestCode) {
-            case BLE.REQUEST_ENABLE_BT:
-                mBLE.onActivityResult(requestCode, resultCode, data);
+            case REQUEST_ENABLE_BT:
+                if (RESULT_OK != resultCode) {
+                    toastAndFinish("Could not enable BLE.");
+                }
                 break;
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        bindService(new Intent(this, BridgeService.class), mServiceConnection,
+                Context.BIND_AUTO_CREATE);
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
 
-        // Accelerometer data is only required when the app is running.
-        mAccel.start();
+        // The service holds the quad level and winds the throttle down while nobody can steer.
+        if (null != mService) {
+            mService.setUIVisible(true);
+            mBLE.setScanResultsVisible(true);
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
 
-        // Accelerometer data is not required until the app resumes.
-        mAccel.stop();
-        mBLE.disconnect();
-        bleDisconnected();
+        if (null != mService) {
+            mService.setUIVisible(false);
+            // A scan keeps running behind the scan dialog but nobody sees its results until the
+            // app resumes.
+            mBLE.setScanResultsVisible(false);
+        }
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+
+        // The link lives on in the service, which keeps itself running while connected.
+        detach();
+        unbindService(mServiceConnection);
     }
 
 }
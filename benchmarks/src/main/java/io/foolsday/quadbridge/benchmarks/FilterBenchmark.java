@@ -0,0 +1,92 @@
+package io.foolsday.quadbridge.benchmarks;
+
+import io.foolsday.quadbridge.core.filter.ComplementaryFilter;
+import io.foolsday.quadbridge.core.filter.LowPassFilter;
+import io.foolsday.quadbridge.core.filter.RotationVectorFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-sample cost of each SampleFilter. The complementary and rotation vector
+ * benchmarks include the auxiliary sample that accompanies every accelerometer sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    private static final int SAMPLE_COUNT = 1024;
+    private static final long SAMPLE_INTERVAL_NS = 30000000L;
+
+    private LowPassFilter mLowPass;
+    private ComplementaryFilter mComplementary;
+    private RotationVectorFilter mRotationVector;
+
+    private float[][] mAccelSamples;
+    private float[][] mGyroSamples;
+    private float[][] mRotationSamples;
+    private final float[] mSample = new float[3];
+    private int mIndex;
+    private long mTimestampNs;
+
+    @Setup
+    public void setup() {
+        mLowPass = new LowPassFilter();
+        mComplementary = new ComplementaryFilter();
+        mRotationVector = new RotationVectorFilter();
+
+        Random random = new Random(0);
+        mAccelSamples = new float[SAMPLE_COUNT][3];
+        mGyroSamples = new float[SAMPLE_COUNT][3];
+        mRotationSamples = new float[SAMPLE_COUNT][4];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                mAccelSamples[i][axis] = ((random.nextFloat() * 2) - 1) * 9.8f;
+                mGyroSamples[i][axis] = ((random.nextFloat() * 2) - 1);
+                mRotationSamples[i][axis] = ((random.nextFloat() * 2) - 1) * 0.5f;
+            }
+            mRotationSamples[i][3] = 0.5f;
+        }
+        mIndex = 0;
+        mTimestampNs = 0;
+    }
+
+    private int nextSample() {
+        int i = (mIndex++ & (SAMPLE_COUNT - 1));
+        System.arraycopy(mAccelSamples[i], 0, mSample, 0, mSample.length);
+        mTimestampNs += SAMPLE_INTERVAL_NS;
+        return i;
+    }
+
+    @Benchmark
+    public float lowPass() {
+        nextSample();
+        mLowPass.filter(mSample, mTimestampNs);
+        return mSample[0];
+    }
+
+    @Benchmark
+    public float complementary() {
+        int i = nextSample();
+        mComplementary.onGyroSample(mGyroSamples[i], mTimestampNs);
+        mComplementary.filter(mSample, mTimestampNs);
+        return mSample[0];
+    }
+
+    @Benchmark
+    public float rotationVector() {
+        int i = nextSample();
+        mRotationVector.onRotationVector(mRotationSamples[i], mTimestampNs);
+        mRotationVector.filter(mSample, mTimestampNs);
+        return mSample[0];
+    }
+}
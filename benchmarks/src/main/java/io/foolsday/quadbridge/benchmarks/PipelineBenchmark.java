@@ -0,0 +1,67 @@
+package io.foolsday.quadbridge.benchmarks;
+
+import io.foolsday.quadbridge.core.CtlFrameEncoder;
+import io.foolsday.quadbridge.core.QuadControl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-sample cost of the control pipeline: mapping an accelerometer sample to
+ * pitch/roll/yaw and encoding the resulting CTL frame. Run with the GC profiler (the default
+ * for the jmh task) to track the allocation rate, which should stay at zero.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    // A power of two so that the sample index can be wrapped with a mask.
+    private static final int SAMPLE_COUNT = 1024;
+    private static final float MAX_ACCEL = 9.8f;
+
+    private QuadControl mControl;
+    private CtlFrameEncoder mEncoder;
+    private float[] mXSamples;
+    private float[] mYSamples;
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        mControl = new QuadControl();
+        mControl.bind();
+        mEncoder = new CtlFrameEncoder((byte) 1);
+
+        // Tilts spread over the whole range, including values that have to be clamped.
+        Random random = new Random(0);
+        mXSamples = new float[SAMPLE_COUNT];
+        mYSamples = new float[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            mXSamples[i] = ((random.nextFloat() * 2) - 1) * MAX_ACCEL;
+            mYSamples[i] = ((random.nextFloat() * 2) - 1) * MAX_ACCEL;
+        }
+        mIndex = 0;
+    }
+
+    @Benchmark
+    public int mapSample() {
+        int i = (mIndex++ & (SAMPLE_COUNT - 1));
+        mControl.onAccelSample(mXSamples[i], mYSamples[i], MAX_ACCEL);
+        return mControl.getState();
+    }
+
+    @Benchmark
+    public byte[] sampleToFrame() {
+        int i = (mIndex++ & (SAMPLE_COUNT - 1));
+        mControl.onAccelSample(mXSamples[i], mYSamples[i], MAX_ACCEL);
+        return mEncoder.encode(mControl.getState());
+    }
+}
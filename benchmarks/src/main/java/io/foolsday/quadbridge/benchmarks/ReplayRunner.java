@@ -0,0 +1,57 @@
+package io.foolsday.quadbridge.benchmarks;
+
+import io.foolsday.quadbridge.core.curve.ResponseCurves;
+import io.foolsday.quadbridge.core.telemetry.FlightReplay;
+import io.foolsday.quadbridge.core.telemetry.TelemetryReader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replays recorded flights through the control mapping and the CTL encoder and reports whether
+ * every frame still matches the recording, along with the replay throughput. Exits with status 1
+ * if any frame differs so that it can gate a build.
+ *
+ * Usage: ReplayRunner <segment file or telemetry directory> [speed]
+ *
+ * A speed of 1 replays at the recorded pace, 10 replays ten times faster and 0 (the default)
+ * replays as fast as possible.
+ */
+public class ReplayRunner {
+
+    public static void main(String[] args) throws IOException {
+        if (0 == args.length) {
+            System.err.println("Usage: ReplayRunner <segment file or telemetry directory> [speed]");
+            System.exit(2);
+            return;
+        }
+        File path = new File(args[0]);
+        float speed = (1 < args.length) ? Float.parseFloat(args[1])
+                : FlightReplay.AS_FAST_AS_POSSIBLE;
+
+        FlightReplay replay = new FlightReplay(speed);
+        replay.setResponseCurves(ResponseCurves.createDefault());
+        TelemetryReader reader = new TelemetryReader(path);
+        try {
+            replay.replay(reader);
+        } finally {
+            reader.close();
+        }
+
+        double seconds = (replay.getElapsedNs() / 1e9);
+        System.out.println(String.format("Segments: %d, sessions: %d, records: %d (%d dropped)",
+                reader.getSegmentCount(), replay.getSessions(), replay.getRecords(),
+                replay.getDroppedRecords()));
+        System.out.println(String.format("Replayed in %.3fs (%.0f records/s)",
+                seconds, ((0 < seconds) ? (replay.getRecords() / seconds) : 0)));
+
+        if (0 != replay.getMismatches()) {
+            System.out.println(String.format(
+                    "%d frames differ, first at session %d record %d",
+                    replay.getMismatches(), replay.getFirstMismatchSessionMs(),
+                    replay.getFirstMismatchSequence()));
+            System.exit(1);
+        }
+        System.out.println("All frames match.");
+    }
+}
@@ -0,0 +1,94 @@
+package io.foolsday.quadbridge.benchmarks;
+
+import io.foolsday.quadbridge.core.QuadControl;
+import io.foolsday.quadbridge.core.curve.AxisCurve;
+import io.foolsday.quadbridge.core.curve.ResponseCurves;
+import io.foolsday.quadbridge.core.curve.ResponseProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares mapping a sample with the linear float mapping against the compiled response curves,
+ * once with the profile that reproduces the float mapping and once with expo and a deadband,
+ * which cost the same as a table. Also measures compiling a pair of profiles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ResponseCurveBenchmark {
+
+    // A power of two so that the sample index can be wrapped with a mask.
+    private static final int SAMPLE_COUNT = 1024;
+    private static final float MAX_ACCEL = 9.8f;
+
+    private static final ResponseProfile EXPO_PROFILE = new ResponseProfile(
+            new AxisCurve(2.0f, 0.5f, 0.05f, 0),
+            new AxisCurve(2.0f, 0.5f, 0.05f, 3),
+            -2);
+    private static final ResponseProfile LOW_RATE_PROFILE = new ResponseProfile(
+            new AxisCurve(1.0f, 0.3f, 0.05f, 0),
+            new AxisCurve(1.0f, 0.3f, 0.05f, 3),
+            -2);
+
+    private QuadControl mFloatControl;
+    private QuadControl mLinearControl;
+    private QuadControl mExpoControl;
+    private float[] mXSamples;
+    private float[] mYSamples;
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        mFloatControl = new QuadControl();
+        mLinearControl = new QuadControl();
+        mLinearControl.setResponseCurves(new ResponseCurves(ResponseProfile.DEFAULT));
+        mExpoControl = new QuadControl();
+        mExpoControl.setResponseCurves(new ResponseCurves(EXPO_PROFILE, LOW_RATE_PROFILE));
+
+        // Tilts spread over the whole range, including values that have to be clamped.
+        Random random = new Random(0);
+        mXSamples = new float[SAMPLE_COUNT];
+        mYSamples = new float[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            mXSamples[i] = ((random.nextFloat() * 2) - 1) * MAX_ACCEL;
+            mYSamples[i] = ((random.nextFloat() * 2) - 1) * MAX_ACCEL;
+        }
+        mIndex = 0;
+    }
+
+    @Benchmark
+    public int floatMapping() {
+        int i = (mIndex++ & (SAMPLE_COUNT - 1));
+        mFloatControl.onAccelSample(mXSamples[i], mYSamples[i], MAX_ACCEL);
+        return mFloatControl.getState();
+    }
+
+    @Benchmark
+    public int linearTable() {
+        int i = (mIndex++ & (SAMPLE_COUNT - 1));
+        mLinearControl.onAccelSample(mXSamples[i], mYSamples[i], MAX_ACCEL);
+        return mLinearControl.getState();
+    }
+
+    @Benchmark
+    public int expoTable() {
+        int i = (mIndex++ & (SAMPLE_COUNT - 1));
+        mExpoControl.onAccelSample(mXSamples[i], mYSamples[i], MAX_ACCEL);
+        return mExpoControl.getState();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ResponseCurves compile() {
+        return new ResponseCurves(EXPO_PROFILE, LOW_RATE_PROFILE);
+    }
+}
@@ -0,0 +1,175 @@
+package io.foolsday.quadbridge.benchmarks;
+
+import io.foolsday.quadbridge.core.QuadControl;
+import io.foolsday.quadbridge.core.link.BridgeProtocol;
+import io.foolsday.quadbridge.core.link.LinkEventLoop;
+import io.foolsday.quadbridge.core.link.QuadLink;
+import io.foolsday.quadbridge.core.link.SimulatedBridge;
+import io.foolsday.quadbridge.core.telemetry.TelemetryFormat;
+import io.foolsday.quadbridge.core.telemetry.TelemetryRecorder;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs QuadLink and its ControlScheduler against a SimulatedBridge and reports the throughput and
+ * latency that the link achieved. If a telemetry directory is given the run is recorded there,
+ * which gives ReplayRunner something to replay without a phone. A telemetry directory of "-"
+ * records nothing. The protocol version is the highest one that the simulated firmware speaks.
+ * Credits is the number of writes QuadLink keeps outstanding, and packetsPerEvent how many
+ * packets the simulated link exchanges per connection event.
+ *
+ * Usage: SimulatedLinkRunner [seconds] [intervalUs] [jitterUs] [lossRate] [sendIntervalMs]
+ *                            [telemetryDir] [protocolVersion] [credits] [packetsPerEvent]
+ */
+public class SimulatedLinkRunner {
+
+    private static final int SAMPLE_INTERVAL_MS = 30;
+    private static final float MAX_ACCEL = 9.8f;
+    private static final String NO_TELEMETRY = "-";
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = (0 < args.length) ? Integer.parseInt(args[0]) : 10;
+        int intervalUs = (1 < args.length) ? Integer.parseInt(args[1])
+                : SimulatedBridge.DEFAULT_CONNECTION_INTERVAL_US;
+        int jitterUs = (2 < args.length) ? Integer.parseInt(args[2]) : 1000;
+        float lossRate = (3 < args.length) ? Float.parseFloat(args[3]) : 0.05f;
+        int sendIntervalMs = (4 < args.length) ? Integer.parseInt(args[4]) : (intervalUs / 1000);
+        File telemetryDir = ((5 < args.length) && !NO_TELEMETRY.equals(args[5]))
+                ? new File(args[5]) : null;
+        int protocolVersion = (6 < args.length) ? Integer.parseInt(args[6])
+                : BridgeProtocol.VERSION_2;
+        int credits = (7 < args.length) ? Integer.parseInt(args[7]) : 1;
+        int packetsPerEvent = (8 < args.length) ? Integer.parseInt(args[8]) : 1;
+
+        SimulatedBridge bridge = new SimulatedBridge(intervalUs,
+                jitterUs,
+                lossRate,
+                Math.max(SimulatedBridge.DEFAULT_MAX_QUEUED_WRITES, credits),
+                0);
+        bridge.setProtocolVersion(protocolVersion);
+        bridge.setPacketsPerEvent(packetsPerEvent);
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch bound = new CountDownLatch(1);
+        final String[] error = new String[1];
+        LinkEventLoop loop = new LinkEventLoop();
+        loop.start();
+        QuadLink link = new QuadLink(bridge, new QuadLink.LinkEventListener() {
+            @Override
+            public void onConnected(int protocolVersion) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onBound() {
+                bound.countDown();
+            }
+
+            @Override
+            public void onUnbound() {}
+
+            @Override
+            public void onLinkError(String errString) {
+                error[0] = errString;
+                connected.countDown();
+                bound.countDown();
+            }
+
+            @Override
+            public void onTransportError(String errString) {
+                onLinkError(errString);
+            }
+        }, loop);
+        link.setControlIntervalMs(Math.max(1, sendIntervalMs));
+        credits = link.setMaxOutstandingWrites(credits);
+
+        TelemetryRecorder recorder = null;
+        if (null != telemetryDir) {
+            recorder = new TelemetryRecorder(telemetryDir);
+            recorder.start();
+            recorder.startSession(System.currentTimeMillis());
+            link.setCtlWriteListener(recorder);
+        }
+
+        bridge.start();
+        link.negotiate();
+        if (!connected.await(1, TimeUnit.SECONDS) || (null != error[0])) {
+            System.err.println("Version negotiation failed: " + error[0]);
+            bridge.stop();
+            loop.stop();
+            return;
+        }
+        int negotiatedVersion = link.getProtocolVersion();
+        link.bind();
+        if (!bound.await(1, TimeUnit.SECONDS) || (null != error[0])) {
+            System.err.println("Bind failed: " + error[0]);
+            bridge.stop();
+            loop.stop();
+            return;
+        }
+
+        // Feed the model at the accelerometer rate, just like the sensor thread would.
+        QuadControl control = new QuadControl();
+        control.bind();
+        Random random = new Random(0);
+        long endMs = (System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds));
+        while (System.currentTimeMillis() < endMs) {
+            float x = ((random.nextFloat() * 2) - 1) * MAX_ACCEL;
+            float y = ((random.nextFloat() * 2) - 1) * MAX_ACCEL;
+            long sampleTimeNs = System.nanoTime();
+            control.onAccelSample(x, y, MAX_ACCEL);
+            long modelTimeNs = System.nanoTime();
+            link.update(control.getThrottle(), control.getPitch(), control.getRoll(),
+                    control.getYaw(), sampleTimeNs, modelTimeNs);
+            if (null != recorder) {
+                recorder.record(sampleTimeNs, modelTimeNs, x, y, MAX_ACCEL, MAX_ACCEL,
+                        control.getState(),
+                        (control.isBound() ? TelemetryFormat.FLAG_BOUND : 0));
+            }
+            Thread.sleep(SAMPLE_INTERVAL_MS);
+        }
+
+        long ctlWrites = link.getCtlWrites();
+        long completedCtlWrites = link.getCompletedCtlWrites();
+        long creditStarvations = link.getCreditStarvations();
+        link.unbind();
+        Thread.sleep(TimeUnit.MICROSECONDS.toMillis(intervalUs * 4L));
+        link.reset();
+        bridge.stop();
+        loop.stop();
+        if (null != recorder) {
+            recorder.stop();
+        }
+
+        System.out.println(String.format("Connection interval: %dus, jitter: %dus, loss: %.1f%%",
+                intervalUs, jitterUs, (lossRate * 100)));
+        System.out.println(String.format("Send interval: %dms, protocol version: %d",
+                sendIntervalMs, negotiatedVersion));
+        System.out.println(String.format("Credits: %d, packets per event: %d",
+                credits, packetsPerEvent));
+        System.out.println(String.format("CTL writes: %d (%.1f/s), completed: %d, "
+                        + "credit starvations: %d",
+                ctlWrites, (ctlWrites / (float) seconds), completedCtlWrites,
+                creditStarvations));
+        System.out.println(String.format("CTL frames delivered: %d (%.1f/s)",
+                bridge.getCtlFrames(), (bridge.getCtlFrames() / (float) seconds)));
+        System.out.println(String.format("Control samples delivered: %d (%.1f/s), "
+                        + "sequence errors: %d",
+                bridge.getCtlSamples(), (bridge.getCtlSamples() / (float) seconds),
+                bridge.getSequenceErrors()));
+        System.out.println(String.format("Connection events: %d, packets lost: %d",
+                bridge.getConnectionEvents(), bridge.getPacketsLost()));
+        System.out.println(String.format("Write->delivery latency: mean %.2fms, max %.2fms",
+                (bridge.getMeanLatencyNs() / 1e6), (bridge.getMaxLatencyNs() / 1e6)));
+        System.out.println(link.getLatencyStats());
+        System.out.println(String.format("Link events: %s, mode transitions: %d",
+                loop, link.getTransitionCount()));
+        if (null != recorder) {
+            System.out.println(String.format("Telemetry records written: %d, dropped: %d",
+                    recorder.getRecordsWritten(), recorder.getDroppedRecords()));
+        }
+    }
+}
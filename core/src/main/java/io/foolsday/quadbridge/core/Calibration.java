@@ -0,0 +1,60 @@
+package io.foolsday.quadbridge.core;
+
+/**
+ * Per-device accelerometer calibration: the largest magnitude that the sensor reports and the
+ * readings it gives on each axis when the phone is held level. Instances are immutable so that
+ * a new calibration can be published to the sensor thread with a single volatile write.
+ */
+public final class Calibration {
+
+    public static final Calibration NONE = new Calibration(0, 0, 0, 0);
+
+    private final float mMaxRange;
+    private final float mOffsetX;
+    private final float mOffsetY;
+    private final float mOffsetZ;
+
+    /**
+     * @param maxRange The largest magnitude seen on any axis, or zero if unknown.
+     * @param offsetX
+     * @param offsetY
+     * @param offsetZ
+     */
+    public Calibration(float maxRange, float offsetX, float offsetY, float offsetZ) {
+        mMaxRange = maxRange;
+        mOffsetX = offsetX;
+        mOffsetY = offsetY;
+        mOffsetZ = offsetZ;
+    }
+
+    public float getMaxRange() {
+        return mMaxRange;
+    }
+
+    public float getOffsetX() {
+        return mOffsetX;
+    }
+
+    public float getOffsetY() {
+        return mOffsetY;
+    }
+
+    public float getOffsetZ() {
+        return mOffsetZ;
+    }
+
+    public Calibration withMaxRange(float maxRange) {
+        return new Calibration(maxRange, mOffsetX, mOffsetY, mOffsetZ);
+    }
+
+    /**
+     * Removes the zero offsets from a sample in place.
+     *
+     * @param values x, y and z.
+     */
+    public void apply(float[] values) {
+        values[0] -= mOffsetX;
+        values[1] -= mOffsetY;
+        values[2] -= mOffsetZ;
+    }
+}
@@ -0,0 +1,73 @@
+package io.foolsday.quadbridge.core;
+
+/**
+ * Averages raw samples while the phone is held level and turns them into zero offsets. A level
+ * phone should read zero on x and y and the full force of gravity on z; whatever deviates from
+ * that is the sensor's bias.
+ */
+public class CalibrationCapture {
+
+    public static final int DEFAULT_SAMPLE_COUNT = 32;
+
+    private final int mSampleCount;
+    private int mSamples;
+    private double mSumX;
+    private double mSumY;
+    private double mSumZ;
+
+    public CalibrationCapture() {
+        this(DEFAULT_SAMPLE_COUNT);
+    }
+
+    public CalibrationCapture(int sampleCount) {
+        if (0 >= sampleCount) {
+            throw new IllegalArgumentException("sample count must be positive");
+        }
+        mSampleCount = sampleCount;
+        reset();
+    }
+
+    public void reset() {
+        mSamples = 0;
+        mSumX = 0;
+        mSumY = 0;
+        mSumZ = 0;
+    }
+
+    /**
+     * @return True once enough samples have been collected.
+     */
+    public boolean addSample(float x, float y, float z) {
+        if (!isComplete()) {
+            mSumX += x;
+            mSumY += y;
+            mSumZ += z;
+            mSamples++;
+        }
+        return isComplete();
+    }
+
+    public boolean isComplete() {
+        return (mSamples >= mSampleCount);
+    }
+
+    /**
+     * The measured gravity becomes the range of the calibration, replacing whatever range was
+     * discovered before: a tilt reads one g at most on any axis.
+     *
+     * @return
+     */
+    public Calibration getCalibration() {
+        if (0 == mSamples) {
+            return Calibration.NONE;
+        }
+
+        float x = (float) (mSumX / mSamples);
+        float y = (float) (mSumY / mSamples);
+        float z = (float) (mSumZ / mSamples);
+
+        // The magnitude of the average is the sensor's idea of one g.
+        float gravity = (float) Math.sqrt((x * x) + (y * y) + (z * z));
+        return new Calibration(gravity, x, y, (z - gravity));
+    }
+}
@@ -0,0 +1,154 @@
+package io.foolsday.quadbridge.core;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ticks at a fixed rate on a dedicated thread and hands the newest control state to a listener.
+ * Producers call update() as often as they like; intermediate states are simply overwritten so
+ * each tick sees only the latest one. The state is packed with ControlState and published along
+ * with its timestamps under a sequence lock, so ticks never see a torn update and neither side
+ * locks or allocates. Calls to update() must not race with each other.
+ */
+public class ControlScheduler implements Runnable {
+
+    public interface ControlTickListener {
+        /**
+         * @param state The packed control state.
+         * @param sampleTimeNs When the sensor sample that produced the state was taken.
+         * @param modelTimeNs When the model produced the state.
+         */
+        void onControlTick(int state, long sampleTimeNs, long modelTimeNs);
+    }
+
+    // CONNECTION_PRIORITY_HIGH asks for an 11.25-15ms connection interval. Unless the bridge
+    // takes more than one packet per connection event, one frame per event is the most that
+    // gets through, however many writes QuadLink keeps outstanding.
+    public static final int DEFAULT_INTERVAL_MS = 15;
+
+    private static final String THREAD_NAME = "ControlScheduler";
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private final ControlTickListener mListener;
+
+    // Odd while an update is in progress.
+    private volatile int mSequence;
+    private volatile int mState;
+    private volatile long mSampleTimeNs;
+    private volatile long mModelTimeNs;
+    private volatile long mIntervalNs;
+
+    // The scheduler thread exits as soon as it is no longer the current mThread, so a quick
+    // stop()/start() can never leave two threads ticking.
+    private volatile Thread mThread;
+
+    public ControlScheduler(ControlTickListener listener) {
+        mListener = listener;
+        mState = ControlState.pack(QuadControl.MIN_THROTTLE_VALUE, 0, 0, 0);
+        mIntervalNs = (DEFAULT_INTERVAL_MS * NANOS_PER_MS);
+        mThread = null;
+    }
+
+    /**
+     * Replaces the state that will be sent on the next tick. May be called from any thread,
+     * but not concurrently with another update(): the sequence lock has a single writer, so
+     * callers on different threads must serialize their updates (QuadModel does so under its
+     * lock).
+     */
+    public void update(int throttle, int pitch, int roll, int yaw) {
+        update(throttle, pitch, roll, yaw, 0, 0);
+    }
+
+    public void update(int throttle,
+                       int pitch,
+                       int roll,
+                       int yaw,
+                       long sampleTimeNs,
+                       long modelTimeNs) {
+        int sequence = mSequence;
+        mSequence = (sequence + 1);
+        mState = ControlState.pack(throttle, pitch, roll, yaw);
+        mSampleTimeNs = sampleTimeNs;
+        mModelTimeNs = modelTimeNs;
+        mSequence = (sequence + 2);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public void setIntervalMs(int intervalMs) {
+        if (0 >= intervalMs) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        mIntervalNs = (intervalMs * NANOS_PER_MS);
+    }
+
+    public int getIntervalMs() {
+        return (int) (mIntervalNs / NANOS_PER_MS);
+    }
+
+    public synchronized void start() {
+        if (null != mThread) {
+            return;
+        }
+        Thread thread = new Thread(this, THREAD_NAME);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        mThread = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = mThread;
+        if (null == thread) {
+            return;
+        }
+        mThread = null;
+        LockSupport.unpark(thread);
+    }
+
+    public boolean isRunning() {
+        return (null != mThread);
+    }
+
+    @Override
+    public void run() {
+        final Thread self = Thread.currentThread();
+        long deadline = System.nanoTime();
+
+        while (self == mThread) {
+            long interval = mIntervalNs;
+            deadline += interval;
+
+            long remaining = (deadline - System.nanoTime());
+            if (remaining < -interval) {
+                // More than a whole tick was missed (e.g. the thread was descheduled). Resync
+                // instead of sending a burst of frames to catch up.
+                deadline = System.nanoTime();
+            }
+
+            while ((0 < remaining) && (self == mThread)) {
+                LockSupport.parkNanos(this, remaining);
+                remaining = (deadline - System.nanoTime());
+            }
+
+            if (self == mThread) {
+                tick();
+            }
+        }
+    }
+
+    private void tick() {
+        int sequence;
+        int state;
+        long sampleTimeNs;
+        long modelTimeNs;
+        do {
+            sequence = mSequence;
+            state = mState;
+            sampleTimeNs = mSampleTimeNs;
+            modelTimeNs = mModelTimeNs;
+        } while ((0 != (sequence & 1)) || (sequence != mSequence));
+
+        mListener.onControlTick(state, sampleTimeNs, modelTimeNs);
+    }
+}
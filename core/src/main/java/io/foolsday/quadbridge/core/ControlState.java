@@ -0,0 +1,34 @@
+package io.foolsday.quadbridge.core;
+
+/**
+ * Packs throttle, pitch, roll and yaw into a single int so that a complete control state can be
+ * published between threads with one volatile write and no allocation. Each value occupies one
+ * byte in the same order as the CTL frame.
+ */
+public final class ControlState {
+
+    private ControlState() {}
+
+    public static int pack(int throttle, int pitch, int roll, int yaw) {
+        return (((throttle & 0xFF) << 24) |
+                ((pitch & 0xFF) << 16) |
+                ((roll & 0xFF) << 8) |
+                (yaw & 0xFF));
+    }
+
+    public static byte getThrottle(int state) {
+        return (byte) (state >>> 24);
+    }
+
+    public static byte getPitch(int state) {
+        return (byte) (state >>> 16);
+    }
+
+    public static byte getRoll(int state) {
+        return (byte) (state >>> 8);
+    }
+
+    public static byte getYaw(int state) {
+        return (byte) state;
+    }
+}
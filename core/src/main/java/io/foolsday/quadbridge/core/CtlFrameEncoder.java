@@ -0,0 +1,51 @@
+package io.foolsday.quadbridge.core;
+
+/**
+ * Encodes packed control states (see ControlState) into CTL frames without allocating.
+ *
+ * BluetoothGattCharacteristic.setValue only stores a reference to the array that it is given so
+ * the frame belonging to the write in flight must not be modified until that write completes.
+ * The frames are preallocated and used in turn; with one more frame than there can be writes
+ * outstanding, the next frame is always free to be filled.
+ */
+public class CtlFrameEncoder {
+
+    public static final int FRAME_LEN = 5;
+
+    private final byte[][] mFrames;
+    private int mNextFrame;
+
+    public CtlFrameEncoder(byte cmd) {
+        this(cmd, 1);
+    }
+
+    /**
+     * @param cmd
+     * @param maxOutstandingWrites The number of frames that may be in flight at once.
+     */
+    public CtlFrameEncoder(byte cmd, int maxOutstandingWrites) {
+        mFrames = new byte[maxOutstandingWrites + 1][FRAME_LEN];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i][0] = cmd;
+        }
+        mNextFrame = 0;
+    }
+
+    /**
+     * Fills the free frame with the given state and returns it. The returned array stays valid
+     * until the next call.
+     *
+     * @param state
+     * @return
+     */
+    public byte[] encode(int state) {
+        byte[] frame = mFrames[mNextFrame];
+        mNextFrame = ((mNextFrame + 1) % mFrames.length);
+
+        frame[1] = ControlState.getThrottle(state);
+        frame[2] = ControlState.getPitch(state);
+        frame[3] = ControlState.getRoll(state);
+        frame[4] = ControlState.getYaw(state);
+        return frame;
+    }
+}
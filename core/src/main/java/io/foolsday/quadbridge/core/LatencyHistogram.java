@@ -0,0 +1,140 @@
+package io.foolsday.quadbridge.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket latency histogram that is cheap enough to update on the control path.
+ *
+ * Buckets are log-linear: every power of two microseconds is split into SUB_BUCKETS equal
+ * buckets, so the relative error of a reported percentile is at most 1/SUB_BUCKETS. Values from
+ * 0us to about 60s are tracked; larger values land in the last bucket.
+ *
+ * record() must only be called from one thread at a time; any thread may query. Nothing
+ * allocates after construction.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = (1 << SUB_BUCKET_BITS);
+    private static final int OCTAVES = 24;
+    private static final int BUCKET_COUNT = ((OCTAVES + 1) * SUB_BUCKETS);
+    private static final long NANOS_PER_US = 1000L;
+
+    // Indices into mTotals.
+    private static final int COUNT = 0;
+    private static final int SUM_NS = 1;
+    private static final int MAX_NS = 2;
+
+    private final AtomicLongArray mBuckets;
+    private final AtomicLongArray mTotals;
+
+    public LatencyHistogram() {
+        mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        mTotals = new AtomicLongArray(3);
+    }
+
+    private static int bucketOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+
+        // The position of the highest set bit selects the octave and the next SUB_BUCKET_BITS
+        // bits select the bucket within it.
+        int msb = (63 - Long.numberOfLeadingZeros(us));
+        int octave = (msb - SUB_BUCKET_BITS + 1);
+        int sub = (int) ((us >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        int index = ((octave * SUB_BUCKETS) + sub);
+        return Math.min(index, (BUCKET_COUNT - 1));
+    }
+
+    /**
+     * @return The smallest value, in microseconds, that falls into the given bucket.
+     */
+    private static long bucketStartUs(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int octave = (index / SUB_BUCKETS);
+        int sub = (index % SUB_BUCKETS);
+        int msb = (octave + SUB_BUCKET_BITS - 1);
+        return ((1L << msb) | ((long) sub << (msb - SUB_BUCKET_BITS)));
+    }
+
+    public void record(long latencyNs) {
+        if (0 > latencyNs) {
+            // The clocks disagree, e.g. a sensor that doesn't stamp events with
+            // elapsedRealtimeNanos. Such samples would only distort the histogram.
+            return;
+        }
+
+        int index = bucketOf(latencyNs / NANOS_PER_US);
+        // Single writer so a plain read-modify-write is enough. lazySet avoids a full fence.
+        mBuckets.lazySet(index, (mBuckets.get(index) + 1));
+        mTotals.lazySet(COUNT, (mTotals.get(COUNT) + 1));
+        mTotals.lazySet(SUM_NS, (mTotals.get(SUM_NS) + latencyNs));
+        if (latencyNs > mTotals.get(MAX_NS)) {
+            mTotals.lazySet(MAX_NS, latencyNs);
+        }
+    }
+
+    /**
+     * Clears all counts, e.g. at the start of a flight. A record() that races with reset() may
+     * be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mTotals.set(COUNT, 0);
+        mTotals.set(SUM_NS, 0);
+        mTotals.set(MAX_NS, 0);
+    }
+
+    public long getCount() {
+        return mTotals.get(COUNT);
+    }
+
+    public long getMeanNs() {
+        long count = mTotals.get(COUNT);
+        return ((0 < count) ? (mTotals.get(SUM_NS) / count) : 0);
+    }
+
+    public long getMaxNs() {
+        return mTotals.get(MAX_NS);
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return The lower bound of the bucket that contains the given percentile, or 0 if nothing
+     *         has been recorded.
+     */
+    public long getPercentileNs(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(i);
+        }
+        if (0 == count) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil((percentile / 100) * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if ((seen >= target) && (0 < seen)) {
+                return (bucketStartUs(i) * NANOS_PER_US);
+            }
+        }
+        return (bucketStartUs(BUCKET_COUNT - 1) * NANOS_PER_US);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                getCount(),
+                (getMeanNs() / 1e6),
+                (getPercentileNs(50) / 1e6),
+                (getPercentileNs(99) / 1e6),
+                (getMaxNs() / 1e6));
+    }
+}
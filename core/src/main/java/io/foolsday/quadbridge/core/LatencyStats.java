@@ -0,0 +1,38 @@
+package io.foolsday.quadbridge.core;
+
+/**
+ * The age of a control sample at each stage on its way to the air:
+ * sensor timestamp -> model update -> writeCharacteristic -> onCharacteristicWrite.
+ * Each histogram has a single writer: the sensor thread, the scheduler thread and the GATT
+ * callback thread respectively.
+ */
+public class LatencyStats {
+
+    private final LatencyHistogram mSensorToModel = new LatencyHistogram();
+    private final LatencyHistogram mModelToWrite = new LatencyHistogram();
+    private final LatencyHistogram mWriteToAck = new LatencyHistogram();
+
+    public LatencyHistogram getSensorToModel() {
+        return mSensorToModel;
+    }
+
+    public LatencyHistogram getModelToWrite() {
+        return mModelToWrite;
+    }
+
+    public LatencyHistogram getWriteToAck() {
+        return mWriteToAck;
+    }
+
+    public void reset() {
+        mSensorToModel.reset();
+        mModelToWrite.reset();
+        mWriteToAck.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sensor->model: %s\nmodel->write: %s\nwrite->ack: %s",
+                mSensorToModel, mModelToWrite, mWriteToAck);
+    }
+}
@@ -0,0 +1,18 @@
+package io.foolsday.quadbridge.core;
+
+/**
+ * A monotonic nanosecond time source. On Android this must be the same clock that stamps
+ * SensorEvents (SystemClock.elapsedRealtimeNanos) so that latencies can be computed from sample
+ * timestamps.
+ */
+public interface NanoClock {
+
+    NanoClock SYSTEM = new NanoClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
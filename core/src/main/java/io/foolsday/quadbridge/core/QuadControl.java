@@ -0,0 +1,173 @@
+package io.foolsday.quadbridge.core;
+
+import io.foolsday.quadbridge.core.curve.ResponseCurves;
+
+/**
+ * The control state of the quad: throttle stepping and the mapping from accelerometer values to
+ * pitch, roll and yaw. This class has no Android dependencies so that it can be unit tested and
+ * benchmarked on a plain JVM. It is not thread-safe.
+ */
+public class QuadControl {
+
+    public static final int MIN_THROTTLE_VALUE = 0;
+    public static final int MAX_THROTTLE_VALUE = 255;
+    public static final int MIN_YAW_VALUE = -128;
+    public static final int MAX_YAW_VALUE = 127;
+    public static final int MIN_ROLL_VALUE = -128;
+    public static final int MAX_ROLL_VALUE = 127;
+    public static final int MIN_PITCH_VALUE = -128;
+    public static final int MAX_PITCH_VALUE = 127;
+
+    public static final float PITCH_SCALER = 2.0f;
+    public static final float YAW_SCALER = 2.0f;
+    public static final int ROLL_PITCH_THRESHOLD = 50;
+    public static final float ROLL_YAW_SCALER = 0.7f;
+
+    public static final int THROTTLE_INCREMENT = 5;
+
+    private int mThrottle;
+    private int mPitch;
+    private int mRoll;
+    private int mYaw;
+    private boolean mIsBound;
+    private ResponseCurves mCurves;
+
+    public QuadControl() {
+        reset();
+    }
+
+    public static int clamp(int value, int min, int max) {
+        if (max < value) {
+            return max;
+        } else if (min > value) {
+            return min;
+        }
+        return value;
+    }
+
+    /**
+     * @return True if the throttle changed.
+     */
+    public boolean throttleUp() {
+        if (MAX_THROTTLE_VALUE == mThrottle) {
+            return false;
+        } else if ((MAX_THROTTLE_VALUE - THROTTLE_INCREMENT) < mThrottle) {
+            mThrottle = MAX_THROTTLE_VALUE;
+        } else {
+            mThrottle += THROTTLE_INCREMENT;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the throttle changed.
+     */
+    public boolean throttleDown() {
+        if (MIN_THROTTLE_VALUE == mThrottle) {
+            return false;
+        } else if ((MIN_THROTTLE_VALUE + THROTTLE_INCREMENT) > mThrottle) {
+            mThrottle = MIN_THROTTLE_VALUE;
+        } else {
+            mThrottle -= THROTTLE_INCREMENT;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the throttle directly, e.g. when replaying a recorded flight.
+     *
+     * @param throttle Clamped to the valid range.
+     */
+    public void setThrottle(int throttle) {
+        mThrottle = clamp(throttle, MIN_THROTTLE_VALUE, MAX_THROTTLE_VALUE);
+    }
+
+    public void bind() {
+        mIsBound = true;
+    }
+
+    public void reset() {
+        mThrottle = MIN_THROTTLE_VALUE;
+        mPitch = 0;
+        mRoll = 0;
+        mYaw = 0;
+        mIsBound = false;
+    }
+
+    /**
+     * @param curves Compiled response curves to map samples with, or null for the linear float
+     *               mapping. Recorded flights only replay exactly with the curves they were
+     *               flown with.
+     */
+    public void setResponseCurves(ResponseCurves curves) {
+        mCurves = curves;
+    }
+
+    public ResponseCurves getResponseCurves() {
+        return mCurves;
+    }
+
+    /**
+     * Maps an accelerometer sample to yaw, pitch and roll.
+     *
+     * @param x
+     * @param y
+     * @param maxAccel The largest magnitude that the accelerometer can report.
+     */
+    public void onAccelSample(float x, float y, float maxAccel) {
+        float accelX = (x / maxAccel);
+        float accelY = (y / maxAccel);
+
+        ResponseCurves curves = mCurves;
+        if (null != curves) {
+            int xIndex = ResponseCurves.indexOf(accelX);
+            int yIndex = ResponseCurves.indexOf(accelY);
+            mYaw = curves.getYaw(xIndex);
+            mPitch = curves.getPitch(yIndex);
+            mRoll = curves.getRoll(xIndex, yIndex);
+            return;
+        }
+
+        int yaw = (int) (accelX * MAX_YAW_VALUE * YAW_SCALER);
+        int pitch = (int) (accelY * MIN_PITCH_VALUE * PITCH_SCALER);
+
+        // Roll should be proportional to yaw but should not be applied below a certain pitch.
+        int roll;
+        if (pitch >= ROLL_PITCH_THRESHOLD) {
+            roll = (int) (yaw * ROLL_YAW_SCALER);
+        } else {
+            roll = 0;
+        }
+
+        mYaw = clamp(yaw, MIN_YAW_VALUE, MAX_YAW_VALUE);
+        mPitch = clamp(pitch, MIN_PITCH_VALUE, MAX_PITCH_VALUE);
+        mRoll = clamp(roll, MIN_ROLL_VALUE, MAX_ROLL_VALUE);
+    }
+
+    public int getThrottle() {
+        return mThrottle;
+    }
+
+    public int getPitch() {
+        return mPitch;
+    }
+
+    public int getRoll() {
+        return mRoll;
+    }
+
+    public int getYaw() {
+        return mYaw;
+    }
+
+    public boolean isBound() {
+        return mIsBound;
+    }
+
+    /**
+     * @return The throttle, pitch, roll and yaw packed with ControlState.pack().
+     */
+    public int getState() {
+        return ControlState.pack(mThrottle, mPitch, mRoll, mYaw);
+    }
+}
@@ -0,0 +1,208 @@
+package io.foolsday.quadbridge.core;
+
+/**
+ * Picks the accelerometer sampling interval to match the rate at which the radio actually gets
+ * control frames to the bridge. Sampling faster than the link can deliver is wasted work; sampling
+ * slower leaves responsiveness unused. While the quad isn't flying (unbound or zero throttle) a
+ * low idle rate is used instead, and while unbound the samples are also batched in the sensor
+ * hub's FIFO so that the application processor can sleep between deliveries.
+ *
+ * The completion rate is smoothed with an exponentially weighted moving average, and the interval
+ * only changes when it moves by more than CHANGE_THRESHOLD and no more often than every
+ * MIN_CHANGE_INTERVAL_NS, since re-registering a sensor isn't free.
+ */
+public class SampleRateController {
+
+    public static final int DEFAULT_INTERVAL_US = 30000;
+    public static final int MIN_INTERVAL_US = 10000;
+    public static final int IDLE_INTERVAL_US = 100000;
+    // How long samples may wait in the FIFO while unbound. Nothing but the display uses them.
+    public static final int BATCH_LATENCY_US = 250000;
+
+    public interface SampleRateListener {
+        /**
+         * Called on the thread that reported the write completion or the state change, which
+         * may be the link's event loop or a thread holding the model's lock. Implementations
+         * must not block; anything slow, like re-registering a sensor, should be posted.
+         *
+         * @param intervalUs
+         * @param maxReportLatencyUs Zero for immediate delivery.
+         */
+        void onSampleRateChanged(int intervalUs, int maxReportLatencyUs);
+    }
+
+    // The weight of a new completion interval in the average is 1/EWMA_DIVISOR.
+    private static final int EWMA_DIVISOR = 8;
+    private static final float CHANGE_THRESHOLD = 0.2f;
+    private static final long MIN_CHANGE_INTERVAL_NS = 500000000L;
+    // Longer gaps mean the link was idle rather than slow and aren't averaged.
+    private static final long MAX_COMPLETION_GAP_NS = 1000000000L;
+    private static final long NANOS_PER_US = 1000L;
+
+    private NanoClock mClock;
+    private volatile SampleRateListener mListener;
+
+    private volatile boolean mActive;
+    private boolean mBound;
+    private long mLastCompletionNs;
+    private long mAverageCompletionNs;
+    private long mLastChangeNs;
+    private int mIntervalUs;
+    private int mMaxReportLatencyUs;
+
+    public SampleRateController() {
+        mClock = NanoClock.SYSTEM;
+        mIntervalUs = IDLE_INTERVAL_US;
+        mMaxReportLatencyUs = BATCH_LATENCY_US;
+    }
+
+    public void setClock(NanoClock clock) {
+        mClock = clock;
+    }
+
+    public void setListener(SampleRateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Forgets the measured completion rate and returns to the idle, batched rate.
+     */
+    public void reset() {
+        boolean changed;
+        synchronized (this) {
+            mActive = false;
+            mBound = false;
+            mLastCompletionNs = 0;
+            mAverageCompletionNs = 0;
+            changed = changeRate(IDLE_INTERVAL_US, mClock.nanoTime());
+        }
+        notifyListener(changed);
+    }
+
+    /**
+     * Switches between batched and immediate delivery. This should be called as soon as the
+     * bridge reports the bind, since model updates (and so setActive()) are themselves held up
+     * by the batching.
+     *
+     * @param bound
+     */
+    public void setBound(boolean bound) {
+        boolean changed;
+        synchronized (this) {
+            if (bound == mBound) {
+                return;
+            }
+            mBound = bound;
+            if (!bound) {
+                mActive = false;
+            }
+            changed = changeRate(targetIntervalUs(), mClock.nanoTime());
+        }
+        notifyListener(changed);
+    }
+
+    /**
+     * @param active True while bound with a non-zero throttle.
+     */
+    public void setActive(boolean active) {
+        // NOTE: This is called for every model update so the common case is a single volatile
+        //       read.
+        if (active == mActive) {
+            return;
+        }
+
+        boolean changed;
+        synchronized (this) {
+            mActive = active;
+            changed = changeRate(targetIntervalUs(), mClock.nanoTime());
+        }
+        notifyListener(changed);
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Records that a control frame write completed.
+     */
+    public void onWriteComplete() {
+        boolean changed = false;
+        synchronized (this) {
+            long nowNs = mClock.nanoTime();
+            long gapNs = (nowNs - mLastCompletionNs);
+            if ((0 != mLastCompletionNs) && (MAX_COMPLETION_GAP_NS > gapNs)) {
+                if (0 == mAverageCompletionNs) {
+                    mAverageCompletionNs = gapNs;
+                } else {
+                    mAverageCompletionNs += ((gapNs - mAverageCompletionNs) / EWMA_DIVISOR);
+                }
+            }
+            mLastCompletionNs = nowNs;
+
+            if (mActive && ((nowNs - mLastChangeNs) >= MIN_CHANGE_INTERVAL_NS)) {
+                int targetUs = targetIntervalUs();
+                float change = (Math.abs(targetUs - mIntervalUs) / (float) mIntervalUs);
+                if (CHANGE_THRESHOLD < change) {
+                    changed = changeRate(targetUs, nowNs);
+                }
+            }
+        }
+        notifyListener(changed);
+    }
+
+    /**
+     * @return The mean time between write completions, or zero if not yet known.
+     */
+    public synchronized long getAverageCompletionNs() {
+        return mAverageCompletionNs;
+    }
+
+    public synchronized int getIntervalUs() {
+        return mIntervalUs;
+    }
+
+    public synchronized int getMaxReportLatencyUs() {
+        return mMaxReportLatencyUs;
+    }
+
+    private int targetIntervalUs() {
+        if (!mActive) {
+            return IDLE_INTERVAL_US;
+        }
+        if (0 == mAverageCompletionNs) {
+            return DEFAULT_INTERVAL_US;
+        }
+        long intervalUs = (mAverageCompletionNs / NANOS_PER_US);
+        return (int) Math.max(MIN_INTERVAL_US, Math.min(IDLE_INTERVAL_US, intervalUs));
+    }
+
+    /**
+     * @return True if the interval or the report latency changed.
+     */
+    private boolean changeRate(int intervalUs, long nowNs) {
+        int latencyUs = (mBound ? 0 : BATCH_LATENCY_US);
+        if ((intervalUs == mIntervalUs) && (latencyUs == mMaxReportLatencyUs)) {
+            return false;
+        }
+        mIntervalUs = intervalUs;
+        mMaxReportLatencyUs = latencyUs;
+        mLastChangeNs = nowNs;
+        return true;
+    }
+
+    private void notifyListener(boolean changed) {
+        SampleRateListener listener = mListener;
+        if (!changed || (null == listener)) {
+            return;
+        }
+
+        int intervalUs;
+        int latencyUs;
+        synchronized (this) {
+            intervalUs = mIntervalUs;
+            latencyUs = mMaxReportLatencyUs;
+        }
+        listener.onSampleRateChanged(intervalUs, latencyUs);
+    }
+}
@@ -0,0 +1,69 @@
+package io.foolsday.quadbridge.core.curve;
+
+/**
+ * How one stick axis responds to the tilt of the phone: a deadband around level, an expo curve
+ * that softens small tilts without giving up the full range, a rate that scales the result and
+ * a trim that is added to the output.
+ */
+public class AxisCurve {
+
+    private final float mRate;
+    private final float mExpo;
+    private final float mDeadband;
+    private final int mTrim;
+
+    /**
+     * @param rate Scales the curve. At 1 a full tilt gives full deflection; the linear mapping
+     *             of QuadControl uses 2, which reaches full deflection at half tilt.
+     * @param expo From 0 (linear) to 1 (cubic).
+     * @param deadband The fraction of the tilt range around level, from 0 to below 1, that is
+     *                 treated as level. The rest of the range is stretched to make up for it.
+     * @param trim Added to the output, in stick units.
+     */
+    public AxisCurve(float rate, float expo, float deadband, int trim) {
+        if (!(0 < rate)) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        if (!((0 <= expo) && (1 >= expo))) {
+            throw new IllegalArgumentException("expo must be in [0, 1]");
+        }
+        if (!((0 <= deadband) && (1 > deadband))) {
+            throw new IllegalArgumentException("deadband must be in [0, 1)");
+        }
+        mRate = rate;
+        mExpo = expo;
+        mDeadband = deadband;
+        mTrim = trim;
+    }
+
+    /**
+     * @param input The tilt, normalized to [-1, 1].
+     * @return The deflection before the trim, where 1 is full deflection. Never decreases as
+     *         the input increases.
+     */
+    public double apply(double input) {
+        double magnitude = Math.min(1, Math.abs(input));
+        if (magnitude <= mDeadband) {
+            return 0;
+        }
+        magnitude = ((magnitude - mDeadband) / (1 - mDeadband));
+        magnitude = (((1 - mExpo) * magnitude) + (mExpo * magnitude * magnitude * magnitude));
+        return (Math.signum(input) * magnitude * mRate);
+    }
+
+    public float getRate() {
+        return mRate;
+    }
+
+    public float getExpo() {
+        return mExpo;
+    }
+
+    public float getDeadband() {
+        return mDeadband;
+    }
+
+    public int getTrim() {
+        return mTrim;
+    }
+}
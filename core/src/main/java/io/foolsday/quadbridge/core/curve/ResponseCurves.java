@@ -0,0 +1,167 @@
+package io.foolsday.quadbridge.core.curve;
+
+import io.foolsday.quadbridge.core.QuadControl;
+
+/**
+ * A high-rate and a low-rate ResponseProfile compiled into lookup tables, so that mapping a
+ * sample costs two multiplications, a few table reads and clamps instead of evaluating the
+ * curves. Compiling is the expensive part and happens once, when the profiles change.
+ *
+ * The tables are indexed by the normalized tilt in steps of 1 / RESOLUTION, rounded towards
+ * zero like the casts of the float mapping. Every entry is already trimmed and clamped to the
+ * range of its stick.
+ *
+ * Selecting the rate is not thread-safe; the tables themselves never change.
+ */
+public class ResponseCurves {
+
+    public static final int HIGH_RATE = 0;
+    public static final int LOW_RATE = 1;
+    private static final int RATE_COUNT = 2;
+
+    /**
+     * Table entries per unit of normalized tilt. The stick has at most 256 steps over the half
+     * of the tilt range that the default rate uses, so this is finer than it can resolve.
+     */
+    public static final int RESOLUTION = 512;
+    private static final int TABLE_SIZE = ((2 * RESOLUTION) + 1);
+
+    private final ResponseProfile[] mProfiles;
+    private final byte[][] mYawTables;
+    private final byte[][] mPitchTables;
+    private final byte[][] mRollTables;
+    private final int[] mRollGates;
+    private final byte[] mRollOffValues;
+
+    private int mRate;
+    private byte[] mYawTable;
+    private byte[] mPitchTable;
+    private byte[] mRollTable;
+    private int mRollGate;
+    private int mRollOffValue;
+
+    /**
+     * @return The curves the app flies with: ResponseProfile.DEFAULT for the high rate and
+     *         ResponseProfile.LOW_RATE for the low one. Recordings of its flights replay exactly
+     *         with these.
+     */
+    public static ResponseCurves createDefault() {
+        return new ResponseCurves(ResponseProfile.DEFAULT, ResponseProfile.LOW_RATE);
+    }
+
+    /**
+     * Uses the same profile for both rates.
+     */
+    public ResponseCurves(ResponseProfile profile) {
+        this(profile, profile);
+    }
+
+    public ResponseCurves(ResponseProfile highRate, ResponseProfile lowRate) {
+        if ((null == highRate) || (null == lowRate)) {
+            throw new IllegalArgumentException("both rates need a profile");
+        }
+        mProfiles = new ResponseProfile[] {highRate, lowRate};
+        mYawTables = new byte[RATE_COUNT][];
+        mPitchTables = new byte[RATE_COUNT][];
+        mRollTables = new byte[RATE_COUNT][];
+        mRollGates = new int[RATE_COUNT];
+        mRollOffValues = new byte[RATE_COUNT];
+        for (int rate = 0; rate < RATE_COUNT; rate++) {
+            compile(rate);
+        }
+        setRate(HIGH_RATE);
+    }
+
+    private void compile(int rate) {
+        ResponseProfile profile = mProfiles[rate];
+        AxisCurve yawCurve = profile.getYaw();
+        AxisCurve pitchCurve = profile.getPitch();
+        byte[] yawTable = new byte[TABLE_SIZE];
+        byte[] pitchTable = new byte[TABLE_SIZE];
+        byte[] rollTable = new byte[TABLE_SIZE];
+        int rollGate = -1;
+
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            double input = ((double) (i - RESOLUTION) / RESOLUTION);
+
+            int yaw = (int) (yawCurve.apply(input) * QuadControl.MAX_YAW_VALUE);
+            yawTable[i] = (byte) QuadControl.clamp(yaw + yawCurve.getTrim(),
+                    QuadControl.MIN_YAW_VALUE, QuadControl.MAX_YAW_VALUE);
+
+            // Roll follows the untrimmed yaw, as it follows the unclamped yaw in QuadControl.
+            int roll = (int) (yaw * QuadControl.ROLL_YAW_SCALER);
+            rollTable[i] = (byte) QuadControl.clamp(roll + profile.getRollTrim(),
+                    QuadControl.MIN_ROLL_VALUE, QuadControl.MAX_ROLL_VALUE);
+
+            int pitch = (int) (pitchCurve.apply(input) * QuadControl.MIN_PITCH_VALUE);
+            pitchTable[i] = (byte) QuadControl.clamp(pitch + pitchCurve.getTrim(),
+                    QuadControl.MIN_PITCH_VALUE, QuadControl.MAX_PITCH_VALUE);
+
+            // NOTE: AxisCurve.apply() never decreases, so the untrimmed pitch never increases
+            //       with the index and the indices at which roll is applied are a prefix.
+            if (pitch >= QuadControl.ROLL_PITCH_THRESHOLD) {
+                rollGate = i;
+            }
+        }
+
+        mYawTables[rate] = yawTable;
+        mPitchTables[rate] = pitchTable;
+        mRollTables[rate] = rollTable;
+        mRollGates[rate] = rollGate;
+        mRollOffValues[rate] = (byte) QuadControl.clamp(profile.getRollTrim(),
+                QuadControl.MIN_ROLL_VALUE, QuadControl.MAX_ROLL_VALUE);
+    }
+
+    /**
+     * @param rate HIGH_RATE or LOW_RATE.
+     */
+    public void setRate(int rate) {
+        if ((HIGH_RATE != rate) && (LOW_RATE != rate)) {
+            throw new IllegalArgumentException("unknown rate " + rate);
+        }
+        mRate = rate;
+        mYawTable = mYawTables[rate];
+        mPitchTable = mPitchTables[rate];
+        mRollTable = mRollTables[rate];
+        mRollGate = mRollGates[rate];
+        mRollOffValue = mRollOffValues[rate];
+    }
+
+    public int getRate() {
+        return mRate;
+    }
+
+    public ResponseProfile getProfile(int rate) {
+        return mProfiles[rate];
+    }
+
+    /**
+     * @param input The tilt, normalized to [-1, 1]. Anything outside is clamped to it.
+     * @return The index into the tables.
+     */
+    public static int indexOf(float input) {
+        return (QuadControl.clamp((int) (input * RESOLUTION), -RESOLUTION, RESOLUTION)
+                + RESOLUTION);
+    }
+
+    /**
+     * @param xIndex The index of the sideways tilt.
+     */
+    public int getYaw(int xIndex) {
+        return mYawTable[xIndex];
+    }
+
+    /**
+     * @param yIndex The index of the forward tilt.
+     */
+    public int getPitch(int yIndex) {
+        return mPitchTable[yIndex];
+    }
+
+    public int getRoll(int xIndex, int yIndex) {
+        if (yIndex <= mRollGate) {
+            return mRollTable[xIndex];
+        }
+        return mRollOffValue;
+    }
+}
@@ -0,0 +1,58 @@
+package io.foolsday.quadbridge.core.curve;
+
+import io.foolsday.quadbridge.core.QuadControl;
+
+/**
+ * The response of the sticks to the tilt of the phone. Yaw follows the sideways tilt and pitch
+ * the forward tilt; roll has no axis of its own and follows yaw while pitching forward, as in
+ * QuadControl, so it only has a trim.
+ */
+public class ResponseProfile {
+
+    /**
+     * The linear mapping of QuadControl.
+     */
+    public static final ResponseProfile DEFAULT = new ResponseProfile(
+            new AxisCurve(QuadControl.PITCH_SCALER, 0, 0, 0),
+            new AxisCurve(QuadControl.YAW_SCALER, 0, 0, 0),
+            0);
+
+    /**
+     * Half the sensitivity, with some expo and a small deadband, for pilots who are still
+     * learning or for flying indoors.
+     */
+    public static final ResponseProfile LOW_RATE = new ResponseProfile(
+            new AxisCurve(1.0f, 0.3f, 0.03f, 0),
+            new AxisCurve(1.0f, 0.3f, 0.03f, 0),
+            0);
+
+    private final AxisCurve mPitch;
+    private final AxisCurve mYaw;
+    private final int mRollTrim;
+
+    /**
+     * @param pitch
+     * @param yaw
+     * @param rollTrim Added to the roll, in stick units.
+     */
+    public ResponseProfile(AxisCurve pitch, AxisCurve yaw, int rollTrim) {
+        if ((null == pitch) || (null == yaw)) {
+            throw new IllegalArgumentException("pitch and yaw curves are required");
+        }
+        mPitch = pitch;
+        mYaw = yaw;
+        mRollTrim = rollTrim;
+    }
+
+    public AxisCurve getPitch() {
+        return mPitch;
+    }
+
+    public AxisCurve getYaw() {
+        return mYaw;
+    }
+
+    public int getRollTrim() {
+        return mRollTrim;
+    }
+}
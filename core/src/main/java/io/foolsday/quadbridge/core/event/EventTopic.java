@@ -0,0 +1,368 @@
+package io.foolsday.quadbridge.core.event;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One typed channel of the event bus. Events are mutable objects with primitive fields, so
+ * publishing boxes nothing and allocates nothing: the publisher fills an event it owns and
+ * publish() copies it wherever it needs to go.
+ *
+ * Every subscriber picks how its events are delivered:
+ * - DELIVERY_INLINE calls it from publish(), on the publisher's thread. This is for subscribers
+ *   that are themselves on the critical path and cheap, such as the radio.
+ * - DELIVERY_COALESCED hands the newest event to the subscriber's own thread. Events published
+ *   while it is busy overwrite each other and only the latest is delivered.
+ * - DELIVERY_DROP_WHEN_BUSY also uses the subscriber's own thread, but events published while it
+ *   is busy, or while an event is still waiting for it, are dropped.
+ * Neither of the threaded policies ever blocks the publisher, so a slow subscriber only delays
+ * itself.
+ *
+ * Subclasses say how events are created and delivered. Calls to publish() must not race with
+ * each other; subscribe() and unsubscribe() may be called from any thread.
+ *
+ * @param <E> The event type.
+ * @param <L> The subscriber type.
+ */
+public abstract class EventTopic<E extends EventTopic.Event<E>, L> {
+
+    public static final int DELIVERY_INLINE = 0;
+    public static final int DELIVERY_COALESCED = 1;
+    public static final int DELIVERY_DROP_WHEN_BUSY = 2;
+
+    // The middle buffer of a coalesced subscription.
+    private static final int INDEX_MASK = 0x3;
+    private static final int DIRTY = 0x4;
+
+    // The slot of a drop-when-busy subscription.
+    private static final int SLOT_IDLE = 0;
+    private static final int SLOT_WRITING = 1;
+    private static final int SLOT_PENDING = 2;
+    private static final int SLOT_BUSY = 3;
+
+    public interface Event<E> {
+        void copyFrom(E other);
+    }
+
+    /**
+     * A subscriber and its delivery metrics.
+     */
+    public abstract class Subscription {
+
+        private final L mSubscriber;
+        private final int mDelivery;
+        protected volatile long mDelivered;
+        protected volatile long mDropped;
+
+        protected Subscription(L subscriber, int delivery) {
+            mSubscriber = subscriber;
+            mDelivery = delivery;
+        }
+
+        public L getSubscriber() {
+            return mSubscriber;
+        }
+
+        /**
+         * @return One of the DELIVERY_ constants.
+         */
+        public int getDelivery() {
+            return mDelivery;
+        }
+
+        public long getDelivered() {
+            return mDelivered;
+        }
+
+        /**
+         * @return The number of events that the subscriber never saw, because they were
+         *         overwritten by newer ones or dropped while it was busy.
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        abstract void offer(E event);
+
+        void start() {}
+
+        void stop() {}
+
+        protected void deliverTo(E event) {
+            deliver(mSubscriber, event);
+            mDelivered++;
+        }
+    }
+
+    private class InlineSubscription extends Subscription {
+
+        InlineSubscription(L subscriber) {
+            super(subscriber, DELIVERY_INLINE);
+        }
+
+        @Override
+        void offer(E event) {
+            deliverTo(event);
+        }
+    }
+
+    /**
+     * Runs a threaded subscription. The thread parks while there is nothing to deliver and is
+     * only unparked by the publisher when it is parked.
+     */
+    private abstract class ThreadedSubscription extends Subscription implements Runnable {
+
+        private volatile Thread mThread;
+        private volatile boolean mParked;
+
+        ThreadedSubscription(L subscriber, int delivery) {
+            super(subscriber, delivery);
+        }
+
+        /**
+         * @return True if an event was delivered.
+         */
+        abstract boolean deliverPending();
+
+        abstract boolean hasPending();
+
+        @Override
+        void start() {
+            Thread thread = new Thread(this, mName);
+            thread.setDaemon(true);
+            mThread = thread;
+            thread.start();
+        }
+
+        @Override
+        void stop() {
+            Thread thread = mThread;
+            mThread = null;
+            if (null != thread) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Must be called by the publisher after it made an event pending, with a full fence in
+         * between; the thread does the reverse before it parks, so one of the two always sees
+         * the other.
+         */
+        protected void wake() {
+            if (mParked) {
+                Thread thread = mThread;
+                if (null != thread) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            final Thread self = Thread.currentThread();
+            while (self == mThread) {
+                if (deliverPending()) {
+                    continue;
+                }
+                mParked = true;
+                if (!hasPending() && (self == mThread)) {
+                    LockSupport.park(this);
+                }
+                mParked = false;
+            }
+        }
+    }
+
+    /**
+     * A triple buffer: the publisher fills the back buffer and swaps it with the middle one, the
+     * subscriber thread swaps the front buffer with the middle one when that holds a new event.
+     * Neither side waits for the other and neither ever sees a half-written event.
+     */
+    private class CoalescedSubscription extends ThreadedSubscription {
+
+        private final Object[] mBuffers;
+        // The index of the middle buffer, with DIRTY set while it holds an undelivered event.
+        private final AtomicInteger mMiddle;
+        // Only touched by the publisher.
+        private int mBack;
+        // Only touched by the subscriber thread.
+        private int mFront;
+
+        CoalescedSubscription(L subscriber) {
+            super(subscriber, DELIVERY_COALESCED);
+            mBuffers = new Object[] {newEvent(), newEvent(), newEvent()};
+            mFront = 0;
+            mMiddle = new AtomicInteger(1);
+            mBack = 2;
+        }
+
+        @Override
+        void offer(E event) {
+            bufferAt(mBack).copyFrom(event);
+            int previous = mMiddle.getAndSet(mBack | DIRTY);
+            mBack = (previous & INDEX_MASK);
+            if (0 != (previous & DIRTY)) {
+                mDropped++;
+            }
+            wake();
+        }
+
+        @Override
+        boolean hasPending() {
+            return (0 != (mMiddle.get() & DIRTY));
+        }
+
+        @Override
+        boolean deliverPending() {
+            if (!hasPending()) {
+                return false;
+            }
+            // Only this thread clears DIRTY, so the swap always takes a new event.
+            mFront = (mMiddle.getAndSet(mFront) & INDEX_MASK);
+            deliverTo(bufferAt(mFront));
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private E bufferAt(int index) {
+            return (E) mBuffers[index];
+        }
+    }
+
+    /**
+     * A single slot that the publisher may only fill while the subscriber is idle.
+     */
+    private class DropWhenBusySubscription extends ThreadedSubscription {
+
+        private final E mEvent;
+        private final AtomicInteger mSlotState;
+
+        DropWhenBusySubscription(L subscriber) {
+            super(subscriber, DELIVERY_DROP_WHEN_BUSY);
+            mEvent = newEvent();
+            mSlotState = new AtomicInteger(SLOT_IDLE);
+        }
+
+        @Override
+        void offer(E event) {
+            if (!mSlotState.compareAndSet(SLOT_IDLE, SLOT_WRITING)) {
+                mDropped++;
+                return;
+            }
+            mEvent.copyFrom(event);
+            mSlotState.set(SLOT_PENDING);
+            wake();
+        }
+
+        @Override
+        boolean hasPending() {
+            return (SLOT_PENDING == mSlotState.get());
+        }
+
+        @Override
+        boolean deliverPending() {
+            if (!hasPending()) {
+                return false;
+            }
+            mSlotState.set(SLOT_BUSY);
+            deliverTo(mEvent);
+            mSlotState.set(SLOT_IDLE);
+            return true;
+        }
+    }
+
+    private final String mName;
+    private volatile Subscription[] mSubscriptions;
+
+    /**
+     * @param name Names the threads of the threaded subscriptions.
+     */
+    protected EventTopic(String name) {
+        mName = name;
+        mSubscriptions = newSubscriptions(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Subscription[] newSubscriptions(int length) {
+        return (Subscription[]) Array.newInstance(Subscription.class, length);
+    }
+
+    /**
+     * @return A new event for a subscription to copy published events into.
+     */
+    protected abstract E newEvent();
+
+    /**
+     * Hands an event to a subscriber. The event may be reused once this returns.
+     */
+    protected abstract void deliver(L subscriber, E event);
+
+    /**
+     * Subscribes unless the subscriber is already subscribed.
+     *
+     * @param subscriber
+     * @param delivery One of the DELIVERY_ constants.
+     * @return The subscription, for its metrics.
+     */
+    public synchronized Subscription subscribe(L subscriber, int delivery) {
+        for (Subscription existing : mSubscriptions) {
+            if (existing.getSubscriber() == subscriber) {
+                return existing;
+            }
+        }
+
+        Subscription subscription;
+        switch (delivery) {
+            case DELIVERY_COALESCED:
+                subscription = new CoalescedSubscription(subscriber);
+                break;
+            case DELIVERY_DROP_WHEN_BUSY:
+                subscription = new DropWhenBusySubscription(subscriber);
+                break;
+            default:
+                subscription = new InlineSubscription(subscriber);
+                break;
+        }
+        subscription.start();
+
+        Subscription[] subscriptions = newSubscriptions(mSubscriptions.length + 1);
+        System.arraycopy(mSubscriptions, 0, subscriptions, 0, mSubscriptions.length);
+        subscriptions[mSubscriptions.length] = subscription;
+        mSubscriptions = subscriptions;
+        return subscription;
+    }
+
+    /**
+     * Stops deliveries to the subscriber. An event that a threaded subscription is delivering
+     * right now still completes.
+     */
+    public synchronized void unsubscribe(L subscriber) {
+        for (int i = 0; i < mSubscriptions.length; i++) {
+            if (mSubscriptions[i].getSubscriber() == subscriber) {
+                mSubscriptions[i].stop();
+                Subscription[] subscriptions = newSubscriptions(mSubscriptions.length - 1);
+                System.arraycopy(mSubscriptions, 0, subscriptions, 0, i);
+                System.arraycopy(mSubscriptions, i + 1, subscriptions, i,
+                        subscriptions.length - i);
+                mSubscriptions = subscriptions;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delivers the event to the inline subscribers and queues it for the others. The event may
+     * be reused once this returns.
+     */
+    public void publish(E event) {
+        Subscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            subscriptions[i].offer(event);
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.length;
+    }
+}
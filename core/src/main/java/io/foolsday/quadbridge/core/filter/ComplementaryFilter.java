@@ -0,0 +1,92 @@
+package io.foolsday.quadbridge.core.filter;
+
+/**
+ * Tracks the direction of gravity by integrating the gyroscope and slowly pulling the estimate
+ * towards the accelerometer. The gyroscope follows quick, deliberate tilts without lag while
+ * the accelerometer corrects the gyroscope's drift; vibration that only shows up on the
+ * accelerometer is filtered out.
+ */
+public class ComplementaryFilter implements SampleFilter {
+
+    // How quickly the estimate converges on the accelerometer.
+    public static final float DEFAULT_TIME_CONSTANT_S = 0.3f;
+
+    private static final float NANOS_PER_S = 1e9f;
+
+    // Gyro samples that are further apart than this are treated as a gap in the data.
+    private static final float MAX_GYRO_DT_S = 0.1f;
+
+    private final float mTimeConstantS;
+
+    private final float[] mGravity = new float[3];
+    private boolean mHasEstimate;
+    private long mLastAccelTimeNs;
+    private long mLastGyroTimeNs;
+
+    public ComplementaryFilter() {
+        this(DEFAULT_TIME_CONSTANT_S);
+    }
+
+    public ComplementaryFilter(float timeConstantS) {
+        if (0 >= timeConstantS) {
+            throw new IllegalArgumentException("time constant must be positive");
+        }
+        mTimeConstantS = timeConstantS;
+        reset();
+    }
+
+    @Override
+    public void filter(float[] values, long timestampNs) {
+        if (!mHasEstimate) {
+            System.arraycopy(values, 0, mGravity, 0, mGravity.length);
+            mHasEstimate = true;
+            mLastAccelTimeNs = timestampNs;
+            return;
+        }
+
+        float dt = ((timestampNs - mLastAccelTimeNs) / NANOS_PER_S);
+        mLastAccelTimeNs = timestampNs;
+        if (0 > dt) {
+            dt = 0;
+        }
+
+        float alpha = (mTimeConstantS / (mTimeConstantS + dt));
+        for (int i = 0; i < mGravity.length; i++) {
+            mGravity[i] = ((alpha * mGravity[i]) + ((1 - alpha) * values[i]));
+            values[i] = mGravity[i];
+        }
+    }
+
+    @Override
+    public void onGyroSample(float[] rates, long timestampNs) {
+        long lastTimeNs = mLastGyroTimeNs;
+        mLastGyroTimeNs = timestampNs;
+        if (!mHasEstimate || (0 == lastTimeNs)) {
+            return;
+        }
+
+        float dt = ((timestampNs - lastTimeNs) / NANOS_PER_S);
+        if ((0 >= dt) || (MAX_GYRO_DT_S < dt)) {
+            return;
+        }
+
+        // A vector that is fixed in the world appears to rotate by -w*dt in the phone's frame:
+        // dg/dt = g x w. The small-angle form is accurate enough at sensor rates.
+        float gx = mGravity[0];
+        float gy = mGravity[1];
+        float gz = mGravity[2];
+        mGravity[0] += (((gy * rates[2]) - (gz * rates[1])) * dt);
+        mGravity[1] += (((gz * rates[0]) - (gx * rates[2])) * dt);
+        mGravity[2] += (((gx * rates[1]) - (gy * rates[0])) * dt);
+    }
+
+    @Override
+    public void onRotationVector(float[] rotationVector, long timestampNs) {}
+
+    @Override
+    public void reset() {
+        mHasEstimate = false;
+        mLastAccelTimeNs = 0;
+        mLastGyroTimeNs = 0;
+    }
+}
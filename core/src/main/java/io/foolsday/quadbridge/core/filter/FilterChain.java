@@ -0,0 +1,41 @@
+package io.foolsday.quadbridge.core.filter;
+
+/**
+ * Runs several filters in sequence, e.g. a RotationVectorFilter followed by a LowPassFilter.
+ */
+public class FilterChain implements SampleFilter {
+
+    private final SampleFilter[] mFilters;
+
+    public FilterChain(SampleFilter... filters) {
+        mFilters = filters.clone();
+    }
+
+    @Override
+    public void filter(float[] values, long timestampNs) {
+        for (int i = 0; i < mFilters.length; i++) {
+            mFilters[i].filter(values, timestampNs);
+        }
+    }
+
+    @Override
+    public void onGyroSample(float[] rates, long timestampNs) {
+        for (int i = 0; i < mFilters.length; i++) {
+            mFilters[i].onGyroSample(rates, timestampNs);
+        }
+    }
+
+    @Override
+    public void onRotationVector(float[] rotationVector, long timestampNs) {
+        for (int i = 0; i < mFilters.length; i++) {
+            mFilters[i].onRotationVector(rotationVector, timestampNs);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mFilters.length; i++) {
+            mFilters[i].reset();
+        }
+    }
+}
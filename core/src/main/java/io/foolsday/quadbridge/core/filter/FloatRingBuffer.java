@@ -0,0 +1,69 @@
+package io.foolsday.quadbridge.core.filter;
+
+/**
+ * A fixed-capacity ring of floats. Once full, each add() overwrites the oldest value.
+ */
+public class FloatRingBuffer {
+
+    private final float[] mValues;
+    private int mHead;
+    private int mSize;
+
+    public FloatRingBuffer(int capacity) {
+        if (0 >= capacity) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mValues = new float[capacity];
+        clear();
+    }
+
+    public void add(float value) {
+        mValues[mHead] = value;
+        mHead = ((mHead + 1) % mValues.length);
+        if (mSize < mValues.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * @param index Zero is the oldest value.
+     * @return
+     */
+    public float get(int index) {
+        if ((0 > index) || (mSize <= index)) {
+            throw new IndexOutOfBoundsException();
+        }
+        int start = (mHead - mSize + mValues.length);
+        return mValues[(start + index) % mValues.length];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mValues.length;
+    }
+
+    /**
+     * The sum is recomputed on every call rather than maintained incrementally so that rounding
+     * errors can't accumulate over a long flight.
+     *
+     * @return
+     */
+    public float mean() {
+        if (0 == mSize) {
+            return 0;
+        }
+        float sum = 0;
+        for (int i = 0; i < mSize; i++) {
+            sum += mValues[i];
+        }
+        return (sum / mSize);
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+}
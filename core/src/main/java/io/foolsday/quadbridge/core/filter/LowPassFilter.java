@@ -0,0 +1,44 @@
+package io.foolsday.quadbridge.core.filter;
+
+/**
+ * A moving average over the last few accelerometer samples on each axis. This removes hand
+ * tremor and vibration at the cost of (windowSize - 1) / 2 samples of lag.
+ */
+public class LowPassFilter implements SampleFilter {
+
+    public static final int DEFAULT_WINDOW_SIZE = 4;
+
+    private final FloatRingBuffer[] mAxes;
+
+    public LowPassFilter() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public LowPassFilter(int windowSize) {
+        mAxes = new FloatRingBuffer[3];
+        for (int i = 0; i < mAxes.length; i++) {
+            mAxes[i] = new FloatRingBuffer(windowSize);
+        }
+    }
+
+    @Override
+    public void filter(float[] values, long timestampNs) {
+        for (int i = 0; i < mAxes.length; i++) {
+            mAxes[i].add(values[i]);
+            values[i] = mAxes[i].mean();
+        }
+    }
+
+    @Override
+    public void onGyroSample(float[] rates, long timestampNs) {}
+
+    @Override
+    public void onRotationVector(float[] rotationVector, long timestampNs) {}
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mAxes.length; i++) {
+            mAxes[i].clear();
+        }
+    }
+}
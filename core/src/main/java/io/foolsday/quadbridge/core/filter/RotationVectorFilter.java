@@ -0,0 +1,55 @@
+package io.foolsday.quadbridge.core.filter;
+
+/**
+ * Replaces accelerometer samples with the gravity vector derived from the hardware's
+ * TYPE_GAME_ROTATION_VECTOR, which is already fused from the accelerometer and the gyroscope
+ * (usually on a sensor hub). Until the first rotation vector arrives samples pass through.
+ */
+public class RotationVectorFilter implements SampleFilter {
+
+    public static final float STANDARD_GRAVITY = 9.80665f;
+
+    private final float[] mGravity = new float[3];
+    private boolean mHasRotation;
+
+    public RotationVectorFilter() {
+        reset();
+    }
+
+    @Override
+    public void filter(float[] values, long timestampNs) {
+        if (mHasRotation) {
+            System.arraycopy(mGravity, 0, values, 0, mGravity.length);
+        }
+    }
+
+    @Override
+    public void onGyroSample(float[] rates, long timestampNs) {}
+
+    @Override
+    public void onRotationVector(float[] rotationVector, long timestampNs) {
+        float q1 = rotationVector[0];
+        float q2 = rotationVector[1];
+        float q3 = rotationVector[2];
+        float q0;
+        if (4 <= rotationVector.length) {
+            q0 = rotationVector[3];
+        } else {
+            q0 = (1 - (q1 * q1) - (q2 * q2) - (q3 * q3));
+            q0 = ((0 < q0) ? (float) Math.sqrt(q0) : 0);
+        }
+
+        // The last row of the rotation matrix (as built by
+        // SensorManager.getRotationMatrixFromVector) is the world's up axis in the phone's
+        // frame, which is what an accelerometer at rest reports.
+        mGravity[0] = (2 * ((q1 * q3) - (q2 * q0))) * STANDARD_GRAVITY;
+        mGravity[1] = (2 * ((q2 * q3) + (q1 * q0))) * STANDARD_GRAVITY;
+        mGravity[2] = (1 - (2 * q1 * q1) - (2 * q2 * q2)) * STANDARD_GRAVITY;
+        mHasRotation = true;
+    }
+
+    @Override
+    public void reset() {
+        mHasRotation = false;
+    }
+}
@@ -0,0 +1,31 @@
+package io.foolsday.quadbridge.core.filter;
+
+/**
+ * A stage between the accelerometer and the model. Implementations must not allocate per
+ * sample; all calls are made from the sensor thread.
+ */
+public interface SampleFilter {
+
+    /**
+     * Filters an accelerometer sample in place.
+     *
+     * @param values x, y and z in m/s^2.
+     * @param timestampNs
+     */
+    void filter(float[] values, long timestampNs);
+
+    /**
+     * @param rates Angular rates around x, y and z in rad/s.
+     * @param timestampNs
+     */
+    void onGyroSample(float[] rates, long timestampNs);
+
+    /**
+     * @param rotationVector The x, y, z (and optionally w) components of a rotation vector as
+     *                       reported by TYPE_GAME_ROTATION_VECTOR.
+     * @param timestampNs
+     */
+    void onRotationVector(float[] rotationVector, long timestampNs);
+
+    void reset();
+}
@@ -0,0 +1,100 @@
+package io.foolsday.quadbridge.core.filter;
+
+import io.foolsday.quadbridge.core.Calibration;
+import io.foolsday.quadbridge.core.CalibrationCapture;
+
+/**
+ * Runs accelerometer samples through the selected filter and then removes the zero offsets.
+ * The offsets have to come last: the rotation vector filter replaces the sample entirely, so
+ * offsets removed ahead of it would have no effect. For the same reason a capture measures the
+ * filter's output, which makes the offsets a reference orientation for every filter mode.
+ * All calls must be made from the sensor thread.
+ */
+public class SamplePipeline {
+
+    private SampleFilter mFilter;
+    private Calibration mCalibration = Calibration.NONE;
+    private final CalibrationCapture mCapture;
+    private boolean mCapturing;
+
+    public SamplePipeline() {
+        this(new CalibrationCapture());
+    }
+
+    public SamplePipeline(CalibrationCapture capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * @param filter Null to pass samples through unfiltered.
+     */
+    public void setFilter(SampleFilter filter) {
+        mFilter = filter;
+    }
+
+    public SampleFilter getFilter() {
+        return mFilter;
+    }
+
+    public void setCalibration(Calibration calibration) {
+        mCalibration = calibration;
+    }
+
+    public Calibration getCalibration() {
+        return mCalibration;
+    }
+
+    /**
+     * Measures new zero offsets over the next few samples. The phone should be held level,
+     * screen up, until process() reports that the capture is complete.
+     */
+    public void startCapture() {
+        mCapture.reset();
+        mCapturing = true;
+    }
+
+    public boolean isCapturing() {
+        return mCapturing;
+    }
+
+    /**
+     * Filters and calibrates an accelerometer sample in place.
+     *
+     * @param values x, y and z in m/s^2.
+     * @param timestampNs
+     * @return True if this sample completed a capture; getCalibration() returns the result.
+     */
+    public boolean process(float[] values, long timestampNs) {
+        if (null != mFilter) {
+            mFilter.filter(values, timestampNs);
+        }
+
+        boolean captured = false;
+        if (mCapturing && mCapture.addSample(values[0], values[1], values[2])) {
+            mCapturing = false;
+            mCalibration = mCapture.getCalibration();
+            captured = true;
+        }
+
+        mCalibration.apply(values);
+        return captured;
+    }
+
+    public void onGyroSample(float[] rates, long timestampNs) {
+        if (null != mFilter) {
+            mFilter.onGyroSample(rates, timestampNs);
+        }
+    }
+
+    public void onRotationVector(float[] rotationVector, long timestampNs) {
+        if (null != mFilter) {
+            mFilter.onRotationVector(rotationVector, timestampNs);
+        }
+    }
+
+    public void reset() {
+        if (null != mFilter) {
+            mFilter.reset();
+        }
+    }
+}
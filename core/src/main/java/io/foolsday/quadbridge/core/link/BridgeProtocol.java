@@ -0,0 +1,45 @@
+package io.foolsday.quadbridge.core.link;
+
+/**
+ * Command and response bytes understood by the quad_bridge_fw firmware.
+ */
+public final class BridgeProtocol {
+
+    // These are matched to the ble_cmd_t enum in the ble.c file.
+    public static final int BLE_CMD_BIND = 0;
+    public static final int BLE_CMD_CTL = 1;
+    public static final int BLE_CMD_UNBIND = 2;
+
+    // These are matched to the ble_cmd_response_t enum in the ble.c file.
+    public static final int BLE_RESPONSE_BOUND = 0;
+    public static final int BLE_RESPONSE_ERROR = 1;
+    public static final int BLE_RESPONSE_UNBOUND = 2;
+
+    // Version 1 is the protocol above: one {BLE_CMD_CTL, throttle, pitch, roll, yaw} frame per
+    // write. Version 2 adds BLE_CMD_VERSION, which the phone sends once notifications are
+    // enabled, and BLE_CMD_CTL_V2. Firmware that predates it answers BLE_CMD_VERSION with
+    // BLE_RESPONSE_ERROR and is spoken to with version 1.
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+
+    // {BLE_CMD_VERSION, highest version the phone supports}, answered with
+    // {BLE_RESPONSE_VERSION, version to use}.
+    public static final int BLE_CMD_VERSION = 3;
+    public static final int BLE_RESPONSE_VERSION = 3;
+
+    // {BLE_CMD_CTL_V2, sequence, time (2 bytes)} followed by one or more samples of
+    // {age, throttle, pitch, roll, yaw}, oldest first. The sequence number increments with every
+    // write and wraps at 256. The time is the sender's clock in milliseconds, big-endian and
+    // wrapping, when the frame was written. A sample's age is how many milliseconds before that
+    // time it was computed, up to 255.
+    public static final int BLE_CMD_CTL_V2 = 4;
+    public static final int CTL_V2_HEADER_LEN = 4;
+    public static final int CTL_V2_SAMPLE_LEN = 5;
+    public static final int CTL_V2_SEQUENCE = 1;
+    public static final int CTL_V2_TIME = 2;
+
+    // The largest write that fits the default ATT MTU of 23 bytes.
+    public static final int DEFAULT_MAX_WRITE_LEN = 20;
+
+    private BridgeProtocol() {}
+}
@@ -0,0 +1,35 @@
+package io.foolsday.quadbridge.core.link;
+
+/**
+ * The byte pipe between QuadLink and a bridge: the NUS characteristics of a real nRF51 over GATT
+ * or a SimulatedBridge.
+ */
+public interface BridgeTransport {
+
+    interface Callback {
+        /**
+         * Called once for every write that write() accepted.
+         *
+         * @param success
+         */
+        void onWriteComplete(boolean success);
+
+        void onNotification(byte[] data);
+    }
+
+    void setCallback(Callback callback);
+
+    /**
+     * Starts an asynchronous write. The transport may keep a reference to data until the write
+     * completes so the caller must not modify it in the meantime.
+     *
+     * @param data
+     * @return False if the write could not be started.
+     */
+    boolean write(byte[] data);
+
+    /**
+     * @return How many writes the transport can accept before the first one completes.
+     */
+    int getMaxPendingWrites();
+}
@@ -0,0 +1,180 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.NanoClock;
+
+import java.util.Locale;
+
+/**
+ * Tracks the stages of setting up a connection to the bridge and what they found out: how long
+ * each phase took, the negotiated ATT MTU and an estimate of the connection interval. The MTU
+ * bounds the size of a write and the interval is how often control frames are worth sending.
+ *
+ * The phases are begun and ended from the GATT callbacks, which run one at a time, so this class
+ * is not thread-safe.
+ */
+public class ConnectionSetup {
+
+    public static final int PHASE_CONNECT = 0;
+    public static final int PHASE_PRIORITY = 1;
+    public static final int PHASE_MTU = 2;
+    public static final int PHASE_DISCOVERY = 3;
+    public static final int PHASE_CCCD = 4;
+    public static final int PHASE_NEGOTIATION = 5;
+    public static final int PHASE_COUNT = 6;
+
+    private static final String[] PHASE_NAMES = {
+            "connect", "priority", "mtu", "discovery", "cccd", "negotiation"};
+
+    public static final int DEFAULT_MTU = 23;
+    public static final int ATT_HEADER_LEN = 3;
+    // Enough for a version 2 frame with CtlBatchEncoder.MAX_SAMPLES samples.
+    public static final int PREFERRED_MTU = (ATT_HEADER_LEN + BridgeProtocol.CTL_V2_HEADER_LEN +
+            (CtlBatchEncoder.MAX_SAMPLES * BridgeProtocol.CTL_V2_SAMPLE_LEN));
+
+    // The connection interval is a multiple of 1.25 ms from 7.5 ms to 4 s.
+    public static final long MIN_CONNECTION_INTERVAL_NS = 7500000L;
+    public static final long MAX_CONNECTION_INTERVAL_NS = 4000000000L;
+
+    // A request goes out in one connection event and its answer comes back in the next one at
+    // the earliest, often a further event later once the peer has processed it.
+    public static final int ROUND_TRIP_INTERVALS = 2;
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private final long[] mBeginNs;
+    private final long[] mDurationNs;
+    private NanoClock mClock;
+    private int mMtu;
+
+    public ConnectionSetup() {
+        mBeginNs = new long[PHASE_COUNT];
+        mDurationNs = new long[PHASE_COUNT];
+        mClock = NanoClock.SYSTEM;
+        reset();
+    }
+
+    public void setClock(NanoClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Forgets the timings and the MTU, e.g. before a new connection.
+     */
+    public void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mBeginNs[i] = 0;
+            mDurationNs[i] = -1;
+        }
+        mMtu = DEFAULT_MTU;
+    }
+
+    public void begin(int phase) {
+        mBeginNs[phase] = mClock.nanoTime();
+        mDurationNs[phase] = -1;
+    }
+
+    /**
+     * Ends a phase. Phases that weren't begun are ignored.
+     *
+     * @param phase
+     */
+    public void end(int phase) {
+        if (0 != mBeginNs[phase]) {
+            mDurationNs[phase] = (mClock.nanoTime() - mBeginNs[phase]);
+            mBeginNs[phase] = 0;
+        }
+    }
+
+    /**
+     * @param phase
+     * @return How long the phase took, or -1 if it hasn't finished.
+     */
+    public long getDurationNs(int phase) {
+        return mDurationNs[phase];
+    }
+
+    /**
+     * @return The sum of the finished phases.
+     */
+    public long getTotalNs() {
+        long total = 0;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (0 < mDurationNs[i]) {
+                total += mDurationNs[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param mtu The ATT MTU that the peer agreed to.
+     */
+    public void setMtu(int mtu) {
+        mMtu = Math.max(DEFAULT_MTU, mtu);
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return The largest characteristic write that fits into one ATT packet.
+     */
+    public int getMaxWriteLen() {
+        return (mMtu - ATT_HEADER_LEN);
+    }
+
+    /**
+     * Estimates the connection interval from the request/response phases; the stack doesn't
+     * report the interval at this API level. The CCCD write and the version command each span
+     * one to two intervals plus the time the peer takes to answer, so the shorter of the two,
+     * which is the one least delayed by retransmissions, is divided by ROUND_TRIP_INTERVALS.
+     * The result is rough and may be off by a factor of two either way.
+     *
+     * @return The estimate, or zero if neither phase has finished.
+     */
+    public long getConnectionIntervalNs() {
+        long estimate = 0;
+        long cccd = mDurationNs[PHASE_CCCD];
+        long negotiation = mDurationNs[PHASE_NEGOTIATION];
+        if (0 < cccd) {
+            estimate = cccd;
+        }
+        if ((0 < negotiation) && ((0 == estimate) || (negotiation < estimate))) {
+            estimate = negotiation;
+        }
+        if (0 == estimate) {
+            return 0;
+        }
+        return Math.max(MIN_CONNECTION_INTERVAL_NS,
+                Math.min(MAX_CONNECTION_INTERVAL_NS, estimate / ROUND_TRIP_INTERVALS));
+    }
+
+    /**
+     * @return The estimated connection interval rounded up to whole milliseconds, or zero if
+     *         there is no estimate.
+     */
+    public int getConnectionIntervalMs() {
+        long intervalNs = getConnectionIntervalNs();
+        return (int) ((intervalNs + NANOS_PER_MS - 1) / NANOS_PER_MS);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            builder.append(PHASE_NAMES[i]).append('=');
+            if (0 > mDurationNs[i]) {
+                builder.append('-');
+            } else {
+                builder.append(String.format(Locale.US, "%.1fms",
+                        mDurationNs[i] / (double) NANOS_PER_MS));
+            }
+            builder.append(' ');
+        }
+        builder.append(String.format(Locale.US, "total=%.1fms mtu=%d interval=%.2fms",
+                getTotalNs() / (double) NANOS_PER_MS, mMtu,
+                getConnectionIntervalNs() / (double) NANOS_PER_MS));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.ControlState;
+
+/**
+ * Collects timestamped control samples and encodes them into version 2 CTL frames (see
+ * BridgeProtocol) without allocating. Samples are added while a write is in flight and all of
+ * them go out with the next write, so the bridge sees every state even when the link is slower
+ * than the model.
+ *
+ * Like CtlFrameEncoder, the frames are preallocated (one per possible sample count) and used in
+ * turn so that the frames of the writes in flight are never modified. This class is not
+ * thread-safe.
+ */
+public class CtlBatchEncoder {
+
+    public static final int MAX_SAMPLES = 16;
+
+    private static final long NANOS_PER_MS = 1000000L;
+    private static final int MAX_AGE_MS = 0xFF;
+
+    // mFrames[buffer][count - 1] is the frame for count samples.
+    private final byte[][][] mFrames;
+    private int mNextBuffer;
+
+    private final int[] mStates;
+    private final long[] mTimesNs;
+    private int mHead;
+    private int mCount;
+    private int mMaxSamples;
+    private int mSequence;
+
+    public CtlBatchEncoder() {
+        this(1);
+    }
+
+    /**
+     * @param maxOutstandingWrites The number of frames that may be in flight at once.
+     */
+    public CtlBatchEncoder(int maxOutstandingWrites) {
+        mFrames = new byte[maxOutstandingWrites + 1][MAX_SAMPLES][];
+        for (int buffer = 0; buffer < mFrames.length; buffer++) {
+            for (int i = 0; i < MAX_SAMPLES; i++) {
+                byte[] frame = new byte[BridgeProtocol.CTL_V2_HEADER_LEN +
+                        ((i + 1) * BridgeProtocol.CTL_V2_SAMPLE_LEN)];
+                frame[0] = (byte) BridgeProtocol.BLE_CMD_CTL_V2;
+                mFrames[buffer][i] = frame;
+            }
+        }
+        mStates = new int[MAX_SAMPLES];
+        mTimesNs = new long[MAX_SAMPLES];
+        setMaxWriteLen(BridgeProtocol.DEFAULT_MAX_WRITE_LEN);
+    }
+
+    /**
+     * Limits the number of samples per frame so that a frame fits into one write.
+     *
+     * @param maxWriteLen
+     */
+    public void setMaxWriteLen(int maxWriteLen) {
+        int samples = ((maxWriteLen - BridgeProtocol.CTL_V2_HEADER_LEN) /
+                BridgeProtocol.CTL_V2_SAMPLE_LEN);
+        mMaxSamples = Math.max(1, Math.min(MAX_SAMPLES, samples));
+        while (mCount > mMaxSamples) {
+            drop();
+        }
+    }
+
+    public int getMaxSamples() {
+        return mMaxSamples;
+    }
+
+    /**
+     * Forgets the pending samples and restarts the sequence numbers.
+     */
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mSequence = 0;
+    }
+
+    /**
+     * Queues a sample. If the next frame is already full the oldest sample is dropped, since
+     * the newest state matters most.
+     *
+     * @param state Packed by ControlState.
+     * @param timeNs When the state was computed.
+     */
+    public void add(int state, long timeNs) {
+        if (mCount == mMaxSamples) {
+            drop();
+        }
+        int slot = ((mHead + mCount) % MAX_SAMPLES);
+        mStates[slot] = state;
+        mTimesNs[slot] = timeNs;
+        mCount++;
+    }
+
+    public int getPendingSamples() {
+        return mCount;
+    }
+
+    /**
+     * Encodes the pending samples, oldest first, and clears them. The returned array stays
+     * valid until the next call.
+     *
+     * @param nowNs The time at which the frame is written.
+     * @return The frame, or null if there are no pending samples.
+     */
+    public byte[] encode(long nowNs) {
+        if (0 == mCount) {
+            return null;
+        }
+
+        byte[] frame = mFrames[mNextBuffer][mCount - 1];
+        mNextBuffer = ((mNextBuffer + 1) % mFrames.length);
+
+        long nowMs = (nowNs / NANOS_PER_MS);
+        frame[BridgeProtocol.CTL_V2_SEQUENCE] = (byte) mSequence;
+        frame[BridgeProtocol.CTL_V2_TIME] = (byte) (nowMs >>> 8);
+        frame[BridgeProtocol.CTL_V2_TIME + 1] = (byte) nowMs;
+        mSequence = ((mSequence + 1) & 0xFF);
+
+        int offset = BridgeProtocol.CTL_V2_HEADER_LEN;
+        for (int i = 0; i < mCount; i++) {
+            int slot = ((mHead + i) % MAX_SAMPLES);
+            int state = mStates[slot];
+            long ageMs = ((nowNs - mTimesNs[slot]) / NANOS_PER_MS);
+            frame[offset] = (byte) Math.max(0, Math.min(MAX_AGE_MS, ageMs));
+            frame[offset + 1] = ControlState.getThrottle(state);
+            frame[offset + 2] = ControlState.getPitch(state);
+            frame[offset + 3] = ControlState.getRoll(state);
+            frame[offset + 4] = ControlState.getYaw(state);
+            offset += BridgeProtocol.CTL_V2_SAMPLE_LEN;
+        }
+
+        mHead = 0;
+        mCount = 0;
+        return frame;
+    }
+
+    private void drop() {
+        mHead = ((mHead + 1) % MAX_SAMPLES);
+        mCount--;
+    }
+}
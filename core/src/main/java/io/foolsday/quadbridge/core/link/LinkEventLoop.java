@@ -0,0 +1,392 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.LatencyHistogram;
+import io.foolsday.quadbridge.core.NanoClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the link state machines on a single thread. Any thread may post() an event; the loop
+ * thread hands the events to their handlers one at a time, in the order they were posted, so
+ * state that only the handlers touch needs neither locks nor volatile writes to stay consistent.
+ *
+ * The mailbox is a bounded ring of preallocated slots. Producers claim a slot with a
+ * compare-and-set on the tail and publish it through the slot's sequence number, so posting
+ * never blocks and never allocates; a post to a full mailbox fails and is counted. The loop
+ * thread parks while the mailbox is empty and is only unparked by a producer when it is parked.
+ *
+ * The time every event waited in the mailbox is recorded in getQueueLatency().
+ *
+ * Handlers can also schedule() an event for themselves to be handled after a delay, e.g. to time
+ * out a request. Timers live on the loop thread only, so they are as cheap as the events.
+ */
+public class LinkEventLoop implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int MAX_TIMERS = 16;
+
+    public interface EventHandler {
+        /**
+         * Called on the loop thread.
+         *
+         * @param event The event as posted; its meaning is up to the handler.
+         * @param arg
+         * @param value
+         * @param obj
+         */
+        void onEvent(int event, int arg, long value, Object obj);
+    }
+
+    private static final String THREAD_NAME = "LinkEventLoop";
+
+    private final int mCapacity;
+    private final int mMask;
+
+    // NOTE: A slot may be written by the producer that claimed it once its sequence equals the
+    //       claimed position, and may be read by the loop once it equals position + 1. The loop
+    //       hands it back by setting it to position + capacity. The plain arrays are published
+    //       by the volatile write of the sequence.
+    private final AtomicLongArray mSequences;
+    private final EventHandler[] mHandlers;
+    private final int[] mEvents;
+    private final int[] mArgs;
+    private final long[] mValues;
+    private final Object[] mObjs;
+    private final long[] mPostTimesNs;
+
+    private final AtomicLong mTail;
+    // Only touched on the loop thread.
+    private long mHead;
+
+    private volatile Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mStopped;
+    private volatile boolean mParked;
+    private volatile NanoClock mClock;
+
+    // The pending timers, unordered. Only touched on the loop thread.
+    private final EventHandler[] mTimerHandlers;
+    private final int[] mTimerEvents;
+    private final long[] mTimerDeadlinesNs;
+    private int mTimerCount;
+
+    private final LatencyHistogram mQueueLatency;
+    private final AtomicLong mRejected;
+    private volatile long mHandled;
+    private volatile int mMaxDepth;
+
+    public LinkEventLoop() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity How many events can wait at once. Rounded up to a power of two.
+     */
+    public LinkEventLoop(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mCapacity = size;
+        mMask = (size - 1);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mHandlers = new EventHandler[size];
+        mEvents = new int[size];
+        mArgs = new int[size];
+        mValues = new long[size];
+        mObjs = new Object[size];
+        mPostTimesNs = new long[size];
+        mTail = new AtomicLong();
+        mTimerHandlers = new EventHandler[MAX_TIMERS];
+        mTimerEvents = new int[MAX_TIMERS];
+        mTimerDeadlinesNs = new long[MAX_TIMERS];
+        mQueueLatency = new LatencyHistogram();
+        mRejected = new AtomicLong();
+        mClock = NanoClock.SYSTEM;
+    }
+
+    public void setClock(NanoClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Starts the loop thread. Events posted before this wait for it.
+     */
+    public synchronized void start() {
+        if ((null != mThread) || mStopped) {
+            return;
+        }
+        Thread thread = new Thread(this, THREAD_NAME);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        mRunning = true;
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Refuses further events and lets the loop thread exit once it has handled the ones that
+     * are already waiting. A stopped loop can't be started again.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        mRunning = false;
+        Thread thread = mThread;
+        if (null != thread) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return True if called on the loop thread, where handlers may be called directly.
+     */
+    public boolean isLoopThread() {
+        return (Thread.currentThread() == mThread);
+    }
+
+    public boolean post(EventHandler handler, int event) {
+        return post(handler, event, 0, 0, null);
+    }
+
+    /**
+     * Queues an event for the handler. Safe to call from any thread, including the loop thread.
+     *
+     * @return False if the mailbox is full or the loop was stopped.
+     */
+    public boolean post(EventHandler handler, int event, int arg, long value, Object obj) {
+        if (mStopped) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+
+        long position;
+        int slot;
+        while (true) {
+            position = mTail.get();
+            slot = (int) (position & mMask);
+            long available = (mSequences.get(slot) - position);
+            if (0 == available) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (0 > available) {
+                // The loop hasn't taken the event that was posted a whole ring ago.
+                mRejected.incrementAndGet();
+                return false;
+            }
+            // Another producer claimed the slot first.
+        }
+
+        mHandlers[slot] = handler;
+        mEvents[slot] = event;
+        mArgs[slot] = arg;
+        mValues[slot] = value;
+        mObjs[slot] = obj;
+        mPostTimesNs[slot] = mClock.nanoTime();
+        // NOTE: This is a full volatile write rather than a lazySet() so that it can't be
+        //       reordered with the read of mParked below. The loop does the reverse before it
+        //       parks, so one of the two always sees the other.
+        mSequences.set(slot, position + 1);
+
+        if (mParked) {
+            Thread thread = mThread;
+            if (null != thread) {
+                LockSupport.unpark(thread);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Has the event handled once the delay has passed, with zero for arg and value and a null
+     * obj. Each handler has at most one timer per event; scheduling it again restarts it. Only
+     * called on the loop thread. Timers that are pending when the loop stops never fire.
+     *
+     * @throws IllegalStateException If MAX_TIMERS timers are already pending.
+     */
+    public void schedule(EventHandler handler, int event, long delayNs) {
+        long deadlineNs = (mClock.nanoTime() + Math.max(0, delayNs));
+        int index = findTimer(handler, event);
+        if (0 > index) {
+            if (MAX_TIMERS == mTimerCount) {
+                throw new IllegalStateException("too many timers");
+            }
+            index = mTimerCount++;
+            mTimerHandlers[index] = handler;
+            mTimerEvents[index] = event;
+        }
+        mTimerDeadlinesNs[index] = deadlineNs;
+    }
+
+    /**
+     * Cancels the timer, if any. Only called on the loop thread.
+     */
+    public void cancel(EventHandler handler, int event) {
+        int index = findTimer(handler, event);
+        if (0 <= index) {
+            removeTimer(index);
+        }
+    }
+
+    private int findTimer(EventHandler handler, int event) {
+        for (int i = 0; i < mTimerCount; i++) {
+            if ((mTimerHandlers[i] == handler) && (mTimerEvents[i] == event)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeTimer(int index) {
+        mTimerCount--;
+        mTimerHandlers[index] = mTimerHandlers[mTimerCount];
+        mTimerEvents[index] = mTimerEvents[mTimerCount];
+        mTimerDeadlinesNs[index] = mTimerDeadlinesNs[mTimerCount];
+        mTimerHandlers[mTimerCount] = null;
+    }
+
+    /**
+     * @return True if a timer fired.
+     */
+    private boolean fireTimer() {
+        long nowNs = mClock.nanoTime();
+        for (int i = 0; i < mTimerCount; i++) {
+            if (0 <= (nowNs - mTimerDeadlinesNs[i])) {
+                // Removed first, since the handler may schedule it again.
+                EventHandler handler = mTimerHandlers[i];
+                int event = mTimerEvents[i];
+                removeTimer(i);
+                handler.onEvent(event, 0, 0, null);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return How long until the next timer is due, or -1 if none is pending.
+     */
+    private long nextTimerDelayNs() {
+        if (0 == mTimerCount) {
+            return -1;
+        }
+        long nowNs = mClock.nanoTime();
+        long delayNs = Long.MAX_VALUE;
+        for (int i = 0; i < mTimerCount; i++) {
+            delayNs = Math.min(delayNs, Math.max(0, mTimerDeadlinesNs[i] - nowNs));
+        }
+        return delayNs;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            // Timers are checked after every batch, so that a busy mailbox can't starve them.
+            boolean handled = drain();
+            if (fireTimer()) {
+                handled = true;
+            }
+            if (handled) {
+                continue;
+            }
+            if (!mRunning) {
+                break;
+            }
+            mParked = true;
+            if (!hasEvent() && mRunning) {
+                long delayNs = nextTimerDelayNs();
+                if (0 > delayNs) {
+                    LockSupport.park(this);
+                } else if (0 < delayNs) {
+                    LockSupport.parkNanos(this, delayNs);
+                }
+            }
+            mParked = false;
+        }
+        mThread = null;
+    }
+
+    /**
+     * @return True if any event was handled.
+     */
+    private boolean drain() {
+        boolean handled = false;
+        while (hasEvent()) {
+            int slot = (int) (mHead & mMask);
+            EventHandler handler = mHandlers[slot];
+            int event = mEvents[slot];
+            int arg = mArgs[slot];
+            long value = mValues[slot];
+            Object obj = mObjs[slot];
+            long postTimeNs = mPostTimesNs[slot];
+            mHandlers[slot] = null;
+            mObjs[slot] = null;
+
+            int depth = (int) (mTail.get() - mHead);
+            if (depth > mMaxDepth) {
+                mMaxDepth = depth;
+            }
+            // Hand the slot back before the handler runs, which may post again.
+            mSequences.lazySet(slot, mHead + mCapacity);
+            mHead++;
+
+            mQueueLatency.record(mClock.nanoTime() - postTimeNs);
+            handler.onEvent(event, arg, value, obj);
+            mHandled++;
+            handled = true;
+        }
+        return handled;
+    }
+
+    private boolean hasEvent() {
+        return (mSequences.get((int) (mHead & mMask)) == (mHead + 1));
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return The number of events waiting to be handled.
+     */
+    public int getDepth() {
+        return (int) Math.max(0, mTail.get() - mHandled);
+    }
+
+    /**
+     * @return The most events that were waiting at once, including the one being taken.
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public long getPosted() {
+        return mTail.get();
+    }
+
+    public long getHandled() {
+        return mHandled;
+    }
+
+    /**
+     * @return The number of posts that failed because the mailbox was full or the loop stopped.
+     */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    /**
+     * @return How long events waited between post() and their handler.
+     */
+    public LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("posted=%d handled=%d rejected=%d depth=%d maxDepth=%d queue[%s]",
+                getPosted(), mHandled, getRejected(), getDepth(), mMaxDepth, mQueueLatency);
+    }
+}
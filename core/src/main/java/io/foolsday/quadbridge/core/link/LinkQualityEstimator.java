@@ -0,0 +1,255 @@
+package io.foolsday.quadbridge.core.link;
+
+/**
+ * Rates the radio link from the RSSI readings and the outcome and latency of the writes. The RSSI
+ * is smoothed with an exponential filter, as are the write failure rate and the write latency, and
+ * the three are combined into a score from 0 to 100 that maps to a quality level.
+ *
+ * Listeners are told when the level changes, with some hysteresis so that a score hovering around
+ * a threshold doesn't flap, and getPollIntervalMs() says how often the RSSI is worth reading:
+ * often while the link is poor or degrading, rarely while it is good and stable.
+ */
+public class LinkQualityEstimator {
+
+    public static final int QUALITY_UNKNOWN = 0;
+    public static final int QUALITY_POOR = 1;
+    public static final int QUALITY_FAIR = 2;
+    public static final int QUALITY_GOOD = 3;
+
+    public static final long FAST_POLL_INTERVAL_MS = 250;
+    public static final long DEFAULT_POLL_INTERVAL_MS = 1000;
+    public static final long SLOW_POLL_INTERVAL_MS = 2000;
+
+    public interface LinkQualityListener {
+        /**
+         * Called on the thread that reported the RSSI reading or the write.
+         *
+         * @param quality One of the QUALITY_ constants.
+         * @param score From 0 to 100.
+         */
+        void onLinkQualityChanged(int quality, int score);
+    }
+
+    // The RSSI at or above which the signal counts as perfect and at or below which as useless.
+    private static final int RSSI_GOOD_DBM = -60;
+    private static final int RSSI_BAD_DBM = -95;
+    // Writes that take longer than LATENCY_GOOD_NS cost up to MAX_LATENCY_PENALTY points.
+    private static final long LATENCY_GOOD_NS = 30000000L;
+    private static final long LATENCY_BAD_NS = 250000000L;
+    private static final int MAX_LATENCY_PENALTY = 40;
+
+    private static final int GOOD_SCORE = 70;
+    private static final int FAIR_SCORE = 40;
+    private static final int HYSTERESIS = 5;
+
+    private static final float RSSI_ALPHA = 0.25f;
+    private static final float WRITE_ALPHA = 0.1f;
+    // A smoothed RSSI that falls by more than this per reading means the link is degrading. One
+    // that moves by less than STABLE_DB for STABLE_READINGS readings means it is stable.
+    private static final float DEGRADING_DB = 2.0f;
+    private static final float STABLE_DB = 1.0f;
+    private static final int STABLE_READINGS = 5;
+
+    private volatile LinkQualityListener[] mListeners;
+
+    private boolean mHasRssi;
+    private float mSmoothedRssi;
+    private boolean mDegrading;
+    private int mStableReadings;
+    private float mFailureRate;
+    private float mLatencyNs;
+    private int mScore;
+    private int mQuality;
+
+    public LinkQualityEstimator() {
+        mListeners = new LinkQualityListener[0];
+        reset();
+    }
+
+    public synchronized void addListener(LinkQualityListener listener) {
+        for (LinkQualityListener existing : mListeners) {
+            if (existing == listener) {
+                return;
+            }
+        }
+        LinkQualityListener[] listeners = new LinkQualityListener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    public synchronized void removeListener(LinkQualityListener listener) {
+        for (int i = 0; i < mListeners.length; i++) {
+            if (mListeners[i] == listener) {
+                LinkQualityListener[] listeners =
+                        new LinkQualityListener[mListeners.length - 1];
+                System.arraycopy(mListeners, 0, listeners, 0, i);
+                System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+                mListeners = listeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets everything about the link, e.g. before a new connection. Listeners aren't told.
+     */
+    public synchronized void reset() {
+        mHasRssi = false;
+        mSmoothedRssi = 0;
+        mDegrading = false;
+        mStableReadings = 0;
+        mFailureRate = 0;
+        mLatencyNs = 0;
+        mScore = 0;
+        mQuality = QUALITY_UNKNOWN;
+    }
+
+    /**
+     * @param rssi A reading in dBm.
+     */
+    public void onRssi(int rssi) {
+        boolean changed;
+        synchronized (this) {
+            if (mHasRssi) {
+                float previous = mSmoothedRssi;
+                mSmoothedRssi += (RSSI_ALPHA * (rssi - previous));
+                float delta = (mSmoothedRssi - previous);
+                mDegrading = (-DEGRADING_DB > delta);
+                mStableReadings = ((STABLE_DB > Math.abs(delta)) ? (mStableReadings + 1) : 0);
+            } else {
+                mHasRssi = true;
+                mSmoothedRssi = rssi;
+            }
+            changed = update();
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * @param success
+     * @param latencyNs How long the write took. Ignored for failed writes.
+     */
+    public void onWriteComplete(boolean success, long latencyNs) {
+        boolean changed;
+        synchronized (this) {
+            mFailureRate += (WRITE_ALPHA * ((success ? 0 : 1) - mFailureRate));
+            if (success) {
+                mLatencyNs += (WRITE_ALPHA * (latencyNs - mLatencyNs));
+            }
+            changed = update();
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * @return The smoothed RSSI in dBm, or zero before the first reading.
+     */
+    public synchronized int getSmoothedRssi() {
+        return Math.round(mSmoothedRssi);
+    }
+
+    public synchronized int getScore() {
+        return mScore;
+    }
+
+    public synchronized int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return The smoothed fraction of writes that failed.
+     */
+    public synchronized float getFailureRate() {
+        return mFailureRate;
+    }
+
+    public synchronized long getAverageLatencyNs() {
+        return (long) mLatencyNs;
+    }
+
+    public synchronized boolean isDegrading() {
+        return mDegrading;
+    }
+
+    /**
+     * @return How long to wait before the next RSSI reading.
+     */
+    public synchronized long getPollIntervalMs() {
+        if (!mHasRssi) {
+            return DEFAULT_POLL_INTERVAL_MS;
+        }
+        if (mDegrading || (QUALITY_POOR == mQuality)) {
+            return FAST_POLL_INTERVAL_MS;
+        }
+        if ((QUALITY_GOOD == mQuality) && (STABLE_READINGS <= mStableReadings)) {
+            return SLOW_POLL_INTERVAL_MS;
+        }
+        return DEFAULT_POLL_INTERVAL_MS;
+    }
+
+    /**
+     * @return True if the quality level changed.
+     */
+    private boolean update() {
+        if (!mHasRssi) {
+            // Writes alone can't tell a good link from a mediocre one.
+            return false;
+        }
+
+        float rssiScore = ((mSmoothedRssi - RSSI_BAD_DBM) * 100f / (RSSI_GOOD_DBM - RSSI_BAD_DBM));
+        float latencyPenalty = ((mLatencyNs - LATENCY_GOOD_NS) * MAX_LATENCY_PENALTY /
+                (LATENCY_BAD_NS - LATENCY_GOOD_NS));
+        latencyPenalty = Math.max(0, Math.min(MAX_LATENCY_PENALTY, latencyPenalty));
+        float score = (Math.min(100, rssiScore) - latencyPenalty - (mFailureRate * 100));
+        mScore = Math.max(0, Math.min(100, Math.round(score)));
+
+        // A level is only left once the score is HYSTERESIS points past its threshold.
+        int quality = mQuality;
+        switch (quality) {
+            case QUALITY_GOOD:
+                if ((GOOD_SCORE - HYSTERESIS) > mScore) {
+                    quality = (((FAIR_SCORE - HYSTERESIS) > mScore) ? QUALITY_POOR : QUALITY_FAIR);
+                }
+                break;
+            case QUALITY_FAIR:
+                if ((GOOD_SCORE + HYSTERESIS) <= mScore) {
+                    quality = QUALITY_GOOD;
+                } else if ((FAIR_SCORE - HYSTERESIS) > mScore) {
+                    quality = QUALITY_POOR;
+                }
+                break;
+            case QUALITY_POOR:
+                if ((FAIR_SCORE + HYSTERESIS) <= mScore) {
+                    quality = (((GOOD_SCORE + HYSTERESIS) <= mScore) ? QUALITY_GOOD : QUALITY_FAIR);
+                }
+                break;
+            default:
+                quality = ((GOOD_SCORE <= mScore) ? QUALITY_GOOD :
+                        ((FAIR_SCORE <= mScore) ? QUALITY_FAIR : QUALITY_POOR));
+                break;
+        }
+
+        if (quality == mQuality) {
+            return false;
+        }
+        mQuality = quality;
+        return true;
+    }
+
+    private void notifyListeners(boolean changed) {
+        if (!changed) {
+            return;
+        }
+        int quality;
+        int score;
+        synchronized (this) {
+            quality = mQuality;
+            score = mScore;
+        }
+        LinkQualityListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onLinkQualityChanged(quality, score);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.LatencyHistogram;
+import io.foolsday.quadbridge.core.NanoClock;
+
+/**
+ * Runs asynchronous operations one at a time, highest priority first. This is what a GATT client
+ * needs: BluetoothGatt refuses (or worse, mixes up) an operation that is started while another
+ * one is outstanding, so control writes, RSSI reads and the setup steps have to take turns.
+ *
+ * Operations are long-lived objects that are queued again and again; an operation that is
+ * already queued or running is not queued twice, so repeated requests collapse into one. Each
+ * operation gets a timeout, after which the queue gives up on it and moves on. Nothing here
+ * allocates once the queue has been created.
+ *
+ * All methods may be called from any thread. The Listener is called without the queue locked.
+ */
+public class OperationQueue {
+
+    // Lower numbers run first.
+    public static final int PRIORITY_SETUP = 0;
+    public static final int PRIORITY_CONTROL = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+    public static final int PRIORITY_COUNT = 3;
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    public interface Operation {
+        /**
+         * Starts the operation. Its completion must be reported with onOperationComplete().
+         *
+         * @return False if the operation could not be started.
+         */
+        boolean start();
+    }
+
+    public interface Listener {
+        void onOperationFailed(Operation op);
+
+        void onOperationTimeout(Operation op);
+    }
+
+    private final Operation[][] mOps;
+    private final long[][] mTimeoutsNs;
+    private final long[][] mEnqueueTimesNs;
+    private final int[] mHeads;
+    private final int[] mCounts;
+    private final int mCapacity;
+
+    private volatile NanoClock mClock;
+    private volatile Listener mListener;
+
+    private Operation mInFlight;
+    private long mDeadlineNs;
+
+    private final LatencyHistogram mWaitTimes;
+    private int mMaxDepth;
+    private long mStarted;
+    private long mCompleted;
+    private long mFailures;
+    private long mTimeouts;
+    private long mRejected;
+    private long mLateCompletions;
+
+    public OperationQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity How many operations of each priority can wait at once.
+     */
+    public OperationQueue(int capacity) {
+        mCapacity = capacity;
+        mOps = new Operation[PRIORITY_COUNT][capacity];
+        mTimeoutsNs = new long[PRIORITY_COUNT][capacity];
+        mEnqueueTimesNs = new long[PRIORITY_COUNT][capacity];
+        mHeads = new int[PRIORITY_COUNT];
+        mCounts = new int[PRIORITY_COUNT];
+        mWaitTimes = new LatencyHistogram();
+        mClock = NanoClock.SYSTEM;
+    }
+
+    public void setClock(NanoClock clock) {
+        mClock = clock;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues an operation and starts it right away if nothing else is running.
+     *
+     * @param op
+     * @param priority One of the PRIORITY_ constants.
+     * @param timeoutNs How long the operation may run before it is given up on.
+     * @return False if the operation is already queued or running, or if its priority is full.
+     */
+    public boolean enqueue(Operation op, int priority, long timeoutNs) {
+        synchronized (this) {
+            if ((op == mInFlight) || isQueued(op)) {
+                mRejected++;
+                return false;
+            }
+            int count = mCounts[priority];
+            if (mCapacity == count) {
+                mRejected++;
+                return false;
+            }
+
+            int slot = ((mHeads[priority] + count) % mCapacity);
+            mOps[priority][slot] = op;
+            mTimeoutsNs[priority][slot] = timeoutNs;
+            mEnqueueTimesNs[priority][slot] = mClock.nanoTime();
+            mCounts[priority] = (count + 1);
+            mMaxDepth = Math.max(mMaxDepth, getDepthLocked());
+        }
+        startNext();
+        return true;
+    }
+
+    /**
+     * Reports that an operation finished and starts the next one. Completions of operations that
+     * aren't running, e.g. ones that already timed out, are counted and otherwise ignored.
+     *
+     * @param op
+     * @return False if op wasn't the running operation.
+     */
+    public boolean onOperationComplete(Operation op) {
+        synchronized (this) {
+            if (op != mInFlight) {
+                mLateCompletions++;
+                return false;
+            }
+            mInFlight = null;
+            mCompleted++;
+        }
+        startNext();
+        return true;
+    }
+
+    /**
+     * Gives up on the running operation if it has timed out. This must be called periodically,
+     * ideally when the returned time has passed.
+     *
+     * @return How long until the running operation times out, or -1 if nothing is running.
+     */
+    public long checkTimeout() {
+        Operation timedOut = null;
+        synchronized (this) {
+            if ((null != mInFlight) && (0 <= (mClock.nanoTime() - mDeadlineNs))) {
+                timedOut = mInFlight;
+                mInFlight = null;
+                mTimeouts++;
+            }
+        }
+
+        if (null != timedOut) {
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onOperationTimeout(timedOut);
+            }
+            startNext();
+        }
+
+        synchronized (this) {
+            if (null == mInFlight) {
+                return -1;
+            }
+            return Math.max(0, mDeadlineNs - mClock.nanoTime());
+        }
+    }
+
+    /**
+     * Drops the waiting operations and forgets the running one, e.g. after a disconnect.
+     */
+    public synchronized void clear() {
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            for (int i = 0; i < mCapacity; i++) {
+                mOps[priority][i] = null;
+            }
+            mHeads[priority] = 0;
+            mCounts[priority] = 0;
+        }
+        mInFlight = null;
+    }
+
+    public synchronized boolean isIdle() {
+        return ((null == mInFlight) && (0 == getDepthLocked()));
+    }
+
+    /**
+     * @return The number of waiting operations, not counting the running one.
+     */
+    public synchronized int getDepth() {
+        return getDepthLocked();
+    }
+
+    public synchronized int getDepth(int priority) {
+        return mCounts[priority];
+    }
+
+    /**
+     * @return The most operations that were waiting at once since the last resetStats().
+     */
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getStarted() {
+        return mStarted;
+    }
+
+    public synchronized long getCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * @return The number of operations whose start() returned false.
+     */
+    public synchronized long getFailures() {
+        return mFailures;
+    }
+
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return The number of enqueue() calls that were refused.
+     */
+    public synchronized long getRejected() {
+        return mRejected;
+    }
+
+    /**
+     * @return The number of completions that arrived for operations that weren't running.
+     */
+    public synchronized long getLateCompletions() {
+        return mLateCompletions;
+    }
+
+    /**
+     * @return How long operations waited between enqueue() and start().
+     */
+    public LatencyHistogram getWaitTimes() {
+        return mWaitTimes;
+    }
+
+    public synchronized void resetStats() {
+        mWaitTimes.reset();
+        mMaxDepth = getDepthLocked();
+        mStarted = 0;
+        mCompleted = 0;
+        mFailures = 0;
+        mTimeouts = 0;
+        mRejected = 0;
+        mLateCompletions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("depth=%d maxDepth=%d started=%d completed=%d failures=%d " +
+                        "timeouts=%d rejected=%d late=%d wait[%s]",
+                getDepthLocked(), mMaxDepth, mStarted, mCompleted, mFailures, mTimeouts,
+                mRejected, mLateCompletions, mWaitTimes);
+    }
+
+    private void startNext() {
+        Operation failed;
+        do {
+            synchronized (this) {
+                failed = startNextLocked();
+            }
+            if (null != failed) {
+                Listener listener = mListener;
+                if (null != listener) {
+                    listener.onOperationFailed(failed);
+                }
+            }
+        } while (null != failed);
+    }
+
+    /**
+     * @return The operation that failed to start, if any.
+     */
+    private Operation startNextLocked() {
+        if (null != mInFlight) {
+            return null;
+        }
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            if (0 == mCounts[priority]) {
+                continue;
+            }
+
+            int slot = mHeads[priority];
+            Operation op = mOps[priority][slot];
+            long timeoutNs = mTimeoutsNs[priority][slot];
+            long nowNs = mClock.nanoTime();
+            mWaitTimes.record(nowNs - mEnqueueTimesNs[priority][slot]);
+            mOps[priority][slot] = null;
+            mHeads[priority] = ((slot + 1) % mCapacity);
+            mCounts[priority]--;
+
+            // NOTE: The operation is marked as running before it starts because its completion
+            //       may be reported on another thread before start() returns.
+            mInFlight = op;
+            mDeadlineNs = (nowNs + timeoutNs);
+            mStarted++;
+            if (!op.start()) {
+                mInFlight = null;
+                mFailures++;
+                return op;
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private boolean isQueued(Operation op) {
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            for (int i = 0; i < mCounts[priority]; i++) {
+                if (op == mOps[priority][(mHeads[priority] + i) % mCapacity]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int getDepthLocked() {
+        int depth = 0;
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            depth += mCounts[priority];
+        }
+        return depth;
+    }
+}
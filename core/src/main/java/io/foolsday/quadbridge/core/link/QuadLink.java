@@ -0,0 +1,659 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.ControlScheduler;
+import io.foolsday.quadbridge.core.CtlFrameEncoder;
+import io.foolsday.quadbridge.core.LatencyStats;
+import io.foolsday.quadbridge.core.NanoClock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The bind/control/unbind state machine that runs on top of a BridgeTransport. Control frames
+ * are sent by a ControlScheduler while bound.
+ *
+ * Writes are flow controlled with credits: each write takes one and its completion returns it.
+ * By default there is a single credit, so at most one write is outstanding at a time. With more
+ * credits (up to what the transport can queue) several frames can wait for the same connection
+ * event, which fills more packets per event on links that allow it. A tick that finds no
+ * credit left is counted as a credit starvation.
+ *
+ * Once the transport is connected negotiate() asks the bridge for protocol version 2; a bridge
+ * that doesn't answer within the negotiation timeout is spoken to with version 1. With
+ * version 2 every scheduler tick that sees a new model state queues it, and the next write
+ * carries all of the queued states with their timestamps; with version 1 a tick that finds a
+ * write in flight is skipped.
+ *
+ * The state machine runs on a LinkEventLoop. Every call that changes its state, including the
+ * scheduler ticks and the transport callbacks, is posted to the loop (or handled right away when
+ * made on the loop thread), so the mode, the credits and the writes in flight are only ever
+ * touched by one thread and the control path takes no locks. The LinkEventListener and the
+ * CtlWriteListener are called on the loop thread.
+ */
+public class QuadLink implements BridgeTransport.Callback,
+        ControlScheduler.ControlTickListener,
+        LinkEventLoop.EventHandler {
+
+    public interface LinkEventListener {
+        /**
+         * The protocol version has been agreed on and the link is ready to bind.
+         *
+         * @param protocolVersion One of the BridgeProtocol versions.
+         */
+        void onConnected(int protocolVersion);
+
+        void onBound();
+
+        /**
+         * The bridge reported that it is unbound, or unbind() was called while not bound. The
+         * connection to the bridge should be closed.
+         */
+        void onUnbound();
+
+        /**
+         * The bridge broke the protocol. The connection to the bridge should be closed.
+         */
+        void onLinkError(String errString);
+
+        /**
+         * A write could not be started or failed to complete. Unlike onLinkError() this says
+         * nothing about the bridge, so the connection may be reopened.
+         */
+        void onTransportError(String errString);
+    }
+
+    public interface CtlWriteListener {
+        /**
+         * Called on the loop thread.
+         *
+         * @param frame The CTL frame. It is reused once this returns.
+         * @param writeTimeNs When the frame was handed to the transport.
+         * @param completeNs When the transport reported the write as complete.
+         */
+        void onCtlWriteComplete(byte[] frame, long writeTimeNs, long completeNs);
+    }
+
+    public static final int UNBOUND_MODE = 0;
+    public static final int BINDING_MODE = 1;
+    public static final int BOUND_MODE = 2;
+    public static final int UNBINDING_MODE = 3;
+    public static final int MODE_COUNT = 4;
+
+    private static final int EVENT_RESET = 0;
+    private static final int EVENT_NEGOTIATE = 1;
+    private static final int EVENT_BIND = 2;
+    private static final int EVENT_UNBIND = 3;
+    private static final int EVENT_TICK = 4;
+    private static final int EVENT_WRITE_COMPLETE = 5;
+    private static final int EVENT_NOTIFICATION = 6;
+    private static final int EVENT_SET_MAX_WRITE_LEN = 7;
+    private static final int EVENT_NEGOTIATION_TIMEOUT = 8;
+
+    private static final byte[] BLE_CMD_BIND_ARRAY = {BridgeProtocol.BLE_CMD_BIND};
+    private static final byte[] BLE_CMD_UNBIND_ARRAY = {BridgeProtocol.BLE_CMD_UNBIND};
+    private static final byte[] BLE_CMD_VERSION_ARRAY = {
+            BridgeProtocol.BLE_CMD_VERSION, BridgeProtocol.VERSION_2};
+
+    public static final int MAX_CREDITS = 8;
+
+    // The version command and its answer take a few connection intervals at most.
+    public static final int DEFAULT_NEGOTIATION_TIMEOUT_MS = 1000;
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private final BridgeTransport mTransport;
+    private final LinkEventListener mListener;
+    private final ControlScheduler mControlScheduler;
+    private final CtlFrameEncoder mCtlEncoder;
+    private final CtlBatchEncoder mBatchEncoder;
+    private final LatencyStats mLatencyStats;
+    private final LinkEventLoop mLoop;
+    private volatile NanoClock mClock;
+
+    // Written only on the loop thread. The mode and the version are volatile so that they can be
+    // queried from any thread.
+    private volatile int mMode;
+    private boolean mNegotiating;
+    // Set when the negotiation timed out, until the next notification.
+    private boolean mNegotiationTimedOut;
+    private volatile long mNegotiationTimeoutNs;
+    private volatile int mProtocolVersion;
+    // The model time of the last state queued for a version 2 frame.
+    private long mLastBatchedTimeNs;
+    // Indexed by (from * MODE_COUNT + to). Single writer, like LatencyHistogram.
+    private final AtomicLongArray mTransitions;
+
+    // May be changed from any thread; the loop reads it on every tick.
+    private volatile int mCredits;
+    // The writes in flight, oldest first, so that their completions can be timed. The write
+    // time is zero for writes that aren't CTL frames. Only touched on the loop thread.
+    private int mOutstandingWrites;
+    private int mInFlightHead;
+    private final long[] mInFlightTimeNs;
+    private final byte[][] mInFlightFrames;
+    private volatile CtlWriteListener mCtlWriteListener;
+    private long mLastSampleTimeNs;
+
+    private volatile long mCtlWrites;
+    private volatile long mCompletedCtlWrites;
+    private volatile long mCreditStarvations;
+
+    /**
+     * @param transport
+     * @param listener
+     * @param loop Runs the state machine. It may be shared with the transport.
+     */
+    public QuadLink(BridgeTransport transport, LinkEventListener listener, LinkEventLoop loop) {
+        mTransport = transport;
+        mListener = listener;
+        mLoop = loop;
+        mControlScheduler = new ControlScheduler(this);
+        mCtlEncoder = new CtlFrameEncoder((byte) BridgeProtocol.BLE_CMD_CTL, MAX_CREDITS);
+        mBatchEncoder = new CtlBatchEncoder(MAX_CREDITS);
+        mLatencyStats = new LatencyStats();
+        mClock = NanoClock.SYSTEM;
+
+        mMode = UNBOUND_MODE;
+        mProtocolVersion = BridgeProtocol.VERSION_1;
+        mNegotiationTimeoutNs = (DEFAULT_NEGOTIATION_TIMEOUT_MS * NANOS_PER_MS);
+        mTransitions = new AtomicLongArray(MODE_COUNT * MODE_COUNT);
+        mCredits = 1;
+        mInFlightTimeNs = new long[MAX_CREDITS];
+        mInFlightFrames = new byte[MAX_CREDITS][];
+
+        mTransport.setCallback(this);
+    }
+
+    /**
+     * Returns to the unbound state without sending anything, e.g. after a (re)connect.
+     */
+    public void reset() {
+        execute(EVENT_RESET, 0, 0, null);
+    }
+
+    /**
+     * Sets how many writes may be outstanding at once. The number is limited to MAX_CREDITS and
+     * to what the transport can queue.
+     *
+     * @param credits
+     * @return The number of credits that will be used.
+     */
+    public int setMaxOutstandingWrites(int credits) {
+        int max = Math.min(MAX_CREDITS, mTransport.getMaxPendingWrites());
+        int used = Math.max(1, Math.min(max, credits));
+        mCredits = used;
+        return used;
+    }
+
+    public int getMaxOutstandingWrites() {
+        return mCredits;
+    }
+
+    /**
+     * @return The number of CTL frames written since the last bind().
+     */
+    public long getCtlWrites() {
+        return mCtlWrites;
+    }
+
+    /**
+     * @return The number of CTL frame writes that completed since the last bind().
+     */
+    public long getCompletedCtlWrites() {
+        return mCompletedCtlWrites;
+    }
+
+    /**
+     * @return The number of scheduler ticks since the last bind() that couldn't write because
+     *         every credit was in use.
+     */
+    public long getCreditStarvations() {
+        return mCreditStarvations;
+    }
+
+    /**
+     * @return How often the link went from one of the _MODE constants to another since it was
+     *         created.
+     */
+    public long getTransitionCount(int fromMode, int toMode) {
+        return mTransitions.get((fromMode * MODE_COUNT) + toMode);
+    }
+
+    /**
+     * @return The number of mode changes since the link was created.
+     */
+    public long getTransitionCount() {
+        long count = 0;
+        for (int i = 0; i < mTransitions.length(); i++) {
+            count += mTransitions.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Asks the bridge which protocol version to use. This should be called once the transport
+     * can deliver notifications; onConnected() is called with the answer. Bridges that don't
+     * know the request answer with an error, or not at all, and get version 1.
+     */
+    public void negotiate() {
+        execute(EVENT_NEGOTIATE, 0, 0, null);
+    }
+
+    /**
+     * @param timeoutMs How long negotiate() waits for an answer before it settles on version 1.
+     */
+    public void setNegotiationTimeoutMs(int timeoutMs) {
+        if (0 >= timeoutMs) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        mNegotiationTimeoutNs = (timeoutMs * NANOS_PER_MS);
+    }
+
+    public int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    /**
+     * Sets the largest write the transport accepts, which bounds how many samples a version 2
+     * frame can carry.
+     *
+     * @param maxWriteLen
+     */
+    public void setMaxWriteLen(int maxWriteLen) {
+        execute(EVENT_SET_MAX_WRITE_LEN, maxWriteLen, 0, null);
+    }
+
+    /**
+     * Sets the clock used to timestamp writes. It must be the clock that the sample and model
+     * timestamps passed to update() come from.
+     *
+     * @param clock
+     */
+    public void setClock(NanoClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param listener Told about every CTL frame that the transport finished writing.
+     */
+    public void setCtlWriteListener(CtlWriteListener listener) {
+        mCtlWriteListener = listener;
+    }
+
+    /**
+     * The latency histograms are reset every time bind() is called so they describe the
+     * current (or most recent) flight.
+     *
+     * @return
+     */
+    public LatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    public boolean isBound() {
+        return (BOUND_MODE == mMode);
+    }
+
+    /**
+     * Sets how often control frames are sent while bound. This should match the connection
+     * interval; sending faster than the link can deliver only skips ticks.
+     *
+     * @param intervalMs
+     */
+    public void setControlIntervalMs(int intervalMs) {
+        mControlScheduler.setIntervalMs(intervalMs);
+    }
+
+    /**
+     * Publishes the newest control state. Only the latest state matters; the scheduler picks it
+     * up on its next tick.
+     */
+    public void update(int throttle, int pitch, int roll, int yaw) {
+        mControlScheduler.update(throttle, pitch, roll, yaw);
+    }
+
+    /**
+     * @param sampleTimeNs The timestamp of the sensor sample that produced this state.
+     * @param modelTimeNs When the model computed this state.
+     */
+    public void update(int throttle,
+                       int pitch,
+                       int roll,
+                       int yaw,
+                       long sampleTimeNs,
+                       long modelTimeNs) {
+        // Throttle changes republish the last sample, which must not be counted twice.
+        if ((0 != sampleTimeNs) && (sampleTimeNs != mLastSampleTimeNs)) {
+            mLastSampleTimeNs = sampleTimeNs;
+            mLatencyStats.getSensorToModel().record(modelTimeNs - sampleTimeNs);
+        }
+        mControlScheduler.update(throttle, pitch, roll, yaw, sampleTimeNs, modelTimeNs);
+    }
+
+    public void bind() {
+        execute(EVENT_BIND, 0, 0, null);
+    }
+
+    public void unbind() {
+        execute(EVENT_UNBIND, 0, 0, null);
+    }
+
+    @Override
+    public void onControlTick(int state, long sampleTimeNs, long modelTimeNs) {
+        // NOTE: This function is called on the scheduler thread. A tick that doesn't fit into
+        //       the mailbox is simply lost; the next one carries the newest state anyway.
+        mLoop.post(this, EVENT_TICK, state, modelTimeNs, null);
+    }
+
+    @Override
+    public void onWriteComplete(boolean success) {
+        execute(EVENT_WRITE_COMPLETE, (success ? 1 : 0), 0, null);
+    }
+
+    @Override
+    public void onNotification(byte[] data) {
+        execute(EVENT_NOTIFICATION, 0, 0, data);
+    }
+
+    /**
+     * Handles the event right away on the loop thread and posts it from any other thread.
+     */
+    private void execute(int event, int arg, long value, Object obj) {
+        if (mLoop.isLoopThread()) {
+            onEvent(event, arg, value, obj);
+        } else if (!mLoop.post(this, event, arg, value, obj)) {
+            mListener.onLinkError("The link event queue is full.");
+        }
+    }
+
+    @Override
+    public void onEvent(int event, int arg, long value, Object obj) {
+        switch (event) {
+            case EVENT_RESET:
+                handleReset();
+                break;
+            case EVENT_NEGOTIATE:
+                handleNegotiate();
+                break;
+            case EVENT_BIND:
+                handleBind();
+                break;
+            case EVENT_UNBIND:
+                handleUnbind();
+                break;
+            case EVENT_TICK:
+                handleControlTick(arg, value);
+                break;
+            case EVENT_WRITE_COMPLETE:
+                handleWriteComplete(0 != arg);
+                break;
+            case EVENT_NOTIFICATION:
+                handleNotification((byte[]) obj);
+                break;
+            case EVENT_SET_MAX_WRITE_LEN:
+                mBatchEncoder.setMaxWriteLen(arg);
+                break;
+            case EVENT_NEGOTIATION_TIMEOUT:
+                handleNegotiationTimeout();
+                break;
+        }
+    }
+
+    private void setMode(int mode) {
+        int from = mMode;
+        if (from != mode) {
+            int index = ((from * MODE_COUNT) + mode);
+            mTransitions.lazySet(index, (mTransitions.get(index) + 1));
+            mMode = mode;
+        }
+    }
+
+    private void handleReset() {
+        mControlScheduler.stop();
+        setMode(UNBOUND_MODE);
+        mNegotiating = false;
+        mNegotiationTimedOut = false;
+        mLoop.cancel(this, EVENT_NEGOTIATION_TIMEOUT);
+        mProtocolVersion = BridgeProtocol.VERSION_1;
+        mOutstandingWrites = 0;
+        mInFlightHead = 0;
+        mBatchEncoder.reset();
+        mLastBatchedTimeNs = 0;
+    }
+
+    private void handleNegotiate() {
+        mNegotiating = true;
+        mNegotiationTimedOut = false;
+        if (!write(BLE_CMD_VERSION_ARRAY)) {
+            mNegotiating = false;
+            mListener.onTransportError("Failed to write version command.");
+            return;
+        }
+        mLoop.schedule(this, EVENT_NEGOTIATION_TIMEOUT, mNegotiationTimeoutNs);
+    }
+
+    private void handleNegotiationTimeout() {
+        if (!mNegotiating) {
+            return;
+        }
+        // NOTE: Nothing guarantees that firmware from before version 2 answers a command it
+        //       doesn't know, so silence is taken as version 1 too.
+        mNegotiating = false;
+        mNegotiationTimedOut = true;
+        mProtocolVersion = BridgeProtocol.VERSION_1;
+        mListener.onConnected(BridgeProtocol.VERSION_1);
+    }
+
+    private void handleBind() {
+        mLatencyStats.reset();
+        mCtlWrites = 0;
+        mCompletedCtlWrites = 0;
+        mCreditStarvations = 0;
+        setMode(BINDING_MODE);
+        if (!write(BLE_CMD_BIND_ARRAY)) {
+            mListener.onTransportError("Failed to write bind command.");
+        }
+    }
+
+    private void handleUnbind() {
+        mControlScheduler.stop();
+
+        if (UNBOUND_MODE == mMode) {
+            mListener.onUnbound();
+        } else {
+            if (0 < mOutstandingWrites) {
+                // Change the mode to prevent future control packets from being sent and then wait
+                // for the outstanding writes to finish.
+                setMode(UNBINDING_MODE);
+            } else {
+                if (!write(BLE_CMD_UNBIND_ARRAY)) {
+                    mListener.onLinkError("Failed to write unbind command.");
+                }
+                setMode(UNBOUND_MODE);
+            }
+        }
+    }
+
+    private boolean write(byte[] data) {
+        return write(data, 0, null);
+    }
+
+    /**
+     * Takes a credit and starts the write.
+     *
+     * @param ctlWriteTimeNs The time at which a CTL frame is written or zero for other commands.
+     * @param ctlFrame The CTL frame in the version 1 format, for the CtlWriteListener.
+     * @return False if there was no credit or the transport refused the write.
+     */
+    private boolean write(byte[] data, long ctlWriteTimeNs, byte[] ctlFrame) {
+        if (mOutstandingWrites >= mCredits) {
+            return false;
+        }
+
+        int slot = ((mInFlightHead + mOutstandingWrites) % MAX_CREDITS);
+        mInFlightTimeNs[slot] = ctlWriteTimeNs;
+        mInFlightFrames[slot] = ctlFrame;
+        mOutstandingWrites++;
+
+        if (!mTransport.write(data)) {
+            mOutstandingWrites--;
+            return false;
+        }
+        return true;
+    }
+
+    private void handleControlTick(int state, long modelTimeNs) {
+        // NOTE: If every credit is in use the tick is skipped; the next one will carry the
+        //       newest state anyway. With version 2 the state is queued first so that the next
+        //       frame carries it.
+        if (BOUND_MODE != mMode) {
+            return;
+        }
+
+        boolean batching = (BridgeProtocol.VERSION_2 == mProtocolVersion);
+        long nowNs = mClock.nanoTime();
+        if (batching) {
+            long timeNs = ((0 != modelTimeNs) ? modelTimeNs : nowNs);
+            if (timeNs != mLastBatchedTimeNs) {
+                mLastBatchedTimeNs = timeNs;
+                mBatchEncoder.add(state, timeNs);
+            }
+        }
+        if (mOutstandingWrites >= mCredits) {
+            mCreditStarvations++;
+            return;
+        }
+
+        byte[] frame;
+        byte[] ctlFrame;
+        if (batching) {
+            if (0 == mBatchEncoder.getPendingSamples()) {
+                // Nothing new; repeat the current state so that the bridge keeps hearing
+                // from the phone at the scheduler rate.
+                mBatchEncoder.add(state, mLastBatchedTimeNs);
+            }
+            frame = mBatchEncoder.encode(nowNs);
+            // Listeners are given the newest state in the version 1 format.
+            ctlFrame = mCtlEncoder.encode(state);
+        } else {
+            frame = mCtlEncoder.encode(state);
+            ctlFrame = frame;
+        }
+        if (!write(frame, nowNs, ctlFrame)) {
+            mListener.onTransportError("Failed to write CTL command.");
+            return;
+        }
+        mCtlWrites++;
+
+        if (0 != modelTimeNs) {
+            mLatencyStats.getModelToWrite().record(nowNs - modelTimeNs);
+        }
+    }
+
+    private void handleWriteComplete(boolean success) {
+        if (!success) {
+            mListener.onTransportError("A char write failed!");
+            return;
+        }
+
+        if (0 == mOutstandingWrites) {
+            // The write was started before a reset().
+            return;
+        }
+        long ctlWriteTimeNs = mInFlightTimeNs[mInFlightHead];
+        byte[] ctlFrame = mInFlightFrames[mInFlightHead];
+        mInFlightFrames[mInFlightHead] = null;
+        mInFlightHead = ((mInFlightHead + 1) % MAX_CREDITS);
+        mOutstandingWrites--;
+
+        boolean sendUnbind = false;
+        if ((UNBINDING_MODE == mMode) && (0 == mOutstandingWrites)) {
+            setMode(UNBOUND_MODE);
+            sendUnbind = true;
+        }
+
+        if (0 != ctlWriteTimeNs) {
+            long nowNs = mClock.nanoTime();
+            mCompletedCtlWrites++;
+            mLatencyStats.getWriteToAck().record(nowNs - ctlWriteTimeNs);
+
+            CtlWriteListener listener = mCtlWriteListener;
+            if (null != listener) {
+                listener.onCtlWriteComplete(ctlFrame, ctlWriteTimeNs, nowNs);
+            }
+        }
+
+        if (sendUnbind && !write(BLE_CMD_UNBIND_ARRAY)) {
+            mListener.onLinkError("Failed to write unbind command.");
+        }
+    }
+
+    private void handleNotification(byte[] data) {
+        if (mNegotiating) {
+            onVersionResponse(data);
+            return;
+        }
+        if (mNegotiationTimedOut) {
+            mNegotiationTimedOut = false;
+            if (isLateVersionResponse(data)) {
+                // A late answer; the link has already gone on with version 1.
+                return;
+            }
+        }
+
+        if (1 != data.length) {
+            mListener.onLinkError(String.format("Unexpected response of length: %d",
+                    data.length));
+            return;
+        }
+
+        switch (data[0]) {
+            case BridgeProtocol.BLE_RESPONSE_BOUND:
+                if (BINDING_MODE == mMode) {
+                    setMode(BOUND_MODE);
+                    mControlScheduler.start();
+                    mListener.onBound();
+                }
+                break;
+            case BridgeProtocol.BLE_RESPONSE_ERROR:
+                mListener.onLinkError("Error notification received.");
+                break;
+            case BridgeProtocol.BLE_RESPONSE_UNBOUND:
+                mListener.onUnbound();
+                break;
+            default:
+                mListener.onLinkError(String.format("Unexpected response: %d", data[0]));
+                break;
+        }
+    }
+
+    /**
+     * An error can only answer the version command until the bind has been sent; after that it
+     * is the bridge refusing the bind and must be reported.
+     */
+    private boolean isLateVersionResponse(byte[] data) {
+        if ((2 == data.length) && (BridgeProtocol.BLE_RESPONSE_VERSION == data[0])) {
+            return true;
+        }
+        return ((UNBOUND_MODE == mMode) &&
+                (1 == data.length) && (BridgeProtocol.BLE_RESPONSE_ERROR == data[0]));
+    }
+
+    private void onVersionResponse(byte[] data) {
+        mNegotiating = false;
+        mLoop.cancel(this, EVENT_NEGOTIATION_TIMEOUT);
+
+        int version;
+        if ((2 == data.length) && (BridgeProtocol.BLE_RESPONSE_VERSION == data[0])) {
+            version = Math.min(BridgeProtocol.VERSION_2, Math.max(BridgeProtocol.VERSION_1,
+                    data[1]));
+        } else if ((1 == data.length) && (BridgeProtocol.BLE_RESPONSE_ERROR == data[0])) {
+            // Firmware from before version 2 doesn't know the command.
+            version = BridgeProtocol.VERSION_1;
+        } else {
+            mListener.onLinkError("Unexpected response to the version command.");
+            return;
+        }
+
+        mProtocolVersion = version;
+        mListener.onConnected(version);
+    }
+}
@@ -0,0 +1,108 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.LatencyHistogram;
+import io.foolsday.quadbridge.core.NanoClock;
+
+/**
+ * Decides when to try to get a dropped link back and measures how long that took. The delay
+ * between attempts doubles from INITIAL_DELAY_MS up to MAX_DELAY_MS so that a bridge that is
+ * gone for good isn't hammered. The first DIRECT_ATTEMPTS attempts are direct connections, which
+ * are quick when the bridge is in range; after that the connection should be left to the
+ * controller's background (autoConnect) mode, which waits for the bridge to show up again.
+ *
+ * The time to reconnect is measured from the first onLinkLost() to onConnected().
+ */
+public class ReconnectPolicy {
+
+    public static final long INITIAL_DELAY_MS = 250;
+    public static final long MAX_DELAY_MS = 8000;
+    public static final int DIRECT_ATTEMPTS = 3;
+
+    private final LatencyHistogram mTimeToReconnect;
+    private NanoClock mClock;
+
+    private long mLostNs;
+    private int mAttempts;
+    private long mLastReconnectNs;
+
+    public ReconnectPolicy() {
+        mTimeToReconnect = new LatencyHistogram();
+        mClock = NanoClock.SYSTEM;
+    }
+
+    public void setClock(NanoClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Starts timing a reconnect unless one is already under way.
+     */
+    public synchronized void onLinkLost() {
+        if (0 == mLostNs) {
+            mLostNs = mClock.nanoTime();
+            mAttempts = 0;
+        }
+    }
+
+    /**
+     * Counts an attempt.
+     *
+     * @return How long to wait before making it.
+     */
+    public synchronized long nextDelayMs() {
+        int shift = Math.min(mAttempts, 30);
+        mAttempts++;
+        return Math.min(MAX_DELAY_MS, (INITIAL_DELAY_MS << shift));
+    }
+
+    /**
+     * @return True if the attempt counted by the last nextDelayMs() should use the background
+     *         mode rather than a direct connection.
+     */
+    public synchronized boolean useAutoConnect() {
+        return (DIRECT_ATTEMPTS < mAttempts);
+    }
+
+    /**
+     * Ends a reconnect.
+     *
+     * @return How long the reconnect took, or zero if there was none.
+     */
+    public synchronized long onConnected() {
+        if (0 == mLostNs) {
+            return 0;
+        }
+        mLastReconnectNs = (mClock.nanoTime() - mLostNs);
+        mTimeToReconnect.record(mLastReconnectNs);
+        mLostNs = 0;
+        mAttempts = 0;
+        return mLastReconnectNs;
+    }
+
+    /**
+     * Gives up on the current reconnect, e.g. because the user disconnected.
+     */
+    public synchronized void cancel() {
+        mLostNs = 0;
+        mAttempts = 0;
+    }
+
+    public synchronized boolean isReconnecting() {
+        return (0 != mLostNs);
+    }
+
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * @return How long the last successful reconnect took, or zero.
+     */
+    public synchronized long getLastReconnectNs() {
+        return mLastReconnectNs;
+    }
+
+    public LatencyHistogram getTimeToReconnect() {
+        return mTimeToReconnect;
+    }
+}
@@ -0,0 +1,393 @@
+package io.foolsday.quadbridge.core.link;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for the quad_bridge_fw firmware and the BLE link in front of it, for running QuadLink
+ * on a plain JVM.
+ *
+ * Writes are queued on the phone side and delivered at the next connection event. Connection
+ * events happen every connection interval, offset by a random jitter. A lost packet is
+ * retransmitted by the link layer at the following event, just like on a real link, so loss shows
+ * up as extra latency rather than as missing frames. Write completions and notifications are
+ * delivered on the simulator's own thread, much like GATT callbacks arrive on a binder thread.
+ *
+ * The firmware speaks protocol version 2 by default; setProtocolVersion(VERSION_1) emulates
+ * firmware that predates it, which answers commands it doesn't know with an error or, after
+ * setIgnoresUnknownCommands(true), not at all.
+ */
+public class SimulatedBridge implements BridgeTransport, Runnable {
+
+    public static final int DEFAULT_CONNECTION_INTERVAL_US = 15000;
+    public static final int DEFAULT_MAX_QUEUED_WRITES = 1;
+
+    private static final String THREAD_NAME = "SimulatedBridge";
+    private static final int MAX_WRITE_LEN = BridgeProtocol.DEFAULT_MAX_WRITE_LEN;
+    private static final long NANOS_PER_US = 1000L;
+
+    private final long mIntervalNs;
+    private final long mJitterNs;
+    private final float mLossRate;
+    private final Random mRandom;
+
+    // The phone-side write queue. Each slot keeps a copy of the data and the time it was queued.
+    private final byte[][] mQueue;
+    private final int[] mQueueLen;
+    private final long[] mQueueTimeNs;
+    private int mQueueHead;
+    private int mQueueCount;
+
+    private final byte[] mResponse = new byte[1];
+    private final byte[] mVersionResponse = new byte[2];
+    private volatile int mProtocolVersion = BridgeProtocol.VERSION_2;
+    private volatile int mPacketsPerEvent = 1;
+    private volatile boolean mIgnoresUnknownCommands;
+
+    private volatile Callback mCallback;
+    private volatile Thread mThread;
+
+    // Firmware state. Only touched on the simulator thread.
+    private boolean mIsBound;
+    private int mExpectedSequence;
+
+    // Statistics. Written on the simulator thread.
+    private volatile long mConnectionEvents;
+    private volatile long mPacketsLost;
+    private volatile long mPacketsDelivered;
+    private volatile long mBindCount;
+    private volatile long mCtlFrames;
+    private volatile long mCtlSamples;
+    private volatile long mSequenceErrors;
+    private volatile long mRejectedWrites;
+    private volatile long mTotalLatencyNs;
+    private volatile long mMaxLatencyNs;
+    private final byte[] mLastCtlFrame = new byte[5];
+
+    public SimulatedBridge() {
+        this(DEFAULT_CONNECTION_INTERVAL_US, 0, 0, DEFAULT_MAX_QUEUED_WRITES, 0);
+    }
+
+    /**
+     * @param connectionIntervalUs
+     * @param jitterUs The maximum amount by which a connection event may be delayed.
+     * @param lossRate The probability, from 0 to 1, that a packet has to be retransmitted.
+     * @param maxQueuedWrites The number of writes that can wait for a connection event.
+     * @param seed Seeds the jitter and loss so that runs are repeatable.
+     */
+    public SimulatedBridge(int connectionIntervalUs,
+                           int jitterUs,
+                           float lossRate,
+                           int maxQueuedWrites,
+                           long seed) {
+        if ((0 >= connectionIntervalUs) || (0 > jitterUs) || (0 >= maxQueuedWrites)) {
+            throw new IllegalArgumentException("invalid link parameters");
+        }
+        if ((0 > lossRate) || (1 <= lossRate)) {
+            throw new IllegalArgumentException("loss rate must be in [0, 1)");
+        }
+
+        mIntervalNs = (connectionIntervalUs * NANOS_PER_US);
+        mJitterNs = (jitterUs * NANOS_PER_US);
+        mLossRate = lossRate;
+        mRandom = new Random(seed);
+
+        mQueue = new byte[maxQueuedWrites][MAX_WRITE_LEN];
+        mQueueLen = new int[maxQueuedWrites];
+        mQueueTimeNs = new long[maxQueuedWrites];
+    }
+
+    /**
+     * @param protocolVersion The highest version that the emulated firmware supports.
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        mProtocolVersion = protocolVersion;
+    }
+
+    /**
+     * @param ignore Drop commands the firmware doesn't know instead of answering them with
+     *               BLE_RESPONSE_ERROR.
+     */
+    public void setIgnoresUnknownCommands(boolean ignore) {
+        mIgnoresUnknownCommands = ignore;
+    }
+
+    /**
+     * @param packetsPerEvent How many packets the link exchanges per connection event. The
+     *                        default of one matches a peripheral that doesn't support more data
+     *                        per event.
+     */
+    public void setPacketsPerEvent(int packetsPerEvent) {
+        if (0 >= packetsPerEvent) {
+            throw new IllegalArgumentException("packets per event must be positive");
+        }
+        mPacketsPerEvent = packetsPerEvent;
+    }
+
+    @Override
+    public int getMaxPendingWrites() {
+        return mQueue.length;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized boolean write(byte[] data) {
+        if ((null == mThread) || (MAX_WRITE_LEN < data.length) || (mQueue.length == mQueueCount)) {
+            mRejectedWrites++;
+            return false;
+        }
+
+        int slot = ((mQueueHead + mQueueCount) % mQueue.length);
+        System.arraycopy(data, 0, mQueue[slot], 0, data.length);
+        mQueueLen[slot] = data.length;
+        mQueueTimeNs[slot] = System.nanoTime();
+        mQueueCount++;
+        return true;
+    }
+
+    public synchronized void start() {
+        if (null != mThread) {
+            return;
+        }
+        mIsBound = false;
+        mQueueHead = 0;
+        mQueueCount = 0;
+
+        Thread thread = new Thread(this, THREAD_NAME);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        mThread = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = mThread;
+        if (null == thread) {
+            return;
+        }
+        mThread = null;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        final Thread self = Thread.currentThread();
+        long anchor = System.nanoTime();
+
+        while (self == mThread) {
+            anchor += mIntervalNs;
+            long eventTime = anchor;
+            if (0 < mJitterNs) {
+                eventTime += (long) (mRandom.nextDouble() * mJitterNs);
+            }
+
+            long remaining = (eventTime - System.nanoTime());
+            while ((0 < remaining) && (self == mThread)) {
+                LockSupport.parkNanos(this, remaining);
+                remaining = (eventTime - System.nanoTime());
+            }
+
+            if (self == mThread) {
+                onConnectionEvent();
+            }
+        }
+    }
+
+    private void onConnectionEvent() {
+        mConnectionEvents++;
+
+        // A lost packet ends the event; it's retransmitted first at the next one.
+        for (int i = 0; i < mPacketsPerEvent; i++) {
+            if (!deliverPacket()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return False if there was nothing to deliver or the packet was lost.
+     */
+    private boolean deliverPacket() {
+        int len;
+        long queuedNs;
+        byte[] data;
+        synchronized (this) {
+            if (0 == mQueueCount) {
+                return false;
+            }
+            if ((0 < mLossRate) && (mRandom.nextFloat() < mLossRate)) {
+                mPacketsLost++;
+                return false;
+            }
+            data = mQueue[mQueueHead];
+            len = mQueueLen[mQueueHead];
+            queuedNs = mQueueTimeNs[mQueueHead];
+        }
+
+        mPacketsDelivered++;
+        long latencyNs = (System.nanoTime() - queuedNs);
+        mTotalLatencyNs += latencyNs;
+        if (latencyNs > mMaxLatencyNs) {
+            mMaxLatencyNs = latencyNs;
+        }
+
+        byte[] response = handleCommand(data, len);
+
+        // The slot may be reused once the write has been acknowledged.
+        synchronized (this) {
+            mQueueHead = ((mQueueHead + 1) % mQueue.length);
+            mQueueCount--;
+        }
+
+        Callback callback = mCallback;
+        if (null != callback) {
+            callback.onWriteComplete(true);
+            if (null != response) {
+                callback.onNotification(response);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The response to notify, or null if the command has no response.
+     */
+    private byte[] handleCommand(byte[] data, int len) {
+        if (0 == len) {
+            return respond(BridgeProtocol.BLE_RESPONSE_ERROR);
+        }
+
+        switch (data[0]) {
+            case BridgeProtocol.BLE_CMD_BIND:
+                mIsBound = true;
+                mBindCount++;
+                mExpectedSequence = 0;
+                return respond(BridgeProtocol.BLE_RESPONSE_BOUND);
+            case BridgeProtocol.BLE_CMD_CTL:
+                if (!mIsBound || (mLastCtlFrame.length != len)) {
+                    return respond(BridgeProtocol.BLE_RESPONSE_ERROR);
+                }
+                synchronized (mLastCtlFrame) {
+                    System.arraycopy(data, 0, mLastCtlFrame, 0, len);
+                }
+                mCtlFrames++;
+                mCtlSamples++;
+                return null;
+            case BridgeProtocol.BLE_CMD_UNBIND:
+                mIsBound = false;
+                return respond(BridgeProtocol.BLE_RESPONSE_UNBOUND);
+            case BridgeProtocol.BLE_CMD_VERSION:
+                if ((BridgeProtocol.VERSION_2 > mProtocolVersion) || (2 != len)) {
+                    // Old firmware doesn't know the command.
+                    return respondUnknown();
+                }
+                mVersionResponse[0] = (byte) BridgeProtocol.BLE_RESPONSE_VERSION;
+                mVersionResponse[1] = (byte) Math.min(mProtocolVersion, data[1]);
+                return mVersionResponse;
+            case BridgeProtocol.BLE_CMD_CTL_V2:
+                if (BridgeProtocol.VERSION_2 > mProtocolVersion) {
+                    return respondUnknown();
+                }
+                return handleCtlV2(data, len);
+            default:
+                return respondUnknown();
+        }
+    }
+
+    private byte[] respondUnknown() {
+        return (mIgnoresUnknownCommands ? null : respond(BridgeProtocol.BLE_RESPONSE_ERROR));
+    }
+
+    private byte[] handleCtlV2(byte[] data, int len) {
+        int samplesLen = (len - BridgeProtocol.CTL_V2_HEADER_LEN);
+        if ((BridgeProtocol.VERSION_2 > mProtocolVersion) || !mIsBound ||
+                (0 >= samplesLen) || (0 != (samplesLen % BridgeProtocol.CTL_V2_SAMPLE_LEN))) {
+            return respond(BridgeProtocol.BLE_RESPONSE_ERROR);
+        }
+
+        int sequence = (data[BridgeProtocol.CTL_V2_SEQUENCE] & 0xFF);
+        if (sequence != mExpectedSequence) {
+            mSequenceErrors++;
+        }
+        mExpectedSequence = ((sequence + 1) & 0xFF);
+
+        // The newest sample is the last one. It's kept in the version 1 format.
+        int newest = (len - BridgeProtocol.CTL_V2_SAMPLE_LEN);
+        synchronized (mLastCtlFrame) {
+            mLastCtlFrame[0] = (byte) BridgeProtocol.BLE_CMD_CTL;
+            System.arraycopy(data, newest + 1, mLastCtlFrame, 1, mLastCtlFrame.length - 1);
+        }
+        mCtlFrames++;
+        mCtlSamples += (samplesLen / BridgeProtocol.CTL_V2_SAMPLE_LEN);
+        return null;
+    }
+
+    private byte[] respond(int response) {
+        mResponse[0] = (byte) response;
+        return mResponse;
+    }
+
+    public long getConnectionEvents() {
+        return mConnectionEvents;
+    }
+
+    public long getPacketsLost() {
+        return mPacketsLost;
+    }
+
+    public long getPacketsDelivered() {
+        return mPacketsDelivered;
+    }
+
+    public long getBindCount() {
+        return mBindCount;
+    }
+
+    public long getCtlFrames() {
+        return mCtlFrames;
+    }
+
+    /**
+     * @return The number of control samples received. With version 2 a frame can carry several.
+     */
+    public long getCtlSamples() {
+        return mCtlSamples;
+    }
+
+    /**
+     * @return The number of version 2 frames whose sequence number wasn't the expected one.
+     */
+    public long getSequenceErrors() {
+        return mSequenceErrors;
+    }
+
+    public long getRejectedWrites() {
+        return mRejectedWrites;
+    }
+
+    /**
+     * @return The mean time from write() to delivery at the bridge, over all delivered packets.
+     */
+    public long getMeanLatencyNs() {
+        long delivered = mPacketsDelivered;
+        return ((0 < delivered) ? (mTotalLatencyNs / delivered) : 0);
+    }
+
+    public long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+
+    /**
+     * Copies the newest control sample that reached the bridge, as a version 1 CTL frame.
+     *
+     * @param out Must hold at least five bytes.
+     */
+    public void getLastCtlFrame(byte[] out) {
+        synchronized (mLastCtlFrame) {
+            System.arraycopy(mLastCtlFrame, 0, out, 0, mLastCtlFrame.length);
+        }
+    }
+}
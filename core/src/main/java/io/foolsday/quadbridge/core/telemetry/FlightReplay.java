@@ -0,0 +1,208 @@
+package io.foolsday.quadbridge.core.telemetry;
+
+import io.foolsday.quadbridge.core.CtlFrameEncoder;
+import io.foolsday.quadbridge.core.NanoClock;
+import io.foolsday.quadbridge.core.QuadControl;
+import io.foolsday.quadbridge.core.curve.ResponseCurves;
+import io.foolsday.quadbridge.core.link.BridgeProtocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds recorded samples back through the control mapping and the CTL frame encoder, with no
+ * phone attached, and checks that every frame matches the one the recorded model output encodes
+ * to, byte for byte. This catches mapping changes that would have flown a recorded flight
+ * differently.
+ *
+ * The samples can be replayed at their recorded pace, scaled by a speed factor, or as fast as
+ * possible to measure throughput. The throttle and the bind state come from the UI rather than
+ * from the samples, so they are taken from each record.
+ */
+public class FlightReplay {
+
+    public static final float AS_FAST_AS_POSSIBLE = 0;
+    public static final float REAL_TIME = 1;
+
+    public interface FrameListener {
+        /**
+         * @param record The record that produced the frame.
+         * @param frame The replayed CTL frame. It is reused once this returns.
+         * @param matches True if the frame equals the one the recorded output encodes to.
+         */
+        void onReplayFrame(TelemetryRecord record, byte[] frame, boolean matches);
+    }
+
+    private final float mSpeed;
+    private final QuadControl mControl;
+    private ResponseCurves mCurves;
+    private final CtlFrameEncoder mEncoder;
+    private final CtlFrameEncoder mRecordedEncoder;
+    private final TelemetryRecord mRecord;
+    private NanoClock mClock;
+    private FrameListener mListener;
+
+    private long mRecords;
+    private long mSessions;
+    private long mMismatches;
+    private long mFirstMismatchSessionMs;
+    private int mFirstMismatchSequence;
+    private long mDroppedRecords;
+    private long mElapsedNs;
+
+    /**
+     * @param speed How many times faster than recorded to replay, or AS_FAST_AS_POSSIBLE.
+     */
+    public FlightReplay(float speed) {
+        if (0 > speed) {
+            throw new IllegalArgumentException("speed must not be negative");
+        }
+        mSpeed = speed;
+        mControl = new QuadControl();
+        mEncoder = new CtlFrameEncoder((byte) BridgeProtocol.BLE_CMD_CTL);
+        mRecordedEncoder = new CtlFrameEncoder((byte) BridgeProtocol.BLE_CMD_CTL);
+        mRecord = new TelemetryRecord();
+        mClock = NanoClock.SYSTEM;
+        mFirstMismatchSequence = -1;
+    }
+
+    public void setClock(NanoClock clock) {
+        mClock = clock;
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param curves The response curves the flight was flown with. Records that were mapped
+     *               with curves are replayed with these, at the rate that was recorded; the
+     *               others with the linear mapping. Without curves every record is replayed
+     *               with the linear mapping.
+     */
+    public void setResponseCurves(ResponseCurves curves) {
+        mCurves = curves;
+    }
+
+    /**
+     * Replays every record that the reader returns. The counters accumulate over calls.
+     *
+     * @param reader
+     * @throws IOException
+     */
+    public void replay(TelemetryReader reader) throws IOException {
+        TelemetryRecord record = mRecord;
+        long sessionStartMs = 0;
+        long firstSampleNs = 0;
+        long replayStartNs = 0;
+        int nextSequence = 0;
+        long startNs = mClock.nanoTime();
+
+        while (reader.next(record)) {
+            if ((0 == mSessions) || (record.getSessionStartMs() != sessionStartMs)) {
+                sessionStartMs = record.getSessionStartMs();
+                firstSampleNs = record.getSampleTimeNs();
+                replayStartNs = mClock.nanoTime();
+                nextSequence = 0;
+                mControl.reset();
+                mSessions++;
+            }
+
+            // Sequence gaps are records that the recorder dropped.
+            if (record.getSequence() > nextSequence) {
+                mDroppedRecords += (record.getSequence() - nextSequence);
+            }
+            nextSequence = (record.getSequence() + 1);
+
+            if (AS_FAST_AS_POSSIBLE != mSpeed) {
+                long dueNs = (replayStartNs +
+                        (long) ((record.getSampleTimeNs() - firstSampleNs) / mSpeed));
+                long remaining = (dueNs - mClock.nanoTime());
+                while (0 < remaining) {
+                    LockSupport.parkNanos(this, remaining);
+                    remaining = (dueNs - mClock.nanoTime());
+                }
+            }
+
+            if (record.isBound() != mControl.isBound()) {
+                if (record.isBound()) {
+                    mControl.bind();
+                } else {
+                    mControl.reset();
+                }
+            }
+            mControl.setThrottle(record.getThrottle());
+            ResponseCurves curves = (record.usesResponseCurves() ? mCurves : null);
+            if (null != curves) {
+                curves.setRate(record.isLowRate()
+                        ? ResponseCurves.LOW_RATE : ResponseCurves.HIGH_RATE);
+            }
+            mControl.setResponseCurves(curves);
+            if (record.isHeld()) {
+                mControl.onAccelSample(0, 0, record.getMaxAccel());
+            } else {
+                mControl.onAccelSample(record.getX(), record.getY(), record.getMaxAccel());
+            }
+
+            byte[] frame = mEncoder.encode(mControl.getState());
+            byte[] recordedFrame = mRecordedEncoder.encode(record.getState());
+            boolean matches = Arrays.equals(frame, recordedFrame);
+            if (!matches) {
+                if (0 == mMismatches) {
+                    mFirstMismatchSessionMs = sessionStartMs;
+                    mFirstMismatchSequence = record.getSequence();
+                }
+                mMismatches++;
+            }
+
+            FrameListener listener = mListener;
+            if (null != listener) {
+                listener.onReplayFrame(record, frame, matches);
+            }
+            mRecords++;
+        }
+
+        mElapsedNs += (mClock.nanoTime() - startNs);
+    }
+
+    public long getRecords() {
+        return mRecords;
+    }
+
+    public long getSessions() {
+        return mSessions;
+    }
+
+    /**
+     * @return The number of frames that differed from the recorded ones.
+     */
+    public long getMismatches() {
+        return mMismatches;
+    }
+
+    /**
+     * @return The session of the first mismatching record, or zero if all frames matched.
+     */
+    public long getFirstMismatchSessionMs() {
+        return mFirstMismatchSessionMs;
+    }
+
+    /**
+     * @return The sequence number of the first mismatching record, or -1 if all frames matched.
+     */
+    public int getFirstMismatchSequence() {
+        return mFirstMismatchSequence;
+    }
+
+    /**
+     * @return The number of records that the recorder had to drop, going by sequence gaps.
+     */
+    public long getDroppedRecords() {
+        return mDroppedRecords;
+    }
+
+    public long getElapsedNs() {
+        return mElapsedNs;
+    }
+}
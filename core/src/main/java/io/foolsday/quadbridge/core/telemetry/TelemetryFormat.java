@@ -0,0 +1,89 @@
+package io.foolsday.quadbridge.core.telemetry;
+
+import java.util.Locale;
+
+/**
+ * The layout of a telemetry segment file. A segment is a HEADER_SIZE byte header followed by
+ * fixed-size records, one per accelerometer sample that reached the model. All values are
+ * big-endian, which is what ByteBuffer uses by default.
+ *
+ * The file is created at its full size and only cut down when the segment is closed, so the
+ * header counts the records that have been written. A segment that was never closed, e.g.
+ * because the app crashed, is still read up to that count.
+ *
+ * Header:
+ *   0  int   MAGIC
+ *   4  short VERSION
+ *   6  short RECORD_SIZE
+ *   8  long  session start, in milliseconds since the epoch
+ *   16 int   segment index within the session, starting at zero
+ *   20 int   the number of records written so far
+ *   24       reserved
+ *
+ * Record:
+ *   0  long  sensor timestamp (SensorEvent.timestamp)
+ *   8  long  model time, when the model computed its output
+ *   16 float x, as reported by the sensor (after the filter)
+ *   20 float y
+ *   24 float z
+ *   28 float maximum acceleration
+ *   32 int   model output, packed by ControlState
+ *   36 byte  flags, the FLAG_ bits
+ *   37       reserved
+ *   40 byte  the last CTL frame whose write had completed, five bytes
+ *   45       reserved
+ *   48 long  completion time of that write, zero if none yet
+ *   56 int   RSSI, or INVALID_RSSI
+ *   60 int   sequence number within the session; gaps mean dropped records
+ */
+public final class TelemetryFormat {
+
+    public static final int MAGIC = 0x51425452;
+    public static final short VERSION = 2;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int HEADER_MAGIC = 0;
+    public static final int HEADER_VERSION = 4;
+    public static final int HEADER_RECORD_SIZE = 6;
+    public static final int HEADER_SESSION_START_MS = 8;
+    public static final int HEADER_SEGMENT_INDEX = 16;
+    public static final int HEADER_RECORD_COUNT = 20;
+
+    public static final int RECORD_SIZE = 64;
+    public static final int SAMPLE_TIME_NS = 0;
+    public static final int MODEL_TIME_NS = 8;
+    public static final int X = 16;
+    public static final int Y = 20;
+    public static final int Z = 24;
+    public static final int MAX_ACCEL = 28;
+    public static final int STATE = 32;
+    public static final int FLAGS = 36;
+    public static final int CTL_FRAME = 40;
+    public static final int CTL_FRAME_LEN = 5;
+    public static final int WRITE_COMPLETE_NS = 48;
+    public static final int RSSI = 56;
+    public static final int SEQUENCE = 60;
+
+    public static final int FLAG_BOUND = 0x01;
+    // The model was held, so it mapped the sample as a level phone.
+    public static final int FLAG_HELD = 0x02;
+    // The model mapped the sample with response curves, at the low rate if FLAG_LOW_RATE is set,
+    // rather than with the linear mapping. The profiles themselves aren't recorded.
+    public static final int FLAG_CURVES = 0x04;
+    public static final int FLAG_LOW_RATE = 0x08;
+
+    public static final int INVALID_RSSI = -1000;
+
+    public static final String FILE_PREFIX = "flight-";
+    public static final String FILE_SUFFIX = ".qbt";
+
+    private TelemetryFormat() {}
+
+    /**
+     * @return The file name of a segment, which sorts by session and then by segment.
+     */
+    public static String getSegmentName(long sessionStartMs, int segmentIndex) {
+        return String.format(Locale.US, "%s%d-%04d%s",
+                FILE_PREFIX, sessionStartMs, segmentIndex, FILE_SUFFIX);
+    }
+}
@@ -0,0 +1,119 @@
+package io.foolsday.quadbridge.core.telemetry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the records written by TelemetryRecorder, segment by segment, in the order they were
+ * recorded. Given a directory every segment in it is read, so consecutive sessions follow each
+ * other; TelemetryRecord.getSessionStartMs() tells them apart.
+ */
+public class TelemetryReader implements Closeable {
+
+    private final File[] mSegments;
+    private int mNextSegment;
+
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private long mSessionStartMs;
+    private int mOffset;
+    // Where the committed records of the current segment end.
+    private long mEnd;
+
+    /**
+     * @param path A segment file or a directory of segment files.
+     * @throws IOException If there are no segments.
+     */
+    public TelemetryReader(File path) throws IOException {
+        if (path.isDirectory()) {
+            mSegments = path.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    String name = file.getName();
+                    return (file.isFile() &&
+                            name.startsWith(TelemetryFormat.FILE_PREFIX) &&
+                            name.endsWith(TelemetryFormat.FILE_SUFFIX));
+                }
+            });
+        } else {
+            mSegments = (path.isFile() ? new File[] {path} : null);
+        }
+        if ((null == mSegments) || (0 == mSegments.length)) {
+            throw new IOException("No telemetry segments in " + path);
+        }
+
+        // The names sort by session and then by segment index.
+        Arrays.sort(mSegments);
+        mNextSegment = 0;
+    }
+
+    /**
+     * @return The number of segment files that will be read.
+     */
+    public int getSegmentCount() {
+        return mSegments.length;
+    }
+
+    /**
+     * Reads the next record into the given one.
+     *
+     * @param record
+     * @return False once every segment has been read.
+     * @throws IOException If a segment can't be read or isn't a telemetry segment.
+     */
+    public boolean next(TelemetryRecord record) throws IOException {
+        while ((null == mBuffer) || ((mOffset + TelemetryFormat.RECORD_SIZE) > mEnd)) {
+            if (mNextSegment == mSegments.length) {
+                close();
+                return false;
+            }
+            openSegment(mSegments[mNextSegment++]);
+        }
+
+        record.read(mSessionStartMs, mBuffer, mOffset);
+        mOffset += TelemetryFormat.RECORD_SIZE;
+        return true;
+    }
+
+    private void openSegment(File segment) throws IOException {
+        close();
+
+        mFile = new RandomAccessFile(segment, "r");
+        long size = mFile.length();
+        if (TelemetryFormat.HEADER_SIZE > size) {
+            throw new IOException("Truncated telemetry segment " + segment);
+        }
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        if ((TelemetryFormat.MAGIC != mBuffer.getInt(TelemetryFormat.HEADER_MAGIC)) ||
+                (TelemetryFormat.VERSION != mBuffer.getShort(TelemetryFormat.HEADER_VERSION)) ||
+                (TelemetryFormat.RECORD_SIZE !=
+                        mBuffer.getShort(TelemetryFormat.HEADER_RECORD_SIZE))) {
+            throw new IOException("Not a telemetry segment " + segment);
+        }
+        mSessionStartMs = mBuffer.getLong(TelemetryFormat.HEADER_SESSION_START_MS);
+        mOffset = TelemetryFormat.HEADER_SIZE;
+
+        // NOTE: A segment that wasn't closed still has its full size; only the records that
+        //       the header counts were written.
+        long count = (mBuffer.getInt(TelemetryFormat.HEADER_RECORD_COUNT) & 0xFFFFFFFFL);
+        mEnd = Math.min(size,
+                (TelemetryFormat.HEADER_SIZE + (count * TelemetryFormat.RECORD_SIZE)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBuffer = null;
+        if (null != mFile) {
+            RandomAccessFile file = mFile;
+            mFile = null;
+            file.close();
+        }
+    }
+}
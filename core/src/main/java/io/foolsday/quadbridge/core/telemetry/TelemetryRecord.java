@@ -0,0 +1,139 @@
+package io.foolsday.quadbridge.core.telemetry;
+
+import io.foolsday.quadbridge.core.ControlState;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One decoded telemetry record. Instances are filled in place by TelemetryReader so that a
+ * whole recording can be read without allocating per record.
+ */
+public class TelemetryRecord {
+
+    private long mSessionStartMs;
+    private long mSampleTimeNs;
+    private long mModelTimeNs;
+    private float mX;
+    private float mY;
+    private float mZ;
+    private float mMaxAccel;
+    private int mState;
+    private int mFlags;
+    private final byte[] mCtlFrame = new byte[TelemetryFormat.CTL_FRAME_LEN];
+    private long mWriteCompleteNs;
+    private int mRssi;
+    private int mSequence;
+
+    /**
+     * @param sessionStartMs
+     * @param buffer
+     * @param offset The start of the record within the buffer.
+     */
+    void read(long sessionStartMs, ByteBuffer buffer, int offset) {
+        mSessionStartMs = sessionStartMs;
+        mSampleTimeNs = buffer.getLong(offset + TelemetryFormat.SAMPLE_TIME_NS);
+        mModelTimeNs = buffer.getLong(offset + TelemetryFormat.MODEL_TIME_NS);
+        mX = buffer.getFloat(offset + TelemetryFormat.X);
+        mY = buffer.getFloat(offset + TelemetryFormat.Y);
+        mZ = buffer.getFloat(offset + TelemetryFormat.Z);
+        mMaxAccel = buffer.getFloat(offset + TelemetryFormat.MAX_ACCEL);
+        mState = buffer.getInt(offset + TelemetryFormat.STATE);
+        mFlags = buffer.get(offset + TelemetryFormat.FLAGS);
+        for (int i = 0; i < mCtlFrame.length; i++) {
+            mCtlFrame[i] = buffer.get(offset + TelemetryFormat.CTL_FRAME + i);
+        }
+        mWriteCompleteNs = buffer.getLong(offset + TelemetryFormat.WRITE_COMPLETE_NS);
+        mRssi = buffer.getInt(offset + TelemetryFormat.RSSI);
+        mSequence = buffer.getInt(offset + TelemetryFormat.SEQUENCE);
+    }
+
+    public long getSessionStartMs() {
+        return mSessionStartMs;
+    }
+
+    public long getSampleTimeNs() {
+        return mSampleTimeNs;
+    }
+
+    public long getModelTimeNs() {
+        return mModelTimeNs;
+    }
+
+    public float getX() {
+        return mX;
+    }
+
+    public float getY() {
+        return mY;
+    }
+
+    public float getZ() {
+        return mZ;
+    }
+
+    public float getMaxAccel() {
+        return mMaxAccel;
+    }
+
+    /**
+     * @return The model output, packed by ControlState.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    public int getThrottle() {
+        return (ControlState.getThrottle(mState) & 0xFF);
+    }
+
+    public boolean isBound() {
+        return (0 != (mFlags & TelemetryFormat.FLAG_BOUND));
+    }
+
+    /**
+     * @return True if the model ignored x and y because it was held.
+     */
+    public boolean isHeld() {
+        return (0 != (mFlags & TelemetryFormat.FLAG_HELD));
+    }
+
+    /**
+     * @return True if the model mapped the sample with response curves.
+     */
+    public boolean usesResponseCurves() {
+        return (0 != (mFlags & TelemetryFormat.FLAG_CURVES));
+    }
+
+    /**
+     * @return True if the response curves were at their low rate.
+     */
+    public boolean isLowRate() {
+        return (0 != (mFlags & TelemetryFormat.FLAG_LOW_RATE));
+    }
+
+    /**
+     * @return The TelemetryFormat.FLAG_ bits.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return The last CTL frame whose write had completed. Don't modify it.
+     */
+    public byte[] getCtlFrame() {
+        return mCtlFrame;
+    }
+
+    public long getWriteCompleteNs() {
+        return mWriteCompleteNs;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+}
@@ -0,0 +1,372 @@
+package io.foolsday.quadbridge.core.telemetry;
+
+import io.foolsday.quadbridge.core.link.QuadLink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every sample that reaches the model, together with the model output, the last CTL
+ * frame that was written and the RSSI, into memory-mapped segment files for post-mortems.
+ *
+ * record() is called on the sensor thread, the single producer. It copies the record into a
+ * lock-free ring and returns; if the ring is full the record is dropped rather than waiting.
+ * A background thread drains the ring into the mapped segment. Each session gets its own
+ * segments, and a new segment is started whenever the current one is full. See TelemetryFormat
+ * for the file layout.
+ */
+public class TelemetryRecorder implements QuadLink.CtlWriteListener, Runnable {
+
+    public static final int DEFAULT_RING_CAPACITY = 1024;
+    public static final int DEFAULT_SEGMENT_RECORDS = 16384;
+
+    private static final String THREAD_NAME = "TelemetryWriter";
+    private static final long DRAIN_INTERVAL_NS = 100000000L;
+
+    private final File mDirectory;
+    private final int mSegmentRecords;
+
+    // The ring. Records are written into mRing through mRingBuffer by the producer; mTail is
+    // only advanced by the producer and mHead only by the writer thread.
+    private final byte[] mRing;
+    private final ByteBuffer mRingBuffer;
+    // The session that each record in the ring was recorded for.
+    private final long[] mRingSessions;
+    private final int mRingMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    // The last completed CTL write, published by the completion thread under a seqlock. The
+    // sequence is odd while a write is in progress. The fields are volatile, like
+    // ControlScheduler's, so that their writes can't be reordered around the sequence.
+    private final AtomicLong mWriteSequence = new AtomicLong();
+    private volatile long mWrittenFrame;
+    private volatile long mWriteCompleteNs;
+
+    private volatile int mRssi = TelemetryFormat.INVALID_RSSI;
+
+    // Zero while not recording. Otherwise the start time of the session that should be open.
+    private volatile long mSessionStartMs;
+    // Producer state.
+    private long mRecordingSessionStartMs;
+    private int mSequence;
+
+    private volatile Thread mThread;
+    private volatile long mDroppedRecords;
+    private volatile long mRecordsWritten;
+    private volatile IOException mLastError;
+
+    // Writer thread state.
+    private long mOpenSessionStartMs;
+    private long mFailedSessionStartMs;
+    private int mSegmentIndex;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mSegment;
+
+    public TelemetryRecorder(File directory) {
+        this(directory, DEFAULT_RING_CAPACITY, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /**
+     * @param directory Where the segment files are created.
+     * @param ringCapacity The number of records that may wait for the writer. Must be a power of
+     *                     two.
+     * @param segmentRecords The number of records per segment file.
+     */
+    public TelemetryRecorder(File directory, int ringCapacity, int segmentRecords) {
+        if ((0 >= ringCapacity) || (0 != (ringCapacity & (ringCapacity - 1)))) {
+            throw new IllegalArgumentException("ring capacity must be a power of two");
+        }
+        if (0 >= segmentRecords) {
+            throw new IllegalArgumentException("segment records must be positive");
+        }
+
+        mDirectory = directory;
+        mSegmentRecords = segmentRecords;
+        mRing = new byte[ringCapacity * TelemetryFormat.RECORD_SIZE];
+        mRingBuffer = ByteBuffer.wrap(mRing);
+        mRingSessions = new long[ringCapacity];
+        mRingMask = (ringCapacity - 1);
+    }
+
+    /**
+     * Starts the writer thread. Nothing is recorded until a session is started.
+     */
+    public synchronized void start() {
+        if (null != mThread) {
+            return;
+        }
+        Thread thread = new Thread(this, THREAD_NAME);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Ends any session and stops the writer thread once it has written what was recorded.
+     */
+    public synchronized void stop() {
+        mSessionStartMs = 0;
+        Thread thread = mThread;
+        if (null == thread) {
+            return;
+        }
+        mThread = null;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Starts recording into new segment files. A session that is already open is closed first.
+     *
+     * @param sessionStartMs The wall clock time, which names the files.
+     */
+    public void startSession(long sessionStartMs) {
+        mSessionStartMs = sessionStartMs;
+        LockSupport.unpark(mThread);
+    }
+
+    public void stopSession() {
+        mSessionStartMs = 0;
+        LockSupport.unpark(mThread);
+    }
+
+    public boolean isRecording() {
+        return (0 != mSessionStartMs);
+    }
+
+    public void setRssi(int rssi) {
+        mRssi = rssi;
+    }
+
+    @Override
+    public void onCtlWriteComplete(byte[] frame, long writeTimeNs, long completeNs) {
+        // NOTE: This function is called on the thread that reports write completions.
+        long packed = 0;
+        for (int i = 0; i < TelemetryFormat.CTL_FRAME_LEN; i++) {
+            packed = ((packed << 8) | (frame[i] & 0xFF));
+        }
+
+        long sequence = mWriteSequence.get();
+        mWriteSequence.set(sequence + 1);
+        mWrittenFrame = packed;
+        mWriteCompleteNs = completeNs;
+        mWriteSequence.set(sequence + 2);
+    }
+
+    /**
+     * Appends a record. Only one thread may call this.
+     *
+     * @param flags The TelemetryFormat.FLAG_ bits.
+     * @return False if the record was dropped because the ring was full or no session is open.
+     */
+    public boolean record(long sampleTimeNs,
+                          long modelTimeNs,
+                          float x,
+                          float y,
+                          float z,
+                          float maxAccel,
+                          int state,
+                          int flags) {
+        long sessionStartMs = mSessionStartMs;
+        if (0 == sessionStartMs) {
+            return false;
+        }
+        if (sessionStartMs != mRecordingSessionStartMs) {
+            mRecordingSessionStartMs = sessionStartMs;
+            mSequence = 0;
+        }
+
+        long tail = mTail.get();
+        if ((tail - mHead.get()) > mRingMask) {
+            mDroppedRecords++;
+            mSequence++;
+            return false;
+        }
+
+        long writtenFrame;
+        long writeCompleteNs;
+        long sequence;
+        do {
+            sequence = mWriteSequence.get();
+            writtenFrame = mWrittenFrame;
+            writeCompleteNs = mWriteCompleteNs;
+        } while ((0 != (sequence & 1)) || (sequence != mWriteSequence.get()));
+
+        ByteBuffer ring = mRingBuffer;
+        int offset = ((int) (tail & mRingMask) * TelemetryFormat.RECORD_SIZE);
+        ring.putLong(offset + TelemetryFormat.SAMPLE_TIME_NS, sampleTimeNs);
+        ring.putLong(offset + TelemetryFormat.MODEL_TIME_NS, modelTimeNs);
+        ring.putFloat(offset + TelemetryFormat.X, x);
+        ring.putFloat(offset + TelemetryFormat.Y, y);
+        ring.putFloat(offset + TelemetryFormat.Z, z);
+        ring.putFloat(offset + TelemetryFormat.MAX_ACCEL, maxAccel);
+        ring.putInt(offset + TelemetryFormat.STATE, state);
+        ring.put(offset + TelemetryFormat.FLAGS, (byte) flags);
+        for (int i = 0; i < TelemetryFormat.CTL_FRAME_LEN; i++) {
+            int shift = ((TelemetryFormat.CTL_FRAME_LEN - 1 - i) * 8);
+            ring.put(offset + TelemetryFormat.CTL_FRAME + i, (byte) (writtenFrame >>> shift));
+        }
+        ring.putLong(offset + TelemetryFormat.WRITE_COMPLETE_NS, writeCompleteNs);
+        ring.putInt(offset + TelemetryFormat.RSSI, mRssi);
+        ring.putInt(offset + TelemetryFormat.SEQUENCE, mSequence++);
+        mRingSessions[(int) (tail & mRingMask)] = sessionStartMs;
+
+        // Publishes the record to the writer thread.
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * @return The number of records dropped because the writer fell behind.
+     */
+    public long getDroppedRecords() {
+        return mDroppedRecords;
+    }
+
+    public long getRecordsWritten() {
+        return mRecordsWritten;
+    }
+
+    /**
+     * @return The error that stopped the last session, or null.
+     */
+    public IOException getLastError() {
+        return mLastError;
+    }
+
+    @Override
+    public void run() {
+        final Thread self = Thread.currentThread();
+
+        while (self == mThread) {
+            drain();
+            // Every record goes to its own session's segments, so a segment is only closed once
+            // its session has ended and the ring holds nothing more for it.
+            if ((null != mSegment) && (mSessionStartMs != mOpenSessionStartMs)) {
+                closeSegment();
+            }
+            LockSupport.parkNanos(this, DRAIN_INTERVAL_NS);
+        }
+
+        drain();
+        closeSegment();
+    }
+
+    private void drain() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        long written = 0;
+
+        while (head != tail) {
+            int slot = (int) (head & mRingMask);
+            long sessionStartMs = mRingSessions[slot];
+            if (sessionStartMs != mOpenSessionStartMs) {
+                // The first record of a new session. The previous session may have left
+                // records in the ring right up to here.
+                closeSegment();
+                mOpenSessionStartMs = sessionStartMs;
+                mSegmentIndex = 0;
+                openSegment();
+            } else if ((sessionStartMs != mFailedSessionStartMs) &&
+                    ((null == mSegment) ||
+                            (TelemetryFormat.RECORD_SIZE > mSegment.remaining()))) {
+                // The segment is full, or was closed just before a last record of its session
+                // arrived.
+                closeSegment();
+                mSegmentIndex++;
+                openSegment();
+            }
+            if (null != mSegment) {
+                int offset = (slot * TelemetryFormat.RECORD_SIZE);
+                mSegment.put(mRing, offset, TelemetryFormat.RECORD_SIZE);
+                written++;
+            }
+            head++;
+            // The slot may be reused by the producer from here on.
+            mHead.lazySet(head);
+        }
+
+        if (null != mSegment) {
+            commitRecords();
+        }
+        mRecordsWritten += written;
+    }
+
+    /**
+     * Counts the records written so far in the header, after the records themselves, so that
+     * a reader finds them even if the segment is never closed.
+     */
+    private void commitRecords() {
+        int count = ((mSegment.position() - TelemetryFormat.HEADER_SIZE) /
+                TelemetryFormat.RECORD_SIZE);
+        mSegment.putInt(TelemetryFormat.HEADER_RECORD_COUNT, count);
+    }
+
+    private void openSegment() {
+        String name = TelemetryFormat.getSegmentName(mOpenSessionStartMs, mSegmentIndex);
+        long size = (TelemetryFormat.HEADER_SIZE +
+                ((long) mSegmentRecords * TelemetryFormat.RECORD_SIZE));
+        RandomAccessFile file = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Failed to create " + mDirectory);
+            }
+            file = new RandomAccessFile(new File(mDirectory, name), "rw");
+            MappedByteBuffer segment;
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            segment.putInt(TelemetryFormat.MAGIC);
+            segment.putShort(TelemetryFormat.VERSION);
+            segment.putShort((short) TelemetryFormat.RECORD_SIZE);
+            segment.putLong(mOpenSessionStartMs);
+            segment.putInt(mSegmentIndex);
+            segment.putInt(0);
+            segment.position(TelemetryFormat.HEADER_SIZE);
+            mFile = file;
+            mSegment = segment;
+        } catch (IOException e) {
+            fail(e);
+            closeQuietly(file);
+        }
+    }
+
+    private void closeSegment() {
+        if (null == mSegment) {
+            return;
+        }
+
+        try {
+            commitRecords();
+            mSegment.force();
+            // The file was sized for a full segment; cut off the part that wasn't used.
+            mFile.getChannel().truncate(mSegment.position());
+        } catch (IOException e) {
+            fail(e);
+        }
+        closeQuietly(mFile);
+        mSegment = null;
+        mFile = null;
+    }
+
+    private void fail(IOException e) {
+        // Recording stops until the next session rather than retrying on every record.
+        mLastError = e;
+        mFailedSessionStartMs = mOpenSessionStartMs;
+        mSessionStartMs = 0;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (null != file) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing useful can be done about this.
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.foolsday.quadbridge.core;
+
+import junit.framework.TestCase;
+
+public class CalibrationCaptureTest extends TestCase {
+
+    private static final float EPSILON = 1e-4f;
+
+    public void testCompletesAfterSampleCount() {
+        CalibrationCapture capture = new CalibrationCapture(3);
+        assertFalse(capture.addSample(0, 0, 9.8f));
+        assertFalse(capture.addSample(0, 0, 9.8f));
+        assertTrue(capture.addSample(0, 0, 9.8f));
+        assertTrue(capture.isComplete());
+
+        // Further samples are ignored.
+        assertTrue(capture.addSample(100, 100, 100));
+        assertEquals(0, capture.getCalibration().getOffsetX(), EPSILON);
+    }
+
+    public void testOffsetsAreTheDeviationFromLevel() {
+        CalibrationCapture capture = new CalibrationCapture(2);
+        capture.addSample(0.2f, -0.1f, 9.9f);
+        capture.addSample(0.4f, -0.3f, 9.7f);
+
+        Calibration calibration = capture.getCalibration();
+        float gravity = (float) Math.sqrt((0.3f * 0.3f) + (0.2f * 0.2f) + (9.8f * 9.8f));
+        assertEquals(gravity, calibration.getMaxRange(), EPSILON);
+        assertEquals(0.3f, calibration.getOffsetX(), EPSILON);
+        assertEquals(-0.2f, calibration.getOffsetY(), EPSILON);
+        assertEquals((9.8f - gravity), calibration.getOffsetZ(), EPSILON);
+
+        // The averaged sample itself now reads as level.
+        float[] values = {0.3f, -0.2f, 9.8f};
+        calibration.apply(values);
+        assertEquals(0, values[0], EPSILON);
+        assertEquals(0, values[1], EPSILON);
+        assertEquals(gravity, values[2], EPSILON);
+    }
+
+    public void testResetStartsOver() {
+        CalibrationCapture capture = new CalibrationCapture(1);
+        assertTrue(capture.addSample(5, 5, 5));
+        capture.reset();
+        assertFalse(capture.isComplete());
+        assertSame(Calibration.NONE, capture.getCalibration());
+    }
+
+    public void testRejectsInvalidSampleCount() {
+        try {
+            new CalibrationCapture(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package io.foolsday.quadbridge.core;
+
+import junit.framework.TestCase;
+
+public class CalibrationTest extends TestCase {
+
+    public void testApplyRemovesOffsets() {
+        Calibration calibration = new Calibration(9.8f, 0.5f, -0.25f, 0.125f);
+        float[] values = {1.0f, 2.0f, 9.0f};
+        calibration.apply(values);
+        assertEquals(0.5f, values[0], 0);
+        assertEquals(2.25f, values[1], 0);
+        assertEquals(8.875f, values[2], 0);
+    }
+
+    public void testNoneLeavesSamplesAlone() {
+        float[] values = {1.0f, 2.0f, 9.0f};
+        Calibration.NONE.apply(values);
+        assertEquals(1.0f, values[0], 0);
+        assertEquals(2.0f, values[1], 0);
+        assertEquals(9.0f, values[2], 0);
+        assertEquals(0, Calibration.NONE.getMaxRange(), 0);
+    }
+
+    public void testWithMaxRangeKeepsOffsets() {
+        Calibration calibration = new Calibration(9.8f, 0.5f, -0.25f, 0.125f);
+        Calibration wider = calibration.withMaxRange(10.5f);
+        assertEquals(10.5f, wider.getMaxRange(), 0);
+        assertEquals(0.5f, wider.getOffsetX(), 0);
+        assertEquals(-0.25f, wider.getOffsetY(), 0);
+        assertEquals(0.125f, wider.getOffsetZ(), 0);
+        assertEquals(9.8f, calibration.getMaxRange(), 0);
+    }
+}
@@ -0,0 +1,114 @@
+package io.foolsday.quadbridge.core;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ControlSchedulerTest extends TestCase {
+
+    private static final long RUN_MS = 300;
+
+    private static int stateOf(long i) {
+        return ControlState.pack((int) i, (int) (i >>> 8), (int) (i >>> 16), (int) (i >>> 24));
+    }
+
+    /**
+     * Checks that every tick sees a state and timestamps from the same update.
+     */
+    private static class TearChecker implements ControlScheduler.ControlTickListener {
+
+        volatile long mTicks;
+        volatile long mTorn;
+
+        @Override
+        public void onControlTick(int state, long sampleTimeNs, long modelTimeNs) {
+            if ((modelTimeNs != (sampleTimeNs + 1)) || (state != stateOf(sampleTimeNs))) {
+                mTorn++;
+            }
+            mTicks++;
+        }
+    }
+
+    public void testTicksNeverSeeTornUpdates() {
+        TearChecker checker = new TearChecker();
+        ControlScheduler scheduler = new ControlScheduler(checker);
+        scheduler.update(0, 0, 0, 0, 0, 1);
+        scheduler.setIntervalMs(1);
+        scheduler.start();
+
+        // A single writer, as update() requires, updating as fast as it can.
+        long i = 1;
+        long endMs = (System.currentTimeMillis() + RUN_MS);
+        while (System.currentTimeMillis() < endMs) {
+            int state = stateOf(i);
+            scheduler.update((state >>> 24), (state >>> 16), (state >>> 8), state, i, (i + 1));
+            i++;
+        }
+        scheduler.stop();
+
+        assertTrue("too few ticks: " + checker.mTicks, 10 < checker.mTicks);
+        assertEquals(0, checker.mTorn);
+    }
+
+    public void testTickCarriesLatestState() throws InterruptedException {
+        final CountDownLatch ticked = new CountDownLatch(1);
+        final int[] state = new int[1];
+        ControlScheduler scheduler = new ControlScheduler(
+                new ControlScheduler.ControlTickListener() {
+                    @Override
+                    public void onControlTick(int tickState, long sampleTimeNs,
+                                              long modelTimeNs) {
+                        if (3 == sampleTimeNs) {
+                            state[0] = tickState;
+                            ticked.countDown();
+                        }
+                    }
+                });
+        scheduler.setIntervalMs(1);
+        scheduler.update(1, 1, 1, 1, 1, 1);
+        scheduler.update(2, 2, 2, 2, 2, 2);
+        scheduler.update(100, -5, 6, -7, 3, 3);
+        scheduler.start();
+        assertTrue(ticked.await(1, TimeUnit.SECONDS));
+        scheduler.stop();
+
+        assertEquals(ControlState.pack(100, -5, 6, -7), state[0]);
+        assertEquals(100, ControlState.getThrottle(state[0]));
+        assertEquals(-5, ControlState.getPitch(state[0]));
+        assertEquals(6, ControlState.getRoll(state[0]));
+        assertEquals(-7, ControlState.getYaw(state[0]));
+    }
+
+    public void testStartsIdleAtMinimumThrottle() {
+        ControlScheduler scheduler = new ControlScheduler(null);
+        assertFalse(scheduler.isRunning());
+        assertEquals(ControlState.pack(QuadControl.MIN_THROTTLE_VALUE, 0, 0, 0),
+                scheduler.getState());
+        assertEquals(ControlScheduler.DEFAULT_INTERVAL_MS, scheduler.getIntervalMs());
+    }
+
+    public void testStartAndStopAreIdempotent() {
+        ControlScheduler scheduler = new ControlScheduler(
+                new ControlScheduler.ControlTickListener() {
+                    @Override
+                    public void onControlTick(int state, long sampleTimeNs, long modelTimeNs) {}
+                });
+        scheduler.start();
+        scheduler.start();
+        assertTrue(scheduler.isRunning());
+        scheduler.stop();
+        scheduler.stop();
+        assertFalse(scheduler.isRunning());
+    }
+
+    public void testRejectsInvalidInterval() {
+        ControlScheduler scheduler = new ControlScheduler(null);
+        try {
+            scheduler.setIntervalMs(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.foolsday.quadbridge.core;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanNs());
+        assertEquals(0, histogram.getMaxNs());
+        assertEquals(0, histogram.getPercentileNs(50));
+    }
+
+    public void testTotals() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.record(3000);
+        // Negative latencies come from clocks that disagree and are ignored.
+        histogram.record(-1);
+        assertEquals(2, histogram.getCount());
+        assertEquals(2000, histogram.getMeanNs());
+        assertEquals(3000, histogram.getMaxNs());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNs());
+    }
+
+    public void testPercentilesAreWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int us = 1; us <= 10000; us++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(us));
+        }
+        double[] percentiles = {1, 50, 90, 99, 100};
+        for (double percentile : percentiles) {
+            long expectedNs = TimeUnit.MICROSECONDS.toNanos((long) (percentile * 100));
+            long actualNs = histogram.getPercentileNs(percentile);
+            // The lower bound of a bucket, which is at most a quarter below the value.
+            assertTrue(percentile + ": " + actualNs, actualNs <= expectedNs);
+            assertTrue(percentile + ": " + actualNs, actualNs >= (expectedNs * 3 / 4));
+        }
+    }
+
+    public void testHugeValuesLandInLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.HOURS.toNanos(1));
+        assertEquals(TimeUnit.HOURS.toNanos(1), histogram.getMaxNs());
+        assertTrue(0 < histogram.getPercentileNs(100));
+        assertTrue(TimeUnit.HOURS.toNanos(1) > histogram.getPercentileNs(100));
+    }
+}
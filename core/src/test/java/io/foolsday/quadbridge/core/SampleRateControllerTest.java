@@ -0,0 +1,138 @@
+package io.foolsday.quadbridge.core;
+
+import junit.framework.TestCase;
+
+public class SampleRateControllerTest extends TestCase {
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private static class ManualClock implements NanoClock {
+
+        long mNowNs = (1000 * NANOS_PER_MS);
+
+        @Override
+        public long nanoTime() {
+            return mNowNs;
+        }
+    }
+
+    private static class RateRecorder implements SampleRateController.SampleRateListener {
+
+        int mChanges;
+        int mIntervalUs;
+        int mLatencyUs;
+
+        @Override
+        public void onSampleRateChanged(int intervalUs, int maxReportLatencyUs) {
+            mChanges++;
+            mIntervalUs = intervalUs;
+            mLatencyUs = maxReportLatencyUs;
+        }
+    }
+
+    private ManualClock mClock;
+    private RateRecorder mRecorder;
+    private SampleRateController mController;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new ManualClock();
+        mRecorder = new RateRecorder();
+        mController = new SampleRateController();
+        mController.setClock(mClock);
+        mController.setListener(mRecorder);
+    }
+
+    private void completeWrites(int count, long intervalMs) {
+        for (int i = 0; i < count; i++) {
+            mClock.mNowNs += (intervalMs * NANOS_PER_MS);
+            mController.onWriteComplete();
+        }
+    }
+
+    public void testStartsIdleAndBatched() {
+        assertFalse(mController.isActive());
+        assertEquals(SampleRateController.IDLE_INTERVAL_US, mController.getIntervalUs());
+        assertEquals(SampleRateController.BATCH_LATENCY_US, mController.getMaxReportLatencyUs());
+    }
+
+    public void testBindStopsBatching() {
+        mController.setBound(true);
+        assertEquals(1, mRecorder.mChanges);
+        assertEquals(SampleRateController.IDLE_INTERVAL_US, mRecorder.mIntervalUs);
+        assertEquals(0, mRecorder.mLatencyUs);
+
+        // Binding again changes nothing.
+        mController.setBound(true);
+        assertEquals(1, mRecorder.mChanges);
+    }
+
+    public void testActiveFollowsTheWriteRate() {
+        mController.setBound(true);
+        mController.setActive(true);
+        assertEquals(SampleRateController.DEFAULT_INTERVAL_US, mRecorder.mIntervalUs);
+        mController.setActive(true);
+        assertEquals(2, mRecorder.mChanges);
+
+        // Completions every 12ms only take effect once the last change is old enough.
+        completeWrites(10, 12);
+        assertEquals(SampleRateController.DEFAULT_INTERVAL_US, mController.getIntervalUs());
+        completeWrites(50, 12);
+        assertEquals(12000, mController.getIntervalUs());
+        assertEquals(12000, mRecorder.mIntervalUs);
+        assertEquals(12000000L, mController.getAverageCompletionNs());
+    }
+
+    public void testSmallChangesAreIgnored() {
+        mController.setBound(true);
+        mController.setActive(true);
+        completeWrites(50, 12);
+        int changes = mRecorder.mChanges;
+
+        // 13ms is within the change threshold of 12ms.
+        completeWrites(200, 13);
+        assertEquals(changes, mRecorder.mChanges);
+        assertEquals(12000, mController.getIntervalUs());
+    }
+
+    public void testIntervalIsClamped() {
+        mController.setBound(true);
+        mController.setActive(true);
+        completeWrites(300, 2);
+        assertEquals(SampleRateController.MIN_INTERVAL_US, mController.getIntervalUs());
+    }
+
+    public void testLongGapsAreNotAveraged() {
+        mController.setBound(true);
+        mController.setActive(true);
+        completeWrites(50, 12);
+        completeWrites(1, 5000);
+        assertEquals(12000000L, mController.getAverageCompletionNs());
+    }
+
+    public void testInactiveIgnoresTheWriteRate() {
+        mController.setBound(true);
+        completeWrites(100, 12);
+        assertEquals(SampleRateController.IDLE_INTERVAL_US, mController.getIntervalUs());
+    }
+
+    public void testUnbindReturnsToIdleBatched() {
+        mController.setBound(true);
+        mController.setActive(true);
+        mController.setBound(false);
+        assertFalse(mController.isActive());
+        assertEquals(SampleRateController.IDLE_INTERVAL_US, mRecorder.mIntervalUs);
+        assertEquals(SampleRateController.BATCH_LATENCY_US, mRecorder.mLatencyUs);
+    }
+
+    public void testResetForgetsTheWriteRate() {
+        mController.setBound(true);
+        mController.setActive(true);
+        completeWrites(50, 12);
+        mController.reset();
+        assertEquals(0, mController.getAverageCompletionNs());
+        assertEquals(SampleRateController.IDLE_INTERVAL_US, mRecorder.mIntervalUs);
+        assertEquals(SampleRateController.BATCH_LATENCY_US, mRecorder.mLatencyUs);
+    }
+}
@@ -0,0 +1,157 @@
+package io.foolsday.quadbridge.core.curve;
+
+import io.foolsday.quadbridge.core.QuadControl;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ResponseCurvesTest extends TestCase {
+
+    private static final float MAX_ACCEL = 9.8f;
+    private static final int STEPS = 2000;
+
+    private static void assertClose(String axis, float x, float y, int expected, int actual) {
+        if (1 < Math.abs(expected - actual)) {
+            fail(String.format("%s at (%f, %f): expected %d, was %d",
+                    axis, x, y, expected, actual));
+        }
+    }
+
+    /**
+     * The default profile is the linear mapping, so both paths must agree to within the
+     * rounding of the tables.
+     */
+    private static void assertMatchesFloatMapping(float x, float y,
+                                                  QuadControl linear, QuadControl curved) {
+        linear.onAccelSample(x, y, MAX_ACCEL);
+        curved.onAccelSample(x, y, MAX_ACCEL);
+        assertClose("yaw", x, y, linear.getYaw(), curved.getYaw());
+        assertClose("pitch", x, y, linear.getPitch(), curved.getPitch());
+        // Right at the threshold a difference of one in pitch may decide whether roll applies
+        // at all.
+        if (1 < Math.abs(linear.getPitch() - QuadControl.ROLL_PITCH_THRESHOLD)) {
+            assertClose("roll", x, y, linear.getRoll(), curved.getRoll());
+        }
+    }
+
+    public void testDefaultMatchesFloatMappingOnGrid() {
+        QuadControl linear = new QuadControl();
+        QuadControl curved = new QuadControl();
+        curved.setResponseCurves(new ResponseCurves(ResponseProfile.DEFAULT));
+
+        // Beyond the full range on both sides, so the clamping is covered too.
+        for (int i = 0; i <= STEPS; i++) {
+            float x = ((((2.4f * i) / STEPS) - 1.2f) * MAX_ACCEL);
+            for (int j = 0; j <= STEPS; j += 50) {
+                float y = ((((2.4f * j) / STEPS) - 1.2f) * MAX_ACCEL);
+                assertMatchesFloatMapping(x, y, linear, curved);
+                assertMatchesFloatMapping(y, x, linear, curved);
+            }
+        }
+    }
+
+    public void testDefaultMatchesFloatMappingOnRandomSamples() {
+        QuadControl linear = new QuadControl();
+        QuadControl curved = new QuadControl();
+        curved.setResponseCurves(ResponseCurves.createDefault());
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            float x = (((random.nextFloat() * 2.2f) - 1.1f) * MAX_ACCEL);
+            float y = (((random.nextFloat() * 2.2f) - 1.1f) * MAX_ACCEL);
+            assertMatchesFloatMapping(x, y, linear, curved);
+        }
+    }
+
+    public void testLevelIsCentered() {
+        ResponseCurves curves = ResponseCurves.createDefault();
+        for (int rate = ResponseCurves.HIGH_RATE; rate <= ResponseCurves.LOW_RATE; rate++) {
+            curves.setRate(rate);
+            int level = ResponseCurves.indexOf(0);
+            assertEquals(0, curves.getYaw(level));
+            assertEquals(0, curves.getPitch(level));
+            assertEquals(0, curves.getRoll(level, level));
+        }
+    }
+
+    public void testLowRateIsGentler() {
+        ResponseCurves curves = ResponseCurves.createDefault();
+        int half = ResponseCurves.indexOf(0.5f);
+        int full = ResponseCurves.indexOf(1);
+        int small = ResponseCurves.indexOf(0.02f);
+
+        assertEquals(QuadControl.MAX_YAW_VALUE, curves.getYaw(half));
+        curves.setRate(ResponseCurves.LOW_RATE);
+        assertEquals(ResponseCurves.LOW_RATE, curves.getRate());
+        assertTrue(curves.getYaw(half) < (QuadControl.MAX_YAW_VALUE / 2));
+        // Full tilt still gives full deflection, give or take the rounding of the casts.
+        assertTrue(curves.getYaw(full) >= (QuadControl.MAX_YAW_VALUE - 1));
+        // Inside the deadband.
+        assertEquals(0, curves.getYaw(small));
+        assertEquals(0, curves.getPitch(small));
+    }
+
+    public void testTablesAreMonotonic() {
+        ResponseCurves curves = ResponseCurves.createDefault();
+        for (int rate = ResponseCurves.HIGH_RATE; rate <= ResponseCurves.LOW_RATE; rate++) {
+            curves.setRate(rate);
+            for (int i = 1; i <= (2 * ResponseCurves.RESOLUTION); i++) {
+                assertTrue(curves.getYaw(i) >= curves.getYaw(i - 1));
+                assertTrue(curves.getPitch(i) <= curves.getPitch(i - 1));
+            }
+        }
+    }
+
+    public void testTrimsAreAppliedAndClamped() {
+        ResponseProfile trimmed = new ResponseProfile(
+                new AxisCurve(2, 0, 0, -3),
+                new AxisCurve(2, 0, 0, 5),
+                2);
+        ResponseCurves curves = new ResponseCurves(trimmed);
+        int level = ResponseCurves.indexOf(0);
+        assertEquals(5, curves.getYaw(level));
+        assertEquals(-3, curves.getPitch(level));
+        assertEquals(2, curves.getRoll(level, level));
+        assertEquals(QuadControl.MAX_YAW_VALUE, curves.getYaw(ResponseCurves.indexOf(1)));
+        assertEquals(QuadControl.MIN_PITCH_VALUE, curves.getPitch(ResponseCurves.indexOf(1)));
+    }
+
+    public void testIndexClampsInput() {
+        assertEquals(0, ResponseCurves.indexOf(-2));
+        assertEquals((2 * ResponseCurves.RESOLUTION), ResponseCurves.indexOf(2));
+        assertEquals(ResponseCurves.RESOLUTION, ResponseCurves.indexOf(0));
+    }
+
+    public void testRejectsInvalidParameters() {
+        try {
+            new AxisCurve(0, 0, 0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            new AxisCurve(1, 1.5f, 0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            new AxisCurve(1, 0, 1, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            new ResponseCurves(ResponseProfile.DEFAULT, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            ResponseCurves.createDefault().setRate(2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package io.foolsday.quadbridge.core.event;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EventTopicTest extends TestCase {
+
+    private static final long WAIT_MS = 2000;
+    private static final int PUBLISHED = 1000;
+
+    private static class ValueEvent implements EventTopic.Event<ValueEvent> {
+
+        long mValue;
+
+        @Override
+        public void copyFrom(ValueEvent other) {
+            mValue = other.mValue;
+        }
+    }
+
+    private interface ValueListener {
+        void onValue(long value);
+    }
+
+    private static class ValueTopic extends EventTopic<ValueEvent, ValueListener> {
+
+        ValueTopic() {
+            super("ValueTopic");
+        }
+
+        @Override
+        protected ValueEvent newEvent() {
+            return new ValueEvent();
+        }
+
+        @Override
+        protected void deliver(ValueListener subscriber, ValueEvent event) {
+            subscriber.onValue(event.mValue);
+        }
+    }
+
+    /**
+     * Blocks in its first delivery until released, so that the events published meanwhile find
+     * it busy.
+     */
+    private static class BlockingListener implements ValueListener {
+
+        final CountDownLatch mBlocked = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        volatile long mLast;
+        volatile long mCount;
+        volatile boolean mOutOfOrder;
+
+        @Override
+        public void onValue(long value) {
+            if (value <= mLast) {
+                mOutOfOrder = true;
+            }
+            mLast = value;
+            mCount++;
+            mBlocked.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private ValueTopic mTopic;
+    private ValueEvent mEvent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTopic = new ValueTopic();
+        mEvent = new ValueEvent();
+    }
+
+    private void publish(long value) {
+        mEvent.mValue = value;
+        mTopic.publish(mEvent);
+    }
+
+    private static void awaitDelivered(EventTopic<?, ?>.Subscription subscription, long count)
+            throws InterruptedException {
+        long endMs = (System.currentTimeMillis() + WAIT_MS);
+        while (((subscription.getDelivered() + subscription.getDropped()) < count) &&
+                (System.currentTimeMillis() < endMs)) {
+            Thread.sleep(1);
+        }
+    }
+
+    public void testInlineDeliversOnPublisherThread() {
+        final Thread publisher = Thread.currentThread();
+        final long[] last = new long[1];
+        final boolean[] otherThread = new boolean[1];
+        EventTopic<ValueEvent, ValueListener>.Subscription subscription = mTopic.subscribe(
+                new ValueListener() {
+                    @Override
+                    public void onValue(long value) {
+                        last[0] = value;
+                        otherThread[0] |= (Thread.currentThread() != publisher);
+                    }
+                }, EventTopic.DELIVERY_INLINE);
+
+        for (int i = 1; i <= PUBLISHED; i++) {
+            publish(i);
+            assertEquals(i, last[0]);
+        }
+        assertFalse(otherThread[0]);
+        assertEquals(PUBLISHED, subscription.getDelivered());
+        assertEquals(0, subscription.getDropped());
+    }
+
+    public void testSubscribesOnce() {
+        ValueListener listener = new ValueListener() {
+            @Override
+            public void onValue(long value) {}
+        };
+        EventTopic<ValueEvent, ValueListener>.Subscription first =
+                mTopic.subscribe(listener, EventTopic.DELIVERY_INLINE);
+        assertSame(first, mTopic.subscribe(listener, EventTopic.DELIVERY_COALESCED));
+        assertEquals(1, mTopic.getSubscriberCount());
+
+        mTopic.unsubscribe(listener);
+        assertEquals(0, mTopic.getSubscriberCount());
+        publish(1);
+        assertEquals(0, first.getDelivered());
+    }
+
+    public void testCoalescedDeliversLatest() throws InterruptedException {
+        BlockingListener listener = new BlockingListener();
+        EventTopic<ValueEvent, ValueListener>.Subscription subscription =
+                mTopic.subscribe(listener, EventTopic.DELIVERY_COALESCED);
+
+        publish(1);
+        assertTrue(listener.mBlocked.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 2; i <= PUBLISHED; i++) {
+            publish(i);
+        }
+        listener.mRelease.countDown();
+        awaitDelivered(subscription, PUBLISHED);
+
+        assertEquals(PUBLISHED, listener.mLast);
+        assertEquals(2, listener.mCount);
+        assertFalse(listener.mOutOfOrder);
+        assertEquals(PUBLISHED, (subscription.getDelivered() + subscription.getDropped()));
+        mTopic.unsubscribe(listener);
+    }
+
+    public void testDropWhenBusyDropsNewerEvents() throws InterruptedException {
+        BlockingListener listener = new BlockingListener();
+        EventTopic<ValueEvent, ValueListener>.Subscription subscription =
+                mTopic.subscribe(listener, EventTopic.DELIVERY_DROP_WHEN_BUSY);
+
+        publish(1);
+        assertTrue(listener.mBlocked.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 2; i <= PUBLISHED; i++) {
+            publish(i);
+        }
+        listener.mRelease.countDown();
+        awaitDelivered(subscription, PUBLISHED);
+
+        assertEquals(1, listener.mLast);
+        assertEquals(1, listener.mCount);
+        assertEquals(1, subscription.getDelivered());
+        assertEquals((PUBLISHED - 1), subscription.getDropped());
+
+        // Once idle it takes events again. It turns idle just after the delivery is counted,
+        // so the first attempts may still be dropped.
+        long endMs = (System.currentTimeMillis() + WAIT_MS);
+        while ((2 > subscription.getDelivered()) && (System.currentTimeMillis() < endMs)) {
+            publish(PUBLISHED + 1);
+            Thread.sleep(1);
+        }
+        assertEquals((PUBLISHED + 1), listener.mLast);
+        mTopic.unsubscribe(listener);
+    }
+}
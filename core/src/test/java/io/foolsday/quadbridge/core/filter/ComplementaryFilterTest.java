@@ -0,0 +1,95 @@
+package io.foolsday.quadbridge.core.filter;
+
+import junit.framework.TestCase;
+
+public class ComplementaryFilterTest extends TestCase {
+
+    private static final float EPSILON = 1e-3f;
+    private static final long INTERVAL_NS = 10000000L;
+
+    public void testFirstSamplePassesThrough() {
+        ComplementaryFilter filter = new ComplementaryFilter();
+        float[] values = {1, 2, 9};
+        filter.filter(values, INTERVAL_NS);
+        assertEquals(1f, values[0], EPSILON);
+        assertEquals(2f, values[1], EPSILON);
+        assertEquals(9f, values[2], EPSILON);
+    }
+
+    public void testConvergesOnTheAccelerometer() {
+        ComplementaryFilter filter = new ComplementaryFilter(0.1f);
+        float[] values = {0, 0, 9.8f};
+        filter.filter(values, INTERVAL_NS);
+
+        // A single step is only partly followed...
+        values[0] = 9.8f;
+        values[2] = 0;
+        filter.filter(values, (2 * INTERVAL_NS));
+        assertTrue(values[0] > 0);
+        assertTrue(values[0] < 9.8f);
+
+        // ...and fully after a few time constants.
+        for (int i = 3; i < 100; i++) {
+            values[0] = 9.8f;
+            values[1] = 0;
+            values[2] = 0;
+            filter.filter(values, (i * INTERVAL_NS));
+        }
+        assertEquals(9.8f, values[0], EPSILON);
+        assertEquals(0f, values[2], EPSILON);
+    }
+
+    public void testGyroRotatesTheEstimate() {
+        ComplementaryFilter filter = new ComplementaryFilter();
+        float[] values = {0, 0, 9.8f};
+        filter.filter(values, INTERVAL_NS);
+
+        // Rolling about x at 1 rad/s for 10ms tips gravity towards y: dg/dt = g x w.
+        float[] rates = {1, 0, 0};
+        filter.onGyroSample(rates, INTERVAL_NS);
+        filter.onGyroSample(rates, (2 * INTERVAL_NS));
+
+        // A sample with no time elapsed shows the estimate unchanged by the accelerometer.
+        values[0] = 0;
+        values[1] = 0;
+        values[2] = 9.8f;
+        filter.filter(values, INTERVAL_NS);
+        assertEquals(0f, values[0], EPSILON);
+        assertEquals((9.8f * 0.01f), values[1], EPSILON);
+    }
+
+    public void testGyroGapsAreIgnored() {
+        ComplementaryFilter filter = new ComplementaryFilter();
+        float[] values = {0, 0, 9.8f};
+        filter.filter(values, INTERVAL_NS);
+
+        float[] rates = {1, 0, 0};
+        filter.onGyroSample(rates, INTERVAL_NS);
+        filter.onGyroSample(rates, (INTERVAL_NS + 1000000000L));
+
+        filter.filter(values, INTERVAL_NS);
+        assertEquals(0f, values[1], EPSILON);
+    }
+
+    public void testResetStartsOver() {
+        ComplementaryFilter filter = new ComplementaryFilter();
+        float[] values = {0, 0, 9.8f};
+        filter.filter(values, INTERVAL_NS);
+        filter.reset();
+
+        values[0] = 9.8f;
+        values[2] = 0;
+        filter.filter(values, (2 * INTERVAL_NS));
+        assertEquals(9.8f, values[0], EPSILON);
+        assertEquals(0f, values[2], EPSILON);
+    }
+
+    public void testRejectsInvalidTimeConstant() {
+        try {
+            new ComplementaryFilter(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
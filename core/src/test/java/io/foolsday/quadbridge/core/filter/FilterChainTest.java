@@ -0,0 +1,57 @@
+package io.foolsday.quadbridge.core.filter;
+
+import junit.framework.TestCase;
+
+public class FilterChainTest extends TestCase {
+
+    private static final float EPSILON = 1e-3f;
+
+    public void testRunsFiltersInOrder() {
+        RotationVectorFilter rotation = new RotationVectorFilter();
+        FilterChain chain = new FilterChain(rotation, new LowPassFilter(2));
+
+        // The chain passes the rotation vector on; the low-pass filter then averages the
+        // derived gravity.
+        float s = (float) Math.sin(Math.PI / 4);
+        float[] values = new float[3];
+        chain.onRotationVector(new float[] {0, 0, 0, 1}, 0);
+        chain.filter(values, 0);
+        chain.onRotationVector(new float[] {s, 0, 0, s}, 1);
+        chain.filter(values, 1);
+
+        float g = RotationVectorFilter.STANDARD_GRAVITY;
+        assertEquals(0f, values[0], EPSILON);
+        assertEquals((g / 2), values[1], EPSILON);
+        assertEquals((g / 2), values[2], EPSILON);
+    }
+
+    public void testForwardsGyroSamplesAndReset() {
+        ComplementaryFilter complementary = new ComplementaryFilter();
+        FilterChain chain = new FilterChain(complementary);
+        float[] values = {0, 0, 9.8f};
+        chain.filter(values, 10000000L);
+        float[] rates = {1, 0, 0};
+        chain.onGyroSample(rates, 10000000L);
+        chain.onGyroSample(rates, 20000000L);
+        chain.filter(values, 10000000L);
+        assertTrue(values[1] > 0);
+
+        chain.reset();
+        values[0] = 1;
+        values[1] = 2;
+        values[2] = 3;
+        chain.filter(values, 30000000L);
+        assertEquals(2f, values[1], EPSILON);
+    }
+
+    public void testCopiesTheFilterArray() {
+        SampleFilter[] filters = {new LowPassFilter(1)};
+        FilterChain chain = new FilterChain(filters);
+        filters[0] = new RotationVectorFilter();
+        filters[0].onRotationVector(new float[] {0, 0, 0, 1}, 0);
+
+        float[] values = {1, 2, 3};
+        chain.filter(values, 0);
+        assertEquals(1f, values[0], EPSILON);
+    }
+}
@@ -0,0 +1,76 @@
+package io.foolsday.quadbridge.core.filter;
+
+import junit.framework.TestCase;
+
+public class FloatRingBufferTest extends TestCase {
+
+    public void testFillsThenOverwritesOldest() {
+        FloatRingBuffer buffer = new FloatRingBuffer(3);
+        assertEquals(0, buffer.size());
+        assertEquals(3, buffer.capacity());
+
+        buffer.add(1);
+        buffer.add(2);
+        assertEquals(2, buffer.size());
+        assertEquals(1f, buffer.get(0), 0);
+        assertEquals(2f, buffer.get(1), 0);
+
+        buffer.add(3);
+        buffer.add(4);
+        assertEquals(3, buffer.size());
+        assertEquals(2f, buffer.get(0), 0);
+        assertEquals(3f, buffer.get(1), 0);
+        assertEquals(4f, buffer.get(2), 0);
+    }
+
+    public void testMeanCoversOnlyTheStoredValues() {
+        FloatRingBuffer buffer = new FloatRingBuffer(4);
+        assertEquals(0f, buffer.mean(), 0);
+        buffer.add(2);
+        assertEquals(2f, buffer.mean(), 0);
+        buffer.add(4);
+        assertEquals(3f, buffer.mean(), 0);
+
+        for (int i = 0; i < 4; i++) {
+            buffer.add(10);
+        }
+        assertEquals(10f, buffer.mean(), 0);
+    }
+
+    public void testClear() {
+        FloatRingBuffer buffer = new FloatRingBuffer(2);
+        buffer.add(5);
+        buffer.add(6);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0f, buffer.mean(), 0);
+        buffer.add(7);
+        assertEquals(7f, buffer.get(0), 0);
+    }
+
+    public void testGetOutOfRange() {
+        FloatRingBuffer buffer = new FloatRingBuffer(2);
+        buffer.add(1);
+        try {
+            buffer.get(1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+        try {
+            buffer.get(-1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+    }
+
+    public void testRejectsInvalidCapacity() {
+        try {
+            new FloatRingBuffer(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
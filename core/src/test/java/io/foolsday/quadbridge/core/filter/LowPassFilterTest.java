@@ -0,0 +1,58 @@
+package io.foolsday.quadbridge.core.filter;
+
+import junit.framework.TestCase;
+
+public class LowPassFilterTest extends TestCase {
+
+    private static final float EPSILON = 1e-5f;
+
+    public void testAveragesTheWindow() {
+        LowPassFilter filter = new LowPassFilter(2);
+        float[] values = {2, 4, 6};
+        filter.filter(values, 0);
+        assertEquals(2f, values[0], EPSILON);
+        assertEquals(4f, values[1], EPSILON);
+        assertEquals(6f, values[2], EPSILON);
+
+        values[0] = 4;
+        values[1] = 0;
+        values[2] = 6;
+        filter.filter(values, 1);
+        assertEquals(3f, values[0], EPSILON);
+        assertEquals(2f, values[1], EPSILON);
+        assertEquals(6f, values[2], EPSILON);
+
+        // The first sample has left the window.
+        values[0] = 4;
+        values[1] = 0;
+        values[2] = 6;
+        filter.filter(values, 2);
+        assertEquals(4f, values[0], EPSILON);
+        assertEquals(0f, values[1], EPSILON);
+    }
+
+    public void testSmoothsAlternatingNoise() {
+        LowPassFilter filter = new LowPassFilter();
+        float[] values = new float[3];
+        for (int i = 0; i < 20; i++) {
+            values[0] = (((0 == (i % 2)) ? 1 : -1) + 5);
+            filter.filter(values, i);
+        }
+        assertEquals(5f, values[0], EPSILON);
+    }
+
+    public void testResetForgetsOldSamples() {
+        LowPassFilter filter = new LowPassFilter();
+        float[] values = {10, 10, 10};
+        filter.filter(values, 0);
+        filter.reset();
+
+        values[0] = 1;
+        values[1] = 2;
+        values[2] = 3;
+        filter.filter(values, 1);
+        assertEquals(1f, values[0], EPSILON);
+        assertEquals(2f, values[1], EPSILON);
+        assertEquals(3f, values[2], EPSILON);
+    }
+}
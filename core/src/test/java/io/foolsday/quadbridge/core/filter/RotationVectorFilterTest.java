@@ -0,0 +1,73 @@
+package io.foolsday.quadbridge.core.filter;
+
+import junit.framework.TestCase;
+
+public class RotationVectorFilterTest extends TestCase {
+
+    private static final float EPSILON = 1e-3f;
+    private static final float G = RotationVectorFilter.STANDARD_GRAVITY;
+
+    public void testPassesThroughUntilTheFirstRotation() {
+        RotationVectorFilter filter = new RotationVectorFilter();
+        float[] values = {1, 2, 3};
+        filter.filter(values, 0);
+        assertEquals(1f, values[0], 0);
+        assertEquals(2f, values[1], 0);
+        assertEquals(3f, values[2], 0);
+    }
+
+    public void testLevelPhoneReadsGravityOnZ() {
+        RotationVectorFilter filter = new RotationVectorFilter();
+        filter.onRotationVector(new float[] {0, 0, 0, 1}, 0);
+        float[] values = {1, 2, 3};
+        filter.filter(values, 0);
+        assertEquals(0f, values[0], EPSILON);
+        assertEquals(0f, values[1], EPSILON);
+        assertEquals(G, values[2], EPSILON);
+    }
+
+    public void testTiltMatchesAnAccelerometerAtRest() {
+        RotationVectorFilter filter = new RotationVectorFilter();
+        // A quarter turn about x stands the phone on its bottom edge.
+        float s = (float) Math.sin(Math.PI / 4);
+        filter.onRotationVector(new float[] {s, 0, 0, s}, 0);
+        float[] values = new float[3];
+        filter.filter(values, 0);
+        assertEquals(0f, values[0], EPSILON);
+        assertEquals(G, values[1], EPSILON);
+        assertEquals(0f, values[2], EPSILON);
+
+        // A quarter turn about y lays it on its side.
+        filter.onRotationVector(new float[] {0, s, 0, s}, 0);
+        filter.filter(values, 0);
+        assertEquals(-G, values[0], EPSILON);
+        assertEquals(0f, values[1], EPSILON);
+        assertEquals(0f, values[2], EPSILON);
+    }
+
+    public void testScalarPartIsDerivedWhenMissing() {
+        RotationVectorFilter withW = new RotationVectorFilter();
+        RotationVectorFilter withoutW = new RotationVectorFilter();
+        float s = (float) Math.sin(0.2);
+        float c = (float) Math.cos(0.2);
+        withW.onRotationVector(new float[] {s, 0, 0, c}, 0);
+        withoutW.onRotationVector(new float[] {s, 0, 0}, 0);
+
+        float[] expected = new float[3];
+        float[] actual = new float[3];
+        withW.filter(expected, 0);
+        withoutW.filter(actual, 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(expected[i], actual[i], EPSILON);
+        }
+    }
+
+    public void testResetPassesThroughAgain() {
+        RotationVectorFilter filter = new RotationVectorFilter();
+        filter.onRotationVector(new float[] {0, 0, 0, 1}, 0);
+        filter.reset();
+        float[] values = {1, 2, 3};
+        filter.filter(values, 0);
+        assertEquals(1f, values[0], 0);
+    }
+}
@@ -0,0 +1,124 @@
+package io.foolsday.quadbridge.core.filter;
+
+import io.foolsday.quadbridge.core.Calibration;
+import io.foolsday.quadbridge.core.CalibrationCapture;
+import junit.framework.TestCase;
+
+public class SamplePipelineTest extends TestCase {
+
+    private static final float EPSILON = 1e-3f;
+    private static final long SAMPLE_INTERVAL_NS = 5000000L;
+    private static final int SETTLE_SAMPLES = 200;
+
+    private static final float[] SAMPLE = {1.0f, 2.0f, 9.0f};
+    private static final Calibration OFFSETS = new Calibration(9.8f, 0.5f, -0.25f, 0.125f);
+
+    // A quarter turn about x tips the phone onto its side: gravity reads along y.
+    private static final float[] TILTED = {
+            (float) Math.sin(Math.PI / 4), 0, 0, (float) Math.cos(Math.PI / 4)};
+
+    private static SampleFilter[] allFilters() {
+        return new SampleFilter[] {
+                null,
+                new LowPassFilter(),
+                new ComplementaryFilter(),
+                new RotationVectorFilter(),
+                new FilterChain(new RotationVectorFilter(), new LowPassFilter())};
+    }
+
+    /**
+     * Feeds the same sample (and, for the fusion filters, a still phone) until the filter has
+     * settled.
+     *
+     * @return The last output.
+     */
+    private static float[] settle(SamplePipeline pipeline, float[] rotationVector) {
+        float[] values = new float[3];
+        float[] rates = new float[3];
+        long timestampNs = SAMPLE_INTERVAL_NS;
+        for (int i = 0; i < SETTLE_SAMPLES; i++) {
+            pipeline.onRotationVector(rotationVector, timestampNs);
+            pipeline.onGyroSample(rates, timestampNs);
+            System.arraycopy(SAMPLE, 0, values, 0, values.length);
+            pipeline.process(values, timestampNs);
+            timestampNs += SAMPLE_INTERVAL_NS;
+        }
+        return values;
+    }
+
+    public void testOffsetsAreRemovedFromEveryFilterOutput() {
+        float[] identity = {0, 0, 0, 1};
+        SampleFilter[] filters = allFilters();
+        SampleFilter[] references = allFilters();
+        for (int i = 0; i < filters.length; i++) {
+            SamplePipeline reference = new SamplePipeline();
+            reference.setFilter(references[i]);
+            float[] expected = settle(reference, identity);
+
+            SamplePipeline pipeline = new SamplePipeline();
+            pipeline.setFilter(filters[i]);
+            pipeline.setCalibration(OFFSETS);
+            float[] actual = settle(pipeline, identity);
+
+            String filter = ((null == filters[i]) ? "none" : filters[i].getClass().getName());
+            assertEquals(filter, (expected[0] - OFFSETS.getOffsetX()), actual[0], EPSILON);
+            assertEquals(filter, (expected[1] - OFFSETS.getOffsetY()), actual[1], EPSILON);
+            assertEquals(filter, (expected[2] - OFFSETS.getOffsetZ()), actual[2], EPSILON);
+        }
+    }
+
+    public void testRotationVectorOutputIsCalibrated() {
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.setFilter(new RotationVectorFilter());
+        pipeline.setCalibration(OFFSETS);
+
+        float[] values = settle(pipeline, new float[] {0, 0, 0, 1});
+        assertEquals(-0.5f, values[0], EPSILON);
+        assertEquals(0.25f, values[1], EPSILON);
+        assertEquals((RotationVectorFilter.STANDARD_GRAVITY - 0.125f), values[2], EPSILON);
+    }
+
+    public void testCaptureMeasuresTheFilterOutput() {
+        for (SampleFilter filter : allFilters()) {
+            SamplePipeline pipeline = new SamplePipeline(new CalibrationCapture(4));
+            pipeline.setFilter(filter);
+            pipeline.setCalibration(OFFSETS);
+            settle(pipeline, TILTED);
+
+            pipeline.startCapture();
+            assertTrue(pipeline.isCapturing());
+            float[] values = new float[3];
+            long timestampNs = ((SETTLE_SAMPLES + 1) * SAMPLE_INTERVAL_NS);
+            boolean captured = false;
+            for (int i = 0; (i < 4) && !captured; i++) {
+                pipeline.onRotationVector(TILTED, timestampNs);
+                System.arraycopy(SAMPLE, 0, values, 0, values.length);
+                captured = pipeline.process(values, timestampNs);
+                timestampNs += SAMPLE_INTERVAL_NS;
+            }
+            assertTrue(captured);
+            assertFalse(pipeline.isCapturing());
+
+            // Whatever the filter made of the held pose now reads as level.
+            String name = ((null == filter) ? "none" : filter.getClass().getName());
+            float gravity = pipeline.getCalibration().getMaxRange();
+            assertEquals(name, 0, values[0], EPSILON);
+            assertEquals(name, 0, values[1], EPSILON);
+            assertEquals(name, gravity, values[2], EPSILON);
+        }
+    }
+
+    public void testResetReachesTheFilter() {
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.setFilter(new RotationVectorFilter());
+        settle(pipeline, TILTED);
+        pipeline.reset();
+
+        // Until the next rotation vector, samples pass through again.
+        float[] values = SAMPLE.clone();
+        pipeline.process(values, 0);
+        assertEquals(SAMPLE[0], values[0], EPSILON);
+        assertEquals(SAMPLE[1], values[1], EPSILON);
+        assertEquals(SAMPLE[2], values[2], EPSILON);
+    }
+}
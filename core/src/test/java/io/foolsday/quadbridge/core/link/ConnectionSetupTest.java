@@ -0,0 +1,114 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.NanoClock;
+
+import junit.framework.TestCase;
+
+public class ConnectionSetupTest extends TestCase {
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private static class ManualClock implements NanoClock {
+
+        long mNowNs = (1000 * NANOS_PER_MS);
+
+        @Override
+        public long nanoTime() {
+            return mNowNs;
+        }
+    }
+
+    private ManualClock mClock;
+    private ConnectionSetup mSetup;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new ManualClock();
+        mSetup = new ConnectionSetup();
+        mSetup.setClock(mClock);
+    }
+
+    private void runPhase(int phase, long durationMs) {
+        mSetup.begin(phase);
+        mClock.mNowNs += (durationMs * NANOS_PER_MS);
+        mSetup.end(phase);
+    }
+
+    public void testTimesPhases() {
+        runPhase(ConnectionSetup.PHASE_CONNECT, 120);
+        runPhase(ConnectionSetup.PHASE_DISCOVERY, 300);
+        assertEquals((120 * NANOS_PER_MS),
+                mSetup.getDurationNs(ConnectionSetup.PHASE_CONNECT));
+        assertEquals((300 * NANOS_PER_MS),
+                mSetup.getDurationNs(ConnectionSetup.PHASE_DISCOVERY));
+        assertEquals(-1, mSetup.getDurationNs(ConnectionSetup.PHASE_MTU));
+        assertEquals((420 * NANOS_PER_MS), mSetup.getTotalNs());
+    }
+
+    public void testEndWithoutBeginIsIgnored() {
+        mSetup.end(ConnectionSetup.PHASE_MTU);
+        assertEquals(-1, mSetup.getDurationNs(ConnectionSetup.PHASE_MTU));
+
+        // Ending twice keeps the first duration.
+        runPhase(ConnectionSetup.PHASE_MTU, 40);
+        mClock.mNowNs += (100 * NANOS_PER_MS);
+        mSetup.end(ConnectionSetup.PHASE_MTU);
+        assertEquals((40 * NANOS_PER_MS), mSetup.getDurationNs(ConnectionSetup.PHASE_MTU));
+    }
+
+    public void testMtuBoundsTheWriteLength() {
+        assertEquals(ConnectionSetup.DEFAULT_MTU, mSetup.getMtu());
+        assertEquals(BridgeProtocol.DEFAULT_MAX_WRITE_LEN, mSetup.getMaxWriteLen());
+
+        mSetup.setMtu(ConnectionSetup.PREFERRED_MTU);
+        assertEquals((ConnectionSetup.PREFERRED_MTU - ConnectionSetup.ATT_HEADER_LEN),
+                mSetup.getMaxWriteLen());
+
+        // The ATT minimum can't be undercut.
+        mSetup.setMtu(10);
+        assertEquals(ConnectionSetup.DEFAULT_MTU, mSetup.getMtu());
+    }
+
+    public void testIntervalFromTheShorterRoundTrip() {
+        assertEquals(0, mSetup.getConnectionIntervalNs());
+        assertEquals(0, mSetup.getConnectionIntervalMs());
+
+        runPhase(ConnectionSetup.PHASE_CCCD, 60);
+        assertEquals((30 * NANOS_PER_MS), mSetup.getConnectionIntervalNs());
+
+        runPhase(ConnectionSetup.PHASE_NEGOTIATION, 45);
+        assertEquals((45 * NANOS_PER_MS / 2), mSetup.getConnectionIntervalNs());
+        // Rounded up to whole milliseconds.
+        assertEquals(23, mSetup.getConnectionIntervalMs());
+    }
+
+    public void testIntervalIsClamped() {
+        runPhase(ConnectionSetup.PHASE_CCCD, 2);
+        assertEquals(ConnectionSetup.MIN_CONNECTION_INTERVAL_NS,
+                mSetup.getConnectionIntervalNs());
+
+        mSetup.reset();
+        runPhase(ConnectionSetup.PHASE_NEGOTIATION, 10000);
+        assertEquals(ConnectionSetup.MAX_CONNECTION_INTERVAL_NS,
+                mSetup.getConnectionIntervalNs());
+    }
+
+    public void testResetForgetsEverything() {
+        runPhase(ConnectionSetup.PHASE_CCCD, 60);
+        mSetup.setMtu(100);
+        mSetup.reset();
+        assertEquals(-1, mSetup.getDurationNs(ConnectionSetup.PHASE_CCCD));
+        assertEquals(0, mSetup.getTotalNs());
+        assertEquals(ConnectionSetup.DEFAULT_MTU, mSetup.getMtu());
+        assertEquals(0, mSetup.getConnectionIntervalNs());
+    }
+
+    public void testToStringListsPhases() {
+        runPhase(ConnectionSetup.PHASE_CONNECT, 120);
+        String text = mSetup.toString();
+        assertTrue(text, text.contains("connect=120.0ms"));
+        assertTrue(text, text.contains("mtu=-"));
+        assertTrue(text, text.contains("mtu=23"));
+    }
+}
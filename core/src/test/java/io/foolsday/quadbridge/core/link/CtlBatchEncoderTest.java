@@ -0,0 +1,102 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.ControlState;
+
+import junit.framework.TestCase;
+
+public class CtlBatchEncoderTest extends TestCase {
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private static int sampleAt(byte[] frame, int index, int field) {
+        return frame[BridgeProtocol.CTL_V2_HEADER_LEN +
+                (index * BridgeProtocol.CTL_V2_SAMPLE_LEN) + field];
+    }
+
+    public void testNothingToEncode() {
+        assertNull(new CtlBatchEncoder().encode(0));
+    }
+
+    public void testEncodesSamplesOldestFirst() {
+        CtlBatchEncoder encoder = new CtlBatchEncoder();
+        encoder.add(ControlState.pack(10, 1, 2, 3), ((0x1234 - 10) * NANOS_PER_MS));
+        encoder.add(ControlState.pack(20, -1, -2, -3), ((0x1234 - 4) * NANOS_PER_MS));
+        byte[] frame = encoder.encode(0x1234 * NANOS_PER_MS);
+
+        assertEquals(BridgeProtocol.CTL_V2_HEADER_LEN + (2 * BridgeProtocol.CTL_V2_SAMPLE_LEN),
+                frame.length);
+        assertEquals(BridgeProtocol.BLE_CMD_CTL_V2, frame[0]);
+        assertEquals(0, frame[BridgeProtocol.CTL_V2_SEQUENCE]);
+        assertEquals(0x12, frame[BridgeProtocol.CTL_V2_TIME]);
+        assertEquals(0x34, frame[BridgeProtocol.CTL_V2_TIME + 1]);
+
+        assertEquals(10, sampleAt(frame, 0, 0));
+        assertEquals(10, sampleAt(frame, 0, 1));
+        assertEquals(1, sampleAt(frame, 0, 2));
+        assertEquals(2, sampleAt(frame, 0, 3));
+        assertEquals(3, sampleAt(frame, 0, 4));
+        assertEquals(4, sampleAt(frame, 1, 0));
+        assertEquals(20, sampleAt(frame, 1, 1));
+        assertEquals(-1, sampleAt(frame, 1, 2));
+        assertEquals(-2, sampleAt(frame, 1, 3));
+        assertEquals(-3, sampleAt(frame, 1, 4));
+        assertEquals(0, encoder.getPendingSamples());
+    }
+
+    public void testClampsAge() {
+        CtlBatchEncoder encoder = new CtlBatchEncoder();
+        encoder.add(0, 0);
+        encoder.add(0, (2000 * NANOS_PER_MS));
+        byte[] frame = encoder.encode(1000 * NANOS_PER_MS);
+        assertEquals(0xFF, (sampleAt(frame, 0, 0) & 0xFF));
+        assertEquals(0, sampleAt(frame, 1, 0));
+    }
+
+    public void testSequenceWraps() {
+        CtlBatchEncoder encoder = new CtlBatchEncoder();
+        for (int i = 0; i < 300; i++) {
+            encoder.add(i, 0);
+            byte[] frame = encoder.encode(0);
+            assertEquals((byte) i, frame[BridgeProtocol.CTL_V2_SEQUENCE]);
+        }
+        encoder.reset();
+        encoder.add(0, 0);
+        assertEquals(0, encoder.encode(0)[BridgeProtocol.CTL_V2_SEQUENCE]);
+    }
+
+    public void testDropsOldestWhenFull() {
+        CtlBatchEncoder encoder = new CtlBatchEncoder();
+        encoder.setMaxWriteLen(BridgeProtocol.DEFAULT_MAX_WRITE_LEN);
+        int max = encoder.getMaxSamples();
+        assertEquals(3, max);
+
+        for (int i = 0; i < (max + 2); i++) {
+            encoder.add(ControlState.pack(i, 0, 0, 0), 0);
+        }
+        assertEquals(max, encoder.getPendingSamples());
+        byte[] frame = encoder.encode(0);
+        assertTrue(BridgeProtocol.DEFAULT_MAX_WRITE_LEN >= frame.length);
+        for (int i = 0; i < max; i++) {
+            assertEquals((i + 2), sampleAt(frame, i, 1));
+        }
+    }
+
+    public void testLargerWritesCarryMoreSamples() {
+        CtlBatchEncoder encoder = new CtlBatchEncoder();
+        encoder.setMaxWriteLen(512);
+        assertEquals(CtlBatchEncoder.MAX_SAMPLES, encoder.getMaxSamples());
+        encoder.setMaxWriteLen(1);
+        assertEquals(1, encoder.getMaxSamples());
+    }
+
+    public void testFramesInFlightAreNotReused() {
+        CtlBatchEncoder encoder = new CtlBatchEncoder(2);
+        encoder.add(ControlState.pack(1, 0, 0, 0), 0);
+        byte[] first = encoder.encode(0);
+        encoder.add(ControlState.pack(2, 0, 0, 0), 0);
+        byte[] second = encoder.encode(0);
+        assertNotSame(first, second);
+        assertEquals(1, sampleAt(first, 0, 1));
+        assertEquals(2, sampleAt(second, 0, 1));
+    }
+}
@@ -0,0 +1,225 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.NanoClock;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Most of these tests never start the loop thread; they call run() on the test thread instead,
+ * which handles everything that is due and returns since the loop isn't running.
+ */
+public class LinkEventLoopTest extends TestCase {
+
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 100000;
+
+    private static class ManualClock implements NanoClock {
+
+        long mNowNs;
+
+        @Override
+        public long nanoTime() {
+            return mNowNs;
+        }
+    }
+
+    /**
+     * Checks that every event's value is one more than the previous value for that event.
+     */
+    private static class OrderChecker implements LinkEventLoop.EventHandler {
+
+        final long[] mLast = new long[PRODUCERS];
+        long mHandled;
+        long mOutOfOrder;
+
+        @Override
+        public void onEvent(int event, int arg, long value, Object obj) {
+            if (value != (mLast[event] + 1)) {
+                mOutOfOrder++;
+            }
+            mLast[event] = value;
+            mHandled++;
+        }
+    }
+
+    private static class Counter implements LinkEventLoop.EventHandler {
+
+        int mCount;
+        int mLastEvent = -1;
+
+        @Override
+        public void onEvent(int event, int arg, long value, Object obj) {
+            mCount++;
+            mLastEvent = event;
+        }
+    }
+
+    public void testCapacityIsRoundedUp() {
+        assertEquals(2, new LinkEventLoop(1).getCapacity());
+        assertEquals(8, new LinkEventLoop(8).getCapacity());
+        assertEquals(16, new LinkEventLoop(9).getCapacity());
+    }
+
+    public void testWrapsAround() {
+        for (int capacity = 2; capacity <= 64; capacity *= 2) {
+            LinkEventLoop loop = new LinkEventLoop(capacity);
+            OrderChecker checker = new OrderChecker();
+            long value = 1;
+            // Uneven batches so that the head and the tail cross the end of the ring at
+            // different slots every time.
+            for (int round = 0; round < (4 * capacity); round++) {
+                int batch = (1 + (round % capacity));
+                for (int i = 0; i < batch; i++) {
+                    assertTrue(loop.post(checker, 0, 0, value++, null));
+                }
+                loop.run();
+                assertEquals(0, loop.getDepth());
+            }
+            assertEquals((value - 1), checker.mHandled);
+            assertEquals(0, checker.mOutOfOrder);
+            assertEquals(0, loop.getRejected());
+        }
+    }
+
+    public void testRejectsWhenFull() {
+        LinkEventLoop loop = new LinkEventLoop(8);
+        OrderChecker checker = new OrderChecker();
+        for (int i = 1; i <= 8; i++) {
+            assertTrue(loop.post(checker, 0, 0, i, null));
+        }
+        assertFalse(loop.post(checker, 0, 0, 9, null));
+        assertEquals(1, loop.getRejected());
+        assertEquals(8, loop.getDepth());
+        assertEquals(8, loop.getPosted());
+
+        loop.run();
+        assertEquals(8, checker.mHandled);
+        assertEquals(0, checker.mOutOfOrder);
+        assertEquals(8, loop.getMaxDepth());
+
+        // The slots are free again.
+        assertTrue(loop.post(checker, 0, 0, 9, null));
+        loop.run();
+        assertEquals(9, checker.mHandled);
+        assertEquals(0, checker.mOutOfOrder);
+    }
+
+    public void testRejectsOnceStopped() {
+        LinkEventLoop loop = new LinkEventLoop(8);
+        loop.stop();
+        assertFalse(loop.post(new Counter(), 0));
+        assertEquals(1, loop.getRejected());
+    }
+
+    public void testTimerFires() {
+        ManualClock clock = new ManualClock();
+        LinkEventLoop loop = new LinkEventLoop(8);
+        loop.setClock(clock);
+        Counter counter = new Counter();
+
+        loop.schedule(counter, 3, TimeUnit.MILLISECONDS.toNanos(10));
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(9);
+        loop.run();
+        assertEquals(0, counter.mCount);
+
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(1);
+        loop.run();
+        assertEquals(1, counter.mCount);
+        assertEquals(3, counter.mLastEvent);
+
+        // A timer fires once.
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(10);
+        loop.run();
+        assertEquals(1, counter.mCount);
+    }
+
+    public void testRescheduleRestartsTimer() {
+        ManualClock clock = new ManualClock();
+        LinkEventLoop loop = new LinkEventLoop(8);
+        loop.setClock(clock);
+        Counter counter = new Counter();
+
+        loop.schedule(counter, 0, TimeUnit.MILLISECONDS.toNanos(10));
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(5);
+        loop.schedule(counter, 0, TimeUnit.MILLISECONDS.toNanos(10));
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(5);
+        loop.run();
+        assertEquals(0, counter.mCount);
+
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(5);
+        loop.run();
+        assertEquals(1, counter.mCount);
+    }
+
+    public void testCancelledTimerDoesNotFire() {
+        ManualClock clock = new ManualClock();
+        LinkEventLoop loop = new LinkEventLoop(8);
+        loop.setClock(clock);
+        Counter cancelled = new Counter();
+        Counter kept = new Counter();
+
+        loop.schedule(cancelled, 0, TimeUnit.MILLISECONDS.toNanos(10));
+        loop.schedule(kept, 0, TimeUnit.MILLISECONDS.toNanos(10));
+        loop.cancel(cancelled, 0);
+        // Cancelling a timer that isn't pending does nothing.
+        loop.cancel(cancelled, 1);
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(10);
+        loop.run();
+        assertEquals(0, cancelled.mCount);
+        assertEquals(1, kept.mCount);
+    }
+
+    public void testTooManyTimers() {
+        LinkEventLoop loop = new LinkEventLoop(8);
+        Counter counter = new Counter();
+        for (int i = 0; i < LinkEventLoop.MAX_TIMERS; i++) {
+            loop.schedule(counter, i, 1);
+        }
+        // Restarting a pending timer doesn't take another one.
+        loop.schedule(counter, 0, 1);
+        try {
+            loop.schedule(counter, LinkEventLoop.MAX_TIMERS, 1);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    public void testProducersOnManyThreads() throws InterruptedException {
+        final LinkEventLoop loop = new LinkEventLoop(64);
+        final OrderChecker checker = new OrderChecker();
+        loop.start();
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int event = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (long value = 1; value <= EVENTS_PER_PRODUCER; ) {
+                        if (loop.post(checker, event, 0, value, null)) {
+                            value++;
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        long endMs = (System.currentTimeMillis() + 2000);
+        while ((loop.getHandled() < (PRODUCERS * EVENTS_PER_PRODUCER)) &&
+                (System.currentTimeMillis() < endMs)) {
+            Thread.sleep(1);
+        }
+        loop.stop();
+        assertEquals((PRODUCERS * EVENTS_PER_PRODUCER), loop.getHandled());
+        assertEquals(0, checker.mOutOfOrder);
+    }
+}
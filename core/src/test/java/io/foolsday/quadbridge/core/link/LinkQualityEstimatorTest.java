@@ -0,0 +1,158 @@
+package io.foolsday.quadbridge.core.link;
+
+import junit.framework.TestCase;
+
+public class LinkQualityEstimatorTest extends TestCase {
+
+    private static final long GOOD_LATENCY_NS = 10000000L;
+    private static final long BAD_LATENCY_NS = 250000000L;
+
+    private static class QualityRecorder implements LinkQualityEstimator.LinkQualityListener {
+
+        int mChanges;
+        int mQuality = LinkQualityEstimator.QUALITY_UNKNOWN;
+        int mScore;
+
+        @Override
+        public void onLinkQualityChanged(int quality, int score) {
+            mChanges++;
+            mQuality = quality;
+            mScore = score;
+        }
+    }
+
+    private LinkQualityEstimator mEstimator;
+    private QualityRecorder mRecorder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEstimator = new LinkQualityEstimator();
+        mRecorder = new QualityRecorder();
+        mEstimator.addListener(mRecorder);
+    }
+
+    public void testUnknownUntilTheFirstRssi() {
+        for (int i = 0; i < 10; i++) {
+            mEstimator.onWriteComplete(false, 0);
+        }
+        assertEquals(LinkQualityEstimator.QUALITY_UNKNOWN, mEstimator.getQuality());
+        assertEquals(0, mRecorder.mChanges);
+        assertEquals(LinkQualityEstimator.DEFAULT_POLL_INTERVAL_MS,
+                mEstimator.getPollIntervalMs());
+    }
+
+    public void testRssiSetsTheLevel() {
+        mEstimator.onRssi(-60);
+        assertEquals(100, mEstimator.getScore());
+        assertEquals(LinkQualityEstimator.QUALITY_GOOD, mRecorder.mQuality);
+        assertEquals(100, mRecorder.mScore);
+
+        mEstimator.reset();
+        mEstimator.onRssi(-74);
+        assertEquals(60, mEstimator.getScore());
+        assertEquals(LinkQualityEstimator.QUALITY_FAIR, mEstimator.getQuality());
+
+        mEstimator.reset();
+        mEstimator.onRssi(-95);
+        assertEquals(0, mEstimator.getScore());
+        assertEquals(LinkQualityEstimator.QUALITY_POOR, mEstimator.getQuality());
+        assertEquals(LinkQualityEstimator.FAST_POLL_INTERVAL_MS, mEstimator.getPollIntervalMs());
+    }
+
+    public void testRssiIsSmoothed() {
+        mEstimator.onRssi(-60);
+        mEstimator.onRssi(-80);
+        assertEquals(-65, mEstimator.getSmoothedRssi());
+    }
+
+    public void testFailuresLowerTheScoreWithHysteresis() {
+        mEstimator.onRssi(-60);
+        assertEquals(1, mRecorder.mChanges);
+
+        // Four failures take the score just below the good threshold, which isn't enough to
+        // leave the level.
+        for (int i = 0; i < 4; i++) {
+            mEstimator.onWriteComplete(false, 0);
+        }
+        assertTrue(70 > mEstimator.getScore());
+        assertEquals(LinkQualityEstimator.QUALITY_GOOD, mEstimator.getQuality());
+        assertEquals(1, mRecorder.mChanges);
+
+        mEstimator.onWriteComplete(false, 0);
+        assertEquals(LinkQualityEstimator.QUALITY_FAIR, mRecorder.mQuality);
+        assertEquals(2, mRecorder.mChanges);
+
+        // Back above the threshold isn't enough either; the score has to clear it.
+        while (70 > mEstimator.getScore()) {
+            mEstimator.onWriteComplete(true, GOOD_LATENCY_NS);
+        }
+        assertTrue(75 > mEstimator.getScore());
+        assertEquals(LinkQualityEstimator.QUALITY_FAIR, mEstimator.getQuality());
+        while (75 > mEstimator.getScore()) {
+            mEstimator.onWriteComplete(true, GOOD_LATENCY_NS);
+        }
+        assertEquals(LinkQualityEstimator.QUALITY_GOOD, mRecorder.mQuality);
+        assertEquals(3, mRecorder.mChanges);
+        assertTrue(0 < mEstimator.getFailureRate());
+    }
+
+    public void testSlowWritesCostPoints() {
+        mEstimator.onRssi(-60);
+        for (int i = 0; i < 100; i++) {
+            mEstimator.onWriteComplete(true, BAD_LATENCY_NS);
+        }
+        assertEquals(60, mEstimator.getScore());
+        assertEquals(LinkQualityEstimator.QUALITY_FAIR, mEstimator.getQuality());
+        assertEquals(BAD_LATENCY_NS, mEstimator.getAverageLatencyNs(), (BAD_LATENCY_NS / 100));
+
+        // Failed writes don't count towards the latency.
+        mEstimator.onWriteComplete(false, 0);
+        assertEquals(BAD_LATENCY_NS, mEstimator.getAverageLatencyNs(), (BAD_LATENCY_NS / 100));
+    }
+
+    public void testPollsSlowlyWhileStableAndQuicklyWhileDegrading() {
+        mEstimator.onRssi(-60);
+        assertEquals(LinkQualityEstimator.DEFAULT_POLL_INTERVAL_MS,
+                mEstimator.getPollIntervalMs());
+        for (int i = 0; i < 5; i++) {
+            mEstimator.onRssi(-60);
+        }
+        assertEquals(LinkQualityEstimator.SLOW_POLL_INTERVAL_MS, mEstimator.getPollIntervalMs());
+
+        mEstimator.onRssi(-70);
+        assertTrue(mEstimator.isDegrading());
+        assertEquals(LinkQualityEstimator.FAST_POLL_INTERVAL_MS, mEstimator.getPollIntervalMs());
+
+        mEstimator.onRssi(-62);
+        assertFalse(mEstimator.isDegrading());
+    }
+
+    public void testListeners() {
+        QualityRecorder other = new QualityRecorder();
+        mEstimator.addListener(other);
+        mEstimator.addListener(other);
+        mEstimator.onRssi(-60);
+        assertEquals(1, mRecorder.mChanges);
+        assertEquals(1, other.mChanges);
+
+        mEstimator.removeListener(mRecorder);
+        mEstimator.onRssi(-95);
+        mEstimator.onRssi(-95);
+        mEstimator.onRssi(-95);
+        mEstimator.onRssi(-95);
+        assertEquals(1, mRecorder.mChanges);
+        assertTrue(1 < other.mChanges);
+    }
+
+    public void testResetForgetsTheLink() {
+        mEstimator.onRssi(-60);
+        mEstimator.onWriteComplete(false, 0);
+        mEstimator.reset();
+        assertEquals(LinkQualityEstimator.QUALITY_UNKNOWN, mEstimator.getQuality());
+        assertEquals(0, mEstimator.getScore());
+        assertEquals(0, mEstimator.getSmoothedRssi());
+        assertEquals(0, mEstimator.getFailureRate(), 0);
+        assertEquals(1, mRecorder.mChanges);
+    }
+}
@@ -0,0 +1,151 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.NanoClock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class OperationQueueTest extends TestCase {
+
+    private static final long TIMEOUT_NS = 1000;
+
+    private final List<String> mStarted = new ArrayList<String>();
+    private final List<String> mFailed = new ArrayList<String>();
+    private final List<String> mTimedOut = new ArrayList<String>();
+    private long mNowNs;
+    private OperationQueue mQueue;
+
+    private class Op implements OperationQueue.Operation {
+
+        final String mName;
+        boolean mStarts = true;
+
+        Op(String name) {
+            mName = name;
+        }
+
+        @Override
+        public boolean start() {
+            mStarted.add(mName);
+            return mStarts;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new OperationQueue(2);
+        mQueue.setClock(new NanoClock() {
+            @Override
+            public long nanoTime() {
+                return mNowNs;
+            }
+        });
+        mQueue.setListener(new OperationQueue.Listener() {
+            @Override
+            public void onOperationFailed(OperationQueue.Operation op) {
+                mFailed.add(op.toString());
+            }
+
+            @Override
+            public void onOperationTimeout(OperationQueue.Operation op) {
+                mTimedOut.add(op.toString());
+            }
+        });
+    }
+
+    public void testRunsOneAtATimeByPriority() {
+        Op a = new Op("a");
+        Op b = new Op("b");
+        Op c = new Op("c");
+        assertTrue(mQueue.enqueue(a, OperationQueue.PRIORITY_BACKGROUND, TIMEOUT_NS));
+        assertTrue(mQueue.enqueue(b, OperationQueue.PRIORITY_BACKGROUND, TIMEOUT_NS));
+        assertTrue(mQueue.enqueue(c, OperationQueue.PRIORITY_SETUP, TIMEOUT_NS));
+        assertEquals("[a]", mStarted.toString());
+        assertEquals(2, mQueue.getDepth());
+
+        assertTrue(mQueue.onOperationComplete(a));
+        assertTrue(mQueue.onOperationComplete(c));
+        assertTrue(mQueue.onOperationComplete(b));
+        assertEquals("[a, c, b]", mStarted.toString());
+        assertTrue(mQueue.isIdle());
+        assertEquals(3, mQueue.getCompleted());
+    }
+
+    public void testCollapsesRepeatedRequests() {
+        Op a = new Op("a");
+        Op b = new Op("b");
+        assertTrue(mQueue.enqueue(a, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS));
+        assertTrue(mQueue.enqueue(b, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS));
+        assertFalse(mQueue.enqueue(a, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS));
+        assertFalse(mQueue.enqueue(b, OperationQueue.PRIORITY_BACKGROUND, TIMEOUT_NS));
+        assertEquals(2, mQueue.getRejected());
+        assertEquals(1, mQueue.getDepth());
+    }
+
+    public void testRejectsWhenPriorityIsFull() {
+        mQueue.enqueue(new Op("running"), OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+        assertTrue(mQueue.enqueue(new Op("a"), OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS));
+        assertTrue(mQueue.enqueue(new Op("b"), OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS));
+        assertFalse(mQueue.enqueue(new Op("c"), OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS));
+        // Other priorities have their own slots.
+        assertTrue(mQueue.enqueue(new Op("d"), OperationQueue.PRIORITY_SETUP, TIMEOUT_NS));
+        assertEquals(1, mQueue.getRejected());
+        assertEquals(3, mQueue.getMaxDepth());
+    }
+
+    public void testFailedStartMovesOn() {
+        Op running = new Op("running");
+        Op failing = new Op("failing");
+        failing.mStarts = false;
+        Op next = new Op("next");
+        mQueue.enqueue(running, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+        mQueue.enqueue(failing, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+        mQueue.enqueue(next, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+
+        mQueue.onOperationComplete(running);
+        assertEquals("[running, failing, next]", mStarted.toString());
+        assertEquals("[failing]", mFailed.toString());
+        assertEquals(1, mQueue.getFailures());
+    }
+
+    public void testTimesOut() {
+        Op slow = new Op("slow");
+        Op next = new Op("next");
+        mQueue.enqueue(slow, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+        mQueue.enqueue(next, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+
+        mNowNs += (TIMEOUT_NS - 1);
+        assertEquals(1, mQueue.checkTimeout());
+        assertTrue(mTimedOut.isEmpty());
+
+        mNowNs += 1;
+        assertEquals(TIMEOUT_NS, mQueue.checkTimeout());
+        assertEquals("[slow]", mTimedOut.toString());
+        assertEquals("[slow, next]", mStarted.toString());
+
+        // The completion of the operation that timed out is too late.
+        assertFalse(mQueue.onOperationComplete(slow));
+        assertEquals(1, mQueue.getLateCompletions());
+        assertTrue(mQueue.onOperationComplete(next));
+        assertEquals(-1, mQueue.checkTimeout());
+    }
+
+    public void testClear() {
+        Op running = new Op("running");
+        mQueue.enqueue(running, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+        mQueue.enqueue(new Op("waiting"), OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS);
+        mQueue.clear();
+        assertTrue(mQueue.isIdle());
+        assertFalse(mQueue.onOperationComplete(running));
+        // The same operation can be queued again.
+        assertTrue(mQueue.enqueue(running, OperationQueue.PRIORITY_CONTROL, TIMEOUT_NS));
+    }
+}
@@ -0,0 +1,320 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.NanoClock;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs QuadLink against a SimulatedBridge: version negotiation, including the fall back to
+ * version 1, and control frames of both versions reaching the bridge intact. The responses
+ * that arrive after a negotiation timeout are checked against a FakeTransport instead, with
+ * the test thread running the event loop.
+ */
+public class QuadLinkTest extends TestCase {
+
+    private static final int NEGOTIATION_TIMEOUT_MS = 100;
+    private static final long WAIT_MS = 2000;
+    private static final int UPDATES = 200;
+
+    private static class Listener implements QuadLink.LinkEventListener {
+
+        final CountDownLatch mConnected = new CountDownLatch(1);
+        final CountDownLatch mBound = new CountDownLatch(1);
+        volatile int mProtocolVersion = -1;
+        volatile String mError;
+        volatile String mTransportError;
+
+        @Override
+        public void onConnected(int protocolVersion) {
+            mProtocolVersion = protocolVersion;
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onBound() {
+            mBound.countDown();
+        }
+
+        @Override
+        public void onUnbound() {}
+
+        @Override
+        public void onLinkError(String errString) {
+            mError = errString;
+        }
+
+        @Override
+        public void onTransportError(String errString) {
+            mTransportError = errString;
+        }
+    }
+
+    private static class ManualClock implements NanoClock {
+
+        long mNowNs;
+
+        @Override
+        public long nanoTime() {
+            return mNowNs;
+        }
+    }
+
+    /**
+     * Accepts every write; the test completes them and answers for the bridge.
+     */
+    private static class FakeTransport implements BridgeTransport {
+
+        Callback mCallback;
+        byte[] mLastWrite;
+
+        @Override
+        public void setCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            mLastWrite = data;
+            return true;
+        }
+
+        @Override
+        public int getMaxPendingWrites() {
+            return 1;
+        }
+    }
+
+    private SimulatedBridge mBridge;
+    private LinkEventLoop mLoop;
+    private Listener mListener;
+    private QuadLink mLink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBridge = new SimulatedBridge();
+        mLoop = new LinkEventLoop();
+        mLoop.start();
+        mListener = new Listener();
+        mLink = new QuadLink(mBridge, mListener, mLoop);
+        mLink.setNegotiationTimeoutMs(NEGOTIATION_TIMEOUT_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBridge.stop();
+        mLoop.stop();
+        super.tearDown();
+    }
+
+    private void connect() throws InterruptedException {
+        mBridge.start();
+        mLink.negotiate();
+        assertTrue("not connected", mListener.mConnected.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertNull(mListener.mError);
+    }
+
+    private void bind() throws InterruptedException {
+        mLink.bind();
+        assertTrue("not bound", mListener.mBound.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mLink.isBound());
+    }
+
+    /**
+     * Sends UPDATES states, each from a new sample, and waits for the last one to arrive.
+     */
+    private void fly() throws InterruptedException {
+        for (int i = 0; i < UPDATES; i++) {
+            long nowNs = System.nanoTime();
+            mLink.update(i & 0xFF, i, -i, (i / 2), nowNs, nowNs);
+            Thread.sleep(1);
+        }
+
+        int last = (UPDATES - 1);
+        byte[] expected = new byte[] {(byte) BridgeProtocol.BLE_CMD_CTL,
+                (byte) last, (byte) last, (byte) -last, (byte) (last / 2)};
+        byte[] frame = new byte[expected.length];
+        long endMs = (System.currentTimeMillis() + WAIT_MS);
+        do {
+            Thread.sleep(10);
+            mBridge.getLastCtlFrame(frame);
+        } while (!equalStates(expected, frame) && (System.currentTimeMillis() < endMs));
+        assertTrue("last state didn't arrive", equalStates(expected, frame));
+    }
+
+    private static boolean equalStates(byte[] a, byte[] b) {
+        for (int i = 1; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void testNegotiatesVersion2() throws InterruptedException {
+        connect();
+        assertEquals(BridgeProtocol.VERSION_2, mListener.mProtocolVersion);
+        assertEquals(BridgeProtocol.VERSION_2, mLink.getProtocolVersion());
+    }
+
+    public void testFallsBackToVersion1OnError() throws InterruptedException {
+        mBridge.setProtocolVersion(BridgeProtocol.VERSION_1);
+        connect();
+        assertEquals(BridgeProtocol.VERSION_1, mListener.mProtocolVersion);
+        bind();
+    }
+
+    public void testFallsBackToVersion1OnTimeout() throws InterruptedException {
+        mBridge.setProtocolVersion(BridgeProtocol.VERSION_1);
+        mBridge.setIgnoresUnknownCommands(true);
+        long startNs = System.nanoTime();
+        connect();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        assertEquals(BridgeProtocol.VERSION_1, mListener.mProtocolVersion);
+        assertTrue("connected before the timeout", elapsedMs >= NEGOTIATION_TIMEOUT_MS);
+        bind();
+    }
+
+    /**
+     * Negotiates with a bridge that never answers the version command and lets the timeout
+     * settle on version 1.
+     */
+    private static QuadLink timeOutNegotiation(FakeTransport transport,
+                                               LinkEventLoop loop,
+                                               Listener listener) {
+        ManualClock clock = new ManualClock();
+        loop.setClock(clock);
+        QuadLink link = new QuadLink(transport, listener, loop);
+        link.setNegotiationTimeoutMs(NEGOTIATION_TIMEOUT_MS);
+        link.negotiate();
+        loop.run();
+        transport.mCallback.onWriteComplete(true);
+        clock.mNowNs += TimeUnit.MILLISECONDS.toNanos(NEGOTIATION_TIMEOUT_MS);
+        loop.run();
+        assertEquals(BridgeProtocol.VERSION_1, listener.mProtocolVersion);
+        return link;
+    }
+
+    public void testLateVersionErrorIsIgnored() {
+        FakeTransport transport = new FakeTransport();
+        LinkEventLoop loop = new LinkEventLoop();
+        QuadLink link = timeOutNegotiation(transport, loop, mListener);
+
+        transport.mCallback.onNotification(new byte[] {BridgeProtocol.BLE_RESPONSE_ERROR});
+        loop.run();
+        assertNull(mListener.mError);
+
+        link.bind();
+        loop.run();
+        transport.mCallback.onWriteComplete(true);
+        transport.mCallback.onNotification(new byte[] {BridgeProtocol.BLE_RESPONSE_BOUND});
+        loop.run();
+        assertTrue(link.isBound());
+        link.reset();
+        loop.run();
+    }
+
+    public void testErrorAfterTimeoutAnswersTheBind() {
+        FakeTransport transport = new FakeTransport();
+        LinkEventLoop loop = new LinkEventLoop();
+        QuadLink link = timeOutNegotiation(transport, loop, mListener);
+
+        link.bind();
+        loop.run();
+        assertEquals(BridgeProtocol.BLE_CMD_BIND, transport.mLastWrite[0]);
+        transport.mCallback.onWriteComplete(true);
+        transport.mCallback.onNotification(new byte[] {BridgeProtocol.BLE_RESPONSE_ERROR});
+        loop.run();
+        assertEquals("Error notification received.", mListener.mError);
+        assertFalse(link.isBound());
+    }
+
+    public void testLateVersionAnswerAfterBindIsIgnored() {
+        FakeTransport transport = new FakeTransport();
+        LinkEventLoop loop = new LinkEventLoop();
+        QuadLink link = timeOutNegotiation(transport, loop, mListener);
+
+        link.bind();
+        loop.run();
+        transport.mCallback.onWriteComplete(true);
+        transport.mCallback.onNotification(new byte[] {
+                BridgeProtocol.BLE_RESPONSE_VERSION, BridgeProtocol.VERSION_2});
+        transport.mCallback.onNotification(new byte[] {BridgeProtocol.BLE_RESPONSE_BOUND});
+        loop.run();
+        assertNull(mListener.mError);
+        assertTrue(link.isBound());
+        assertEquals(BridgeProtocol.VERSION_1, link.getProtocolVersion());
+        link.reset();
+        loop.run();
+    }
+
+    public void testFailedWriteWhileBoundIsATransportError() {
+        FakeTransport transport = new FakeTransport();
+        LinkEventLoop loop = new LinkEventLoop();
+        QuadLink link = timeOutNegotiation(transport, loop, mListener);
+
+        link.bind();
+        loop.run();
+        transport.mCallback.onWriteComplete(true);
+        transport.mCallback.onNotification(new byte[] {BridgeProtocol.BLE_RESPONSE_BOUND});
+        loop.run();
+        assertTrue(link.isBound());
+
+        // The transport reports a write that timed out the same way as one that failed.
+        link.onControlTick(0, 0, 0);
+        loop.run();
+        assertEquals(BridgeProtocol.BLE_CMD_CTL, transport.mLastWrite[0]);
+        transport.mCallback.onWriteComplete(false);
+        loop.run();
+        assertEquals("A char write failed!", mListener.mTransportError);
+        assertNull(mListener.mError);
+    }
+
+    public void testRejectsInvalidNegotiationTimeout() {
+        try {
+            mLink.setNegotiationTimeoutMs(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testVersion1SendsOneSamplePerFrame() throws InterruptedException {
+        mBridge.setProtocolVersion(BridgeProtocol.VERSION_1);
+        connect();
+        bind();
+        mLink.setControlIntervalMs(1);
+        fly();
+        assertTrue(0 < mBridge.getCtlFrames());
+        assertEquals(mBridge.getCtlFrames(), mBridge.getCtlSamples());
+    }
+
+    public void testVersion2BatchesSamples() throws InterruptedException {
+        connect();
+        bind();
+        // Ticks far faster than the connection interval, so samples queue up behind each write.
+        mLink.setControlIntervalMs(1);
+        fly();
+        assertTrue(0 < mBridge.getCtlFrames());
+        assertTrue("no frame carried more than one sample",
+                mBridge.getCtlSamples() > mBridge.getCtlFrames());
+        assertEquals(0, mBridge.getSequenceErrors());
+        assertEquals(0, mBridge.getRejectedWrites());
+    }
+
+    public void testVersion2WithCredits() throws InterruptedException {
+        mBridge.stop();
+        mBridge = new SimulatedBridge(SimulatedBridge.DEFAULT_CONNECTION_INTERVAL_US, 0, 0, 4, 0);
+        mLink = new QuadLink(mBridge, mListener, mLoop);
+        assertEquals(4, mLink.setMaxOutstandingWrites(4));
+        connect();
+        bind();
+        mLink.setControlIntervalMs(1);
+        fly();
+        assertEquals(0, mBridge.getSequenceErrors());
+        assertEquals(0, mBridge.getRejectedWrites());
+    }
+}
@@ -0,0 +1,88 @@
+package io.foolsday.quadbridge.core.link;
+
+import io.foolsday.quadbridge.core.NanoClock;
+
+import junit.framework.TestCase;
+
+public class ReconnectPolicyTest extends TestCase {
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private static class ManualClock implements NanoClock {
+
+        long mNowNs = (1000 * NANOS_PER_MS);
+
+        @Override
+        public long nanoTime() {
+            return mNowNs;
+        }
+    }
+
+    private ManualClock mClock;
+    private ReconnectPolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new ManualClock();
+        mPolicy = new ReconnectPolicy();
+        mPolicy.setClock(mClock);
+    }
+
+    public void testDelayDoublesUpToTheMaximum() {
+        mPolicy.onLinkLost();
+        assertEquals(ReconnectPolicy.INITIAL_DELAY_MS, mPolicy.nextDelayMs());
+        assertEquals((2 * ReconnectPolicy.INITIAL_DELAY_MS), mPolicy.nextDelayMs());
+        assertEquals((4 * ReconnectPolicy.INITIAL_DELAY_MS), mPolicy.nextDelayMs());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ReconnectPolicy.MAX_DELAY_MS >= mPolicy.nextDelayMs());
+        }
+        assertEquals(ReconnectPolicy.MAX_DELAY_MS, mPolicy.nextDelayMs());
+    }
+
+    public void testDirectAttemptsComeFirst() {
+        mPolicy.onLinkLost();
+        for (int i = 0; i < ReconnectPolicy.DIRECT_ATTEMPTS; i++) {
+            mPolicy.nextDelayMs();
+            assertFalse(mPolicy.useAutoConnect());
+        }
+        mPolicy.nextDelayMs();
+        assertTrue(mPolicy.useAutoConnect());
+    }
+
+    public void testTimesFromTheFirstLoss() {
+        assertFalse(mPolicy.isReconnecting());
+        assertEquals(0, mPolicy.onConnected());
+
+        mPolicy.onLinkLost();
+        mPolicy.nextDelayMs();
+        assertTrue(mPolicy.isReconnecting());
+
+        // A write that times out on the way back in doesn't restart the clock or the backoff.
+        mClock.mNowNs += (300 * NANOS_PER_MS);
+        mPolicy.onLinkLost();
+        assertEquals(1, mPolicy.getAttempts());
+        assertEquals((2 * ReconnectPolicy.INITIAL_DELAY_MS), mPolicy.nextDelayMs());
+
+        mClock.mNowNs += (200 * NANOS_PER_MS);
+        assertEquals((500 * NANOS_PER_MS), mPolicy.onConnected());
+        assertFalse(mPolicy.isReconnecting());
+        assertEquals(0, mPolicy.getAttempts());
+        assertEquals((500 * NANOS_PER_MS), mPolicy.getLastReconnectNs());
+        assertEquals(1, mPolicy.getTimeToReconnect().getCount());
+    }
+
+    public void testCancelForgetsTheReconnect() {
+        mPolicy.onLinkLost();
+        mPolicy.nextDelayMs();
+        mPolicy.cancel();
+        assertFalse(mPolicy.isReconnecting());
+        assertEquals(0, mPolicy.getAttempts());
+        assertEquals(0, mPolicy.onConnected());
+        assertEquals(0, mPolicy.getTimeToReconnect().getCount());
+
+        // The next loss starts over.
+        mPolicy.onLinkLost();
+        assertEquals(ReconnectPolicy.INITIAL_DELAY_MS, mPolicy.nextDelayMs());
+    }
+}
@@ -0,0 +1,194 @@
+package io.foolsday.quadbridge.core.telemetry;
+
+import io.foolsday.quadbridge.core.QuadControl;
+import io.foolsday.quadbridge.core.curve.ResponseCurves;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Records flights with TelemetryRecorder and replays them with FlightReplay.
+ */
+public class FlightReplayTest extends TestCase {
+
+    private static final long SESSION_START_MS = 1234;
+    private static final int SEGMENT_RECORDS = 16;
+    private static final int RECORDS = ((4 * SEGMENT_RECORDS) + 3);
+    private static final float MAX_ACCEL = 9.8f;
+    private static final long WAIT_MS = 2000;
+
+    private File mDirectory;
+    private TelemetryRecorder mRecorder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("replay", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+        mRecorder = new TelemetryRecorder(mDirectory, 1024, SEGMENT_RECORDS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRecorder.stop();
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static int flagsOf(int i) {
+        int flags = TelemetryFormat.FLAG_BOUND;
+        if (0 == (i % 7)) {
+            flags |= TelemetryFormat.FLAG_HELD;
+        }
+        if (0 != (i % 3)) {
+            flags |= TelemetryFormat.FLAG_CURVES;
+            if (0 == (i % 2)) {
+                flags |= TelemetryFormat.FLAG_LOW_RATE;
+            }
+        }
+        return flags;
+    }
+
+    private void awaitWritten(long records) throws InterruptedException {
+        long endMs = (System.currentTimeMillis() + WAIT_MS);
+        while ((mRecorder.getRecordsWritten() < records) &&
+                (System.currentTimeMillis() < endMs)) {
+            Thread.sleep(1);
+        }
+        assertEquals(records, mRecorder.getRecordsWritten());
+    }
+
+    /**
+     * Flies RECORDS samples the way QuadModel does and records them.
+     *
+     * @param badSequence The sequence of a record whose model output is recorded wrong, or -1.
+     */
+    private void recordFlight(long sessionStartMs, int badSequence) throws InterruptedException {
+        long written = mRecorder.getRecordsWritten();
+        mRecorder.start();
+        mRecorder.startSession(sessionStartMs);
+
+        QuadControl control = new QuadControl();
+        control.bind();
+        ResponseCurves curves = ResponseCurves.createDefault();
+        Random random = new Random(0);
+        for (int i = 0; i < RECORDS; i++) {
+            float x = (((random.nextFloat() * 2) - 1) * MAX_ACCEL);
+            float y = (((random.nextFloat() * 2) - 1) * MAX_ACCEL);
+            int flags = flagsOf(i);
+
+            curves.setRate((0 != (flags & TelemetryFormat.FLAG_LOW_RATE))
+                    ? ResponseCurves.LOW_RATE : ResponseCurves.HIGH_RATE);
+            control.setResponseCurves((0 != (flags & TelemetryFormat.FLAG_CURVES))
+                    ? curves : null);
+            control.setThrottle(i);
+            if (0 != (flags & TelemetryFormat.FLAG_HELD)) {
+                control.onAccelSample(0, 0, MAX_ACCEL);
+            } else {
+                control.onAccelSample(x, y, MAX_ACCEL);
+            }
+            int state = ((i == badSequence) ? ~control.getState() : control.getState());
+            assertTrue(mRecorder.record((i * 1000L), ((i * 1000L) + 1), x, y, MAX_ACCEL,
+                    MAX_ACCEL, state, flags));
+        }
+        awaitWritten(written + RECORDS);
+    }
+
+    public void testReplayMatchesRecording() throws IOException, InterruptedException {
+        recordFlight(SESSION_START_MS, -1);
+
+        final int[] frames = new int[2];
+        FlightReplay replay = new FlightReplay(FlightReplay.AS_FAST_AS_POSSIBLE);
+        replay.setResponseCurves(ResponseCurves.createDefault());
+        replay.setFrameListener(new FlightReplay.FrameListener() {
+            @Override
+            public void onReplayFrame(TelemetryRecord record, byte[] frame, boolean matches) {
+                frames[matches ? 0 : 1]++;
+            }
+        });
+        replay.replay(new TelemetryReader(mDirectory));
+        assertEquals(RECORDS, replay.getRecords());
+        assertEquals(1, replay.getSessions());
+        assertEquals(0, replay.getDroppedRecords());
+        assertEquals(0, replay.getMismatches());
+        assertEquals(-1, replay.getFirstMismatchSequence());
+        assertEquals(RECORDS, frames[0]);
+        assertEquals(0, frames[1]);
+    }
+
+    public void testReplayWithoutCurvesMismatches() throws IOException, InterruptedException {
+        recordFlight(SESSION_START_MS, -1);
+
+        FlightReplay replay = new FlightReplay(FlightReplay.AS_FAST_AS_POSSIBLE);
+        replay.replay(new TelemetryReader(mDirectory));
+        assertEquals(RECORDS, replay.getRecords());
+        assertTrue(0 < replay.getMismatches());
+        assertEquals(SESSION_START_MS, replay.getFirstMismatchSessionMs());
+        // Only records that were flown with curves can differ.
+        assertTrue(0 != (flagsOf(replay.getFirstMismatchSequence()) &
+                TelemetryFormat.FLAG_CURVES));
+    }
+
+    public void testReportsTheFirstMismatch() throws IOException, InterruptedException {
+        recordFlight(SESSION_START_MS, 20);
+
+        FlightReplay replay = new FlightReplay(FlightReplay.AS_FAST_AS_POSSIBLE);
+        replay.setResponseCurves(ResponseCurves.createDefault());
+        replay.replay(new TelemetryReader(mDirectory));
+        assertEquals(1, replay.getMismatches());
+        assertEquals(SESSION_START_MS, replay.getFirstMismatchSessionMs());
+        assertEquals(20, replay.getFirstMismatchSequence());
+    }
+
+    public void testSessionsAreReplayedSeparately() throws IOException, InterruptedException {
+        recordFlight(SESSION_START_MS, -1);
+        recordFlight((SESSION_START_MS + 1), -1);
+
+        FlightReplay replay = new FlightReplay(FlightReplay.AS_FAST_AS_POSSIBLE);
+        replay.setResponseCurves(ResponseCurves.createDefault());
+        replay.replay(new TelemetryReader(mDirectory));
+        assertEquals((2 * RECORDS), replay.getRecords());
+        assertEquals(2, replay.getSessions());
+        assertEquals(0, replay.getDroppedRecords());
+        assertEquals(0, replay.getMismatches());
+    }
+
+    public void testCountsDroppedRecords() throws IOException, InterruptedException {
+        // The writer isn't running yet, so the ring fills up.
+        mRecorder = new TelemetryRecorder(mDirectory, 4, 8);
+        mRecorder.startSession(SESSION_START_MS);
+        for (int i = 0; i < 6; i++) {
+            mRecorder.record(i, i, 0, 0, MAX_ACCEL, MAX_ACCEL, 0, 0);
+        }
+        mRecorder.start();
+        awaitWritten(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mRecorder.record(i, i, 0, 0, MAX_ACCEL, MAX_ACCEL, 0, 0));
+        }
+        awaitWritten(8);
+
+        FlightReplay replay = new FlightReplay(FlightReplay.AS_FAST_AS_POSSIBLE);
+        replay.replay(new TelemetryReader(mDirectory));
+        assertEquals(8, replay.getRecords());
+        assertEquals(2, replay.getDroppedRecords());
+    }
+
+    public void testRejectsNegativeSpeed() {
+        try {
+            new FlightReplay(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.foolsday.quadbridge.core.telemetry;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Records with TelemetryRecorder and reads the segments back with TelemetryReader.
+ */
+public class TelemetryRecorderTest extends TestCase {
+
+    private static final long SESSION_START_MS = 1234;
+    private static final int SEGMENT_RECORDS = 16;
+    // Ends part way into the last segment.
+    private static final int RECORDS = ((3 * SEGMENT_RECORDS) + 5);
+    private static final float MAX_ACCEL = 9.8f;
+    private static final int RSSI = -60;
+    private static final long WAIT_MS = 2000;
+
+    private File mDirectory;
+    private TelemetryRecorder mRecorder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("telemetry", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (null != mRecorder) {
+            mRecorder.stop();
+        }
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private void awaitWritten(long records) throws InterruptedException {
+        long endMs = (System.currentTimeMillis() + WAIT_MS);
+        while ((mRecorder.getRecordsWritten() < records) &&
+                (System.currentTimeMillis() < endMs)) {
+            Thread.sleep(1);
+        }
+        assertEquals(records, mRecorder.getRecordsWritten());
+    }
+
+    private void recordSamples(int count) throws InterruptedException {
+        mRecorder = new TelemetryRecorder(mDirectory, 1024, SEGMENT_RECORDS);
+        mRecorder.start();
+        mRecorder.startSession(SESSION_START_MS);
+        mRecorder.setRssi(RSSI);
+        mRecorder.onCtlWriteComplete(new byte[] {1, 2, 3, 4, 5}, 10, 20);
+
+        Random random = new Random(0);
+        for (int i = 0; i < count; i++) {
+            float x = (((random.nextFloat() * 2) - 1) * MAX_ACCEL);
+            float y = (((random.nextFloat() * 2) - 1) * MAX_ACCEL);
+            assertTrue(mRecorder.record((i * 1000L), ((i * 1000L) + 1), x, y, MAX_ACCEL,
+                    MAX_ACCEL, i, TelemetryFormat.FLAG_BOUND));
+        }
+        awaitWritten(count);
+    }
+
+    private static void assertRecords(TelemetryReader reader, int count) throws IOException {
+        TelemetryRecord record = new TelemetryRecord();
+        Random random = new Random(0);
+        for (int i = 0; i < count; i++) {
+            assertTrue(reader.next(record));
+            assertEquals(SESSION_START_MS, record.getSessionStartMs());
+            assertEquals(i, record.getSequence());
+            assertEquals((i * 1000L), record.getSampleTimeNs());
+            assertEquals(((i * 1000L) + 1), record.getModelTimeNs());
+            assertEquals((((random.nextFloat() * 2) - 1) * MAX_ACCEL), record.getX(), 0);
+            assertEquals((((random.nextFloat() * 2) - 1) * MAX_ACCEL), record.getY(), 0);
+            assertEquals(MAX_ACCEL, record.getMaxAccel(), 0);
+            assertEquals(i, record.getState());
+            assertTrue(record.isBound());
+            assertEquals(5, record.getCtlFrame()[4]);
+            assertEquals(20, record.getWriteCompleteNs());
+            assertEquals(RSSI, record.getRssi());
+        }
+        assertFalse(reader.next(record));
+        reader.close();
+    }
+
+    public void testRecordsReadBack() throws IOException, InterruptedException {
+        recordSamples(RECORDS);
+        mRecorder.stop();
+
+        TelemetryReader reader = new TelemetryReader(mDirectory);
+        assertEquals(4, reader.getSegmentCount());
+        assertRecords(reader, RECORDS);
+    }
+
+    public void testUnclosedSegmentIsReadUpToItsCount() throws IOException,
+            InterruptedException {
+        // As if the app died while recording: the last segment is never closed or cut to size.
+        recordSamples(RECORDS);
+
+        File last = new File(mDirectory, TelemetryFormat.getSegmentName(SESSION_START_MS, 3));
+        assertEquals((TelemetryFormat.HEADER_SIZE +
+                (SEGMENT_RECORDS * TelemetryFormat.RECORD_SIZE)), last.length());
+        assertRecords(new TelemetryReader(mDirectory), RECORDS);
+    }
+
+    public void testSessionSwitchKeepsRecordsApart() throws IOException,
+            InterruptedException {
+        // The writer only sees the switch after the new session's records are in the ring.
+        mRecorder = new TelemetryRecorder(mDirectory, 16, SEGMENT_RECORDS);
+        mRecorder.startSession(SESSION_START_MS);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mRecorder.record(i, i, 0, 0, MAX_ACCEL, MAX_ACCEL, 0, 0));
+        }
+        mRecorder.startSession(SESSION_START_MS + 1);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(mRecorder.record(i, i, 0, 0, MAX_ACCEL, MAX_ACCEL, 0, 0));
+        }
+        mRecorder.start();
+        awaitWritten(5);
+
+        TelemetryReader reader = new TelemetryReader(mDirectory);
+        assertEquals(2, reader.getSegmentCount());
+        TelemetryRecord record = new TelemetryRecord();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(reader.next(record));
+            assertEquals(((3 > i) ? SESSION_START_MS : (SESSION_START_MS + 1)),
+                    record.getSessionStartMs());
+            assertEquals(((3 > i) ? i : (i - 3)), record.getSequence());
+        }
+        assertFalse(reader.next(record));
+    }
+
+    public void testFullRingDropsRecords() throws IOException, InterruptedException {
+        // The writer isn't running yet, so the ring fills up.
+        mRecorder = new TelemetryRecorder(mDirectory, 4, 8);
+        mRecorder.startSession(SESSION_START_MS);
+        for (int i = 0; i < 6; i++) {
+            assertEquals((4 > i), mRecorder.record(i, i, 0, 0, MAX_ACCEL, MAX_ACCEL, 0, 0));
+        }
+        assertEquals(2, mRecorder.getDroppedRecords());
+
+        mRecorder.start();
+        awaitWritten(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mRecorder.record(i, i, 0, 0, MAX_ACCEL, MAX_ACCEL, 0, 0));
+        }
+        awaitWritten(8);
+
+        // The dropped records leave a gap in the sequence numbers.
+        int[] sequences = {0, 1, 2, 3, 6, 7, 8, 9};
+        TelemetryReader reader = new TelemetryReader(mDirectory);
+        TelemetryRecord record = new TelemetryRecord();
+        for (int sequence : sequences) {
+            assertTrue(reader.next(record));
+            assertEquals(sequence, record.getSequence());
+        }
+        assertFalse(reader.next(record));
+    }
+
+    public void testRecordsNothingWithoutSession() {
+        mRecorder = new TelemetryRecorder(mDirectory);
+        assertFalse(mRecorder.record(0, 0, 0, 0, MAX_ACCEL, MAX_ACCEL, 0, 0));
+        assertEquals(0, mRecorder.getDroppedRecords());
+    }
+
+    public void testRejectsInvalidRing() {
+        try {
+            new TelemetryRecorder(mDirectory, 3, 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}